@@ -0,0 +1,33 @@
+package com.arctix.security.otp;
+
+/**
+ * Counter that never moves, so a benchmark keeps hitting the same validation
+ * path no matter how many times it runs.
+ * 
+ * @author aprasa2
+ *
+ */
+class FixedCounter implements Counter {
+
+	private final int value;
+
+	FixedCounter(int value) {
+		this.value = value;
+	}
+
+	@Override
+	public int getCurrentValue() {
+		return value;
+	}
+
+	@Override
+	public int getNextValue() {
+		return value;
+	}
+
+	@Override
+	public int reset() {
+		return value;
+	}
+
+}
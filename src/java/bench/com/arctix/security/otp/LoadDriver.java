@@ -0,0 +1,384 @@
+package com.arctix.security.otp;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.arctix.security.otp.OTPEngine.Result;
+import com.arctix.security.otp.Workload.Op;
+
+/**
+ * Drives an in-process engine with a mix of generations and validations and
+ * reports latency percentiles per op.
+ * 
+ * <ul>
+ * <li>open: every thread issues requests on a fixed schedule adding up to
+ * --rate, whether or not earlier ones finished. Latency is measured from
+ * when a request was due, so a stall shows up in every request it
+ * delayed.</li>
+ * <li>closed: every thread issues a request as soon as the previous one
+ * finished. With --rate the threads are paced and a request that overran
+ * its interval also records the ones it held back, as if they had waited
+ * for it.</li>
+ * <li>replay: requests of a trace written with --record are issued at their
+ * recorded offsets, divided by --speed, measured from when they were
+ * due.</li>
+ * </ul>
+ * 
+ * <pre>
+ * mvn -Pbenchmark package
+ * java -cp target/benchmarks.jar com.arctix.security.otp.LoadDriver --mode open --rate 20000 --record trace.txt
+ * java -cp target/benchmarks.jar com.arctix.security.otp.LoadDriver --mode replay --trace trace.txt
+ * </pre>
+ * 
+ * @author aprasa2
+ *
+ */
+public class LoadDriver {
+
+	static final String DEFAULT_MIX = "generate=70,valid=21,wrong=5,expired=2,swapped=2";
+
+	// park only when the next request is further away than this, parking
+	// oversleeps by tens of micros
+	private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+	private final Workload workload;
+
+	private final int threads;
+
+	private Trace.Writer recorder;
+
+	LoadDriver(Workload workload, int threads) {
+		this.workload = workload;
+		this.threads = threads;
+	}
+
+	/**
+	 * Latencies and result codes of each op.
+	 */
+	static final class Stats {
+
+		private final InMemoryOTPMetrics.Histogram[] latencies = new InMemoryOTPMetrics.Histogram[Op.values().length];
+
+		private final InMemoryOTPMetrics.Histogram all = new InMemoryOTPMetrics.Histogram();
+
+		private final LongAdder[][] codes = new LongAdder[Op.values().length][Result.Code.values().length];
+
+		private final LongAdder skipped = new LongAdder();
+
+		Stats() {
+			for (int i = 0; i < latencies.length; i++) {
+				latencies[i] = new InMemoryOTPMetrics.Histogram();
+				for (int j = 0; j < codes[i].length; j++) {
+					codes[i][j] = new LongAdder();
+				}
+			}
+		}
+
+		void record(Op op, Result.Code code, long nanos) {
+			if (code == null) {
+				skipped.increment();
+				return;
+			}
+			latencies[op.ordinal()].record(nanos);
+			all.record(nanos);
+			codes[op.ordinal()][code.ordinal()].increment();
+		}
+
+		/*
+		 * Records the requests a paced thread could not issue while this one
+		 * ran over, each waiting that much less.
+		 */
+		void recordHeldBack(Op op, long nanos, long intervalNanos) {
+			for (long missed = nanos - intervalNanos; missed > 0; missed -= intervalNanos) {
+				latencies[op.ordinal()].record(missed);
+				all.record(missed);
+			}
+		}
+
+		void print(PrintStream out, long elapsedNanos) {
+			out.printf("%-9s %10s %10s %10s %10s %10s  %s%n", "op", "count", "p50(us)", "p99(us)", "p99.9(us)",
+					"max(us)", "results");
+			for (Op op : Op.values()) {
+				InMemoryOTPMetrics.Histogram latency = latencies[op.ordinal()];
+				if (latency.count() == 0) {
+					continue;
+				}
+				StringBuilder results = new StringBuilder();
+				for (Result.Code code : Result.Code.values()) {
+					long count = codes[op.ordinal()][code.ordinal()].sum();
+					if (count > 0) {
+						results.append(results.length() == 0 ? "" : " ").append(code).append('=').append(count);
+					}
+				}
+				print(out, op.label(), latency, results.toString());
+			}
+			print(out, "all", all, "");
+			out.printf(Locale.ROOT, "%.0f ops/s, %d skipped without a password to validate%n",
+					all.count() * 1e9 / elapsedNanos, skipped.sum());
+		}
+
+		private static void print(PrintStream out, String name, InMemoryOTPMetrics.Histogram latency,
+				String results) {
+			out.printf(Locale.ROOT, "%-9s %10d %10.1f %10.1f %10.1f %10.1f  %s%n", name, latency.count(),
+					latency.percentile(50) / 1e3, latency.percentile(99) / 1e3, latency.percentile(99.9) / 1e3,
+					latency.percentile(100) / 1e3, results);
+		}
+	}
+
+	/**
+	 * Records the requests issued from now on.
+	 * 
+	 * @param recorder
+	 */
+	void setRecorder(Trace.Writer recorder) {
+		this.recorder = recorder;
+	}
+
+	/**
+	 * Runs an open loop for the duration.
+	 * 
+	 * @param ratePerSecond
+	 *            - requests per second of all threads together
+	 * @param nanos
+	 * @param stats
+	 * @return elapsed nanos
+	 */
+	long runOpen(double ratePerSecond, long nanos, Stats stats) throws InterruptedException {
+		long interval = (long) (threads * 1e9 / ratePerSecond);
+		long start = System.nanoTime();
+		long end = start + nanos;
+		return runThreads(start, thread -> {
+			// spread the threads over the interval
+			for (long due = start + interval * thread / threads; due < end; due += interval) {
+				waitUntil(due);
+				issue(due, stats);
+			}
+		});
+	}
+
+	/**
+	 * Runs a closed loop for the duration.
+	 * 
+	 * @param ratePerSecond
+	 *            - requests per second of all threads together, 0 to issue
+	 *            them back to back
+	 * @param nanos
+	 * @param stats
+	 * @return elapsed nanos
+	 */
+	long runClosed(double ratePerSecond, long nanos, Stats stats) throws InterruptedException {
+		long interval = ratePerSecond > 0 ? (long) (threads * 1e9 / ratePerSecond) : 0;
+		long start = System.nanoTime();
+		long end = start + nanos;
+		return runThreads(start, thread -> {
+			long due = start + interval * thread / Math.max(1, threads);
+			while (true) {
+				long begin = interval > 0 ? waitUntil(due) : System.nanoTime();
+				if (begin >= end) {
+					return;
+				}
+				Op op = workload.nextOp();
+				String subject = workload.nextSubject(op);
+				Result.Code code = workload.execute(op, subject);
+				long latency = System.nanoTime() - begin;
+				if (stats != null) {
+					stats.record(op, code, latency);
+					if (interval > 0 && code != null) {
+						stats.recordHeldBack(op, latency, interval);
+					}
+				}
+				record(begin, op, subject);
+				due = Math.max(due + interval, begin + latency);
+			}
+		});
+	}
+
+	/**
+	 * Replays the trace, dispatching each request to the threads when it is
+	 * due.
+	 * 
+	 * @param trace
+	 * @param speed
+	 *            - 2 replays twice as fast as recorded
+	 * @param stats
+	 * @return elapsed nanos
+	 */
+	long replay(Trace.Reader trace, double speed, Stats stats) throws IOException, InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		long start = System.nanoTime();
+		try {
+			Trace.Event event;
+			while ((event = trace.next()) != null) {
+				long due = start + (long) (event.offsetMicros * 1000 / speed);
+				waitUntil(due);
+				Trace.Event replayed = event;
+				pool.execute(() -> {
+					Result.Code code = workload.execute(replayed.op, replayed.subject);
+					stats.record(replayed.op, code, System.nanoTime() - due);
+				});
+			}
+		} finally {
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		}
+		return System.nanoTime() - start;
+	}
+
+	private void issue(long due, Stats stats) {
+		Op op = workload.nextOp();
+		String subject = workload.nextSubject(op);
+		Result.Code code = workload.execute(op, subject);
+		if (stats != null) {
+			stats.record(op, code, System.nanoTime() - due);
+		}
+		record(due, op, subject);
+	}
+
+	private void record(long nanos, Op op, String subject) {
+		if (recorder == null || subject == null) {
+			return;
+		}
+		try {
+			recorder.write(nanos, op, subject);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private interface Loop {
+		void run(int thread);
+	}
+
+	private long runThreads(long start, Loop loop) throws InterruptedException {
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int i = 0; i < threads; i++) {
+			int thread = i;
+			Thread worker = new Thread(() -> loop.run(thread), "load-" + i);
+			worker.setDaemon(true);
+			workers.add(worker);
+			worker.start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		return System.nanoTime() - start;
+	}
+
+	/*
+	 * Returns the time waited until, not before the deadline.
+	 */
+	private static long waitUntil(long deadline) {
+		long now;
+		while ((now = System.nanoTime()) < deadline) {
+			long remaining = deadline - now;
+			if (remaining > SPIN_NANOS) {
+				LockSupport.parkNanos(remaining - SPIN_NANOS);
+			} else {
+				// lets the threads serving requests run on a busy machine
+				Thread.yield();
+			}
+		}
+		return now;
+	}
+
+	public static void main(String[] args) throws Exception {
+		String mode = "closed";
+		int threads = Runtime.getRuntime().availableProcessors();
+		double rate = 0;
+		long duration = 10;
+		long warmup = 5;
+		int subjects = 100000;
+		String mix = DEFAULT_MIX;
+		String trace = null;
+		String record = null;
+		double speed = 1;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			switch (args[i]) {
+			case "--mode":
+				mode = args[i + 1];
+				break;
+			case "--threads":
+				threads = Integer.parseInt(args[i + 1]);
+				break;
+			case "--rate":
+				rate = Double.parseDouble(args[i + 1]);
+				break;
+			case "--duration":
+				duration = Long.parseLong(args[i + 1]);
+				break;
+			case "--warmup":
+				warmup = Long.parseLong(args[i + 1]);
+				break;
+			case "--subjects":
+				subjects = Integer.parseInt(args[i + 1]);
+				break;
+			case "--mix":
+				mix = args[i + 1];
+				break;
+			case "--trace":
+				trace = args[i + 1];
+				break;
+			case "--record":
+				record = args[i + 1];
+				break;
+			case "--speed":
+				speed = Double.parseDouble(args[i + 1]);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+		if (args.length % 2 != 0) {
+			throw new IllegalArgumentException("Missing value of " + args[args.length - 1]);
+		}
+
+		LoadDriver driver = new LoadDriver(new Workload(subjects, Workload.parseMix(mix)), threads);
+		if (warmup > 0) {
+			System.out.printf("Warming up for %d s%n", warmup);
+			driver.runClosed(0, TimeUnit.SECONDS.toNanos(warmup), null);
+		}
+		Stats stats = new Stats();
+		long elapsed;
+		switch (mode) {
+		case "open":
+		case "closed":
+			if ("open".equals(mode) && rate <= 0) {
+				throw new IllegalArgumentException("Open loop needs --rate");
+			}
+			Trace.Writer recorder = record == null ? null : new Trace.Writer(Paths.get(record), System.nanoTime());
+			try {
+				driver.setRecorder(recorder);
+				System.out.printf("Running %s loop for %d s on %d threads%n", mode, duration, threads);
+				elapsed = "open".equals(mode) ? driver.runOpen(rate, TimeUnit.SECONDS.toNanos(duration), stats)
+						: driver.runClosed(rate, TimeUnit.SECONDS.toNanos(duration), stats);
+			} finally {
+				if (recorder != null) {
+					recorder.close();
+				}
+			}
+			break;
+		case "replay":
+			if (trace == null) {
+				throw new IllegalArgumentException("Replay needs --trace");
+			}
+			System.out.printf("Replaying %s at %sx on %d threads%n", trace, speed, threads);
+			try (Trace.Reader reader = new Trace.Reader(Paths.get(trace))) {
+				elapsed = driver.replay(reader, speed, stats);
+			}
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown mode " + mode);
+		}
+		stats.print(System.out, elapsed);
+	}
+
+}
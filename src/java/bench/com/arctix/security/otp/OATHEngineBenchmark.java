@@ -0,0 +1,114 @@
+package com.arctix.security.otp;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * TOTP generation and validation of a subject's codes. A code of the current
+ * step matches on the first HMAC, one of the step ahead on the last, and an
+ * invalid code computes every step of the window. Accepted steps and failed
+ * attempts are not recorded, so the same codes validate in every run.
+ * 
+ * @author aprasa2
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OATHEngineBenchmark {
+
+	private static final String SUBJECT = "CUSTOMERID-12345";
+
+	private OATHEngine engine;
+
+	private String current;
+
+	private String ahead;
+
+	private String invalid;
+
+	@Setup
+	public void setUp() throws Exception {
+		SecretKey key = KeyGenerator.getInstance("HmacSHA1").generateKey();
+		Unrecorded unrecorded = new Unrecorded();
+		engine = OATHEngine.getInstance(key, "HmacSHA1", OATHEngine.DEFAULT_DIGITS, OATHEngine.DEFAULT_TIME_STEP,
+				unrecorded, unrecorded, unrecorded);
+		// pinned, so no run crosses a step
+		engine.timeLapGenerator = new TimeLaps(OTPEngine.TIME_LAP_INTERVAL,
+				Clock.fixed(Instant.ofEpochSecond(1234567890L), ZoneOffset.UTC));
+		current = engine.generateTOTP(SUBJECT);
+		ahead = engine.generateTOTP(SUBJECT, (1234567890L + OATHEngine.DEFAULT_TIME_STEP) * 1000);
+		invalid = current.equals("000000") ? "000001" : "000000";
+	}
+
+	@Benchmark
+	public String generateTOTP() {
+		return engine.generateTOTP(SUBJECT);
+	}
+
+	@Benchmark
+	public boolean validateTOTP() {
+		return engine.validateTOTP(current, SUBJECT);
+	}
+
+	@Benchmark
+	public boolean validateTOTPAhead() {
+		return engine.validateTOTP(ahead, SUBJECT);
+	}
+
+	@Benchmark
+	public boolean validateTOTPInvalid() {
+		return engine.validateTOTP(invalid, SUBJECT);
+	}
+
+	/**
+	 * Store and counter forgetting every update.
+	 */
+	private static final class Unrecorded implements MovingFactorStore, Counter {
+
+		@Override
+		public long getFactor(String subject) {
+			return 0;
+		}
+
+		@Override
+		public boolean compareAndSet(String subject, long expected, long update) {
+			return true;
+		}
+
+		@Override
+		public int getCurrentValue() {
+			return 0;
+		}
+
+		@Override
+		public int getNextValue() {
+			return 1;
+		}
+
+		@Override
+		public int reset() {
+			return 0;
+		}
+	}
+
+}
@@ -0,0 +1,63 @@
+package com.arctix.security.otp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Checksum handling of {@link OTP}.
+ * 
+ * @author aprasa2
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class OTPBenchmark {
+
+	private final OTP otp = new OTP("4440993", "");
+
+	private final OTP otpWithChecksum = otp.generateChecksum();
+
+	private final OTP otpLuhn = new OTP(otp.getPassword(), "").generateChecksum(CheckDigit.LUHN);
+
+	private final OTP otpDamm = new OTP(otp.getPassword(), "").generateChecksum(CheckDigit.DAMM);
+
+	@Benchmark
+	public OTP generateChecksum() {
+		return otp.generateChecksum();
+	}
+
+	@Benchmark
+	public boolean hasValidChecksum() {
+		return otpWithChecksum.hasValidChecksum();
+	}
+
+	@Benchmark
+	public boolean hasValidChecksumLuhn() {
+		return otpLuhn.hasValidChecksum(CheckDigit.LUHN);
+	}
+
+	@Benchmark
+	public boolean hasValidChecksumDamm() {
+		return otpDamm.hasValidChecksum(CheckDigit.DAMM);
+	}
+
+	@Benchmark
+	public String generateChecksumPassword() {
+		// the string is only built when asked for
+		return otp.generateChecksum().getPassword();
+	}
+
+}
@@ -0,0 +1,272 @@
+package com.arctix.security.otp;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.arctix.security.otp.OTPEngine.Result;
+
+/**
+ * Generate and validate paths of the OTP engine. Every validation outcome
+ * has its own engine whose counter is pinned, so repeated runs stay on the
+ * same path. The Contended variants share one engine across all available
+ * processors; the batch variants report throughput per password. The Legacy
+ * variants validate version 1 tokens, which scan every lap of the window. The
+ * Metered variant reports to in-memory metrics, for comparing against the
+ * default of no metrics. The Session variants use params several blocks long,
+ * as version 2 tokens and as version 4 tokens with and without a prepared
+ * subject context.
+ * 
+ * @author aprasa2
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OTPEngineBenchmark {
+
+	static final int BATCH_SIZE = 4096;
+
+	private final String[] params = new String[] { "0010000123434343" };
+
+	private final String[] sessionParams = new String[] { "0010000123434343", "mobile-app-7f3a9c2164e04b1d",
+			"session-1b9e5c2d7a8f4e6b9c0d3a5f7e1b2c4d", "https://login.example.com/otp/confirm" };
+
+	private OTPEngine engine;
+
+	private OTPEngine expiredEngine;
+
+	private OTPEngine lockedEngine;
+
+	private OTPEngine replayEngine;
+
+	private OTPEngine meteredEngine;
+
+	private OTPEngine keyedEngine;
+
+	private OTPEngine subjectEngine;
+
+	private SubjectContext subject;
+
+	private OTP otp;
+
+	private OTP swappedOtp;
+
+	private OTP legacyOtp;
+
+	private OTP keyedOtp;
+
+	private OTP sessionOtp;
+
+	private OTP subjectOtp;
+
+	private final List<String[]> batch = new ArrayList<String[]>();
+
+	private List<OTP> batchOtps;
+
+	@Setup
+	public void setUp() throws Exception {
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			batch.add(new String[] { "CUSTOMER-" + i });
+		}
+
+		SecretKey key = KeyGenerator.getInstance("AES").generateKey();
+
+		// the same code is validated over and over
+		engine = OTPEngine.getInstance(key, new FixedCounter(0));
+		engine.setReplayCache(null);
+		otp = engine.generatePasswordWithHmac(params);
+		batchOtps = engine.generatePasswordsWithHmac(batch);
+
+		OTP otherOtp = engine.generatePasswordWithHmac(new String[] { "98765432100" });
+		swappedOtp = new OTP(otherOtp.getPassword(), otp.getHmac());
+
+		OTPEngine legacyEngine = OTPEngine.getInstance(key, new FixedCounter(0));
+		legacyEngine.setTokenVersion(OTPEngine.LEGACY_TOKEN_VERSION);
+		legacyOtp = legacyEngine.generatePasswordWithHmac(params);
+
+		expiredEngine = OTPEngine.getInstance(key, new FixedCounter(0));
+		expiredEngine.timeLapGenerator = getTimeLapFromFuture(OTPEngine.PASSWORD_EXPRIRY + OTPEngine.TIME_LAP_INTERVAL);
+
+		// each attempt is counted before it is checked
+		lockedEngine = OTPEngine.getInstance(key, new FixedCounter(OTPEngine.MAX_ATTEMPTS + 2));
+
+		meteredEngine = OTPEngine.getInstance(key, new FixedCounter(0));
+		meteredEngine.setReplayCache(null);
+		meteredEngine.setMetrics(new InMemoryOTPMetrics());
+
+		// a code of the replaced key, validated while it is retiring
+		KeyRing keyRing = new KeyRing(1, key);
+		keyedEngine = OTPEngine.getInstance(keyRing, new FixedCounter(0));
+		keyedEngine.setReplayCache(null);
+		keyedOtp = keyedEngine.generatePasswordWithHmac(params);
+		keyRing.add(2, KeyGenerator.getInstance("AES").generateKey());
+		keyRing.promote(2);
+
+		sessionOtp = engine.generatePasswordWithHmac(sessionParams);
+		subjectEngine = OTPEngine.getInstance(key, new FixedCounter(0));
+		subjectEngine.setReplayCache(null);
+		subjectEngine.setTokenVersion(OTPEngine.SUBJECT_TOKEN_VERSION);
+		subject = subjectEngine.createSubjectContext(sessionParams);
+		subjectOtp = subjectEngine.generatePasswordWithHmac(subject);
+
+		replayEngine = OTPEngine.getInstance(key, new FixedCounter(0));
+		replayEngine.validatePasswordWithHmac(otp, params);
+	}
+
+	@Benchmark
+	public OTP generate() {
+		return engine.generatePasswordWithHmac(params);
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public OTP generateContended() {
+		return engine.generatePasswordWithHmac(params);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public List<OTP> generateBatch() {
+		return engine.generatePasswordsWithHmac(batch);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public List<OTP> generateSequential() {
+		List<OTP> otps = new ArrayList<OTP>(batch.size());
+		for (String[] params : batch) {
+			otps.add(engine.generatePasswordWithHmac(params));
+		}
+		return otps;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public List<Result> validateBatch() {
+		return engine.validatePasswordsWithHmac(batchOtps, batch);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public List<Result> validateSequential() {
+		List<Result> results = new ArrayList<Result>(batch.size());
+		for (int i = 0; i < batch.size(); i++) {
+			results.add(engine.validatePasswordWithHmac(batchOtps.get(i), batch.get(i)));
+		}
+		return results;
+	}
+
+	@Benchmark
+	public Result validateSuccess() {
+		return engine.validatePasswordWithHmac(otp, params);
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public Result validateSuccessContended() {
+		return engine.validatePasswordWithHmac(otp, params);
+	}
+
+	@Benchmark
+	public Result validateSuccessMetered() {
+		return meteredEngine.validatePasswordWithHmac(otp, params);
+	}
+
+	@Benchmark
+	public Result validateSuccessAsync() {
+		return engine.validatePasswordWithHmacAsync(otp, params).join();
+	}
+
+	@Benchmark
+	public Result validateKeyed() {
+		return keyedEngine.validatePasswordWithHmac(keyedOtp, params);
+	}
+
+	@Benchmark
+	public OTP generateSession() {
+		return engine.generatePasswordWithHmac(sessionParams);
+	}
+
+	@Benchmark
+	public OTP generateSessionSubject() {
+		return subjectEngine.generatePasswordWithHmac(subject);
+	}
+
+	@Benchmark
+	public OTP generateSessionSubjectParams() {
+		return subjectEngine.generatePasswordWithHmac(sessionParams);
+	}
+
+	@Benchmark
+	public Result validateSession() {
+		return engine.validatePasswordWithHmac(sessionOtp, sessionParams);
+	}
+
+	@Benchmark
+	public Result validateSessionSubject() {
+		return subjectEngine.validatePasswordWithHmac(subjectOtp, subject);
+	}
+
+	@Benchmark
+	public Result validateSessionSubjectParams() {
+		return subjectEngine.validatePasswordWithHmac(subjectOtp, sessionParams);
+	}
+
+	@Benchmark
+	public Result validateExpired() {
+		return expiredEngine.validatePasswordWithHmac(otp, params);
+	}
+
+	@Benchmark
+	public Result validateLegacy() {
+		return engine.validatePasswordWithHmac(legacyOtp, params);
+	}
+
+	@Benchmark
+	public Result validateLegacyExpired() {
+		return expiredEngine.validatePasswordWithHmac(legacyOtp, params);
+	}
+
+	@Benchmark
+	public Result validateSwappedCode() {
+		return engine.validatePasswordWithHmac(swappedOtp, params);
+	}
+
+	@Benchmark
+	public Result validateReplayed() {
+		return replayEngine.validatePasswordWithHmac(otp, params);
+	}
+
+	@Benchmark
+	public Result validateMaxAttempts() {
+		return lockedEngine.validatePasswordWithHmac(otp, params);
+	}
+
+	private static TimeLaps getTimeLapFromFuture(final int minutesIntoFuture) {
+		return new TimeLaps(OTPEngine.TIME_LAP_INTERVAL,
+				Clock.offset(Clock.systemDefaultZone(), Duration.ofMinutes(minutesIntoFuture)));
+	}
+
+}
@@ -0,0 +1,64 @@
+package com.arctix.security.otp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Password generation through the shared random number generator, and
+ * through one backed by a pool of ready codes.
+ * 
+ * @author aprasa2
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RandomNumberGeneratorBenchmark {
+
+	private final RandomNumberGenerator rng = RandomNumberGenerator.getInstance();
+
+	private final RandomNumberGenerator pooledRng = RandomNumberGenerator.getInstance(
+			RandomNumberGenerator.DEFAULT_DIGITS, 1 << 16);
+
+	@TearDown
+	public void tearDown() {
+		pooledRng.close();
+	}
+
+	@Benchmark
+	public int getRandomInt() {
+		return rng.getRandomInt();
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public int getRandomIntContended() {
+		return rng.getRandomInt();
+	}
+
+	@Benchmark
+	public int getRandomIntPooled() {
+		return pooledRng.getRandomInt();
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public int getRandomIntPooledContended() {
+		return pooledRng.getRandomInt();
+	}
+
+}
@@ -0,0 +1,55 @@
+package com.arctix.security.otp;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Recording and looking up used codes. Inserts use random digests; the
+ * cache is sized so that a measurement run does not fill a lap.
+ * 
+ * @author aprasa2
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReplayCacheBenchmark {
+
+	private final ReplayCache cache = new ReplayCache(OTPEngine.TIME_LAP_INTERVAL, OTPEngine.PASSWORD_EXPRIRY,
+			1 << 26);
+
+	private final String[] params = new String[] { "0010000123434343" };
+
+	private final String hmac = "4A1F9C2D7E3B5A6C8D9E0F1A2B3C4D5E6F7A8B9C";
+
+	@Benchmark
+	public boolean markUsed() {
+		return cache.markUsed(ThreadLocalRandom.current().nextLong() | 1);
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public boolean markUsedContended() {
+		return cache.markUsed(ThreadLocalRandom.current().nextLong() | 1);
+	}
+
+	@Benchmark
+	public boolean digestAndCheck() {
+		return cache.isUsed(cache.digest(hmac, params));
+	}
+
+}
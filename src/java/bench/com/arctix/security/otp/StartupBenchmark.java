@@ -0,0 +1,70 @@
+package com.arctix.security.otp;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.KeyGenerator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.arctix.security.otp.OTPEngine.Result;
+
+/**
+ * Latency of the first requests after a deploy, each fork being a fresh JVM.
+ * The engine is created before measuring, as a service does on start, and
+ * warmed with the given cycles unless none. firstRequest is the time to the
+ * first generated and validated password, firstThousand the time to the
+ * thousandth, which shows how far from steady state the engine starts.
+ * 
+ * @author aprasa2
+ *
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(10)
+@State(Scope.Thread)
+public class StartupBenchmark {
+
+	static final int REQUESTS = 1000;
+
+	@Param({ "0", "1000", "10000" })
+	public int warmUpCycles;
+
+	private OTPEngine engine;
+
+	@Setup
+	public void setUp() throws Exception {
+		engine = OTPEngine.getInstance(KeyGenerator.getInstance("AES").generateKey());
+		if (warmUpCycles > 0) {
+			engine.warmUp(warmUpCycles);
+		}
+	}
+
+	@Benchmark
+	public Result firstRequest() {
+		String[] params = new String[] { "0010000123434343" };
+		return engine.validatePasswordWithHmac(engine.generatePasswordWithHmac(params), params);
+	}
+
+	@Benchmark
+	public Result firstThousand() {
+		Result result = null;
+		for (int i = 0; i < REQUESTS; i++) {
+			String[] params = new String[] { "CUSTOMER-" + i };
+			result = engine.validatePasswordWithHmac(engine.generatePasswordWithHmac(params), params);
+		}
+		return result;
+	}
+
+}
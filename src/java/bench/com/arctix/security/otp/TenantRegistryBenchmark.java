@@ -0,0 +1,121 @@
+package com.arctix.security.otp;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Engines of many tenants. generateRebuilt builds the engine of the tenant on
+ * every request, initializing its MAC each time, for comparing against
+ * generate through the registry. The Skewed variants look up 50,000 tenants
+ * through a registry keeping 10,000, a few tenants taking most requests, and
+ * print the hit rate at the end.
+ * 
+ * @author aprasa2
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TenantRegistryBenchmark {
+
+	static final int TENANTS = 50000;
+
+	static final int CAPACITY = 10000;
+
+	static final int SAMPLES = 1 << 16;
+
+	private final String[] params = new String[] { "0010000123434343" };
+
+	private final KeyLoader loader = TenantRegistryBenchmark::keyOf;
+
+	private final Counter counter = new FixedCounter(0);
+
+	private TenantRegistry registry;
+
+	private TenantRegistry skewedRegistry;
+
+	// tenants to look up, the first few far more often than the rest
+	private final String[] skewed = new String[SAMPLES];
+
+	@Setup
+	public void setUp() {
+		registry = new TenantRegistry(loader, "HmacSHA1", counter, null, CAPACITY);
+		registry.getEngine("BRAND-0");
+
+		skewedRegistry = new TenantRegistry(loader, "HmacSHA1", counter, null, CAPACITY);
+		Random random = new Random(42);
+		for (int i = 0; i < SAMPLES; i++) {
+			double u = random.nextDouble();
+			skewed[i] = "BRAND-" + (int) (TENANTS * u * u * u);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		long hits = skewedRegistry.getHits();
+		long lookups = hits + skewedRegistry.getMisses();
+		if (lookups > 0) {
+			System.out.printf("%nSkewed hit rate %.3f, %d evictions, %d kept%n", (double) hits / lookups,
+					skewedRegistry.getEvictions(), skewedRegistry.size());
+		}
+	}
+
+	@Benchmark
+	public OTPEngine lookup() {
+		return registry.getEngine("BRAND-0");
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public OTPEngine lookupContended() {
+		return registry.getEngine("BRAND-0");
+	}
+
+	@Benchmark
+	public OTPEngine lookupSkewed() {
+		return skewedRegistry.getEngine(skewed[ThreadLocalRandom.current().nextInt(SAMPLES)]);
+	}
+
+	@Benchmark
+	public OTP generate() {
+		return registry.getEngine("BRAND-0").generatePasswordWithHmac(params);
+	}
+
+	@Benchmark
+	public OTP generateRebuilt() {
+		return OTPEngine.getInstance(keyOf("BRAND-0"), "HmacSHA1", counter).generatePasswordWithHmac(params);
+	}
+
+	// derives a key per tenant, as a vault would return
+	private static SecretKey keyOf(String tenant) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return new SecretKeySpec(digest.digest(tenant.getBytes(StandardCharsets.UTF_8)), "RAW");
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+}
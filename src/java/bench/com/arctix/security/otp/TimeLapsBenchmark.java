@@ -0,0 +1,59 @@
+package com.arctix.security.otp;
+
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lap computation for the validation window used by the engine. The
+ * Calendar variants build new laps on every call, the window variants read
+ * the cached window.
+ * 
+ * @author aprasa2
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TimeLapsBenchmark {
+
+	private final TimeLaps timeLaps = new TimeLaps(OTPEngine.TIME_LAP_INTERVAL);
+
+	private final int periods = OTPEngine.PASSWORD_EXPRIRY / OTPEngine.TIME_LAP_INTERVAL;
+
+	@Benchmark
+	public Calendar[] getPreviousTimeLaps() {
+		return timeLaps.getPreviousTimeLap(periods);
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public Calendar[] getPreviousTimeLapsContended() {
+		return timeLaps.getPreviousTimeLap(periods);
+	}
+
+	@Benchmark
+	public LapWindow getLapWindow() {
+		return timeLaps.getLapWindow(periods);
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public LapWindow getLapWindowContended() {
+		return timeLaps.getLapWindow(periods);
+	}
+
+}
@@ -0,0 +1,129 @@
+package com.arctix.security.otp;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import com.arctix.security.otp.Workload.Op;
+
+/**
+ * Recorded requests, one per line: the micros since the start of the
+ * recording, the op and the subject, separated by spaces. Blank lines and
+ * lines starting with # are ignored.
+ * 
+ * <pre>
+ * # offset-micros op subject
+ * 0 generate CUSTOMER-17
+ * 1250 generate CUSTOMER-942
+ * 31877 valid CUSTOMER-17
+ * </pre>
+ * 
+ * @author aprasa2
+ *
+ */
+final class Trace {
+
+	/**
+	 * One recorded request.
+	 */
+	static final class Event {
+
+		final long offsetMicros;
+
+		final Op op;
+
+		final String subject;
+
+		Event(long offsetMicros, Op op, String subject) {
+			this.offsetMicros = offsetMicros;
+			this.op = op;
+			this.subject = subject;
+		}
+	}
+
+	private Trace() {
+	}
+
+	/**
+	 * Reads events one at a time, so traces of any length can be replayed.
+	 */
+	static final class Reader implements Closeable {
+
+		private final BufferedReader reader;
+
+		private int line = 0;
+
+		Reader(Path path) throws IOException {
+			reader = Files.newBufferedReader(path, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * Returns the next event, null at the end of the trace.
+		 * 
+		 * @return
+		 * @throws IOException
+		 *             if the trace cannot be read or a line is malformed
+		 */
+		Event next() throws IOException {
+			String text;
+			while ((text = reader.readLine()) != null) {
+				line++;
+				text = text.trim();
+				if (text.isEmpty() || text.startsWith("#")) {
+					continue;
+				}
+				String[] fields = text.split("\\s+");
+				if (fields.length != 3) {
+					throw new IOException("Line " + line + " does not have 3 fields: " + text);
+				}
+				try {
+					return new Event(Long.parseLong(fields[0]), Op.parse(fields[1]), fields[2]);
+				} catch (IllegalArgumentException e) {
+					throw new IOException("Line " + line + " is malformed: " + text, e);
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public void close() throws IOException {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Appends events from any number of threads.
+	 */
+	static final class Writer implements Closeable {
+
+		private final BufferedWriter writer;
+
+		private final long startNanos;
+
+		Writer(Path path, long startNanos) throws IOException {
+			this.writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8);
+			this.startNanos = startNanos;
+			writer.write("# offset-micros op subject");
+			writer.newLine();
+		}
+
+		synchronized void write(long nanos, Op op, String subject) throws IOException {
+			writer.write(Long.toString((nanos - startNanos) / 1000));
+			writer.write(' ');
+			writer.write(op.label());
+			writer.write(' ');
+			writer.write(subject);
+			writer.newLine();
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			writer.close();
+		}
+	}
+
+}
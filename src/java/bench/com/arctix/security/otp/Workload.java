@@ -0,0 +1,214 @@
+package com.arctix.security.otp;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import com.arctix.security.otp.OTPEngine.Result;
+
+/**
+ * Operations of the load driver against an in-process engine. Passwords
+ * generated are kept per subject until validated, so validations use codes
+ * a user could actually hold: the right one, one with a mistyped digit, one
+ * past its expiry or one belonging to someone else.
+ * 
+ * @author aprasa2
+ *
+ */
+final class Workload {
+
+	/**
+	 * Kinds of requests, in the order of the mix.
+	 */
+	enum Op {
+		GENERATE, VALID, WRONG, EXPIRED, SWAPPED;
+
+		static Op parse(String name) {
+			return valueOf(name.toUpperCase(Locale.ROOT));
+		}
+
+		String label() {
+			return name().toLowerCase(Locale.ROOT);
+		}
+	}
+
+	// subjects with an expired password prepared up front
+	private static final int EXPIRED_POOL = 4096;
+
+	// subjects a thread remembers having generated for
+	private static final int RECENT_SUBJECTS = 1024;
+
+	private final OTPEngine engine;
+
+	private final String[] subjects;
+
+	private final int[] cumulativeWeights;
+
+	private final ConcurrentHashMap<String, OTP> issued = new ConcurrentHashMap<String, OTP>();
+
+	// never changed after construction
+	private final Map<String, OTP> expired = new HashMap<String, OTP>();
+
+	private final String[] expiredSubjects;
+
+	private final ThreadLocal<ArrayDeque<String>> recent = ThreadLocal.withInitial(ArrayDeque::new);
+
+	/**
+	 * Creates an engine with a random key and in-memory counter.
+	 * 
+	 * @param subjects
+	 *            - number of distinct users
+	 * @param weights
+	 *            - share of each op, indexed by ordinal
+	 */
+	Workload(int subjects, int[] weights) throws Exception {
+		SecretKey key = KeyGenerator.getInstance("AES").generateKey();
+		engine = OTPEngine.getInstance(key, new InMemorySubjectCounter());
+		this.subjects = new String[subjects];
+		for (int i = 0; i < subjects; i++) {
+			this.subjects[i] = "CUSTOMER-" + i;
+		}
+		cumulativeWeights = new int[weights.length];
+		int total = 0;
+		for (int i = 0; i < weights.length; i++) {
+			total += weights[i];
+			cumulativeWeights[i] = total;
+		}
+		if (total <= 0) {
+			throw new IllegalArgumentException("Mix has no operations");
+		}
+
+		// an engine running behind by more than the expiry issues them
+		OTPEngine past = OTPEngine.getInstance(key, new InMemorySubjectCounter());
+		past.timeLapGenerator = new TimeLaps(OTPEngine.TIME_LAP_INTERVAL,
+				Clock.offset(Clock.systemUTC(), Duration.ofMinutes(-2L * OTPEngine.PASSWORD_EXPRIRY)));
+		expiredSubjects = new String[Math.min(subjects, EXPIRED_POOL)];
+		for (int i = 0; i < expiredSubjects.length; i++) {
+			expiredSubjects[i] = this.subjects[i];
+			expired.put(expiredSubjects[i], past.generatePasswordWithHmac(new String[] { expiredSubjects[i] }));
+		}
+	}
+
+	/**
+	 * Parses a mix such as "generate=70,valid=21,wrong=5,expired=2,swapped=2".
+	 * Ops left out get no share.
+	 * 
+	 * @param mix
+	 * @return weights indexed by ordinal
+	 */
+	static int[] parseMix(String mix) {
+		int[] weights = new int[Op.values().length];
+		for (String part : mix.split(",")) {
+			String[] pair = part.trim().split("=");
+			if (pair.length != 2) {
+				throw new IllegalArgumentException("Invalid mix entry " + part);
+			}
+			weights[Op.parse(pair[0].trim()).ordinal()] = Integer.parseInt(pair[1].trim());
+		}
+		return weights;
+	}
+
+	/**
+	 * Picks the next op by the mix.
+	 * 
+	 * @return
+	 */
+	Op nextOp() {
+		int pick = ThreadLocalRandom.current().nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+		for (int i = 0; i < cumulativeWeights.length; i++) {
+			if (pick < cumulativeWeights[i]) {
+				return Op.values()[i];
+			}
+		}
+		throw new IllegalStateException();
+	}
+
+	/**
+	 * Picks the subject of the op: a random one for generation, one this
+	 * thread generated for otherwise. Null if the thread has none yet.
+	 * 
+	 * @param op
+	 * @return
+	 */
+	String nextSubject(Op op) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		switch (op) {
+		case GENERATE:
+			return subjects[random.nextInt(subjects.length)];
+		case EXPIRED:
+			return expiredSubjects[random.nextInt(expiredSubjects.length)];
+		case VALID:
+			return recent.get().pollLast();
+		default:
+			return recent.get().peekLast();
+		}
+	}
+
+	/**
+	 * Runs the op for the subject. Returns null if there is nothing to
+	 * validate, such as a subject without an outstanding password.
+	 * 
+	 * @param op
+	 * @param subject
+	 * @return
+	 */
+	Result.Code execute(Op op, String subject) {
+		if (subject == null) {
+			return null;
+		}
+		String[] params = new String[] { subject };
+		switch (op) {
+		case GENERATE: {
+			Result result = engine.tryGeneratePasswordWithHmac(params);
+			if (result.getOtp() != null) {
+				issued.put(subject, result.getOtp());
+				ArrayDeque<String> subjects = recent.get();
+				if (subjects.size() == RECENT_SUBJECTS) {
+					subjects.pollFirst();
+				}
+				subjects.addLast(subject);
+			}
+			return result.getResultCode();
+		}
+		case VALID: {
+			OTP otp = issued.remove(subject);
+			return otp == null ? null : engine.validatePasswordWithHmac(otp, params).getResultCode();
+		}
+		case WRONG: {
+			OTP otp = issued.get(subject);
+			return otp == null ? null : engine.validatePasswordWithHmac(mistype(otp), params).getResultCode();
+		}
+		case EXPIRED: {
+			OTP otp = expired.get(subject);
+			return otp == null ? null : engine.validatePasswordWithHmac(otp, params).getResultCode();
+		}
+		case SWAPPED: {
+			OTP otp = issued.get(subject);
+			String other = subjects[ThreadLocalRandom.current().nextInt(subjects.length)];
+			return otp == null ? null
+					: engine.validatePasswordWithHmac(otp, new String[] { other }).getResultCode();
+		}
+		default:
+			throw new IllegalArgumentException("Unknown op " + op);
+		}
+	}
+
+	/*
+	 * Changes one digit of the password, as a user misreading it would.
+	 */
+	private static OTP mistype(OTP otp) {
+		char[] digits = otp.getPassword().toCharArray();
+		int i = ThreadLocalRandom.current().nextInt(digits.length);
+		digits[i] = (char) ('0' + (digits[i] - '0' + 1 + ThreadLocalRandom.current().nextInt(9)) % 10);
+		return new OTP(new String(digits), otp.getHmac());
+	}
+
+}
@@ -0,0 +1,76 @@
+package com.arctix.security.otp.delivery;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Passwords delivered per millisecond through the pipeline to an in-memory
+ * channel, one at a time and in bursts of a hundred. The latency of the
+ * channel stands in for the round trip to a provider, which batching pays
+ * once per batch rather than once per password.
+ * 
+ * @author aprasa2
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DeliveryPipelineBenchmark {
+
+	private static final int BURST = 100;
+
+	// per batch, in micros
+	@Param({ "0", "1000" })
+	private long latency;
+
+	private final Delivery delivery = new Delivery("+15550100", "4440993");
+
+	private DeliveryPipeline pipeline;
+
+	@Setup
+	public void setUp() {
+		InMemoryChannel channel = new InMemoryChannel("sms", BURST, latency, TimeUnit.MICROSECONDS);
+		pipeline = new DeliveryPipeline(Arrays.asList(channel), DeliveryPipeline.DEFAULT_QUEUE_CAPACITY, 1, 0,
+				TimeUnit.SECONDS);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		pipeline.close();
+	}
+
+	@Benchmark
+	public Delivery.Status deliverOne() {
+		return pipeline.deliver("sms", delivery).join();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BURST)
+	public Delivery.Status deliverBurst() {
+		CompletableFuture<Delivery.Status> last = null;
+		for (int i = 0; i < BURST; i++) {
+			last = pipeline.deliver("sms", delivery);
+		}
+		return last.join();
+	}
+
+}
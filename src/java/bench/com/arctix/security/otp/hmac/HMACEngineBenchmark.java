@@ -0,0 +1,89 @@
+package com.arctix.security.otp.hmac;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * String and byte level HMAC generation and validation on a shared engine,
+ * for the JCA algorithms and their plain Java counterparts.
+ * 
+ * @author aprasa2
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HMACEngineBenchmark {
+
+	@Param({ "HmacSHA1", HMACEngine.FAST_HMAC_SHA1, "HmacSHA256", HMACEngine.FAST_HMAC_SHA256 })
+	private String algorithm;
+
+	private final String code = "4440993";
+
+	private final String[] params = new String[] { "0010000123434343", "201501010000" };
+
+	private final byte[] codeBytes = code.getBytes();
+
+	private final byte[][] paramBytes = new byte[][] { params[0].getBytes(), params[1].getBytes() };
+
+	private HMACEngine engine;
+
+	private String hmac;
+
+	private byte[] hmacBytes;
+
+	@Setup
+	public void setUp() throws Exception {
+		SecretKey key = KeyGenerator.getInstance("AES").generateKey();
+		engine = HMACEngine.getInstance(key, algorithm);
+		hmac = engine.generateHMAC(code, params);
+		hmacBytes = new byte[engine.getMacLength()];
+		engine.generateHMAC(codeBytes, paramBytes, hmacBytes, 0);
+	}
+
+	@Benchmark
+	public String generateHMAC() {
+		return engine.generateHMAC(code, params);
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public String generateHMACContended() {
+		return engine.generateHMAC(code, params);
+	}
+
+	@Benchmark
+	public boolean validateHMAC() {
+		return engine.validateHMAC(hmac, code, params);
+	}
+
+	@Benchmark
+	public boolean validateHMACBytes() {
+		return engine.validateHMAC(hmacBytes, 0, hmacBytes.length, codeBytes, paramBytes);
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public boolean validateHMACBytesContended() {
+		return engine.validateHMAC(hmacBytes, 0, hmacBytes.length, codeBytes, paramBytes);
+	}
+
+}
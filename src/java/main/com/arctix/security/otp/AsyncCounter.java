@@ -0,0 +1,76 @@
+package com.arctix.security.otp;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Non-blocking flavour of {@link Counter} for providers whose store is a
+ * network round trip away, such as a database or cache shared by a cluster.
+ * Each method starts the operation and returns at once; the future completes
+ * with the same value the corresponding Counter method returns.
+ * Implementations are shared by all threads using an engine and must be
+ * thread-safe.
+ * 
+ * Existing synchronous counters are adapted with {@link #of(Counter)} or
+ * {@link #of(Counter, Executor)}.
+ * 
+ * @author aprasa2
+ *
+ */
+public interface AsyncCounter {
+
+	/**
+	 * Return current value of counter for the subject
+	 * @param subject
+	 * @return
+	 */
+	public CompletableFuture<Integer> getCurrentValueAsync(String subject);
+
+	/**
+	 * Get next value in sequence of counter for the subject.
+	 * @param subject
+	 * @return
+	 */
+	public CompletableFuture<Integer> getNextValueAsync(String subject);
+
+	/**
+	 * Reset counter value of the subject to zero.
+	 * @param subject
+	 * @return
+	 */
+	public CompletableFuture<Integer> resetAsync(String subject);
+
+	/**
+	 * Adapts a counter that answers quickly, such as an in-memory one. Its
+	 * methods run on the calling thread and return completed futures.
+	 * 
+	 * @param counter
+	 * @return
+	 */
+	public static AsyncCounter of(Counter counter) {
+		return new SyncCounterAdapter(counter, null);
+	}
+
+	/**
+	 * Adapts a blocking counter by running its methods on the given executor,
+	 * so callers are not blocked while it waits on its store.
+	 * 
+	 * @param counter
+	 * @param executor
+	 * @return
+	 */
+	public static AsyncCounter of(Counter counter, Executor executor) {
+		return new SyncCounterAdapter(counter, executor);
+	}
+
+	/**
+	 * Returns a Counter that waits for the given async counter. The methods
+	 * without a subject count the default subject "".
+	 * 
+	 * @param counter
+	 * @return
+	 */
+	public static Counter blocking(AsyncCounter counter) {
+		return new BlockingCounterAdapter(counter);
+	}
+}
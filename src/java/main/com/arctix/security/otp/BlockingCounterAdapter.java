@@ -0,0 +1,66 @@
+package com.arctix.security.otp;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Presents an AsyncCounter as a Counter by waiting for each operation. The
+ * methods without a subject count the default subject, as other counters
+ * do.
+ * 
+ * @author aprasa2
+ *
+ */
+final class BlockingCounterAdapter implements Counter {
+
+	// subject used by the methods without one
+	private static final String DEFAULT_SUBJECT = "";
+
+	private final AsyncCounter counter;
+
+	BlockingCounterAdapter(AsyncCounter counter) {
+		this.counter = counter;
+	}
+
+	@Override
+	public int getCurrentValue() {
+		return getCurrentValue(DEFAULT_SUBJECT);
+	}
+
+	@Override
+	public int getNextValue() {
+		return getNextValue(DEFAULT_SUBJECT);
+	}
+
+	@Override
+	public int reset() {
+		return reset(DEFAULT_SUBJECT);
+	}
+
+	@Override
+	public int getCurrentValue(String subject) {
+		return await(counter.getCurrentValueAsync(subject));
+	}
+
+	@Override
+	public int getNextValue(String subject) {
+		return await(counter.getNextValueAsync(subject));
+	}
+
+	@Override
+	public int reset(String subject) {
+		return await(counter.resetAsync(subject));
+	}
+
+	private static int await(CompletableFuture<Integer> future) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+}
@@ -0,0 +1,106 @@
+package com.arctix.security.otp;
+
+/**
+ * Computes the check digit appended to generated passwords, so that most
+ * mistyped passwords are rejected before any HMAC is computed. Check digits
+ * are computed on the code as a number; leading zeros never change them.
+ * Implementations must be thread-safe.
+ * 
+ * @author aprasa2
+ *
+ */
+public interface CheckDigit {
+
+	/**
+	 * Weights the digits alternately by 3 and 1 from the right, as EAN and UPC
+	 * barcodes do. Catches every single digit error and adjacent
+	 * transpositions except of digits differing by 5. The default.
+	 */
+	public static final CheckDigit WEIGHTED = new CheckDigit() {
+		@Override
+		public int compute(long code) {
+			int sum = 0;
+			for (boolean tripled = true; code > 0; code /= 10, tripled = !tripled) {
+				int digit = (int) (code % 10);
+				sum += tripled ? digit * 3 : digit;
+			}
+			return (10 - sum % 10) % 10;
+		}
+	};
+
+	/**
+	 * Luhn mod 10, as used by payment cards. Catches every single digit error
+	 * and adjacent transpositions except of 09 and 90.
+	 */
+	public static final CheckDigit LUHN = new CheckDigit() {
+		@Override
+		public int compute(long code) {
+			int sum = 0;
+			for (boolean doubled = true; code > 0; code /= 10, doubled = !doubled) {
+				int digit = (int) (code % 10);
+				if (doubled) {
+					digit *= 2;
+					if (digit > 9) {
+						digit -= 9;
+					}
+				}
+				sum += digit;
+			}
+			return (10 - sum % 10) % 10;
+		}
+	};
+
+	/**
+	 * Damm's quasigroup check. Catches every single digit error and every
+	 * adjacent transposition.
+	 */
+	public static final CheckDigit DAMM = new CheckDigit() {
+
+		// operation table of a totally anti-symmetric quasigroup of order 10
+		private final byte[] table = { 0, 3, 1, 7, 5, 9, 8, 6, 4, 2, 7, 0, 9, 2, 1, 5, 4, 8, 6, 3, 4, 2, 0, 6, 8, 7, 1,
+				3, 5, 9, 1, 7, 5, 0, 9, 8, 3, 4, 2, 6, 6, 1, 2, 3, 0, 4, 5, 9, 7, 8, 3, 6, 7, 4, 2, 0, 9, 5, 8, 1, 5, 8, 6,
+				9, 7, 2, 0, 1, 3, 4, 8, 9, 4, 5, 3, 6, 2, 0, 1, 7, 9, 4, 3, 8, 6, 1, 7, 2, 0, 5, 2, 5, 8, 1, 4, 3, 6, 7,
+				9, 0 };
+
+		@Override
+		public int compute(long code) {
+			// digits are consumed from the left
+			long unit = 1;
+			while (unit <= code / 10) {
+				unit *= 10;
+			}
+			int interim = 0;
+			for (; unit > 0; unit /= 10) {
+				interim = table[interim * 10 + (int) (code / unit % 10)];
+			}
+			return interim;
+		}
+	};
+
+	/**
+	 * The check digit of releases before {@link #WEIGHTED}, which weights
+	 * every digit by 3 and leaves sums below 10 as they are. Only kept to
+	 * validate passwords issued before an upgrade, see
+	 * {@link OTPEngine#setPreviousCheckDigit(CheckDigit)}.
+	 */
+	public static final CheckDigit LEGACY = new CheckDigit() {
+		@Override
+		public int compute(long code) {
+			int sum = 0;
+			for (; code > 0; code /= 10) {
+				sum += (int) (code % 10) * 3;
+			}
+			return sum > 9 ? (10 - sum % 10) % 10 : sum;
+		}
+	};
+
+	/**
+	 * Returns the check digit of the code.
+	 * 
+	 * @param code
+	 *            - a non-negative code without its check digit
+	 * @return 0 to 9
+	 */
+	public int compute(long code);
+
+}
@@ -0,0 +1,115 @@
+package com.arctix.security.otp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free ring of ready codes, safe for any number of producers and
+ * consumers. Each cell carries a sequence number that tells whether it is
+ * ready to be written or read in the current turn of the ring, so producers
+ * and consumers only contend on their own position counter.
+ * 
+ * @author aprasa2
+ *
+ */
+final class CodePool {
+
+	static final int EMPTY = -1;
+
+	private final int mask;
+
+	private final AtomicLongArray sequences;
+
+	// published by the release store of the cell's sequence
+	private final long[] codes;
+
+	private final AtomicLong head = new AtomicLong();
+
+	private final AtomicLong tail = new AtomicLong();
+
+	/**
+	 * Creates a pool holding up to capacity codes, rounded up to a power of
+	 * two.
+	 * 
+	 * @param capacity
+	 */
+	CodePool(int capacity) {
+		if (capacity < 2 || capacity > 1 << 30) {
+			throw new IllegalArgumentException("Invalid pool capacity " + capacity);
+		}
+		int size = Integer.highestOneBit(capacity - 1) << 1;
+		mask = size - 1;
+		sequences = new AtomicLongArray(size);
+		codes = new long[size];
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * Adds a non-negative code. Returns false if the pool is full.
+	 * 
+	 * @param code
+	 * @return
+	 */
+	boolean offer(long code) {
+		long position = tail.get();
+		while (true) {
+			int cell = (int) position & mask;
+			long difference = sequences.get(cell) - position;
+			if (difference == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					codes[cell] = code;
+					sequences.lazySet(cell, position + 1);
+					return true;
+				}
+				position = tail.get();
+			} else if (difference < 0) {
+				return false;
+			} else {
+				position = tail.get();
+			}
+		}
+	}
+
+	/**
+	 * Removes a code, or returns EMPTY if there is none.
+	 * 
+	 * @return
+	 */
+	long poll() {
+		long position = head.get();
+		while (true) {
+			int cell = (int) position & mask;
+			long difference = sequences.get(cell) - (position + 1);
+			if (difference == 0) {
+				if (head.compareAndSet(position, position + 1)) {
+					long code = codes[cell];
+					sequences.lazySet(cell, position + mask + 1);
+					return code;
+				}
+				position = head.get();
+			} else if (difference < 0) {
+				return EMPTY;
+			} else {
+				position = head.get();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of codes in the pool. Only an estimate while other
+	 * threads are adding or removing codes.
+	 * 
+	 * @return
+	 */
+	int size() {
+		long size = tail.get() - head.get();
+		return (int) Math.max(0, Math.min(size, mask + 1));
+	}
+
+	int capacity() {
+		return mask + 1;
+	}
+
+}
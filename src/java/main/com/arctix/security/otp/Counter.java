@@ -3,7 +3,12 @@ package com.arctix.security.otp;
 /**
  * Interface for multiple counter providers. Implementation could be in-memory
  * providers for single server deployments to databsae providers for cluster
- * deployments.
+ * deployments. Implementations are shared by all threads using an engine and
+ * must be thread-safe.
+ * 
+ * The engine counts attempts per subject, the subject being derived from the
+ * params an OTP was generated for. Providers that keep a single count
+ * inherit the subject methods, which ignore the subject.
  * 
  * @author aprasa2
  *
@@ -27,4 +32,31 @@ public interface Counter {
 	 * @return
 	 */
 	public int reset();
+
+	/**
+	 * Return current value of counter for the subject
+	 * @param subject
+	 * @return
+	 */
+	public default int getCurrentValue(String subject) {
+		return getCurrentValue();
+	}
+
+	/**
+	 * Get next value in sequence of counter for the subject.
+	 * @param subject
+	 * @return
+	 */
+	public default int getNextValue(String subject) {
+		return getNextValue();
+	}
+
+	/**
+	 * Reset counter value of the subject to zero.
+	 * @param subject
+	 * @return
+	 */
+	public default int reset(String subject) {
+		return reset();
+	}
 }
@@ -0,0 +1,38 @@
+package com.arctix.security.otp;
+
+/**
+ * Decides whether the engine creates flight recorder events. jdk.jfr is an
+ * optional module: the event classes are loaded only once a recording has
+ * been started in a runtime that has it, so images without the module run
+ * the engine, and a JVM that never records never loads the events.
+ * 
+ * @author aprasa2
+ *
+ */
+final class FlightEvents {
+
+	// Recorder is not loaded without the module
+	private static final boolean AVAILABLE = ModuleLayer.boot().findModule("jdk.jfr").isPresent();
+
+	private FlightEvents() {
+	}
+
+	/*
+	 * Returns true once a recording was started in this JVM; whether it
+	 * enables the events is left to shouldCommit.
+	 */
+	static boolean isRecording() {
+		return AVAILABLE && Recorder.isInitialized();
+	}
+
+	/**
+	 * The only class referring to jdk.jfr.
+	 */
+	private static final class Recorder {
+
+		static boolean isInitialized() {
+			return jdk.jfr.FlightRecorder.isInitialized();
+		}
+	}
+
+}
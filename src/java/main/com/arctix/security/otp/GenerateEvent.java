@@ -0,0 +1,25 @@
+package com.arctix.security.otp;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event spanning the generation of one password. Costs
+ * nothing unless a recording enables it.
+ * 
+ * @author aprasa2
+ *
+ */
+@Name("com.arctix.security.otp.Generate")
+@Label("OTP Generate")
+@Category("OTP")
+@Description("Generation of a one-time password")
+final class GenerateEvent extends Event {
+
+	@Label("Token Version")
+	int tokenVersion;
+
+}
@@ -0,0 +1,59 @@
+package com.arctix.security.otp;
+
+/**
+ * Seeded 64 bit hashing of strings and bytes for the in-memory and on-disk
+ * tables. Both are fed with their length so that a sequence of them hashes
+ * unambiguously. Not a cryptographic hash; the seed is expected to be
+ * random and private to the table.
+ * 
+ * @author aprasa2
+ *
+ */
+final class Hashing {
+
+	private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+
+	private static final long PRIME = 0x100000001B3L;
+
+	private Hashing() {
+	}
+
+	/**
+	 * Mixes the length and characters of the string into the hash.
+	 */
+	static long update(long h, String s) {
+		h ^= s.length() * GOLDEN;
+		for (int i = 0; i < s.length(); i++) {
+			h = (h ^ s.charAt(i)) * PRIME;
+			h ^= h >>> 29;
+		}
+		return h;
+	}
+
+	/**
+	 * Mixes the length and the given range of bytes into the hash.
+	 */
+	static long update(long h, byte[] bytes, int offset, int length) {
+		h ^= length * GOLDEN;
+		for (int i = offset; i < offset + length; i++) {
+			h = (h ^ (bytes[i] & 0xff)) * PRIME;
+			h ^= h >>> 29;
+		}
+		return h;
+	}
+
+	/**
+	 * Finalizes the hash. Never returns zero, which tables use to mark an
+	 * empty slot.
+	 */
+	static long finish(long h) {
+		// murmur3 finalizer
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h == 0 ? 1 : h;
+	}
+
+}
@@ -1,23 +1,25 @@
 package com.arctix.security.otp;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class InMemoryCounter implements Counter {
 
-	private int counter = 0;
+	private final AtomicInteger counter = new AtomicInteger();
 
 	@Override
 	public int getCurrentValue() {
-		return counter;
+		return counter.get();
 	}
 
 	@Override
 	public int getNextValue() {
-		return ++counter;
+		return counter.incrementAndGet();
 	}
 
 	@Override
 	public int reset() {
-		counter = 0;
-		return counter;
+		counter.set(0);
+		return 0;
 	}
 
 }
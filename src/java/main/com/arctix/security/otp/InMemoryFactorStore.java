@@ -0,0 +1,42 @@
+package com.arctix.security.otp;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moving factors kept in memory. Factors are never dropped, so memory grows
+ * with the number of subjects, and they are lost on restart, after which
+ * every code used before validates again. For tests and single server
+ * deployments whose subjects re-enrol on restart only.
+ * 
+ * @author aprasa2
+ *
+ */
+public class InMemoryFactorStore implements MovingFactorStore {
+
+	private final ConcurrentHashMap<String, AtomicLong> factors = new ConcurrentHashMap<String, AtomicLong>();
+
+	@Override
+	public long getFactor(String subject) {
+		AtomicLong factor = factors.get(subject);
+		return factor != null ? factor.get() : 0;
+	}
+
+	@Override
+	public boolean compareAndSet(String subject, long expected, long update) {
+		// only a subject without a factor needs an entry of its own
+		AtomicLong factor = expected == 0 ? factors.computeIfAbsent(subject, s -> new AtomicLong())
+				: factors.get(subject);
+		return factor != null && factor.compareAndSet(expected, update);
+	}
+
+	/**
+	 * Returns the number of subjects with a factor.
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return factors.size();
+	}
+
+}
@@ -0,0 +1,211 @@
+package com.arctix.security.otp;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.arctix.security.otp.OTPEngine.Result;
+
+/**
+ * Collects engine metrics in memory. Outcomes are counted per result code and
+ * timings are kept in histograms with eight buckets per power of two, so
+ * percentiles are reported within 12.5% of the recorded values. Counts only
+ * ever grow; take two readings to compute rates.
+ * 
+ * @author aprasa2
+ *
+ */
+public class InMemoryOTPMetrics implements OTPMetrics {
+
+	static final int MAX_LAPS_TRACKED = 16; // larger counts share the last slot
+
+	private final LongAdder[] results = newAdders(Result.Code.values().length);
+
+	private final LongAdder[] lapsScanned = newAdders(MAX_LAPS_TRACKED + 1);
+
+	private final LongAdder rateLimited = new LongAdder();
+
+	private final Histogram generated = new Histogram();
+
+	private final Histogram validated = new Histogram();
+
+	private final Histogram[] phases = new Histogram[Phase.values().length];
+
+	public InMemoryOTPMetrics() {
+		for (int i = 0; i < phases.length; i++) {
+			phases[i] = new Histogram();
+		}
+	}
+
+	@Override
+	public void recordGenerated(long nanos) {
+		generated.record(nanos);
+	}
+
+	@Override
+	public void recordResult(Result.Code code, long nanos) {
+		results[code.ordinal()].increment();
+		validated.record(nanos);
+	}
+
+	@Override
+	public void recordRateLimited() {
+		rateLimited.increment();
+	}
+
+	@Override
+	public void recordPhase(Phase phase, long nanos) {
+		phases[phase.ordinal()].record(nanos);
+	}
+
+	@Override
+	public void recordLapsScanned(int laps) {
+		lapsScanned[Math.min(laps, MAX_LAPS_TRACKED)].increment();
+	}
+
+	/**
+	 * Returns the number of passwords generated.
+	 * 
+	 * @return
+	 */
+	public long getGenerated() {
+		return generated.count();
+	}
+
+	/**
+	 * Returns the number of generations rejected by the rate limiter.
+	 * 
+	 * @return
+	 */
+	public long getRateLimited() {
+		return rateLimited.sum();
+	}
+
+	/**
+	 * Returns the number of validations that ended with the given code.
+	 * 
+	 * @param code
+	 * @return
+	 */
+	public long getCount(Result.Code code) {
+		return results[code.ordinal()].sum();
+	}
+
+	/**
+	 * Returns the number of validations that computed the HMAC of the given
+	 * number of time laps.
+	 * 
+	 * @param laps
+	 * @return
+	 */
+	public long getLapsScanned(int laps) {
+		return lapsScanned[Math.min(laps, MAX_LAPS_TRACKED)].sum();
+	}
+
+	/**
+	 * Returns the given percentile of generation times in nanos, 0 if none
+	 * was recorded.
+	 * 
+	 * @param percentile
+	 *            - 0 to 100
+	 * @return
+	 */
+	public long getGeneratePercentile(double percentile) {
+		return generated.percentile(percentile);
+	}
+
+	/**
+	 * Returns the given percentile of validation times in nanos.
+	 * 
+	 * @param percentile
+	 * @return
+	 */
+	public long getValidatePercentile(double percentile) {
+		return validated.percentile(percentile);
+	}
+
+	/**
+	 * Returns the given percentile of times spent in the phase in nanos.
+	 * 
+	 * @param phase
+	 * @param percentile
+	 * @return
+	 */
+	public long getPercentile(Phase phase, double percentile) {
+		return phases[phase.ordinal()].percentile(percentile);
+	}
+
+	private static LongAdder[] newAdders(int n) {
+		LongAdder[] adders = new LongAdder[n];
+		for (int i = 0; i < n; i++) {
+			adders[i] = new LongAdder();
+		}
+		return adders;
+	}
+
+	/**
+	 * Log-linear histogram of non-negative values. Values below 8 have a
+	 * bucket each; larger ones fall into one of eight buckets splitting
+	 * their power of two.
+	 */
+	static final class Histogram {
+
+		private static final int SUB_BUCKET_BITS = 3;
+
+		private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+		private final AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+
+		private final LongAdder count = new LongAdder();
+
+		void record(long value) {
+			buckets.getAndIncrement(bucket(Math.max(0, value)));
+			count.increment();
+		}
+
+		long count() {
+			return count.sum();
+		}
+
+		/*
+		 * Returns the highest value of the bucket holding the percentile.
+		 */
+		long percentile(double percentile) {
+			long total = 0;
+			for (int i = 0; i < buckets.length(); i++) {
+				total += buckets.get(i);
+			}
+			if (total == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+			long seen = 0;
+			for (int i = 0; i < buckets.length(); i++) {
+				seen += buckets.get(i);
+				if (seen >= rank) {
+					return highestValue(i);
+				}
+			}
+			return highestValue(buckets.length() - 1);
+		}
+
+		static int bucket(long value) {
+			if (value < SUB_BUCKETS) {
+				return (int) value;
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+			return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) | sub;
+		}
+
+		static long highestValue(int bucket) {
+			if (bucket < SUB_BUCKETS) {
+				return bucket;
+			}
+			int exponent = (bucket >>> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+			long sub = bucket & (SUB_BUCKETS - 1);
+			long next = (SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS);
+			return next <= 0 ? Long.MAX_VALUE : next - 1;
+		}
+	}
+
+}
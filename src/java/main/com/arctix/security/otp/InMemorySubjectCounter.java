@@ -0,0 +1,300 @@
+package com.arctix.security.otp;
+
+import java.time.Clock;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory counter keeping a separate count per subject, so one subject's
+ * failed attempts never lock out another. A count expires a fixed time after
+ * the first attempt it records. Expired entries are dropped by a background
+ * sweep that runs a few times per expiry period.
+ * 
+ * At most about capacity subjects are held, however many are sprayed at the
+ * counter. Once it is full a new subject takes the place of an entry from a
+ * small sample taken round the table: an expired or reset one if any,
+ * otherwise the one with the fewest attempts, so subjects tried once go
+ * before those close to their limit.
+ * 
+ * Each entry is a single atomic long packing the expiry time and the count,
+ * updated with compare-and-set, so no lock is taken on any path.
+ * 
+ * @author aprasa2
+ *
+ */
+public class InMemorySubjectCounter implements Counter {
+
+	private static Logger logger = LoggerFactory.getLogger(InMemorySubjectCounter.class);
+
+	static final int DEFAULT_CAPACITY = 1 << 20;
+
+	private static final long MIN_SWEEP_INTERVAL = 1000; // in millis
+
+	private static final int EVICTION_SAMPLE = 16; // entries looked at per eviction
+
+	private static final int COUNT_BITS = 16;
+
+	private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+	// state of an entry removed by a sweep, writers must fetch a new one
+	private static final long DEAD = -1L;
+
+	// subject used by the methods without one
+	private static final String DEFAULT_SUBJECT = "";
+
+	private final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+
+	private final long expiryMillis;
+
+	private final int capacity;
+
+	private final Clock clock;
+
+	private final long sweepInterval;
+
+	private final AtomicBoolean sweeping = new AtomicBoolean();
+
+	private final AtomicBoolean evicting = new AtomicBoolean();
+
+	// where the last eviction stopped, guarded by evicting
+	private Iterator<Map.Entry<String, AtomicLong>> hand;
+
+	private volatile long nextSweep;
+
+	private volatile long nextCapacitySweep;
+
+	/**
+	 * Creates counters expiring after the engine's password expiry.
+	 */
+	public InMemorySubjectCounter() {
+		this(OTPEngine.PASSWORD_EXPRIRY, TimeUnit.MINUTES, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates counters expiring after the given time, holding at most about
+	 * capacity subjects.
+	 * 
+	 * @param expiry
+	 * @param unit
+	 * @param capacity
+	 */
+	public InMemorySubjectCounter(long expiry, TimeUnit unit, int capacity) {
+		this(expiry, unit, capacity, Clock.systemUTC());
+	}
+
+	/**
+	 * For testing only allow using a different clock
+	 */
+	InMemorySubjectCounter(long expiry, TimeUnit unit, int capacity, Clock clock) {
+		this.expiryMillis = unit.toMillis(expiry);
+		this.capacity = capacity;
+		this.clock = clock;
+		this.sweepInterval = Math.max(MIN_SWEEP_INTERVAL, expiryMillis / 4);
+		this.nextSweep = clock.millis() + sweepInterval;
+	}
+
+	@Override
+	public int getCurrentValue() {
+		return getCurrentValue(DEFAULT_SUBJECT);
+	}
+
+	@Override
+	public int getNextValue() {
+		return getNextValue(DEFAULT_SUBJECT);
+	}
+
+	@Override
+	public int reset() {
+		return reset(DEFAULT_SUBJECT);
+	}
+
+	@Override
+	public int getCurrentValue(String subject) {
+		AtomicLong entry = counters.get(subject);
+		if (entry == null) {
+			return 0;
+		}
+		long state = entry.get();
+		if (state == DEAD || isExpired(state, clock.millis())) {
+			return 0;
+		}
+		return count(state);
+	}
+
+	@Override
+	public int getNextValue(String subject) {
+		long now = clock.millis();
+		while (true) {
+			AtomicLong entry = counters.get(subject);
+			if (entry == null) {
+				if (counters.size() >= capacity) {
+					evict(now);
+				}
+				entry = counters.computeIfAbsent(subject, k -> new AtomicLong());
+			}
+			long state = entry.get();
+			if (state == DEAD) {
+				// lost to a sweep, the entry is gone from the map
+				counters.remove(subject, entry);
+				continue;
+			}
+			long next;
+			if (state == 0 || isExpired(state, now)) {
+				next = pack(now + expiryMillis, 1);
+			} else {
+				next = pack(expiresAt(state), Math.min(count(state) + 1, (int) COUNT_MASK));
+			}
+			if (entry.compareAndSet(state, next)) {
+				scheduleSweep(now);
+				return count(next);
+			}
+		}
+	}
+
+	@Override
+	public int reset(String subject) {
+		AtomicLong entry = counters.get(subject);
+		if (entry != null) {
+			long state = entry.get();
+			while (state != DEAD && state != 0 && !entry.compareAndSet(state, 0)) {
+				state = entry.get();
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns the number of subjects currently held, including expired ones
+	 * not yet swept.
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return counters.size();
+	}
+
+	/**
+	 * Removes reset and expired entries.
+	 */
+	public void sweep() {
+		if (!sweeping.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			long now = clock.millis();
+			Iterator<Map.Entry<String, AtomicLong>> entries = counters.entrySet().iterator();
+			while (entries.hasNext()) {
+				Map.Entry<String, AtomicLong> entry = entries.next();
+				AtomicLong counter = entry.getValue();
+				long state = counter.get();
+				if ((state == 0 || isExpired(state, now)) && counter.compareAndSet(state, DEAD)) {
+					counters.remove(entry.getKey(), counter);
+				}
+			}
+		} finally {
+			sweeping.set(false);
+		}
+	}
+
+	/*
+	 * Hands a sweep to the common pool when one is due, keeping the scan off
+	 * the request thread.
+	 */
+	private void scheduleSweep(long now) {
+		if (now < nextSweep) {
+			return;
+		}
+		nextSweep = now + sweepInterval;
+		ForkJoinPool.commonPool().execute(this::sweep);
+	}
+
+	/*
+	 * Makes room for a new subject. One thread evicts at a time; the others
+	 * go ahead, overshooting capacity by at most one entry each until the
+	 * next eviction. Warns and sweeps at most once a second while full.
+	 */
+	private void evict(long now) {
+		if (evicting.compareAndSet(false, true)) {
+			try {
+				while (counters.size() >= capacity) {
+					if (!evictOne(now)) {
+						break;
+					}
+				}
+			} finally {
+				evicting.set(false);
+			}
+		}
+		if (now >= nextCapacitySweep) {
+			nextCapacitySweep = now + MIN_SWEEP_INTERVAL;
+			logger.warn("Tracking {} subjects with capacity {}, evicting", counters.size(), capacity);
+			ForkJoinPool.commonPool().execute(this::sweep);
+		}
+	}
+
+	/*
+	 * Removes the first expired or reset entry of the next sample, or else
+	 * the sampled entry with the fewest attempts, the earliest to expire of
+	 * those. Returns false if there was nothing to remove.
+	 */
+	private boolean evictOne(long now) {
+		Map.Entry<String, AtomicLong> victim = null;
+		long victimState = 0;
+		for (int i = 0; i < EVICTION_SAMPLE; i++) {
+			if (hand == null || !hand.hasNext()) {
+				hand = counters.entrySet().iterator();
+				if (!hand.hasNext()) {
+					break;
+				}
+			}
+			Map.Entry<String, AtomicLong> entry = hand.next();
+			long state = entry.getValue().get();
+			if (state == DEAD) {
+				continue;
+			}
+			if (state == 0 || isExpired(state, now)) {
+				victim = entry;
+				victimState = state;
+				break;
+			}
+			if (victim == null || count(state) < count(victimState)
+					|| count(state) == count(victimState) && expiresAt(state) < expiresAt(victimState)) {
+				victim = entry;
+				victimState = state;
+			}
+		}
+		if (victim == null) {
+			return false;
+		}
+		// lost to a writer, the next sample picks another
+		if (victim.getValue().compareAndSet(victimState, DEAD)) {
+			counters.remove(victim.getKey(), victim.getValue());
+		}
+		return true;
+	}
+
+	private static long pack(long expiresAt, int count) {
+		return (expiresAt << COUNT_BITS) | count;
+	}
+
+	private static long expiresAt(long state) {
+		return state >>> COUNT_BITS;
+	}
+
+	private static int count(long state) {
+		return (int) (state & COUNT_MASK);
+	}
+
+	private static boolean isExpired(long state, long now) {
+		return expiresAt(state) <= now;
+	}
+
+}
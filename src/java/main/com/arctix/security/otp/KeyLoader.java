@@ -0,0 +1,25 @@
+package com.arctix.security.otp;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Looks up the secret key of a tenant, such as from a key management service
+ * or a vault, for {@link TenantRegistry}. Keys are loaded when a tenant is
+ * first used and again after the registry evicted it, and at most once at a
+ * time per tenant. Implementations must be thread-safe.
+ * 
+ * @author aprasa2
+ *
+ */
+public interface KeyLoader {
+
+	/**
+	 * Returns the key of the tenant. Failures are passed to every caller
+	 * waiting for the tenant, and the next call tries again.
+	 * 
+	 * @param tenant
+	 * @return the key, null if the tenant has none
+	 */
+	public SecretKey load(String tenant);
+
+}
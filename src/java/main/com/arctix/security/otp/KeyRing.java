@@ -0,0 +1,265 @@
+package com.arctix.security.otp;
+
+import java.time.Clock;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.arctix.security.otp.hmac.HMACEngine;
+
+/**
+ * Set of secret keys an engine generates and validates passwords with,
+ * allowing keys to be rotated without failing passwords in flight.
+ * 
+ * Each key has an id from 0 to 255 that generated tokens carry, so the
+ * validator picks the key directly. Keys are initialized once when added. A
+ * newly added key is only accepted for validation until it is promoted, so it
+ * can be rolled out to every validator before any generator uses it.
+ * Promoting a key makes it the one new passwords are generated with, in a
+ * single step, and schedules the previously active key for retirement once
+ * the passwords it generated have expired.
+ * 
+ * Instances are thread-safe. Lookups never block; changes to the ring are
+ * serialized and published as a whole.
+ * 
+ * @author aprasa2
+ *
+ */
+public class KeyRing {
+
+	static final int MAX_KEY_ID = 255; // ids fit the single byte of a token
+
+	private static final long NEVER = Long.MAX_VALUE;
+
+	private static Logger logger = LoggerFactory.getLogger(KeyRing.class);
+
+	private final String algorithm;
+
+	private final long retirementMillis;
+
+	private final Clock clock;
+
+	// replaced as a whole on every change
+	private volatile State state;
+
+	/**
+	 * Creates a ring of HmacSHA1 keys with the given key active. Keys that
+	 * are replaced are retired after the password expiry.
+	 * 
+	 * @param keyId
+	 * @param key
+	 */
+	public KeyRing(int keyId, SecretKey key) {
+		this(keyId, key, "HmacSHA1", OTPEngine.PASSWORD_EXPRIRY, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Creates a ring with the given key active. Keys that are replaced are
+	 * retired after the given period, which must cover the password expiry.
+	 * 
+	 * @param keyId
+	 * @param key
+	 * @param algorithm
+	 * @param retirement
+	 * @param unit
+	 */
+	public KeyRing(int keyId, SecretKey key, String algorithm, long retirement, TimeUnit unit) {
+		this(keyId, key, algorithm, retirement, unit, Clock.systemUTC());
+	}
+
+	/**
+	 * For testing only allow using a different clock
+	 */
+	KeyRing(int keyId, SecretKey key, String algorithm, long retirement, TimeUnit unit, Clock clock) {
+		checkKeyId(keyId);
+		this.algorithm = algorithm;
+		this.retirementMillis = unit.toMillis(retirement);
+		this.clock = clock;
+		Entry[] entries = new Entry[MAX_KEY_ID + 1];
+		entries[keyId] = new Entry(keyId, key, HMACEngine.getInstance(key, algorithm), NEVER);
+		state = new State(entries, entries[keyId]);
+	}
+
+	/**
+	 * Adds a key that is accepted for validation but not yet used for
+	 * generation. Fails if the id is taken by a key that is not retired.
+	 * 
+	 * @param keyId
+	 * @param key
+	 */
+	public synchronized void add(int keyId, SecretKey key) {
+		checkKeyId(keyId);
+		State current = state;
+		long now = clock.millis();
+		Entry existing = current.entries[keyId];
+		if (existing != null && existing.isLive(now)) {
+			throw new IllegalStateException("Key id " + keyId + " is in use");
+		}
+		// initialize outside of the ring so lookups are never slowed down
+		Entry added = new Entry(keyId, key, HMACEngine.getInstance(key, algorithm), NEVER);
+		Entry[] entries = current.copyLive(now);
+		entries[keyId] = added;
+		state = new State(entries, current.active);
+		logger.info("Added key {}", keyId);
+	}
+
+	/**
+	 * Makes the given key the one new passwords are generated with. The key
+	 * previously active keeps validating until its retirement period has
+	 * passed.
+	 * 
+	 * @param keyId
+	 */
+	public synchronized void promote(int keyId) {
+		checkKeyId(keyId);
+		State current = state;
+		long now = clock.millis();
+		Entry promoted = current.entries[keyId];
+		if (promoted == null || !promoted.isLive(now)) {
+			throw new IllegalStateException("Key id " + keyId + " is not in the ring");
+		}
+		if (promoted == current.active) {
+			return;
+		}
+		Entry[] entries = current.copyLive(now);
+		promoted = promoted.retiringAt(NEVER);
+		entries[keyId] = promoted;
+		Entry previous = current.active;
+		entries[previous.id] = previous.retiringAt(now + retirementMillis);
+		state = new State(entries, promoted);
+		logger.info("Promoted key {}, retiring key {}", keyId, previous.id);
+	}
+
+	/**
+	 * Removes a key that is not active right away. Passwords generated with
+	 * it fail validation from now on.
+	 * 
+	 * @param keyId
+	 */
+	public synchronized void retire(int keyId) {
+		checkKeyId(keyId);
+		State current = state;
+		if (current.active.id == keyId) {
+			throw new IllegalStateException("Cannot retire the active key " + keyId);
+		}
+		Entry[] entries = current.copyLive(clock.millis());
+		entries[keyId] = null;
+		state = new State(entries, current.active);
+		logger.info("Retired key {}", keyId);
+	}
+
+	/**
+	 * Returns the id of the key new passwords are generated with.
+	 * 
+	 * @return
+	 */
+	public int getActiveKeyId() {
+		return state.active.id;
+	}
+
+	/**
+	 * Returns true if passwords carrying the key id are accepted.
+	 * 
+	 * @param keyId
+	 * @return
+	 */
+	public boolean contains(int keyId) {
+		return keyId >= 0 && keyId <= MAX_KEY_ID && get(keyId) != null;
+	}
+
+	String getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * Returns the active key.
+	 * 
+	 * @return
+	 */
+	Entry active() {
+		return state.active;
+	}
+
+	/**
+	 * Returns the key with the id, or null if there is none or it is retired.
+	 * 
+	 * @param keyId
+	 *            - 0 to 255
+	 * @return
+	 */
+	Entry get(int keyId) {
+		Entry entry = state.entries[keyId];
+		if (entry == null || entry.retireAt == NEVER) {
+			return entry;
+		}
+		return entry.isLive(clock.millis()) ? entry : null;
+	}
+
+	private static void checkKeyId(int keyId) {
+		if (keyId < 0 || keyId > MAX_KEY_ID) {
+			throw new IllegalArgumentException("Key ids range from 0 to " + MAX_KEY_ID + ", got " + keyId);
+		}
+	}
+
+	/**
+	 * Keys of the ring indexed by id, and the active one.
+	 */
+	private static final class State {
+
+		final Entry[] entries;
+
+		final Entry active;
+
+		State(Entry[] entries, Entry active) {
+			this.entries = entries;
+			this.active = active;
+		}
+
+		/*
+		 * Copies the entries, dropping those past their retirement.
+		 */
+		Entry[] copyLive(long now) {
+			Entry[] copy = new Entry[entries.length];
+			for (int i = 0; i < entries.length; i++) {
+				if (entries[i] != null && entries[i].isLive(now)) {
+					copy[i] = entries[i];
+				}
+			}
+			return copy;
+		}
+	}
+
+	/**
+	 * A key of the ring with its initialized HMAC engine.
+	 */
+	static final class Entry {
+
+		final int id;
+
+		final SecretKey key;
+
+		final HMACEngine engine;
+
+		// epoch millis after which the key is no longer accepted
+		final long retireAt;
+
+		Entry(int id, SecretKey key, HMACEngine engine, long retireAt) {
+			this.id = id;
+			this.key = key;
+			this.engine = engine;
+			this.retireAt = retireAt;
+		}
+
+		boolean isLive(long now) {
+			return now < retireAt;
+		}
+
+		Entry retiringAt(long retireAt) {
+			return new Entry(id, key, engine, retireAt);
+		}
+	}
+
+}
@@ -0,0 +1,169 @@
+package com.arctix.security.otp;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.zone.ZoneRules;
+
+/**
+ * Immutable snapshot of the current and previous time laps. Each lap is kept
+ * as its start time and the yyyyMMddHHmm encoding (in the clock's zone) that
+ * is fed to the HMAC, so readers never format dates.
+ * 
+ * @author aprasa2
+ *
+ */
+public final class LapWindow {
+
+	private static final long MILLIS_PER_MINUTE = 60 * 1000L;
+
+	// first minute (UTC epoch) of the most recent lap
+	private final long lapMinute;
+
+	private final int interval;
+
+	// end (exclusive) of the most recent lap in epoch millis
+	private final long validUntil;
+
+	private final long[] startMillis;
+
+	private final byte[][] encoded;
+
+	private LapWindow(long lapMinute, int interval, long[] startMillis, byte[][] encoded) {
+		this.lapMinute = lapMinute;
+		this.interval = interval;
+		this.validUntil = (lapMinute + interval) * MILLIS_PER_MINUTE;
+		this.startMillis = startMillis;
+		this.encoded = encoded;
+	}
+
+	/**
+	 * Builds the window containing the given instant and the n - 1 laps
+	 * before it.
+	 * 
+	 * @param millis
+	 * @param zone
+	 * @param interval
+	 *            - length of a lap in minutes
+	 * @param n
+	 * @return
+	 */
+	static LapWindow of(long millis, ZoneId zone, int interval, int n) {
+		ZoneRules rules = zone.getRules();
+		long minute = Math.floorDiv(millis, MILLIS_PER_MINUTE);
+		int offsetMinutes = offsetMinutes(rules, minute);
+
+		// laps start on minutes of the (local) hour divisible by interval
+		long localMinute = minute + offsetMinutes;
+		long lapMinute = minute - Math.floorMod(localMinute, 60) % interval;
+
+		long[] startMillis = new long[n];
+		byte[][] encoded = new byte[n][];
+		for (int i = 0; i < n; i++) {
+			long start = lapMinute - (long) i * interval;
+			startMillis[i] = start * MILLIS_PER_MINUTE;
+			encoded[i] = encode(start + offsetMinutes(rules, start));
+		}
+		return new LapWindow(lapMinute, interval, startMillis, encoded);
+	}
+
+	/**
+	 * Returns true if the instant falls in the most recent lap of this window.
+	 * 
+	 * @param millis
+	 * @return
+	 */
+	boolean contains(long millis) {
+		return millis >= startMillis[0] && millis < validUntil;
+	}
+
+	/**
+	 * Returns the number of laps in the window.
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return encoded.length;
+	}
+
+	/**
+	 * Returns the first minute since epoch (UTC) of the most recent lap.
+	 * 
+	 * @return
+	 */
+	public long getLapMinute() {
+		return lapMinute;
+	}
+
+	/**
+	 * Returns the start of the i-th lap in epoch millis. Lap 0 is the current
+	 * one.
+	 * 
+	 * @param i
+	 * @return
+	 */
+	public long getStartMillis(int i) {
+		return startMillis[i];
+	}
+
+	/**
+	 * Returns the number of whole laps between epoch and the start of the
+	 * i-th lap. Laps of the window are numbered consecutively, lap 0 having
+	 * the highest number.
+	 * 
+	 * @param i
+	 * @return
+	 */
+	long getLapNumber(int i) {
+		return Math.floorDiv(lapMinute, interval) - i;
+	}
+
+	/**
+	 * Returns the i-th lap formatted as yyyyMMddHHmm.
+	 * 
+	 * @param i
+	 * @return
+	 */
+	public String getLap(int i) {
+		return new String(encoded[i], StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Returns the shared encoding of the i-th lap. Callers must not modify
+	 * the returned array.
+	 * 
+	 * @param i
+	 * @return
+	 */
+	byte[] getEncodedLap(int i) {
+		return encoded[i];
+	}
+
+	private static int offsetMinutes(ZoneRules rules, long minute) {
+		return rules.getOffset(Instant.ofEpochSecond(minute * 60)).getTotalSeconds() / 60;
+	}
+
+	/*
+	 * Writes the local minute as yyyyMMddHHmm digits.
+	 */
+	private static byte[] encode(long localMinute) {
+		LocalDateTime time = LocalDateTime.ofEpochSecond(localMinute * 60, 0, ZoneOffset.UTC);
+		byte[] out = new byte[12];
+		writeDigits(out, 0, time.getYear(), 4);
+		writeDigits(out, 4, time.getMonthValue(), 2);
+		writeDigits(out, 6, time.getDayOfMonth(), 2);
+		writeDigits(out, 8, time.getHour(), 2);
+		writeDigits(out, 10, time.getMinute(), 2);
+		return out;
+	}
+
+	private static void writeDigits(byte[] out, int offset, int value, int digits) {
+		for (int i = offset + digits - 1; i >= offset; i--) {
+			out[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+	}
+
+}
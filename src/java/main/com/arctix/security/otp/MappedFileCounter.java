@@ -0,0 +1,563 @@
+package com.arctix.security.otp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.time.Clock;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counter persisted in a memory-mapped file, so attempt counts survive
+ * restarts and live outside the Java heap.
+ * 
+ * The file is an open-addressed table of 16 byte slots, each holding a 64 bit
+ * hash of the subject and a 64 bit state packing the epoch minute of the
+ * first attempt with the number of attempts. Slots are claimed and updated in
+ * place with compare-and-set on the mapped memory. Every write is a single
+ * aligned 8 byte word, so a crash can at worst leave a claimed slot without
+ * its state, which reads as zero attempts.
+ * 
+ * Entries are never removed in place. Compaction rewrites the live entries
+ * into a new file and atomically renames it over the old one; it runs when
+ * the table is three quarters full and can be requested explicitly. A file
+ * that was not closed cleanly is scanned on open and slots with impossible
+ * states are cleared. A file that does not hold a table at all fails the
+ * constructor rather than starting empty, which would lift every lockout;
+ * move it aside to start over deliberately.
+ * 
+ * Writes reach the page cache immediately and so survive a process crash.
+ * Call {@link #flush()} to force them to disk.
+ * 
+ * @author aprasa2
+ * 
+ */
+public class MappedFileCounter implements Counter, Closeable {
+
+	private static Logger logger = LoggerFactory.getLogger(MappedFileCounter.class);
+
+	static final int DEFAULT_CAPACITY = 1 << 16; // slots
+
+	private static final int MAGIC = 0x4f545043; // "OTPC"
+
+	private static final int VERSION = 1;
+
+	// header layout
+	private static final int MAGIC_OFFSET = 0;
+	private static final int VERSION_OFFSET = 4;
+	private static final int CAPACITY_OFFSET = 8;
+	private static final int SEED_OFFSET = 16;
+	private static final int STATUS_OFFSET = 24;
+	static final int HEADER_SIZE = 64;
+
+	static final int SLOT_SIZE = 16;
+
+	// the largest table a single mapped buffer addresses
+	static final int MAX_CAPACITY = 1 << 26;
+
+	static final long STATUS_CLOSED = 0;
+
+	static final long STATUS_OPEN = 1;
+
+	private static final long ATTEMPTS_MASK = 0xffffffffL;
+
+	private static final int MAX_ATTEMPTS = 0xffff;
+
+	// subject used by the methods without one
+	private static final String DEFAULT_SUBJECT = "";
+
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class,
+			ByteOrder.LITTLE_ENDIAN);
+
+	private final Path file;
+
+	private final Path compactFile;
+
+	private final int initialCapacity;
+
+	private final long expiryMinutes;
+
+	private final Clock clock;
+
+	// operations share the table, compaction and close replace it
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private Table table;
+
+	/**
+	 * Opens or creates the counter file with default capacity, expiring counts
+	 * after the engine's password expiry.
+	 *
+	 * @param file
+	 */
+	public MappedFileCounter(Path file) {
+		this(file, DEFAULT_CAPACITY, OTPEngine.PASSWORD_EXPRIRY, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Opens or creates the counter file. Capacity is the initial number of
+	 * slots and is rounded up to a power of two; an existing file keeps its
+	 * own.
+	 *
+	 * @param file
+	 * @param capacity
+	 * @param expiry
+	 * @param unit
+	 */
+	public MappedFileCounter(Path file, int capacity, long expiry, TimeUnit unit) {
+		this(file, capacity, expiry, unit, Clock.systemUTC());
+	}
+
+	/**
+	 * For testing only allow using a different clock
+	 */
+	MappedFileCounter(Path file, int capacity, long expiry, TimeUnit unit, Clock clock) {
+		this.file = file;
+		this.compactFile = file.resolveSibling(file.getFileName() + ".compact");
+		this.initialCapacity = Integer.highestOneBit(Math.min(Math.max(capacity, 16), MAX_CAPACITY) * 2 - 1);
+		this.expiryMinutes = Math.max(1, unit.toMinutes(expiry));
+		this.clock = clock;
+		try {
+			// a leftover means compaction died before the rename, the
+			// original is still intact
+			Files.deleteIfExists(compactFile);
+			table = open();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public int getCurrentValue() {
+		return getCurrentValue(DEFAULT_SUBJECT);
+	}
+
+	@Override
+	public int getNextValue() {
+		return getNextValue(DEFAULT_SUBJECT);
+	}
+
+	@Override
+	public int reset() {
+		return reset(DEFAULT_SUBJECT);
+	}
+
+	@Override
+	public int getCurrentValue(String subject) {
+		lock.readLock().lock();
+		try {
+			Table t = checkOpen();
+			int slot = t.find(t.hash(subject));
+			if (slot < 0) {
+				return 0;
+			}
+			long state = t.getState(slot);
+			return isLive(state, now()) ? attempts(state) : 0;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int getNextValue(String subject) {
+		while (true) {
+			int attempts = -1;
+			boolean crowded = false;
+			lock.readLock().lock();
+			try {
+				Table t = checkOpen();
+				int slot = t.claim(t.hash(subject));
+				if (slot >= 0) {
+					attempts = increment(t, slot);
+				}
+				crowded = t.isCrowded();
+			} finally {
+				lock.readLock().unlock();
+			}
+			if (crowded) {
+				compact(false);
+			}
+			if (attempts >= 0) {
+				return attempts;
+			}
+		}
+	}
+
+	@Override
+	public int reset(String subject) {
+		lock.readLock().lock();
+		try {
+			Table t = checkOpen();
+			int slot = t.find(t.hash(subject));
+			if (slot >= 0) {
+				long state = t.getState(slot);
+				while (state != 0 && !t.casState(slot, state, 0)) {
+					state = t.getState(slot);
+				}
+			}
+			return 0;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Rewrites the live entries into a fresh table, dropping reset and expired
+	 * ones, and replaces the file atomically. The new table has room for
+	 * twice the live entries.
+	 */
+	public void compact() {
+		compact(true);
+	}
+
+	private void compact(boolean always) {
+		lock.writeLock().lock();
+		try {
+			Table old = checkOpen();
+			if (!always && !old.isCrowded()) {
+				// another thread got here first
+				return;
+			}
+			long now = now();
+			int live = 0;
+			for (int slot = 0; slot < old.capacity; slot++) {
+				if (old.getKey(slot) != 0 && isLive(old.getState(slot), now)) {
+					live++;
+				}
+			}
+			int capacity = Math.max(initialCapacity,
+					Integer.highestOneBit(Math.min(Math.max(live, 1) * 2, MAX_CAPACITY) * 2 - 1));
+
+			Table compacted = Table.create(compactFile, MAGIC, capacity, old.seed);
+			for (int slot = 0; slot < old.capacity; slot++) {
+				long key = old.getKey(slot);
+				long state = old.getState(slot);
+				if (key != 0 && isLive(state, now)) {
+					int target = compacted.claim(key);
+					compacted.casState(target, 0, state);
+				}
+			}
+			compacted.setStatus(STATUS_OPEN);
+			compacted.buffer.force();
+			compacted.channel.close();
+
+			old.channel.close();
+			Files.move(compactFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			table = Table.map(file, MAGIC);
+			table.used.set(live);
+			logger.debug("Compacted {} from {} to {} slots with {} live entries", file, old.capacity, capacity, live);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Forces all changes to the storage device.
+	 */
+	public void flush() {
+		lock.readLock().lock();
+		try {
+			checkOpen().buffer.force();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of slots in the table.
+	 *
+	 * @return
+	 */
+	public int getCapacity() {
+		lock.readLock().lock();
+		try {
+			return checkOpen().capacity;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of claimed slots, including reset and expired ones
+	 * not yet compacted.
+	 *
+	 * @return
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return checkOpen().used.get();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Flushes the table and marks the file as cleanly closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		lock.writeLock().lock();
+		try {
+			if (table != null) {
+				table.buffer.force();
+				table.setStatus(STATUS_CLOSED);
+				table.buffer.force();
+				table.channel.close();
+				table = null;
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * Maps the existing file, recovering it if it was not closed, or creates
+	 * a new one.
+	 */
+	private Table open() throws IOException {
+		if (!Files.exists(file) || Files.size(file) == 0) {
+			Table created = Table.create(file, MAGIC, initialCapacity, new SecureRandom().nextLong());
+			created.setStatus(STATUS_OPEN);
+			return created;
+		}
+		Table existing = Table.map(file, MAGIC);
+		if (existing == null) {
+			throw new IOException("Unreadable counter file " + file
+					+ ", move it aside to start with no attempts counted");
+		}
+		boolean recovered = existing.getStatus() != STATUS_CLOSED;
+		long now = now();
+		int used = 0, cleared = 0;
+		for (int slot = 0; slot < existing.capacity; slot++) {
+			if (existing.getKey(slot) == 0) {
+				continue;
+			}
+			used++;
+			long state = existing.getState(slot);
+			if (recovered && !isValid(state, now)) {
+				existing.casState(slot, state, 0);
+				cleared++;
+			}
+		}
+		existing.used.set(used);
+		if (recovered) {
+			logger.warn("Recovered counter file {} that was not closed, cleared {} damaged slots", file, cleared);
+		}
+		existing.setStatus(STATUS_OPEN);
+		existing.buffer.force();
+		return existing;
+	}
+
+	private int increment(Table t, int slot) {
+		long now = now();
+		while (true) {
+			long state = t.getState(slot);
+			long next;
+			if (isLive(state, now)) {
+				next = pack(firstMinute(state), Math.min(attempts(state) + 1, MAX_ATTEMPTS));
+			} else {
+				next = pack(now, 1);
+			}
+			if (t.casState(slot, state, next)) {
+				return attempts(next);
+			}
+		}
+	}
+
+	private Table checkOpen() {
+		if (table == null) {
+			throw new IllegalStateException("Counter file " + file + " is closed");
+		}
+		return table;
+	}
+
+	private long now() {
+		return TimeUnit.MILLISECONDS.toMinutes(clock.millis());
+	}
+
+	private boolean isLive(long state, long now) {
+		return state != 0 && now - firstMinute(state) < expiryMinutes;
+	}
+
+	/*
+	 * A state written by this class never counts beyond the cap nor starts
+	 * in the future.
+	 */
+	private static boolean isValid(long state, long now) {
+		return state == 0 || (attempts(state) > 0 && attempts(state) <= MAX_ATTEMPTS && firstMinute(state) <= now + 1);
+	}
+
+	private static long pack(long firstMinute, int attempts) {
+		return (firstMinute << 32) | attempts;
+	}
+
+	private static long firstMinute(long state) {
+		return state >>> 32;
+	}
+
+	private static int attempts(long state) {
+		return (int) (state & ATTEMPTS_MASK);
+	}
+
+	/**
+	 * A mapped table file, shared with {@link MappedFileFactorStore}, whose
+	 * files carry a magic of their own.
+	 */
+	static final class Table {
+
+		final FileChannel channel;
+
+		final MappedByteBuffer buffer;
+
+		final int capacity;
+
+		final long seed;
+
+		final AtomicInteger used = new AtomicInteger();
+
+		private Table(FileChannel channel, MappedByteBuffer buffer, int capacity, long seed) {
+			this.channel = channel;
+			this.buffer = buffer;
+			this.capacity = capacity;
+			this.seed = seed;
+		}
+
+		static Table create(Path path, int magic, int capacity, long seed) throws IOException {
+			if (capacity > MAX_CAPACITY) {
+				throw new IOException("A table of " + capacity + " slots exceeds " + MAX_CAPACITY);
+			}
+			FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+					HEADER_SIZE + (long) capacity * SLOT_SIZE);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(VERSION_OFFSET, VERSION);
+			buffer.putLong(CAPACITY_OFFSET, capacity);
+			buffer.putLong(SEED_OFFSET, seed);
+			buffer.putLong(STATUS_OFFSET, STATUS_CLOSED);
+			// the magic goes last, a file without it is not initialized
+			buffer.force();
+			buffer.putInt(MAGIC_OFFSET, magic);
+			buffer.force();
+			return new Table(channel, buffer, capacity, seed);
+		}
+
+		/*
+		 * Returns null if the file does not hold a valid table.
+		 */
+		static Table map(Path path, int magic) throws IOException {
+			FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			long size = channel.size();
+			if (size < HEADER_SIZE) {
+				channel.close();
+				return null;
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			long capacity = buffer.getLong(CAPACITY_OFFSET);
+			if (buffer.getInt(MAGIC_OFFSET) != magic || buffer.getInt(VERSION_OFFSET) != VERSION
+					|| Long.bitCount(capacity) != 1 || capacity > MAX_CAPACITY
+					|| size != HEADER_SIZE + capacity * SLOT_SIZE) {
+				channel.close();
+				return null;
+			}
+			return new Table(channel, buffer, (int) capacity, buffer.getLong(SEED_OFFSET));
+		}
+
+		long hash(String subject) {
+			return Hashing.finish(Hashing.update(seed, subject));
+		}
+
+		/*
+		 * Returns the slot holding the key, or -1.
+		 */
+		int find(long key) {
+			int mask = capacity - 1;
+			for (int i = 0, slot = (int) key & mask; i < capacity; i++, slot = (slot + 1) & mask) {
+				long current = getKey(slot);
+				if (current == key) {
+					return slot;
+				}
+				if (current == 0) {
+					return -1;
+				}
+			}
+			return -1;
+		}
+
+		/*
+		 * Returns the slot holding the key, claiming the first empty one if
+		 * needed. Returns -1 if the table is full.
+		 */
+		int claim(long key) {
+			int mask = capacity - 1;
+			for (int i = 0, slot = (int) key & mask; i < capacity; i++, slot = (slot + 1) & mask) {
+				long current = getKey(slot);
+				if (current == 0) {
+					if (casKey(slot, 0, key)) {
+						used.incrementAndGet();
+						return slot;
+					}
+					current = getKey(slot);
+				}
+				if (current == key) {
+					return slot;
+				}
+			}
+			return -1;
+		}
+
+		boolean isCrowded() {
+			return used.get() > capacity - (capacity >>> 2);
+		}
+
+		long getKey(int slot) {
+			return (long) LONGS.getVolatile(buffer, offset(slot));
+		}
+
+		long getState(int slot) {
+			return (long) LONGS.getVolatile(buffer, offset(slot) + 8);
+		}
+
+		boolean casKey(int slot, long expected, long key) {
+			return LONGS.compareAndSet(buffer, offset(slot), expected, key);
+		}
+
+		boolean casState(int slot, long expected, long state) {
+			return LONGS.compareAndSet(buffer, offset(slot) + 8, expected, state);
+		}
+
+		/*
+		 * Byte offset of the slot, computed in long; tables are capped so
+		 * that it fits the buffer's int index.
+		 */
+		private static int offset(int slot) {
+			return Math.toIntExact(HEADER_SIZE + (long) slot * SLOT_SIZE);
+		}
+
+		long getStatus() {
+			return buffer.getLong(STATUS_OFFSET);
+		}
+
+		void setStatus(long status) {
+			buffer.putLong(STATUS_OFFSET, status);
+		}
+	}
+
+}
@@ -0,0 +1,260 @@
+package com.arctix.security.otp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.arctix.security.otp.MappedFileCounter.Table;
+
+/**
+ * Moving factors persisted in a memory-mapped file, so HOTP codes once used
+ * stay used across restarts.
+ * 
+ * The file has the layout of a {@link MappedFileCounter} file, each slot
+ * holding a 64 bit hash of the subject and its factor, which is set with
+ * compare-and-set on the mapped memory. Entries never expire and are never
+ * removed. When the table is three quarters full it is rewritten into one
+ * of twice the size, which atomically replaces the file. A crash can at
+ * worst leave a claimed slot without its first factor, which reads as zero
+ * as it did before the claim.
+ * 
+ * Writes reach the page cache immediately and so survive a process crash.
+ * Call {@link #flush()} to force them to disk.
+ * 
+ * @author aprasa2
+ * 
+ */
+public class MappedFileFactorStore implements MovingFactorStore, Closeable {
+
+	private static Logger logger = LoggerFactory.getLogger(MappedFileFactorStore.class);
+
+	static final int DEFAULT_CAPACITY = 1 << 16; // slots
+
+	private static final int MAGIC = 0x4f545046; // "OTPF"
+
+	private final Path file;
+
+	private final Path growFile;
+
+	private final int initialCapacity;
+
+	// operations share the table, growing and close replace it
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private Table table;
+
+	/**
+	 * Opens or creates the factor file with default capacity.
+	 *
+	 * @param file
+	 */
+	public MappedFileFactorStore(Path file) {
+		this(file, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Opens or creates the factor file. Capacity is the initial number of
+	 * slots and is rounded up to a power of two; an existing file keeps its
+	 * own.
+	 *
+	 * @param file
+	 * @param capacity
+	 */
+	public MappedFileFactorStore(Path file, int capacity) {
+		this.file = file;
+		this.growFile = file.resolveSibling(file.getFileName() + ".grow");
+		this.initialCapacity = Integer.highestOneBit(
+				Math.min(Math.max(capacity, 16), MappedFileCounter.MAX_CAPACITY) * 2 - 1);
+		try {
+			// a leftover means growing died before the rename, the original
+			// is still intact
+			Files.deleteIfExists(growFile);
+			table = open();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public long getFactor(String subject) {
+		lock.readLock().lock();
+		try {
+			Table t = checkOpen();
+			int slot = t.find(t.hash(subject));
+			return slot >= 0 ? t.getState(slot) : 0;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean compareAndSet(String subject, long expected, long update) {
+		while (true) {
+			Boolean set = null;
+			boolean crowded = false;
+			lock.readLock().lock();
+			try {
+				Table t = checkOpen();
+				long key = t.hash(subject);
+				// only a subject without a factor needs a slot of its own
+				int slot = expected == 0 ? t.claim(key) : t.find(key);
+				if (slot >= 0) {
+					set = t.casState(slot, expected, update);
+				} else if (expected != 0) {
+					set = false;
+				}
+				crowded = t.isCrowded();
+			} finally {
+				lock.readLock().unlock();
+			}
+			if (crowded) {
+				grow();
+			}
+			if (set != null) {
+				return set;
+			}
+		}
+	}
+
+	/**
+	 * Forces all changes to the storage device.
+	 */
+	public void flush() {
+		lock.readLock().lock();
+		try {
+			checkOpen().buffer.force();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of slots in the table.
+	 *
+	 * @return
+	 */
+	public int getCapacity() {
+		lock.readLock().lock();
+		try {
+			return checkOpen().capacity;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of subjects with a slot.
+	 *
+	 * @return
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return checkOpen().used.get();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Flushes the table and marks the file as cleanly closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		lock.writeLock().lock();
+		try {
+			if (table != null) {
+				table.buffer.force();
+				table.setStatus(MappedFileCounter.STATUS_CLOSED);
+				table.buffer.force();
+				table.channel.close();
+				table = null;
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * Rewrites every entry into a table of twice the size and replaces the
+	 * file atomically.
+	 */
+	private void grow() {
+		lock.writeLock().lock();
+		try {
+			Table old = checkOpen();
+			if (!old.isCrowded()) {
+				// another thread got here first
+				return;
+			}
+			int capacity = old.capacity * 2;
+			Table grown = Table.create(growFile, MAGIC, capacity, old.seed);
+			int used = 0;
+			for (int slot = 0; slot < old.capacity; slot++) {
+				long key = old.getKey(slot);
+				if (key != 0) {
+					grown.casState(grown.claim(key), 0, old.getState(slot));
+					used++;
+				}
+			}
+			grown.setStatus(MappedFileCounter.STATUS_OPEN);
+			grown.buffer.force();
+			grown.channel.close();
+
+			old.channel.close();
+			Files.move(growFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			table = Table.map(file, MAGIC);
+			table.used.set(used);
+			logger.debug("Grew {} from {} to {} slots with {} subjects", file, old.capacity, capacity, used);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * Maps the existing file or creates a new one. Unlike attempt counts, an
+	 * unreadable factor file is not replaced: starting empty would accept
+	 * every code used before.
+	 */
+	private Table open() throws IOException {
+		if (!Files.exists(file) || Files.size(file) == 0) {
+			Table created = Table.create(file, MAGIC, initialCapacity, new SecureRandom().nextLong());
+			created.setStatus(MappedFileCounter.STATUS_OPEN);
+			return created;
+		}
+		Table existing = Table.map(file, MAGIC);
+		if (existing == null) {
+			throw new IOException("Unreadable moving factor file " + file);
+		}
+		int used = 0;
+		for (int slot = 0; slot < existing.capacity; slot++) {
+			if (existing.getKey(slot) != 0) {
+				used++;
+			}
+		}
+		existing.used.set(used);
+		if (existing.getStatus() != MappedFileCounter.STATUS_CLOSED) {
+			logger.warn("Opened factor file {} that was not closed, writes not yet on disk may be lost", file);
+		}
+		existing.setStatus(MappedFileCounter.STATUS_OPEN);
+		existing.buffer.force();
+		return existing;
+	}
+
+	private Table checkOpen() {
+		if (table == null) {
+			throw new IllegalStateException("Factor file " + file + " is closed");
+		}
+		return table;
+	}
+
+}
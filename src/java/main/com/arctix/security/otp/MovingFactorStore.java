@@ -0,0 +1,36 @@
+package com.arctix.security.otp;
+
+/**
+ * Keeps the HOTP moving factor, or the TOTP time step after the last one
+ * accepted, of each subject for {@link OATHEngine}. Unlike
+ * attempt counts, factors must never expire, wrap or be evicted: a factor
+ * going back makes every code used since valid again. Implementations are
+ * shared by all threads using an engine and must be thread-safe; those for
+ * production deployments persist the factors, such as in a database or a
+ * {@link MappedFileFactorStore}.
+ * 
+ * @author aprasa2
+ *
+ */
+public interface MovingFactorStore {
+
+	/**
+	 * Returns the moving factor of the subject, zero if it has none.
+	 * 
+	 * @param subject
+	 * @return
+	 */
+	public long getFactor(String subject);
+
+	/**
+	 * Sets the moving factor of the subject to update if it currently is
+	 * expected, as one atomic operation. A subject without a factor has zero.
+	 * 
+	 * @param subject
+	 * @param expected
+	 * @param update
+	 * @return true if the factor was set, false if it was another
+	 */
+	public boolean compareAndSet(String subject, long expected, long update);
+
+}
@@ -0,0 +1,447 @@
+package com.arctix.security.otp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.arctix.security.otp.hmac.HMACEngine;
+
+/**
+ * One time passwords as defined by RFC 4226 (HOTP) and RFC 6238 (TOTP), for
+ * authenticator apps and tokens. Unlike {@link OTPEngine} nothing but the
+ * code travels: both sides derive it from the shared key and a moving factor,
+ * a counter for HOTP and the number of time steps since epoch for TOTP.
+ * 
+ * Each subject has its own secret, the HMAC of the subject under the engine
+ * key, so subjects at the same moving factor get different codes. The secret
+ * is what the subject's authenticator app or token is provisioned with, see
+ * {@link #getSecret(String)}. The methods taking a moving factor rather than
+ * a subject compute codes under the engine key itself.
+ * 
+ * Time is read from the clock of the engine's {@link TimeLaps}, the same
+ * clock the password and HMAC mode uses. TOTP validation accepts codes of a
+ * few steps around the current one to allow for clock drift, searching the
+ * current step first. HOTP validation looks ahead of the moving factor of the
+ * subject. Both keep the next acceptable counter value or time step of the
+ * subject in a {@link MovingFactorStore} and move it past the one accepted
+ * with a single compare-and-set, so a code is accepted once however many
+ * validations of it run at the same time (RFC 6238 section 5.2). Failed
+ * attempts are counted per subject by a {@link Counter}, like those of
+ * {@link OTPEngine}, and lock the subject out beyond the same limit (RFC 4226
+ * section 7.3).
+ * 
+ * Instances are thread-safe and can be created once per key and shared.
+ * 
+ * @author aprasa2
+ *
+ */
+public class OATHEngine extends HMACEngine {
+
+	static final int DEFAULT_DIGITS = 6;
+
+	static final int MIN_DIGITS = 6; // fewer are too easy to guess
+
+	static final int MAX_DIGITS = 8;
+
+	static final int DEFAULT_TIME_STEP = 30; // in seconds
+
+	static final int DEFAULT_WINDOW = 1; // steps accepted before and after
+
+	static final int DEFAULT_LOOK_AHEAD = 10; // HOTP counter values searched
+
+	private static final int[] POWERS_OF_TEN = { 1, 10, 100, 1000, 10000, 100000, 1000000, 10000000,
+			100000000 };
+
+	private static final byte[][] NO_PARAMS = new byte[0][];
+
+	private static final byte[] SUBJECT_SECRET = "OATH subject secret".getBytes(StandardCharsets.US_ASCII);
+
+	private static Logger logger = LoggerFactory.getLogger(OATHEngine.class);
+
+	volatile TimeLaps timeLapGenerator;
+
+	private final MovingFactorStore factorStore;
+
+	private final MovingFactorStore stepStore;
+
+	private final Counter attemptCounter;
+
+	private final String algorithm;
+
+	private final int digits;
+
+	private final long timeStepMillis;
+
+	private volatile int window = DEFAULT_WINDOW;
+
+	private volatile int lookAhead = DEFAULT_LOOK_AHEAD;
+
+	// encoded steps of the current window, replaced when a new step begins
+	private volatile StepWindow steps;
+
+	private OATHEngine(SecretKey key, String algorithm, int digits, int timeStep, MovingFactorStore factorStore,
+			MovingFactorStore stepStore, Counter attemptCounter) {
+		super(key, algorithm);
+		if (digits < MIN_DIGITS || digits > MAX_DIGITS) {
+			throw new IllegalArgumentException("Codes must have " + MIN_DIGITS + " to " + MAX_DIGITS
+					+ " digits, got " + digits);
+		}
+		if (timeStep <= 0) {
+			throw new IllegalArgumentException("Invalid time step " + timeStep);
+		}
+		this.digits = digits;
+		this.timeStepMillis = timeStep * 1000L;
+		this.algorithm = algorithm;
+		this.factorStore = factorStore;
+		this.stepStore = stepStore;
+		this.attemptCounter = attemptCounter;
+		timeLapGenerator = new TimeLaps(OTPEngine.TIME_LAP_INTERVAL);
+	}
+
+	/**
+	 * Returns new instance of the engine with the settings authenticator apps
+	 * default to: HmacSHA1, 6 digits and 30 second steps. Moving factors, time
+	 * steps and attempts are kept in memory.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public static OATHEngine getInstance(SecretKey key) {
+		logger.warn("Using In-Memory moving factors!! Not recommended for production deployments");
+		return getInstance(key, "HmacSHA1", DEFAULT_DIGITS, DEFAULT_TIME_STEP, new InMemoryFactorStore(),
+				new InMemoryFactorStore(), new InMemorySubjectCounter());
+	}
+
+	/**
+	 * Returns new instance of the engine. The instance is thread-safe and can
+	 * be created once per key and shared, provided the stores and the counter
+	 * are thread-safe as well.
+	 * 
+	 * @param key
+	 * @param algorithm
+	 *            - HmacSHA1, HmacSHA256 or HmacSHA512
+	 * @param digits
+	 *            - 6 to 8
+	 * @param timeStep
+	 *            - TOTP step in seconds
+	 * @param factorStore
+	 *            - HOTP moving factor per subject, never expiring
+	 * @param stepStore
+	 *            - TOTP time step after the last accepted per subject, never
+	 *            expiring
+	 * @param attemptCounter
+	 *            - HOTP and TOTP attempts per subject since the last success
+	 * @return
+	 */
+	public static OATHEngine getInstance(SecretKey key, String algorithm, int digits, int timeStep,
+			MovingFactorStore factorStore, MovingFactorStore stepStore, Counter attemptCounter) {
+		return new OATHEngine(key, algorithm, digits, timeStep, factorStore, stepStore, attemptCounter);
+	}
+
+	/**
+	 * Returns the secret the subject's codes are computed with, to provision
+	 * the subject's authenticator app or token with. The secret is derived
+	 * from the engine key and the subject, so it is never stored, but it
+	 * changes when the engine key does.
+	 * 
+	 * @param subject
+	 * @return
+	 */
+	public byte[] getSecret(String subject) {
+		byte[] secret = new byte[getMacLength()];
+		generateHMAC(SUBJECT_SECRET, new byte[][] { subject.getBytes(StandardCharsets.UTF_8) }, secret, 0);
+		return secret;
+	}
+
+	/**
+	 * Generates the HOTP code for the moving factor under the engine key.
+	 * 
+	 * @param movingFactor
+	 * @return
+	 */
+	public String generateHOTP(long movingFactor) {
+		return format(truncate(this, encode(movingFactor)));
+	}
+
+	/**
+	 * Generates the HOTP code the subject is expected to present next.
+	 * 
+	 * @param subject
+	 * @return
+	 */
+	public String generateHOTP(String subject) {
+		return format(truncate(subjectEngine(subject), encode(factorStore.getFactor(subject))));
+	}
+
+	/**
+	 * Validates the subject's HOTP code against the moving factor and the
+	 * values ahead of it. On success the factor moves past the value matched,
+	 * so the code and any before it are not accepted again, and the subject's
+	 * attempts are reset. The attempt is counted before the code is checked;
+	 * once more attempts failed than {@link OTPEngine} allows, codes are
+	 * rejected until the counter expires the attempts.
+	 * 
+	 * @param code
+	 * @param subject
+	 * @return
+	 */
+	public boolean validateHOTP(String code, String subject) {
+		if (OTPEngine.isLockedOut(attemptCounter.getNextValue(subject))) {
+			logger.debug("HOTP attempts exceeded");
+			return false;
+		}
+		int provided = parse(code);
+		if (provided < 0) {
+			return false;
+		}
+		HMACEngine secret = subjectEngine(subject);
+		long factor = factorStore.getFactor(subject);
+		int ahead = lookAhead;
+		for (int i = 0; i <= ahead; i++) {
+			if (truncate(secret, encode(factor + i)) == provided) {
+				if (!advance(factorStore, subject, factor, factor + i + 1)) {
+					logger.debug("HOTP already used");
+					return false;
+				}
+				attemptCounter.reset(subject);
+				logger.debug("Accepted HOTP {} values ahead of the moving factor", i);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Generates the TOTP code for the time step containing the instant under
+	 * the engine key.
+	 * 
+	 * @param epochMillis
+	 * @return
+	 */
+	public String generateTOTP(long epochMillis) {
+		return generateHOTP(Math.floorDiv(epochMillis, timeStepMillis));
+	}
+
+	/**
+	 * Generates the subject's TOTP code for the current time step.
+	 * 
+	 * @param subject
+	 * @return
+	 */
+	public String generateTOTP(String subject) {
+		return generateTOTP(subject, timeLapGenerator.getClock().millis());
+	}
+
+	/**
+	 * Generates the subject's TOTP code for the time step containing the
+	 * instant.
+	 * 
+	 * @param subject
+	 * @param epochMillis
+	 * @return
+	 */
+	public String generateTOTP(String subject, long epochMillis) {
+		return format(truncate(subjectEngine(subject), encode(Math.floorDiv(epochMillis, timeStepMillis))));
+	}
+
+	/**
+	 * Validates the subject's TOTP code against the current time step and the
+	 * steps within the window around it. The search stops at the first match.
+	 * A code is accepted only for a step after the last one accepted for the
+	 * subject, so neither the same code nor one of an earlier step is
+	 * accepted again. Attempts are counted and reset as for
+	 * {@link #validateHOTP(String, String)}.
+	 * 
+	 * @param code
+	 * @param subject
+	 * @return
+	 */
+	public boolean validateTOTP(String code, String subject) {
+		if (OTPEngine.isLockedOut(attemptCounter.getNextValue(subject))) {
+			logger.debug("TOTP attempts exceeded");
+			return false;
+		}
+		int provided = parse(code);
+		if (provided < 0) {
+			return false;
+		}
+		HMACEngine secret = subjectEngine(subject);
+		long next = stepStore.getFactor(subject);
+		StepWindow current = stepWindow(timeLapGenerator.getClock().millis());
+		for (int i = 0; i < current.encoded.length; i++) {
+			if (truncate(secret, current.encoded[i]) == provided) {
+				long step = current.step + current.offsets[i];
+				if (step < next || !advance(stepStore, subject, next, step + 1)) {
+					logger.debug("TOTP already used");
+					return false;
+				}
+				attemptCounter.reset(subject);
+				if (i > 0 && logger.isDebugEnabled()) {
+					logger.debug("Accepted TOTP {} steps off", current.offsets[i]);
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Sets the number of time steps accepted before and after the current
+	 * one. Call before the engine is shared.
+	 * 
+	 * @param window
+	 */
+	public void setWindow(int window) {
+		if (window < 0) {
+			throw new IllegalArgumentException("Invalid window " + window);
+		}
+		this.window = window;
+		this.steps = null;
+	}
+
+	/**
+	 * Sets the number of HOTP counter values searched ahead of the stored
+	 * one. Call before the engine is shared.
+	 * 
+	 * @param lookAhead
+	 */
+	public void setLookAhead(int lookAhead) {
+		if (lookAhead < 0) {
+			throw new IllegalArgumentException("Invalid look ahead " + lookAhead);
+		}
+		this.lookAhead = lookAhead;
+	}
+
+	/**
+	 * Returns the number of digits of generated codes.
+	 * 
+	 * @return
+	 */
+	public int getDigits() {
+		return digits;
+	}
+
+	/*
+	 * Moves the factor from the value read to next. Another validation may
+	 * have moved it in between; the code matched is still unused while the
+	 * factor stays below next, otherwise it was accepted already.
+	 */
+	private static boolean advance(MovingFactorStore store, String subject, long factor, long next) {
+		while (!store.compareAndSet(subject, factor, next)) {
+			factor = store.getFactor(subject);
+			if (factor >= next) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Returns the window of the step containing the instant, reusing the
+	 * cached one while the step lasts.
+	 */
+	private StepWindow stepWindow(long millis) {
+		long step = Math.floorDiv(millis, timeStepMillis);
+		StepWindow current = steps;
+		if (current == null || current.step != step) {
+			current = new StepWindow(step, window);
+			steps = current;
+		}
+		return current;
+	}
+
+	/*
+	 * Returns an engine keyed with the subject's secret.
+	 */
+	private HMACEngine subjectEngine(String subject) {
+		byte[] secret = getSecret(subject);
+		try {
+			return HMACEngine.getInstance(new SecretKeySpec(secret, "RAW"), algorithm);
+		} finally {
+			Arrays.fill(secret, (byte) 0);
+		}
+	}
+
+	/*
+	 * Dynamic truncation of RFC 4226 section 5.3, reduced to the digits.
+	 */
+	private int truncate(HMACEngine engine, byte[] movingFactor) {
+		byte[] hmac = new byte[engine.getMacLength()];
+		engine.generateHMAC(movingFactor, NO_PARAMS, hmac, 0);
+		int offset = hmac[hmac.length - 1] & 0xf;
+		int binary = (hmac[offset] & 0x7f) << 24 | (hmac[offset + 1] & 0xff) << 16 | (hmac[offset + 2] & 0xff) << 8
+				| (hmac[offset + 3] & 0xff);
+		return binary % POWERS_OF_TEN[digits];
+	}
+
+	/*
+	 * Reads a code of exactly the configured digits, -1 if it is not one.
+	 */
+	private int parse(String code) {
+		if (code == null || code.length() != digits) {
+			return -1;
+		}
+		int value = 0;
+		for (int i = 0; i < digits; i++) {
+			char c = code.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	/*
+	 * Pads the code with leading zeros.
+	 */
+	private String format(int code) {
+		char[] chars = new char[digits];
+		for (int i = digits - 1; i >= 0; i--) {
+			chars[i] = (char) ('0' + code % 10);
+			code /= 10;
+		}
+		return new String(chars);
+	}
+
+	/*
+	 * Writes the moving factor as 8 bytes, big endian.
+	 */
+	private static byte[] encode(long movingFactor) {
+		byte[] encoded = new byte[8];
+		for (int i = 7; i >= 0; i--) {
+			encoded[i] = (byte) movingFactor;
+			movingFactor >>>= 8;
+		}
+		return encoded;
+	}
+
+	/**
+	 * Encoded time steps of a window in the order they are searched: the
+	 * current step, then alternately one further back and one further ahead.
+	 */
+	private static final class StepWindow {
+
+		final long step;
+
+		final int[] offsets;
+
+		final byte[][] encoded;
+
+		StepWindow(long step, int window) {
+			this.step = step;
+			offsets = new int[window * 2 + 1];
+			encoded = new byte[offsets.length][];
+			for (int i = 0; i < offsets.length; i++) {
+				offsets[i] = (i % 2 == 1) ? -(i + 1) / 2 : i / 2;
+				encoded[i] = encode(step + offsets[i]);
+			}
+		}
+	}
+
+}
@@ -3,27 +3,78 @@ package com.arctix.security.otp;
 /**
  * Represents one-time password generated by OTP Engine.
  * 
+ * The password is held as a number and its count of digits, so leading zeros
+ * are preserved and check digits are computed without parsing. It is turned
+ * into a string only when {@link #getPassword()} is called. Passwords given
+ * as strings that are not all digits are kept as given and never have a
+ * valid checksum.
+ * 
  * @author aprasa2
  *
  */
 public class OTP {
 
-	String password;
+	static final int MAX_DIGITS = 18; // longest password that fits a long
+
+	private static final long[] POWERS_OF_TEN = new long[MAX_DIGITS + 1];
+
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+
+	// -1 if the password is not numeric
+	private final long code;
+
+	private final int digits;
+
+	// formatted on first use if the OTP was created from a number
+	private String password;
+
 	String hmac;
+
 	int instance = 0;
 
 	public OTP(String pass, String hmac) {
 		this.password = pass;
 		this.hmac = hmac;
+		this.code = parse(pass);
+		this.digits = pass.length();
 	}
 
 	public OTP(String pass, String hmac, int instance) {
-		this.password = pass;
-		this.hmac = hmac;
+		this(pass, hmac);
 		this.instance = instance;
 	}
 
+	/**
+	 * Creates an OTP from its numeric password.
+	 * 
+	 * @param code
+	 * @param digits
+	 *            - length of the password, padded with leading zeros
+	 * @param hmac
+	 */
+	public OTP(long code, int digits, String hmac) {
+		if (digits < 1 || digits > MAX_DIGITS) {
+			throw new IllegalArgumentException("Passwords must have 1 to " + MAX_DIGITS + " digits, got " + digits);
+		}
+		if (code < 0 || code >= POWERS_OF_TEN[digits]) {
+			throw new IllegalArgumentException("Code " + code + " does not have " + digits + " digits");
+		}
+		this.code = code;
+		this.digits = digits;
+		this.hmac = hmac;
+	}
+
 	public String getPassword() {
+		String password = this.password;
+		if (password == null) {
+			password = format(code, digits);
+			this.password = password;
+		}
 		return password;
 	}
 
@@ -31,36 +82,127 @@ public class OTP {
 		return hmac;
 	}
 
+	/**
+	 * Returns the password as a number, -1 if it is not numeric.
+	 * 
+	 * @return
+	 */
+	public long getCode() {
+		return code;
+	}
+
+	/**
+	 * Returns the length of the password.
+	 * 
+	 * @return
+	 */
+	public int getDigits() {
+		return digits;
+	}
+
+	/**
+	 * Returns whether the password is all digits.
+	 * 
+	 * @return
+	 */
+	public boolean isNumeric() {
+		return code >= 0;
+	}
+
 	public OTP generateChecksum() {
-		int checksum = numberChecksum(Integer.parseInt(password));
-		return new OTP(password + checksum, hmac);
+		return generateChecksum(CheckDigit.WEIGHTED);
+	}
+
+	/**
+	 * Returns this OTP with the check digit appended to the password.
+	 * 
+	 * @param checkDigit
+	 * @return
+	 */
+	public OTP generateChecksum(CheckDigit checkDigit) {
+		if (!isNumeric()) {
+			throw new IllegalStateException("Password is not numeric");
+		}
+		return new OTP(code * 10 + checkDigit.compute(code), digits + 1, hmac);
 	}
 
+	/**
+	 * Returns this OTP with the last digit of the password removed.
+	 * 
+	 * @return
+	 */
 	public OTP stripChecksum() {
-		return new OTP(String.valueOf(Integer.parseInt(password) / 10), hmac);
+		if (!isNumeric() || digits < 2) {
+			throw new IllegalStateException("Password has no checksum");
+		}
+		return new OTP(code / 10, digits - 1, hmac);
 	}
 
 	public boolean hasValidChecksum() {
-		int generateChecksum = numberChecksum(Integer.parseInt(password) / 10);
-		int lastDigit = Integer.parseInt(password) % 10;
-		return (generateChecksum == lastDigit);
-	}
-
-	private int numberChecksum(final int original) {
-		int checksum = 0, counter = 1;
-		int numberReduced = original;
-		while (numberReduced > 0) {
-			if (counter % 2 == 0) {
-				checksum += numberReduced % 10;
-			} else {
-				checksum += (numberReduced % 10) * 3;
+		return hasValidChecksum(CheckDigit.WEIGHTED);
+	}
+
+	/**
+	 * Returns whether the last digit of the password is the check digit of
+	 * the others.
+	 * 
+	 * @param checkDigit
+	 * @return
+	 */
+	public boolean hasValidChecksum(CheckDigit checkDigit) {
+		return isNumeric() && digits >= 2 && checkDigit.compute(code / 10) == code % 10;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof OTP)) {
+			return false;
+		}
+		OTP other = (OTP) obj;
+		boolean samePassword = isNumeric() ? code == other.code && digits == other.digits
+				: getPassword().equals(other.getPassword());
+		return samePassword && (hmac == null ? other.hmac == null : hmac.equals(other.hmac));
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = isNumeric() ? Long.hashCode(code) * 31 + digits : getPassword().hashCode();
+		return hash * 31 + (hmac == null ? 0 : hmac.hashCode());
+	}
+
+	/*
+	 * Returns the code of a password of 1 to MAX_DIGITS ASCII digits, -1 for
+	 * anything else.
+	 */
+	private static long parse(String password) {
+		int length = password.length();
+		if (length == 0 || length > MAX_DIGITS) {
+			return -1;
+		}
+		long code = 0;
+		for (int i = 0; i < length; i++) {
+			char c = password.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
 			}
-			numberReduced /= 10;
+			code = code * 10 + (c - '0');
 		}
-		if (checksum > 0 && checksum > 9) {
-			checksum = (10 - (checksum % 10)) % 10;
+		return code;
+	}
+
+	/*
+	 * Formats the code with leading zeros up to the number of digits.
+	 */
+	static String format(long code, int digits) {
+		char[] chars = new char[digits];
+		for (int i = digits - 1; i >= 0; i--) {
+			chars[i] = (char) ('0' + code % 10);
+			code /= 10;
 		}
-		return checksum;
+		return new String(chars);
 	}
 
 }
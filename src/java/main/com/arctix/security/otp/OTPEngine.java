@@ -1,12 +1,27 @@
 package com.arctix.security.otp;
 
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 import javax.crypto.SecretKey;
 
-import org.apache.commons.lang.ArrayUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -22,9 +37,7 @@ import com.arctix.security.otp.hmac.HMACEngine;
  */
 public class OTPEngine extends HMACEngine {
 
-	private RandomNumberGenerator rngInstance;
-
-	private final DateFormat dateFormat = new SimpleDateFormat("yyyyMMddHHmm");
+	private volatile RandomNumberGenerator rngInstance;
 
 	static final int TIME_LAP_INTERVAL = 5; // in minutes
 
@@ -33,11 +46,77 @@ public class OTPEngine extends HMACEngine {
 	static final int MAX_ATTEMPTS = 5; // number of attempts allowed to
 										// validate an OTP
 
+	// number of time laps to validate
+	static final int TIME_LAP_PERIODS = PASSWORD_EXPRIRY / TIME_LAP_INTERVAL;
+
+	static final int MIN_PASSWORD_DIGITS = 6; // without the check digit
+
+	static final int MAX_PASSWORD_DIGITS = RandomNumberGenerator.MAX_DIGITS;
+
+	static final int BATCH_SPLIT_THRESHOLD = 256; // items one worker takes
+
+	static final int LEGACY_TOKEN_VERSION = 1; // hex MACs joined by 'O'
+
+	static final int TOKEN_VERSION = 2; // base64url version, lap and MACs
+
+	static final int KEYED_TOKEN_VERSION = 3; // version 2 naming its key
+
+	static final int SUBJECT_TOKEN_VERSION = 4; // version 3 hashing params first
+
+	static final int DYNAMIC_MAC_BYTES = 16; // truncated time bound MAC
+
+	static final int STATIC_MAC_BYTES = 10; // truncated MAC without time
+
+	private static final int TOKEN_HEADER_BYTES = 2; // version and lap
+
+	private static final int KEYED_TOKEN_HEADER_BYTES = 3; // version, key and lap
+
+	static final int WARM_UP_CYCLES = 10000; // enough for the JIT to compile hot paths
+
+	private static final int WARM_UP_TAIL = 100; // cycles averaged for the steady state
+
+	private static final long WARM_UP_THREAD_TIMEOUT = 10000; // in millis, for all threads to start
+
+	private static final String[] WARM_UP_PARAMS = { "WARM-UP" };
+
 	private static Logger logger = LoggerFactory.getLogger(OTPEngine.class);
 
-	TimeLaps timeLapGenerator;
+	volatile TimeLaps timeLapGenerator;
+
+	private final Counter counterProvider;
+
+	private final AsyncCounter asyncCounter;
+
+	// keys to rotate through, null for engines with a single key
+	private final KeyRing keyRing;
+
+	// key of the ring validating tokens without a key id
+	private final int unkeyedKeyId;
+
+	// codes validated successfully, null to accept replays
+	private volatile ReplayCache replayCache = new ReplayCache();
+
+	private volatile int tokenVersion;
+
+	private volatile OTPMetrics metrics = OTPMetrics.NOOP;
+
+	// generations allowed per subject, null for no limit
+	private volatile RateLimiter rateLimiter;
+
+	private volatile CheckDigit checkDigit = CheckDigit.WEIGHTED;
+
+	// replaced check digit still accepted, null for none
+	private volatile CheckDigit previousCheckDigit = CheckDigit.LEGACY;
 
-	private Counter counterProvider;
+	// epoch millis until which passwords with the previous one may be in use
+	private volatile long previousCheckDigitUntil;
+
+	private final int dynamicMacBytes;
+
+	private final int staticMacBytes;
+
+	// set once warmUp completes
+	private volatile boolean ready = false;
 
 	/**
 	 * Parameterized constructor. Creates new instance of OTP Engine.
@@ -46,18 +125,46 @@ public class OTPEngine extends HMACEngine {
 	 * @param key
 	 * @param algorithm
 	 */
-	private OTPEngine(SecretKey key, String algorithm, Counter counterProvider) {
+	private OTPEngine(SecretKey key, String algorithm, Counter counterProvider, AsyncCounter asyncCounter,
+			KeyRing keyRing, int unkeyedKeyId) {
 		super(key, algorithm);
-		if (rngInstance == null) {
-			rngInstance = RandomNumberGenerator.getInstance();
-			timeLapGenerator = new TimeLaps(TIME_LAP_INTERVAL);
-			this.counterProvider = counterProvider;
-		}
+		rngInstance = RandomNumberGenerator.getInstance();
+		timeLapGenerator = new TimeLaps(TIME_LAP_INTERVAL);
+		previousCheckDigitUntil = timeLapGenerator.getClock().millis() + TimeUnit.MINUTES.toMillis(PASSWORD_EXPRIRY);
+		this.counterProvider = counterProvider;
+		this.asyncCounter = asyncCounter;
+		this.keyRing = keyRing;
+		this.unkeyedKeyId = unkeyedKeyId;
+		tokenVersion = keyRing != null ? KEYED_TOKEN_VERSION : TOKEN_VERSION;
+		dynamicMacBytes = Math.min(DYNAMIC_MAC_BYTES, getMacLength());
+		staticMacBytes = Math.min(STATIC_MAC_BYTES, getMacLength());
+	}
+
+	/*
+	 * Creates an engine with the keys, laps and settings of the given one but
+	 * counters and a replay cache of its own, for synthetic traffic that must
+	 * not touch real subjects.
+	 */
+	private OTPEngine(OTPEngine engine, int capacity) {
+		super(engine);
+		rngInstance = engine.rngInstance;
+		timeLapGenerator = engine.timeLapGenerator;
+		counterProvider = new InMemorySubjectCounter();
+		asyncCounter = AsyncCounter.of(counterProvider);
+		keyRing = engine.keyRing;
+		unkeyedKeyId = engine.unkeyedKeyId;
+		replayCache = new ReplayCache(TIME_LAP_INTERVAL, PASSWORD_EXPRIRY, capacity);
+		tokenVersion = engine.tokenVersion;
+		checkDigit = engine.checkDigit;
+		previousCheckDigit = engine.previousCheckDigit;
+		previousCheckDigitUntil = engine.previousCheckDigitUntil;
+		dynamicMacBytes = engine.dynamicMacBytes;
+		staticMacBytes = engine.staticMacBytes;
 	}
 
 	/**
-	 * Returns new instance of OTP Engine. The instance is not thread-safe. Do
-	 * not use this method in production. Use one that provides concrete
+	 * Returns new instance of OTP Engine. The instance is thread-safe. Do not
+	 * use this method in production. Use one that provides concrete
 	 * implementation of Counter Provider
 	 * 
 	 * @param key
@@ -66,11 +173,13 @@ public class OTPEngine extends HMACEngine {
 	 */
 	public static OTPEngine getInstance(SecretKey key) {
 		logger.warn("Using In-Memory Counter!! Not recommended for production deployments");
-		return getInstance(key, "HmacSHA1", new InMemoryCounter());
+		return getInstance(key, "HmacSHA1", new InMemorySubjectCounter());
 	}
 
 	/**
-	 * Returns new instance of OTP Engine. The instance is not thread-safe.
+	 * Returns new instance of OTP Engine. The instance is thread-safe and can
+	 * be created once per key and shared, provided the counter provider is
+	 * thread-safe as well.
 	 * 
 	 * @param key
 	 * @param counterProvider
@@ -81,7 +190,9 @@ public class OTPEngine extends HMACEngine {
 	}
 
 	/**
-	 * Returns new instance of OTP Engine. The instance is not thread-safe.
+	 * Returns new instance of OTP Engine. The instance is thread-safe and can
+	 * be created once per key and shared, provided the counter provider is
+	 * thread-safe as well.
 	 * 
 	 * @param key
 	 * @param algorithm
@@ -89,7 +200,40 @@ public class OTPEngine extends HMACEngine {
 	 * @return
 	 */
 	public static OTPEngine getInstance(SecretKey key, String algorithm, Counter counterProvider) {
-		return new OTPEngine(key, algorithm, counterProvider);
+		return new OTPEngine(key, algorithm, counterProvider, AsyncCounter.of(counterProvider), null, -1);
+	}
+
+	/**
+	 * Returns new instance of OTP Engine counting attempts through an
+	 * asynchronous counter, such as one backed by a remote store. The
+	 * synchronous validate methods wait for the counter; use
+	 * {@link #validatePasswordWithHmacAsync(OTP, String[])} to avoid blocking.
+	 * 
+	 * @param key
+	 * @param algorithm
+	 * @param counterProvider
+	 * @return
+	 */
+	public static OTPEngine getInstance(SecretKey key, String algorithm, AsyncCounter counterProvider) {
+		return new OTPEngine(key, algorithm, AsyncCounter.blocking(counterProvider), counterProvider, null, -1);
+	}
+
+	/**
+	 * Returns new instance of OTP Engine generating passwords with the active
+	 * key of the ring. Generated tokens carry the id of their key, so
+	 * validation picks the key directly and keeps accepting passwords of a
+	 * replaced key until the ring retires it. Tokens without a key id are
+	 * validated with the key active when the engine is created, and rejected
+	 * once the ring retires that key.
+	 * 
+	 * @param keyRing
+	 * @param counterProvider
+	 * @return
+	 */
+	public static OTPEngine getInstance(KeyRing keyRing, Counter counterProvider) {
+		KeyRing.Entry active = keyRing.active();
+		return new OTPEngine(active.key, keyRing.getAlgorithm(), counterProvider, AsyncCounter.of(counterProvider),
+				keyRing, active.id);
 	}
 
 	/**
@@ -99,24 +243,197 @@ public class OTPEngine extends HMACEngine {
 	 * @return
 	 */
 	public OTP generatePasswordWithHmac(final String params[]) {
-
-		// generate a random password
-		String password = Integer.toString(rngInstance.getRandomInt());
-
 		// Include start of last time lap as one of the parameters in generating
 		// HMAC
-		TimeLaps timeLaps = new TimeLaps(TIME_LAP_INTERVAL);
-		Calendar lastTimeLap = timeLaps.getPreviousTimeLap();
-		String dateParam = dateFormat.format(lastTimeLap.getTime());
+		return generatePasswordWithHmac(params, null, timeLapGenerator.getLapWindow(1));
+	}
 
-		String[] paramsForHMAC = (String[]) ArrayUtils.add(params, dateParam);
+	/**
+	 * Prepares the params of a user for generating and validating their
+	 * passwords, such as for the length of a login session. With version 4
+	 * tokens the context spares hashing the params on every call; other
+	 * versions simply use its params.
+	 * 
+	 * @param params
+	 * @return
+	 */
+	public SubjectContext createSubjectContext(final String params[]) {
+		SubjectContext context = new SubjectContext(params.clone());
+		context.prefix(keyRing != null ? keyRing.active().engine : this);
+		return context;
+	}
 
-		String hmac = new StringBuffer(generateHMAC(password, paramsForHMAC)).append("O")
-				.append(generateHMAC(password, params)).toString();
+	/**
+	 * Generates a one-time password for the params of the context.
+	 * 
+	 * @param subject
+	 * @return
+	 */
+	public OTP generatePasswordWithHmac(final SubjectContext subject) {
+		return generatePasswordWithHmac(subject.params, subject, timeLapGenerator.getLapWindow(1));
+	}
 
-		logger.debug("Generated HMAC " + hmac + " for time lap " + lastTimeLap.getTime());
+	/**
+	 * Generates a one-time password unless the subject has exhausted its rate
+	 * limit. The limit is checked before any random number or HMAC is
+	 * computed; a rejected call returns FAIL_RATE_LIMITED and no password.
+	 * Without a rate limiter every call succeeds.
+	 * 
+	 * @param params
+	 * @return SUCCESS with the password, or FAIL_RATE_LIMITED
+	 */
+	public Result tryGeneratePasswordWithHmac(final String params[]) {
+		return tryGeneratePasswordWithHmac(params, null);
+	}
 
-		return new OTP(password, hmac).generateChecksum();
+	/**
+	 * Generates a one-time password unless the subject has exhausted its rate
+	 * limit for the given caller, such as a client id or address. Each
+	 * subject and caller pair has its own limit.
+	 * 
+	 * @param params
+	 * @param caller
+	 *            - null to limit the subject alone
+	 * @return SUCCESS with the password, or FAIL_RATE_LIMITED
+	 */
+	public Result tryGeneratePasswordWithHmac(final String params[], final String caller) {
+		return tryGeneratePasswordWithHmac(params, null, caller);
+	}
+
+	/**
+	 * Generates a one-time password for the params of the context unless the
+	 * subject has exhausted its rate limit for the given caller.
+	 * 
+	 * @param subject
+	 * @param caller
+	 *            - null to limit the subject alone
+	 * @return SUCCESS with the password, or FAIL_RATE_LIMITED
+	 */
+	public Result tryGeneratePasswordWithHmac(final SubjectContext subject, final String caller) {
+		return tryGeneratePasswordWithHmac(subject.params, subject, caller);
+	}
+
+	private Result tryGeneratePasswordWithHmac(final String params[], final SubjectContext subject,
+			final String caller) {
+		RateLimiter limiter = rateLimiter;
+		if (limiter != null) {
+			String key = subject != null ? subject.subject : subjectOf(params);
+			if (caller != null) {
+				key = key + '/' + caller.length() + ':' + caller;
+			}
+			if (!limiter.tryAcquire(key)) {
+				logger.debug("Generation rate limited");
+				metrics.recordRateLimited();
+				return new Result(Result.Code.FAIL_RATE_LIMITED);
+			}
+		}
+		return new Result(generatePasswordWithHmac(params, subject, timeLapGenerator.getLapWindow(1)));
+	}
+
+	/**
+	 * Generates one-time passwords for each of the given parameter sets. The
+	 * time lap is computed once for the batch and the work is split across
+	 * the common fork-join pool. Passwords are returned in the order of the
+	 * parameter sets.
+	 * 
+	 * @param paramSets
+	 * @return
+	 */
+	public List<OTP> generatePasswordsWithHmac(final Collection<String[]> paramSets) {
+		return generatePasswordsWithHmac(paramSets, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Generates one-time passwords for each of the given parameter sets on
+	 * the given pool.
+	 * 
+	 * @param paramSets
+	 * @param pool
+	 * @return
+	 */
+	public List<OTP> generatePasswordsWithHmac(final Collection<String[]> paramSets, final ForkJoinPool pool) {
+		String[][] params = paramSets.toArray(new String[paramSets.size()][]);
+		OTP[] otps = new OTP[params.length];
+		pool.invoke(new GenerateTask(params, otps, timeLapGenerator.getLapWindow(1), 0, params.length));
+		return Arrays.asList(otps);
+	}
+
+	/**
+	 * Lazily generates a one-time password for each parameter set of the
+	 * stream, without holding the batch in memory. Runs in parallel if the
+	 * given stream is parallel. The time lap is read from the shared window,
+	 * so long running streams follow the clock.
+	 * 
+	 * @param paramSets
+	 * @return
+	 */
+	public Stream<OTP> generatePasswordsWithHmac(final Stream<String[]> paramSets) {
+		return paramSets.map(this::generatePasswordWithHmac);
+	}
+
+	/*
+	 * Generates a one-time password for the given lap. The context is null
+	 * unless the caller prepared one.
+	 */
+	private OTP generatePasswordWithHmac(final String params[], final SubjectContext subject,
+			final LapWindow lastTimeLap) {
+		GenerateEvent event = FlightEvents.isRecording() ? new GenerateEvent() : null;
+		if (event != null) {
+			event.begin();
+		}
+		OTPMetrics metrics = this.metrics;
+		long start = now(metrics);
+		int version = tokenVersion;
+
+		// generate a random password
+		RandomNumberGenerator rng = rngInstance;
+		long code = rng.getRandomLong();
+		int digits = rng.getDigits();
+		String password = OTP.format(code, digits);
+
+		String hmac;
+		if (version == LEGACY_TOKEN_VERSION) {
+			hmac = new StringBuilder(generateHMAC(password, params, lastTimeLap.getEncodedLap(0))).append("O")
+					.append(generateHMAC(password, params)).toString();
+		} else {
+			// key id and engine come from the same entry, whatever the ring does
+			KeyRing.Entry key = keyRing != null ? keyRing.active() : null;
+			HMACEngine mac = key != null ? key.engine : this;
+			int header = version == TOKEN_VERSION ? TOKEN_HEADER_BYTES : KEYED_TOKEN_HEADER_BYTES;
+			byte[] token = new byte[header + dynamicMacBytes + staticMacBytes];
+			token[0] = (byte) version;
+			if (key != null) {
+				token[1] = (byte) key.id;
+			}
+			token[header - 1] = (byte) lastTimeLap.getLapNumber(0);
+			if (version == SUBJECT_TOKEN_VERSION) {
+				HMACEngine.Prefix prefix = subject != null ? subject.prefix(mac)
+						: mac.precompute(SubjectContext.encode(params));
+				mac.generateHMAC(prefix, password, lastTimeLap.getEncodedLap(0), token, header, dynamicMacBytes);
+				mac.generateHMAC(prefix, password, null, token, header + dynamicMacBytes, staticMacBytes);
+			} else {
+				mac.generateHMAC(password, params, lastTimeLap.getEncodedLap(0), token, header, dynamicMacBytes);
+				mac.generateHMAC(password, params, null, token, header + dynamicMacBytes, staticMacBytes);
+			}
+			hmac = Base64.getUrlEncoder().withoutPadding().encodeToString(token);
+		}
+
+		if (logger.isDebugEnabled()) {
+			logger.debug("Generated HMAC {} for time lap {}", hmac, lastTimeLap.getLap(0));
+		}
+		OTP otp = new OTP(code * 10 + checkDigit.compute(code), digits + 1, hmac);
+
+		if (metrics.isEnabled()) {
+			metrics.recordGenerated(System.nanoTime() - start);
+		}
+		if (event != null) {
+			event.end();
+			if (event.shouldCommit()) {
+				event.tokenVersion = version;
+				event.commit();
+			}
+		}
+		return otp;
 	}
 
 	/**
@@ -129,62 +446,947 @@ public class OTPEngine extends HMACEngine {
 	 * @return
 	 */
 	public Result validatePasswordWithHmac(final OTP passwordWithMac, final String params[]) {
-		boolean isValid = false;
-		OTP otpWithoutChecksum = null;
-		if (!passwordWithMac.hasValidChecksum()) {
-			return new Result(Result.Code.FAIL_INVALID_CODE);
-		} else {
-			otpWithoutChecksum = passwordWithMac.stripChecksum();
+		// get start time for valid time laps within the expiration time
+		LapWindow validTimes = validTimes(metrics);
+
+		return validatePasswordWithHmac(passwordWithMac, new SubjectContext(params), validTimes);
+	}
+
+	/**
+	 * Validates the password using the given hmac and the params of the
+	 * context.
+	 * 
+	 * @param passwordWithMac
+	 * @param subject
+	 * @return
+	 */
+	public Result validatePasswordWithHmac(final OTP passwordWithMac, final SubjectContext subject) {
+		return validatePasswordWithHmac(passwordWithMac, subject, validTimes(metrics));
+	}
+
+	/**
+	 * Validates a batch of passwords against their params, returning the
+	 * results in input order. The time laps are computed once for the batch.
+	 * Passwords of different subjects are validated in parallel on the common
+	 * fork-join pool, while those of the same subject are validated one after
+	 * another in input order, so attempts are counted as if the batch was
+	 * validated sequentially.
+	 * 
+	 * @param passwordsWithMac
+	 * @param params
+	 *            - params of each password, same size as passwords
+	 * @return
+	 */
+	public List<Result> validatePasswordsWithHmac(final List<OTP> passwordsWithMac, final List<String[]> params) {
+		return validatePasswordsWithHmac(passwordsWithMac, params, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Validates a batch of passwords against their params on the given pool.
+	 * 
+	 * @param passwordsWithMac
+	 * @param params
+	 * @param pool
+	 * @return
+	 */
+	public List<Result> validatePasswordsWithHmac(final List<OTP> passwordsWithMac, final List<String[]> params,
+			final ForkJoinPool pool) {
+		if (passwordsWithMac.size() != params.size()) {
+			throw new IllegalArgumentException(
+					"Got " + passwordsWithMac.size() + " passwords but " + params.size() + " params");
 		}
+		OTP[] otps = passwordsWithMac.toArray(new OTP[passwordsWithMac.size()]);
+		String[][] paramSets = params.toArray(new String[params.size()][]);
 
-		// seperate the static and dynamic parts
-		// 0 - dynamic part
-		// 1 - static part
-		String[] hmacToValidate = otpWithoutChecksum.getHmac().split("O");
-		if (hmacToValidate.length != 2) {
-			logger.debug("Invalid HMAC " + otpWithoutChecksum.getHmac());
-			return new Result(Result.Code.FAIL_INVALID_CODE);
+		// group positions by subject, keeping input order within a group
+		Map<String, int[]> groups = new HashMap<String, int[]>();
+		SubjectContext[] subjects = new SubjectContext[paramSets.length];
+		for (int i = 0; i < paramSets.length; i++) {
+			subjects[i] = new SubjectContext(paramSets[i]);
+			int[] group = groups.get(subjects[i].subject);
+			if (group == null) {
+				groups.put(subjects[i].subject, new int[] { 1, i });
+			} else {
+				if (group[0] + 1 == group.length) {
+					group = Arrays.copyOf(group, group.length * 2);
+					groups.put(subjects[i].subject, group);
+				}
+				group[++group[0]] = i;
+			}
 		}
 
-		// determine the number units of time laps to validate
-		final int timeLapPeriods = PASSWORD_EXPRIRY / TIME_LAP_INTERVAL;
+		Result[] results = new Result[otps.length];
+		LapWindow validTimes = validTimes(metrics);
+		pool.invoke(new ValidateTask(otps, subjects, groups.values().toArray(new int[groups.size()][]),
+				results, validTimes, 0, groups.size()));
+		return Arrays.asList(results);
+	}
+
+	/*
+	 * Validates the password within the given time laps.
+	 */
+	private Result validatePasswordWithHmac(final OTP passwordWithMac, final SubjectContext subject,
+			final LapWindow validTimes) {
+		ValidateEvent event = beginValidate();
+		OTPMetrics metrics = this.metrics;
+		long start = now(metrics);
 
-		// get start time for valid time laps within the expiration time
-		Calendar[] validTimes = timeLapGenerator.getPreviousTimeLap(timeLapPeriods);
+		Candidate candidate = parse(passwordWithMac);
+		mark(metrics, OTPMetrics.Phase.CHECKSUM, start);
 
-		int counter = counterProvider.getCurrentValue();
+		Result result = candidate == null ? new Result(Result.Code.FAIL_INVALID_CODE)
+				: validateCandidate(candidate, subject, validTimes, metrics);
 
-		if (counter > MAX_ATTEMPTS) {
+		complete(event, metrics, start, candidate, result);
+		return result;
+	}
+
+	/*
+	 * Validates a well formed password, counting the attempt.
+	 */
+	private Result validateCandidate(final Candidate candidate, final SubjectContext subject,
+			final LapWindow validTimes, final OTPMetrics metrics) {
+		// reject codes already used, before any HMAC work
+		ReplayCache usedCodes = replayCache;
+		long digest = 0;
+		if (usedCodes != null) {
+			digest = usedCodes.digest(candidate.replayKey, 0, candidate.replayKeyLength, subject.params);
+			if (usedCodes.isUsed(digest)) {
+				logger.debug("Replayed code rejected");
+				return new Result(Result.Code.FAIL_CODE_REPLAYED);
+			}
+		}
+
+		// count the attempt before deciding on it, so that concurrent
+		// guesses of a subject each see those before them
+		long mark = now(metrics);
+		int attempts = counterProvider.getNextValue(subject.subject);
+		mark = mark(metrics, OTPMetrics.Phase.COUNTER, mark);
+
+		if (isLockedOut(attempts)) {
 			return new Result(Result.Code.FAIL_MAX_ATTEMPTS_EXCEEDED);
 		}
 
-		logger.debug("Validating password within " + timeLapPeriods + " periods of " + validTimes[0].getTime());
+		Result.Code outcome = checkHmac(candidate, subject, validTimes);
+		mark(metrics, OTPMetrics.Phase.HMAC, mark);
+		if (outcome != Result.Code.SUCCESS) {
+			return new Result(outcome);
+		}
+		// only one of concurrent validations of the same code may succeed
+		if (usedCodes != null && !usedCodes.markUsed(digest)) {
+			logger.debug("Replayed code rejected");
+			return new Result(Result.Code.FAIL_CODE_REPLAYED);
+		}
+		mark = now(metrics);
+		counterProvider.reset(subject.subject);
+		mark(metrics, OTPMetrics.Phase.COUNTER, mark);
+
+		logger.debug("Validation Complete. Result is {}", outcome);
+		return new Result(Result.Code.SUCCESS);
+	}
+
+	/**
+	 * Validates the password using the given hmac and params without blocking
+	 * on the counter. The attempt is counted through the async counter while
+	 * the HMAC is checked on the calling thread, and the result completes once
+	 * the count is known, or reset after a success.
+	 * 
+	 * @param passwordWithMac
+	 * @param params
+	 * @return
+	 */
+	public CompletableFuture<Result> validatePasswordWithHmacAsync(final OTP passwordWithMac, final String params[]) {
+		final OTPMetrics metrics = this.metrics;
+		// get start time for valid time laps within the expiration time
+		LapWindow validTimes = validTimes(metrics);
+		final SubjectContext subject = new SubjectContext(params);
+
+		final ValidateEvent event = beginValidate();
+		final long start = now(metrics);
+
+		final Candidate candidate = parse(passwordWithMac);
+		mark(metrics, OTPMetrics.Phase.CHECKSUM, start);
+		if (candidate == null) {
+			Result result = new Result(Result.Code.FAIL_INVALID_CODE);
+			complete(event, metrics, start, candidate, result);
+			return CompletableFuture.completedFuture(result);
+		}
+
+		// reject codes already used, before any HMAC work
+		final ReplayCache usedCodes = replayCache;
+		final long digest = usedCodes == null ? 0
+				: usedCodes.digest(candidate.replayKey, 0, candidate.replayKeyLength, params);
+		if (usedCodes != null && usedCodes.isUsed(digest)) {
+			logger.debug("Replayed code rejected");
+			Result result = new Result(Result.Code.FAIL_CODE_REPLAYED);
+			complete(event, metrics, start, candidate, result);
+			return CompletableFuture.completedFuture(result);
+		}
 
-		String[] paramsForHMAC = null;
-		// validate password for all previous time periods within expiry period
-		for (Calendar time : validTimes) {
-			paramsForHMAC = (String[]) ArrayUtils.add(params, dateFormat.format(time.getTime()));
-			if (validateHMAC(hmacToValidate[0], otpWithoutChecksum.getPassword(), paramsForHMAC)) {
-				isValid = true;
-				logger.debug("Found password valid for time lap " + time.getTime() + " and counter " + counter);
-				counterProvider.reset();
-				break;
+		// count the attempt before deciding on it, as the blocking path does
+		final AsyncCounter counter = asyncCounter;
+		final long issued = now(metrics);
+		CompletableFuture<Integer> attempts = counter.getNextValueAsync(subject.subject);
+
+		// overlaps the counter round trip
+		long mark = now(metrics);
+		final Result.Code outcome = checkHmac(candidate, subject, validTimes);
+		mark(metrics, OTPMetrics.Phase.HMAC, mark);
+
+		return attempts.thenCompose(value -> {
+			mark(metrics, OTPMetrics.Phase.COUNTER, issued);
+			if (isLockedOut(value)) {
+				return CompletableFuture.completedFuture(new Result(Result.Code.FAIL_MAX_ATTEMPTS_EXCEEDED));
+			}
+			if (outcome != Result.Code.SUCCESS) {
+				return CompletableFuture.completedFuture(new Result(outcome));
 			}
+			// only one of concurrent validations of the same code may succeed
+			if (usedCodes != null && !usedCodes.markUsed(digest)) {
+				logger.debug("Replayed code rejected");
+				return CompletableFuture.completedFuture(new Result(Result.Code.FAIL_CODE_REPLAYED));
+			}
+			return counter.resetAsync(subject.subject).thenApply(reset -> new Result(Result.Code.SUCCESS));
+		}).whenComplete((result, error) -> {
+			if (result != null) {
+				complete(event, metrics, start, candidate, result);
+			}
+		});
+	}
+
+	/**
+	 * Validates the password without blocking on the counter, giving up after
+	 * the deadline. If the counter does not answer in time the returned
+	 * future completes exceptionally with a TimeoutException; counter updates
+	 * already sent still take effect.
+	 * 
+	 * @param passwordWithMac
+	 * @param params
+	 * @param deadline
+	 * @return
+	 */
+	public CompletableFuture<Result> validatePasswordWithHmacAsync(final OTP passwordWithMac, final String params[],
+			final Duration deadline) {
+		return validatePasswordWithHmacAsync(passwordWithMac, params).orTimeout(deadline.toNanos(),
+				TimeUnit.NANOSECONDS);
+	}
+
+	/*
+	 * Returns true if the subject is locked out, given the attempts counted
+	 * including the current one. An attempt is allowed while at most
+	 * MAX_ATTEMPTS attempts failed before it.
+	 */
+	static boolean isLockedOut(int attempts) {
+		return attempts - 1 > MAX_ATTEMPTS;
+	}
+
+	/*
+	 * Returns true if the password carries the check digit replaced, while
+	 * passwords issued with it may still be in use.
+	 */
+	private boolean hasPreviousChecksum(final OTP passwordWithMac) {
+		CheckDigit previous = previousCheckDigit;
+		if (previous == null || !passwordWithMac.hasValidChecksum(previous)) {
+			return false;
 		}
+		if (timeLapGenerator.getClock().millis() >= previousCheckDigitUntil) {
+			previousCheckDigit = null;
+			return false;
+		}
+		return true;
+	}
 
-		if (!isValid) {
-			// increment the counter if provided mac is not valid
-			counterProvider.getNextValue();
+	/*
+	 * Strips the checksum and decodes the token, null if either is invalid.
+	 */
+	private Candidate parse(final OTP passwordWithMac) {
+		if (!passwordWithMac.hasValidChecksum(checkDigit) && !hasPreviousChecksum(passwordWithMac)) {
+			return null;
+		}
+		// the MACs were computed over the password without its check digit
+		String password = OTP.format(passwordWithMac.getCode() / 10, passwordWithMac.getDigits() - 1);
+		String hmac = passwordWithMac.getHmac();
 
-			// if the hmac does not belong to this user, throw invalid code
-			if (!validateHMAC(hmacToValidate[1], otpWithoutChecksum.getPassword(), params)) {
-				logger.debug("Codes swapped! Hmac does not belong to this user!");
-				return new Result(Result.Code.FAIL_INVALID_CODE);
+		// legacy tokens carry hex MACs, known by their decoded dynamic MAC
+		// whatever the case of the hex; the rest are decoded up front
+		if (isLegacyToken(hmac)) {
+			byte[] dynamicMac = new byte[getMacLength()];
+			if (!hex2byte(hmac, 0, dynamicMac)) {
+				logger.debug("Invalid HMAC {}", hmac);
+				return null;
 			}
-			return new Result(Result.Code.FAIL_CODE_EXPIRED);
+			HMACEngine mac = unkeyedMac();
+			return mac != null ? new Candidate(password, hmac, null, dynamicMac, dynamicMac.length, mac, 0) : null;
+		}
+		// tokens are known by their header and dynamic MAC, the static MAC
+		// only telling expired codes from swapped ones
+		byte[] token = decodeToken(hmac);
+		if (token == null) {
+			logger.debug("Invalid HMAC {}", hmac);
+			return null;
+		}
+		if (token[0] == TOKEN_VERSION) {
+			HMACEngine mac = unkeyedMac();
+			return mac != null ? new Candidate(password, hmac, token, token, TOKEN_HEADER_BYTES + dynamicMacBytes,
+					mac, TOKEN_HEADER_BYTES) : null;
+		}
+		if (keyRing == null && token[0] == SUBJECT_TOKEN_VERSION) {
+			// engines without a ring write key 0
+			return token[1] == 0 ? new Candidate(password, hmac, token, token,
+					KEYED_TOKEN_HEADER_BYTES + dynamicMacBytes, this, KEYED_TOKEN_HEADER_BYTES) : null;
+		}
+		KeyRing.Entry key = keyRing != null ? keyRing.get(token[1] & 0xff) : null;
+		if (key == null) {
+			logger.debug("Unknown or retired key {}", token[1] & 0xff);
+			return null;
+		}
+		return new Candidate(password, hmac, token, token, KEYED_TOKEN_HEADER_BYTES + dynamicMacBytes, key.engine,
+				KEYED_TOKEN_HEADER_BYTES);
+	}
+
+	/*
+	 * Returns the engine validating tokens without a key id: this one, or
+	 * with a ring that of the key the engine was created with, null once the
+	 * ring has retired it.
+	 */
+	private HMACEngine unkeyedMac() {
+		if (keyRing == null) {
+			return this;
+		}
+		KeyRing.Entry key = keyRing.get(unkeyedKeyId);
+		if (key == null) {
+			logger.debug("Unknown or retired key {}", unkeyedKeyId);
+			return null;
+		}
+		return key.engine;
+	}
+
+	/*
+	 * Checks the HMACs of the candidate. Returns SUCCESS if the password is
+	 * valid within the time laps, FAIL_CODE_EXPIRED if it belongs to the
+	 * params but not to the laps and FAIL_INVALID_CODE otherwise.
+	 */
+	private Result.Code checkHmac(final Candidate candidate, final SubjectContext subject,
+			final LapWindow validTimes) {
+		String password = candidate.password;
+		String[] params = subject.params;
+		byte[] token = candidate.token;
+		// version 4 tokens hash the encoded params ahead of the password
+		HMACEngine.Prefix prefix = token != null && token[0] == SUBJECT_TOKEN_VERSION ? subject.prefix(candidate.mac)
+				: null;
+
+		if (logger.isDebugEnabled()) {
+			logger.debug("Validating password within {} periods of {}", TIME_LAP_PERIODS, validTimes.getLap(0));
+		}
+
+		int found = -1;
+		if (token == null) {
+			// validate password for all previous time periods within expiry
+			// period
+			for (int i = 0; i < TIME_LAP_PERIODS; i++) {
+				candidate.lapsScanned++;
+				if (candidate.mac.validateHMAC(candidate.replayKey, 0, getMacLength(), password, params,
+						validTimes.getEncodedLap(i))) {
+					found = i;
+					break;
+				}
+			}
+		} else {
+			// the token names its lap, so at most one HMAC is computed
+			int i = (int) (validTimes.getLapNumber(0) - token[candidate.macOffset - 1]) & 0xff;
+			if (i < TIME_LAP_PERIODS) {
+				candidate.lapsScanned++;
+				boolean valid = prefix != null
+						? candidate.mac.validateHMAC(token, candidate.macOffset, dynamicMacBytes, prefix, password,
+								validTimes.getEncodedLap(i))
+						: candidate.mac.validateHMAC(token, candidate.macOffset, dynamicMacBytes, password, params,
+								validTimes.getEncodedLap(i));
+				if (valid) {
+					found = i;
+				}
+			}
+		}
+		metrics.recordLapsScanned(candidate.lapsScanned);
+		if (found >= 0) {
+			if (logger.isDebugEnabled()) {
+				logger.debug("Found password valid for time lap {}", validTimes.getLap(found));
+			}
+			return Result.Code.SUCCESS;
+		}
+
+		// if the hmac does not belong to this user, throw invalid code
+		boolean sameUser = token == null
+				? candidate.mac.validateHMAC(candidate.hmac.substring(getMacLength() * 2 + 1), password, params)
+				: prefix != null
+						? candidate.mac.validateHMAC(token, candidate.macOffset + dynamicMacBytes, staticMacBytes,
+								prefix, password, null)
+						: candidate.mac.validateHMAC(token, candidate.macOffset + dynamicMacBytes, staticMacBytes,
+								password, params, null);
+		if (!sameUser) {
+			logger.debug("Codes swapped! Hmac does not belong to this user!");
+			return Result.Code.FAIL_INVALID_CODE;
+		}
+		return Result.Code.FAIL_CODE_EXPIRED;
+	}
+
+	/*
+	 * Returns the window of laps a password may have been generated in.
+	 */
+	private LapWindow validTimes(final OTPMetrics metrics) {
+		long start = now(metrics);
+		LapWindow validTimes = timeLapGenerator.getLapWindow(TIME_LAP_PERIODS);
+		mark(metrics, OTPMetrics.Phase.LAPS, start);
+		return validTimes;
+	}
+
+	/*
+	 * Returns the begun event of a validation, null unless recording.
+	 */
+	private static ValidateEvent beginValidate() {
+		if (!FlightEvents.isRecording()) {
+			return null;
+		}
+		ValidateEvent event = new ValidateEvent();
+		event.begin();
+		return event;
+	}
+
+	/*
+	 * Reports the outcome of a validation to the metrics and flight recorder.
+	 */
+	private static void complete(final ValidateEvent event, final OTPMetrics metrics, final long start,
+			final Candidate candidate, final Result result) {
+		if (metrics.isEnabled()) {
+			metrics.recordResult(result.getResultCode(), System.nanoTime() - start);
+		}
+		if (event == null) {
+			return;
+		}
+		event.end();
+		if (event.shouldCommit()) {
+			event.result = result.getResultCode().name();
+			if (candidate != null) {
+				event.lapsScanned = candidate.lapsScanned;
+				event.legacy = candidate.token == null;
+			}
+			event.commit();
+		}
+	}
+
+	/*
+	 * Returns the time to measure from, without reading the clock if metrics
+	 * are off.
+	 */
+	private static long now(final OTPMetrics metrics) {
+		return metrics.isEnabled() ? System.nanoTime() : 0;
+	}
+
+	/*
+	 * Reports the time since the given mark for the phase and returns the new
+	 * mark.
+	 */
+	private static long mark(final OTPMetrics metrics, final OTPMetrics.Phase phase, final long since) {
+		if (!metrics.isEnabled()) {
+			return 0;
+		}
+		long now = System.nanoTime();
+		metrics.recordPhase(phase, now - since);
+		return now;
+	}
+
+	/*
+	 * Returns true for the hex dynamic HMAC, 'O', hex static HMAC layout.
+	 */
+	private boolean isLegacyToken(String hmac) {
+		int hexLength = getMacLength() * 2;
+		return hmac.length() == hexLength * 2 + 1 && hmac.charAt(hexLength) == 'O';
+	}
+
+	/*
+	 * Decodes a version 2, 3 or 4 token, null if it is malformed. The decoder
+	 * ignores the bits of the last character past the token, so only the
+	 * spelling with those bits clear is accepted, as any other would be a
+	 * different text for the same code.
+	 */
+	private byte[] decodeToken(String hmac) {
+		int length = TOKEN_HEADER_BYTES + dynamicMacBytes + staticMacBytes;
+		boolean keyed = false;
+		if (hmac.length() == ((length + 1) * 4 + 2) / 3) {
+			length++;
+			keyed = true;
+		} else if (hmac.length() != (length * 4 + 2) / 3) {
+			return null;
+		}
+		byte[] token;
+		try {
+			token = Base64.getUrlDecoder().decode(hmac);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+		if (token.length != length) {
+			return null;
+		}
+		int unusedBits = hmac.length() * 6 - length * 8;
+		if ((base64Value(hmac.charAt(hmac.length() - 1)) & ((1 << unusedBits) - 1)) != 0) {
+			return null;
+		}
+		boolean known = keyed ? token[0] == KEYED_TOKEN_VERSION || token[0] == SUBJECT_TOKEN_VERSION
+				: token[0] == TOKEN_VERSION;
+		return known ? token : null;
+	}
+
+	/*
+	 * Returns the value of a base64url character the decoder accepted.
+	 */
+	private static int base64Value(char c) {
+		if (c >= 'A' && c <= 'Z') {
+			return c - 'A';
+		}
+		if (c >= 'a' && c <= 'z') {
+			return c - 'a' + 26;
+		}
+		if (c >= '0' && c <= '9') {
+			return c - '0' + 52;
+		}
+		return c == '-' ? 62 : 63;
+	}
+
+	/**
+	 * Prepares the engine for its first requests, such as after a deploy, with
+	 * the default number of cycles.
+	 * 
+	 * @return timings of the cycles
+	 * @see #warmUp(int)
+	 */
+	public WarmUp warmUp() {
+		return warmUp(WARM_UP_CYCLES);
+	}
+
+	/**
+	 * Prepares the engine for its first requests, such as after a deploy.
+	 * Seeds the password generator and sets up the MAC of the calling thread,
+	 * then generates and validates passwords of synthetic subjects for the
+	 * given cycles, so that providers are looked up, classes loaded and hot
+	 * paths compiled before real traffic arrives. The cycles keep counters
+	 * and a replay cache of their own and report no metrics. Call after
+	 * configuring the engine.
+	 * 
+	 * @param cycles
+	 * @return timings of the cycles
+	 * @throws IllegalStateException
+	 *             if a synthetic password does not validate
+	 */
+	public WarmUp warmUp(int cycles) {
+		if (cycles < 1) {
+			throw new IllegalArgumentException("Invalid warm-up cycles " + cycles);
+		}
+		long start = System.nanoTime();
+		warmUpThread();
+		return runWarmUp(cycles, 1, start);
+	}
+
+	/**
+	 * Prepares the engine and the threads of the pool serving requests with
+	 * the default number of cycles.
+	 * 
+	 * @param executor
+	 *            - runs the requests
+	 * @param threads
+	 *            - number of threads of the executor
+	 * @return timings of the cycles
+	 * @see #warmUp(int, ExecutorService, int)
+	 */
+	public WarmUp warmUp(ExecutorService executor, int threads) {
+		return warmUp(WARM_UP_CYCLES, executor, threads);
+	}
+
+	/**
+	 * Prepares the engine as {@link #warmUp(int)} does, after seeding the
+	 * password generator and setting up the MAC of every thread of the pool
+	 * serving requests, as both are kept per thread. One task is submitted
+	 * per thread, and each holds its thread until all have started, so every
+	 * task lands on a thread of its own. Suits fixed pools; threads started
+	 * later, such as a virtual thread per request, still set up on their
+	 * first request.
+	 * 
+	 * @param cycles
+	 * @param executor
+	 *            - runs the requests
+	 * @param threads
+	 *            - number of threads of the executor
+	 * @return timings of the cycles
+	 * @throws IllegalStateException
+	 *             if a synthetic password does not validate
+	 */
+	public WarmUp warmUp(int cycles, ExecutorService executor, int threads) {
+		if (cycles < 1) {
+			throw new IllegalArgumentException("Invalid warm-up cycles " + cycles);
+		}
+		if (threads < 1) {
+			throw new IllegalArgumentException("Invalid warm-up threads " + threads);
+		}
+		long start = System.nanoTime();
+		Set<Thread> warmed = ConcurrentHashMap.newKeySet();
+		CountDownLatch started = new CountDownLatch(threads);
+		List<Future<?>> tasks = new ArrayList<Future<?>>(threads);
+		for (int i = 0; i < threads; i++) {
+			tasks.add(executor.submit(() -> {
+				warmUpThread();
+				warmed.add(Thread.currentThread());
+				started.countDown();
+				// holds the thread, so the other tasks go to other threads
+				started.await(WARM_UP_THREAD_TIMEOUT, TimeUnit.MILLISECONDS);
+				return null;
+			}));
+		}
+		try {
+			for (Future<?> task : tasks) {
+				task.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		if (warmed.size() < threads) {
+			logger.warn("Warmed up {} of {} threads, the executor has fewer", warmed.size(), threads);
+		}
+		return runWarmUp(cycles, warmed.size(), start);
+	}
+
+	/*
+	 * Seeds the calling thread's password generator and sets up its MACs, of
+	 * the ring's active key as well.
+	 */
+	private void warmUpThread() {
+		rngInstance.warmUp();
+		generateHMAC(WARM_UP_PARAMS[0], WARM_UP_PARAMS);
+		KeyRing.Entry key = keyRing != null ? keyRing.active() : null;
+		if (key != null) {
+			key.engine.generateHMAC(WARM_UP_PARAMS[0], WARM_UP_PARAMS);
+		}
+	}
+
+	/*
+	 * Runs the cycles on the calling thread and marks the engine ready.
+	 */
+	private WarmUp runWarmUp(int cycles, int threads, long start) {
+		OTPEngine shadow = new OTPEngine(this, cycles);
+		long first = 0;
+		long tail = 0;
+		for (int i = 0; i < cycles; i++) {
+			long cycleStart = System.nanoTime();
+			String[] params = new String[] { "WARM-UP", Integer.toString(i) };
+			OTP otp;
+			Result result;
+			if ((i & 1) == 0) {
+				otp = shadow.generatePasswordWithHmac(params);
+				result = shadow.validatePasswordWithHmac(otp, params);
+			} else {
+				SubjectContext subject = shadow.createSubjectContext(params);
+				otp = shadow.generatePasswordWithHmac(subject);
+				result = shadow.validatePasswordWithHmac(otp, subject);
+			}
+			if (result.getResultCode() != Result.Code.SUCCESS) {
+				throw new IllegalStateException("Warm-up password failed with " + result.getResultCode());
+			}
+			// and the failing path, with the password of someone else
+			shadow.validatePasswordWithHmac(otp, new String[] { "WARM-UP-OTHER", Integer.toString(i) });
+
+			long elapsed = System.nanoTime() - cycleStart;
+			if (i == 0) {
+				first = elapsed;
+			}
+			if (i >= cycles - WARM_UP_TAIL) {
+				tail += elapsed;
+			}
+		}
+		WarmUp warmUp = new WarmUp(cycles, threads, System.nanoTime() - start, first,
+				tail / Math.min(cycles, WARM_UP_TAIL));
+		ready = true;
+		logger.info("Warmed up {} threads in {} ms, cycles took {} us at first and {} us at last", threads,
+				warmUp.getElapsedNanos() / 1000000, warmUp.getFirstCycleNanos() / 1000, warmUp.getLastCycleNanos() / 1000);
+		return warmUp;
+	}
+
+	/**
+	 * Returns whether {@link #warmUp(int)} has completed, for readiness checks.
+	 * 
+	 * @return
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * Selects the format of generated tokens. Version 2, the default, is a
+	 * compact base64url token that names its time lap, so validating it costs
+	 * a single HMAC. Version 1 is the original hex format, for validators that
+	 * do not yet read version 2. Engines with a key ring generate version 3
+	 * tokens, which name their key. Version 4 carries a key id like version 3
+	 * but hashes the params ahead of the password in an unambiguous encoding,
+	 * so a {@link SubjectContext} can keep the MAC state after them. All
+	 * versions are always accepted by validation. Call before the engine is
+	 * shared.
+	 * 
+	 * @param version
+	 *            - 1, 2 or 4, or 3 or 4 with a key ring
+	 */
+	public void setTokenVersion(int version) {
+		if (version != LEGACY_TOKEN_VERSION && version != TOKEN_VERSION && version != KEYED_TOKEN_VERSION
+				&& version != SUBJECT_TOKEN_VERSION) {
+			throw new IllegalArgumentException("Unknown token version " + version);
+		}
+		if (keyRing != null && version != KEYED_TOKEN_VERSION && version != SUBJECT_TOKEN_VERSION) {
+			throw new IllegalStateException("Tokens of a key ring always carry the key id");
+		}
+		if (keyRing == null && version == KEYED_TOKEN_VERSION) {
+			throw new IllegalArgumentException("Version 3 tokens need a key ring");
+		}
+		this.tokenVersion = version;
+	}
+
+	/**
+	 * Returns the cache of used codes, null if replay protection is off.
+	 * 
+	 * @return
+	 */
+	public ReplayCache getReplayCache() {
+		return replayCache;
+	}
+
+	/**
+	 * Replaces the cache of used codes. Codes validated successfully are
+	 * rejected with FAIL_CODE_REPLAYED for the rest of their expiry window.
+	 * Passing null turns replay protection off. Call before the engine is
+	 * shared.
+	 * 
+	 * @param replayCache
+	 */
+	public void setReplayCache(ReplayCache replayCache) {
+		this.replayCache = replayCache;
+	}
+
+	/**
+	 * Reports timings and outcomes of generate and validate calls to the given
+	 * metrics. Passing null turns reporting off. Call before the engine is
+	 * shared.
+	 * 
+	 * @param metrics
+	 */
+	public void setMetrics(OTPMetrics metrics) {
+		this.metrics = metrics == null ? OTPMetrics.NOOP : metrics;
+	}
+
+	/**
+	 * Limits how often tryGeneratePasswordWithHmac generates passwords per
+	 * subject. The other generate methods are not limited. Passing null, the
+	 * default, turns limiting off. Call before the engine is shared.
+	 * 
+	 * @param rateLimiter
+	 */
+	public void setRateLimiter(RateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+
+	/**
+	 * Replaces the generator of passwords, for instance with one backed by a
+	 * pool of ready codes. Call before the engine is shared.
+	 * 
+	 * @param rng
+	 */
+	public void setRandomNumberGenerator(RandomNumberGenerator rng) {
+		this.rngInstance = rng;
+	}
+
+	/**
+	 * Sets the number of random digits of generated passwords, 7 by default.
+	 * The check digit comes on top. Passwords of other lengths are still
+	 * validated. Call before the engine is shared.
+	 * 
+	 * @param digits
+	 *            - 6 to 12
+	 */
+	public void setPasswordDigits(int digits) {
+		if (digits < MIN_PASSWORD_DIGITS || digits > MAX_PASSWORD_DIGITS) {
+			throw new IllegalArgumentException("Passwords must have " + MIN_PASSWORD_DIGITS + " to "
+					+ MAX_PASSWORD_DIGITS + " digits, got " + digits);
+		}
+		this.rngInstance = RandomNumberGenerator.getInstance(digits);
+	}
+
+	/**
+	 * Replaces the check digit appended to generated passwords and verified
+	 * before validating them, {@link CheckDigit#WEIGHTED} by default. Every
+	 * engine validating the passwords must use the same one. Call before the
+	 * engine is shared.
+	 * 
+	 * @param checkDigit
+	 */
+	public void setCheckDigit(CheckDigit checkDigit) {
+		if (checkDigit == null) {
+			throw new IllegalArgumentException("Check digit is required");
+		}
+		this.checkDigit = checkDigit;
+	}
+
+	/**
+	 * Keeps accepting passwords with the check digit used before the current
+	 * one until the passwords issued with it have expired, counted from now.
+	 * By default {@link CheckDigit#LEGACY} is accepted for the password expiry
+	 * after the engine was created, so passwords issued before an upgrade
+	 * still validate. Passing null accepts the current check digit only. Call
+	 * before the engine is shared.
+	 * 
+	 * @param previous
+	 */
+	public void setPreviousCheckDigit(CheckDigit previous) {
+		this.previousCheckDigit = previous;
+		this.previousCheckDigitUntil = timeLapGenerator.getClock().millis()
+				+ TimeUnit.MINUTES.toMillis(PASSWORD_EXPRIRY);
+	}
+
+	/*
+	 * Attempts are counted per subject. Params are length prefixed so that
+	 * different params never map to the same subject.
+	 */
+	static String subjectOf(final String params[]) {
+		StringBuilder subject = new StringBuilder();
+		for (String param : params) {
+			subject.append(param.length()).append(':').append(param);
+		}
+		return subject.toString();
+	}
+
+	/**
+	 * Splits a batch of generations across the pool. Each worker keeps its
+	 * own Mac, so the leaves share nothing but the lap window.
+	 */
+	private class GenerateTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String[][] params;
+
+		private final OTP[] otps;
+
+		private final LapWindow lastTimeLap;
+
+		private final int from, to;
+
+		GenerateTask(String[][] params, OTP[] otps, LapWindow lastTimeLap, int from, int to) {
+			this.params = params;
+			this.otps = otps;
+			this.lastTimeLap = lastTimeLap;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= BATCH_SPLIT_THRESHOLD) {
+				for (int i = from; i < to; i++) {
+					otps[i] = generatePasswordWithHmac(params[i], null, lastTimeLap);
+				}
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new GenerateTask(params, otps, lastTimeLap, from, middle),
+					new GenerateTask(params, otps, lastTimeLap, middle, to));
+		}
+	}
+
+	/**
+	 * Splits a batch of validations across the pool by subject. Each group
+	 * holds its size followed by the positions of one subject's passwords.
+	 */
+	private class ValidateTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final OTP[] otps;
+
+		private final SubjectContext[] subjects;
+
+		private final int[][] groups;
+
+		private final Result[] results;
+
+		private final LapWindow validTimes;
+
+		private final int from, to;
+
+		ValidateTask(OTP[] otps, SubjectContext[] subjects, int[][] groups, Result[] results, LapWindow validTimes,
+				int from, int to) {
+			this.otps = otps;
+			this.subjects = subjects;
+			this.groups = groups;
+			this.results = results;
+			this.validTimes = validTimes;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			int size = 0;
+			for (int g = from; g < to; g++) {
+				size += groups[g][0];
+			}
+			if (to - from == 1 || size <= BATCH_SPLIT_THRESHOLD) {
+				for (int g = from; g < to; g++) {
+					int[] group = groups[g];
+					for (int k = 1; k <= group[0]; k++) {
+						int i = group[k];
+						results[i] = validatePasswordWithHmac(otps[i], subjects[i], validTimes);
+					}
+				}
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new ValidateTask(otps, subjects, groups, results, validTimes, from, middle),
+					new ValidateTask(otps, subjects, groups, results, validTimes, middle, to));
+		}
+	}
+
+	/**
+	 * Password and token of an OTP being validated. The token is null for
+	 * legacy hex tokens, whose decoded dynamic HMAC doubles as the replay key.
+	 * Other tokens are replay keyed on their header and dynamic HMAC. The
+	 * HMACs are checked with the engine of the key the token names.
+	 */
+	private static final class Candidate {
+
+		final String password;
+
+		final String hmac;
+
+		final byte[] token;
+
+		final byte[] replayKey;
+
+		// leading bytes of the replay key identifying the code
+		final int replayKeyLength;
+
+		final HMACEngine mac;
+
+		// first byte of the MACs in the token, the lap precedes it
+		final int macOffset;
+
+		// HMACs computed while looking for the lap
+		int lapsScanned = 0;
+
+		Candidate(String password, String hmac, byte[] token, byte[] replayKey, int replayKeyLength, HMACEngine mac,
+				int macOffset) {
+			this.password = password;
+			this.hmac = hmac;
+			this.token = token;
+			this.replayKey = replayKey;
+			this.replayKeyLength = replayKeyLength;
+			this.mac = mac;
+			this.macOffset = macOffset;
 		}
-		logger.debug("Validation Complete. Result is " + isValid);
-		return new Result(Result.Code.SUCCESS);
 	}
 
 	/**
@@ -196,17 +1398,24 @@ public class OTPEngine extends HMACEngine {
 	public static class Result {
 
 		public static enum Code {
-			SUCCESS, FAIL_INVALID_CODE, FAIL_CODE_EXPIRED, FAIL_MAX_ATTEMPTS_EXCEEDED
+			SUCCESS, FAIL_INVALID_CODE, FAIL_CODE_EXPIRED, FAIL_MAX_ATTEMPTS_EXCEEDED, FAIL_CODE_REPLAYED,
+			FAIL_RATE_LIMITED
 		}
 
 		private Code resultCode;
 		private String description;
 		private String hmac;
+		private OTP otp;
 
 		public Result(Code code) {
 			this.resultCode = code;
 		}
 
+		public Result(OTP otp) {
+			this.resultCode = Code.SUCCESS;
+			this.otp = otp;
+		}
+
 		public Result(Code code, String desc, String hmac) {
 			this.resultCode = code;
 			this.description = desc;
@@ -224,6 +1433,82 @@ public class OTPEngine extends HMACEngine {
 		public String getHmac() {
 			return hmac;
 		}
+
+		/**
+		 * Returns the password generated, null for validations and rejected
+		 * generations.
+		 * 
+		 * @return
+		 */
+		public OTP getOtp() {
+			return otp;
+		}
+	}
+
+	/**
+	 * Timings of {@link OTPEngine#warmUp(int)}. A cycle generates a password,
+	 * validates it and validates it for someone else.
+	 * 
+	 * @author aprasa2
+	 *
+	 */
+	public static class WarmUp {
+
+		private final int cycles;
+		private final int threads;
+		private final long elapsedNanos;
+		private final long firstCycleNanos;
+		private final long lastCycleNanos;
+
+		WarmUp(int cycles, int threads, long elapsedNanos, long firstCycleNanos, long lastCycleNanos) {
+			this.cycles = cycles;
+			this.threads = threads;
+			this.elapsedNanos = elapsedNanos;
+			this.firstCycleNanos = firstCycleNanos;
+			this.lastCycleNanos = lastCycleNanos;
+		}
+
+		public int getCycles() {
+			return cycles;
+		}
+
+		/**
+		 * Returns the number of threads whose generator and MAC were set up.
+		 * 
+		 * @return
+		 */
+		public int getThreads() {
+			return threads;
+		}
+
+		/**
+		 * Returns the time the warm-up took, including seeding.
+		 * 
+		 * @return
+		 */
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+
+		/**
+		 * Returns the time of the first cycle, about what the first request
+		 * would have taken.
+		 * 
+		 * @return
+		 */
+		public long getFirstCycleNanos() {
+			return firstCycleNanos;
+		}
+
+		/**
+		 * Returns the mean time of the last cycles, at most 100, about what
+		 * requests take from now on.
+		 * 
+		 * @return
+		 */
+		public long getLastCycleNanos() {
+			return lastCycleNanos;
+		}
 	}
 
 }
@@ -0,0 +1,95 @@
+package com.arctix.security.otp;
+
+import com.arctix.security.otp.OTPEngine.Result;
+
+/**
+ * Receives timings and outcomes from an OTP engine. Implementations are
+ * called on the generate and validate paths of every thread using the engine,
+ * so they must be thread-safe and should not block. All methods default to
+ * doing nothing, so implementations override only what they collect.
+ * 
+ * The engine reads the clock only when {@link #isEnabled()} is true;
+ * {@link #NOOP}, the default, turns instrumentation off entirely.
+ * 
+ * @author aprasa2
+ *
+ */
+public interface OTPMetrics {
+
+	/**
+	 * Steps of a validation that are timed separately.
+	 */
+	public enum Phase {
+		// checksum verification and token decoding
+		CHECKSUM,
+		// computing the window of valid time laps
+		LAPS,
+		// computing and comparing HMACs
+		HMAC,
+		// reading and updating the attempt counter
+		COUNTER
+	}
+
+	/**
+	 * Metrics that record nothing.
+	 */
+	public static final OTPMetrics NOOP = new OTPMetrics() {
+		@Override
+		public boolean isEnabled() {
+			return false;
+		}
+	};
+
+	/**
+	 * Returns false if the engine may skip timing altogether.
+	 * 
+	 * @return
+	 */
+	public default boolean isEnabled() {
+		return true;
+	}
+
+	/**
+	 * Called once for every password generated.
+	 * 
+	 * @param nanos
+	 *            - time taken to generate the password
+	 */
+	public default void recordGenerated(long nanos) {
+	}
+
+	/**
+	 * Called once for every password validated.
+	 * 
+	 * @param code
+	 * @param nanos
+	 *            - time taken to validate the password
+	 */
+	public default void recordResult(Result.Code code, long nanos) {
+	}
+
+	/**
+	 * Called for every generation rejected by the rate limiter.
+	 */
+	public default void recordRateLimited() {
+	}
+
+	/**
+	 * Called for each timed phase of a validation. Phases skipped by a
+	 * validation, such as the HMAC of a replayed code, are not reported.
+	 * 
+	 * @param phase
+	 * @param nanos
+	 */
+	public default void recordPhase(Phase phase, long nanos) {
+	}
+
+	/**
+	 * Called with the number of time laps whose HMAC was computed while
+	 * looking for the one a password was generated in.
+	 * 
+	 * @param laps
+	 */
+	public default void recordLapsScanned(int laps) {
+	}
+}
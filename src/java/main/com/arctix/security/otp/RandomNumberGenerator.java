@@ -1,44 +1,291 @@
 package com.arctix.security.otp;
 
+import java.io.Closeable;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.concurrent.locks.LockSupport;
 
-public class RandomNumberGenerator {
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-	private SecureRandom rngEngine = null;
+/**
+ * Generates random numeric codes of a fixed number of digits. Every code
+ * below 10^digits is drawn, leading zeros included, so callers show codes
+ * zero-padded to the digits.
+ * 
+ * Every thread draws from its own SecureRandom, so threads never wait on each
+ * other's generator. Generators are seeded from the non-blocking system
+ * source where the platform has one, instead of seeding themselves from one
+ * that may block until the entropy pool fills. Entropy is drawn in blocks and turned into codes by
+ * rejection sampling, which keeps every code of the given length equally
+ * likely. Optionally a background thread keeps a pool of ready codes, so
+ * callers do not see the occasional stall of the underlying generator.
+ * 
+ * @author aprasa2
+ *
+ */
+public class RandomNumberGenerator implements Closeable {
 
-	private int DEFAULT_SEED = 4;
+	static final int DEFAULT_DIGITS = 7;
 
-	private int DEFAULT_MAX = 9999999;
+	static final int MAX_INT_DIGITS = 9; // largest code that fits an int
 
-	private String DEFAULT_ALGORITHM = "SHA1PRNG";
+	static final int MAX_DIGITS = 12; // longest code generated
 
-	private static RandomNumberGenerator instance = null;
+	static final int BLOCK_SIZE = 256; // bytes of entropy drawn at once
 
-	private RandomNumberGenerator() {
-		try {
-			rngEngine = SecureRandom.getInstance(DEFAULT_ALGORITHM);
-			rngEngine.setSeed(rngEngine.generateSeed(DEFAULT_SEED));
-		} catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException(e);
+	private static final String DEFAULT_ALGORITHM = "SHA1PRNG";
+
+	private static final String SEED_ALGORITHM = "NativePRNGNonBlocking";
+
+	private static Logger logger = LoggerFactory.getLogger(RandomNumberGenerator.class);
+
+	private final int digits;
+
+	// 10^digits, codes are drawn below it
+	private final long range;
+
+	// codes of more than 9 digits are drawn from 63 bits instead of 32
+	private final boolean wide;
+
+	// largest multiple of range below 2^32 (2^63 if wide), values above it
+	// are rejected
+	private final long limit;
+
+	private final ThreadLocal<Source> source = new ThreadLocal<Source>() {
+		@Override
+		protected Source initialValue() {
+			return new Source();
+		}
+	};
+
+	private final CodePool pool;
+
+	private final Thread filler;
+
+	private volatile boolean closed = false;
+
+	private RandomNumberGenerator(int digits, int poolSize) {
+		if (digits < 1 || digits > MAX_DIGITS) {
+			throw new IllegalArgumentException("Codes must have 1 to " + MAX_DIGITS + " digits, got " + digits);
+		}
+		this.digits = digits;
+		range = (long) Math.pow(10, digits);
+		wide = digits > MAX_INT_DIGITS;
+		limit = wide ? Long.MAX_VALUE / range * range : (1L << 32) - (1L << 32) % range;
+
+		if (poolSize > 0) {
+			pool = new CodePool(poolSize);
+			filler = new Thread(this::fill, "otp-code-pool");
+			filler.setDaemon(true);
+			filler.start();
+		} else {
+			pool = null;
+			filler = null;
 		}
 	}
 
+	/**
+	 * Returns the shared generator of 7 digit codes, without a pool. It is
+	 * safe for use by multiple threads.
+	 * 
+	 * @return
+	 */
 	public static RandomNumberGenerator getInstance() {
-		if (instance == null) {
-			instance = new RandomNumberGenerator();
+		return Holder.INSTANCE;
+	}
+
+	/**
+	 * Returns a new generator of codes with the given number of digits.
+	 * 
+	 * @param digits
+	 *            - 1 to 12
+	 * @return
+	 */
+	public static RandomNumberGenerator getInstance(int digits) {
+		return new RandomNumberGenerator(digits, 0);
+	}
+
+	/**
+	 * Returns a new generator of codes with the given number of digits, backed
+	 * by a pool of ready codes that a background thread keeps filled. Codes
+	 * are taken from the pool and generated on the calling thread only when
+	 * it runs dry. Close the generator to stop the background thread.
+	 * 
+	 * @param digits
+	 *            - 1 to 12
+	 * @param poolSize
+	 *            - number of codes kept ready
+	 * @return
+	 */
+	public static RandomNumberGenerator getInstance(int digits, int poolSize) {
+		if (poolSize <= 0) {
+			throw new IllegalArgumentException("Invalid pool size " + poolSize);
+		}
+		return new RandomNumberGenerator(digits, poolSize);
+	}
+
+	/**
+	 * Mixes fresh seed material into the calling thread's generator.
+	 */
+	public void randomize() {
+		SecureRandom random = source.get().random;
+		SecureRandom seeder = Seeder.INSTANCE;
+		random.setSeed((seeder != null ? seeder : random).generateSeed(Source.SEED_BYTES));
+	}
+
+	/**
+	 * Creates and seeds the calling thread's generator and draws its first
+	 * block of entropy, so that its first code does not pay for looking up
+	 * the provider and seeding. Other threads keep generators of their own;
+	 * {@link OTPEngine#warmUp(int, java.util.concurrent.ExecutorService, int)}
+	 * warms those of a request pool.
+	 */
+	public void warmUp() {
+		source.get().nextCode();
+	}
+
+	/**
+	 * Returns a random code of at most {@link #getDigits()} digits, to be
+	 * zero-padded to them.
+	 * 
+	 * @return
+	 * @throws IllegalStateException
+	 *             if codes have more than 9 digits
+	 */
+	public int getRandomInt() {
+		if (wide) {
+			throw new IllegalStateException("Codes of " + digits + " digits do not fit an int");
 		}
-		return instance;
+		return (int) getRandomLong();
 	}
-	
-	public void randomize(){
-		if (rngEngine != null) {
-			rngEngine.generateSeed(DEFAULT_SEED);
+
+	/**
+	 * Returns a random code of at most {@link #getDigits()} digits, to be
+	 * zero-padded to them.
+	 * 
+	 * @return
+	 */
+	public long getRandomLong() {
+		if (pool != null) {
+			long code = pool.poll();
+			if (pool.size() < pool.capacity() / 2) {
+				LockSupport.unpark(filler);
+			}
+			if (code != CodePool.EMPTY) {
+				return code;
+			}
 		}
+		return source.get().nextCode();
+	}
+
+	/**
+	 * Returns the number of digits of generated codes.
+	 * 
+	 * @return
+	 */
+	public int getDigits() {
+		return digits;
 	}
-	
-	public int getRandomInt(){
-		return Math.abs(rngEngine.nextInt(DEFAULT_MAX));
+
+	/**
+	 * Stops the background thread filling the pool, if any. Codes are then
+	 * generated on the calling thread.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		if (filler != null) {
+			LockSupport.unpark(filler);
+		}
+	}
+
+	/*
+	 * Tops up the pool, then sleeps until consumers have drained half of it.
+	 */
+	private void fill() {
+		Source own = source.get();
+		while (!closed) {
+			while (!closed && pool.offer(own.nextCode())) {
+				// keep filling
+			}
+			LockSupport.park(this);
+		}
+		// let consumers fall back to their own generators
+		while (pool.poll() != CodePool.EMPTY) {
+			// drain
+		}
+		logger.debug("Code pool closed");
+	}
+
+	// lazily created on first use, safely published by class initialization
+	private static class Holder {
+		static final RandomNumberGenerator INSTANCE = new RandomNumberGenerator(DEFAULT_DIGITS, 0);
+	}
+
+	// null where the platform has no non-blocking source
+	private static class Seeder {
+		static final SecureRandom INSTANCE = create();
+
+		private static SecureRandom create() {
+			try {
+				return SecureRandom.getInstance(SEED_ALGORITHM);
+			} catch (NoSuchAlgorithmException e) {
+				logger.debug("{} not available, generators seed themselves", SEED_ALGORITHM);
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Generator and block of entropy owned by a single thread.
+	 */
+	private final class Source {
+
+		static final int SEED_BYTES = 32;
+
+		final SecureRandom random;
+
+		final byte[] block = new byte[BLOCK_SIZE];
+
+		int position = BLOCK_SIZE;
+
+		Source() {
+			try {
+				random = SecureRandom.getInstance(DEFAULT_ALGORITHM);
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException(e);
+			}
+			// seeded before first use, it never seeds itself
+			SecureRandom seeder = Seeder.INSTANCE;
+			if (seeder != null) {
+				random.setSeed(seeder.generateSeed(SEED_BYTES));
+			}
+		}
+
+		/*
+		 * Draws 32 or 63 bit values until one falls below the limit, so every
+		 * code in the range is equally likely.
+		 */
+		long nextCode() {
+			while (true) {
+				if (position == BLOCK_SIZE) {
+					random.nextBytes(block);
+					position = 0;
+				}
+				long value = (block[position] & 0xffL) | (block[position + 1] & 0xffL) << 8
+						| (block[position + 2] & 0xffL) << 16 | (block[position + 3] & 0xffL) << 24;
+				position += 4;
+				if (wide) {
+					value |= ((block[position] & 0xffL) | (block[position + 1] & 0xffL) << 8
+							| (block[position + 2] & 0xffL) << 16 | (block[position + 3] & 0x7fL) << 24) << 32;
+					position += 4;
+				}
+				if (value < limit) {
+					return value % range;
+				}
+			}
+		}
 	}
 
 }
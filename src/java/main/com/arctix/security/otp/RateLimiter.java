@@ -0,0 +1,326 @@
+package com.arctix.security.otp;
+
+import java.time.Clock;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Token buckets per key, limiting how often passwords are generated for a
+ * subject. A bucket holds up to a burst of tokens and regains one every
+ * refill interval; each generation takes one.
+ * 
+ * Each bucket is a single atomic long packing the time of its last refill
+ * and its tokens, updated with compare-and-set, so no lock is taken on any
+ * path. A bucket that has refilled completely is the same as no bucket, so
+ * idle buckets are dropped by a background sweep that runs once per time to
+ * refill.
+ * 
+ * At most about capacity keys are held, however many are sprayed at the
+ * limiter. Once it is full a new key takes the place of a bucket from a
+ * small sample taken round the table: a refilled one if any, otherwise the
+ * one with the most tokens left, so keys used once go before those that
+ * drained their bucket.
+ * 
+ * @author aprasa2
+ *
+ */
+public class RateLimiter {
+
+	private static Logger logger = LoggerFactory.getLogger(RateLimiter.class);
+
+	static final int DEFAULT_BURST = 5;
+
+	static final long DEFAULT_REFILL_INTERVAL = 60; // in seconds
+
+	static final int DEFAULT_CAPACITY = 1 << 20;
+
+	private static final long MIN_SWEEP_INTERVAL = 1000; // in millis
+
+	private static final int EVICTION_SAMPLE = 16; // buckets looked at per eviction
+
+	private static final int TOKEN_BITS = 16;
+
+	private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+
+	// state of a bucket removed by a sweep, callers must fetch a new one
+	private static final long DEAD = -1L;
+
+	private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<String, AtomicLong>();
+
+	private final int burst;
+
+	private final long refillMillis;
+
+	private final int capacity;
+
+	private final Clock clock;
+
+	// times are kept relative to this instant to fit the state
+	private final long origin;
+
+	private final long sweepInterval;
+
+	private final AtomicBoolean sweeping = new AtomicBoolean();
+
+	private final AtomicBoolean evicting = new AtomicBoolean();
+
+	// where the last eviction stopped, guarded by evicting
+	private Iterator<Map.Entry<String, AtomicLong>> hand;
+
+	private volatile long nextSweep;
+
+	private volatile long nextCapacitySweep;
+
+	/**
+	 * Creates buckets of five tokens, regaining one a minute.
+	 */
+	public RateLimiter() {
+		this(DEFAULT_BURST, DEFAULT_REFILL_INTERVAL, TimeUnit.SECONDS, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates buckets of the given burst, regaining one token per refill
+	 * interval. Capacity is the number of keys held at most.
+	 * 
+	 * @param burst
+	 *            - 1 to 65535 tokens
+	 * @param refillInterval
+	 * @param unit
+	 * @param capacity
+	 */
+	public RateLimiter(int burst, long refillInterval, TimeUnit unit, int capacity) {
+		this(burst, refillInterval, unit, capacity, Clock.systemUTC());
+	}
+
+	/**
+	 * For testing only allow using a different clock
+	 */
+	RateLimiter(int burst, long refillInterval, TimeUnit unit, int capacity, Clock clock) {
+		if (burst < 1 || burst > TOKEN_MASK) {
+			throw new IllegalArgumentException("Burst must be 1 to " + TOKEN_MASK + " tokens, got " + burst);
+		}
+		this.refillMillis = unit.toMillis(refillInterval);
+		if (refillMillis <= 0) {
+			throw new IllegalArgumentException("Invalid refill interval " + refillInterval + " " + unit);
+		}
+		this.burst = burst;
+		this.capacity = capacity;
+		this.clock = clock;
+		this.origin = clock.millis();
+		this.sweepInterval = Math.max(MIN_SWEEP_INTERVAL, refillMillis * burst);
+		this.nextSweep = sweepInterval;
+	}
+
+	/**
+	 * Takes a token from the key's bucket. Returns false, taking nothing, if
+	 * the bucket is empty.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public boolean tryAcquire(String key) {
+		long now = now();
+		while (true) {
+			AtomicLong bucket = buckets.get(key);
+			if (bucket == null) {
+				if (buckets.size() >= capacity) {
+					evict(now);
+				}
+				bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(pack(now, burst)));
+			}
+			long state = bucket.get();
+			if (state == DEAD) {
+				// lost to a sweep, the bucket is gone from the map
+				buckets.remove(key, bucket);
+				continue;
+			}
+			long refilled = refill(state, now);
+			int tokens = tokens(refilled);
+			if (tokens == 0) {
+				return false;
+			}
+			long next = pack(refilledAt(refilled), tokens - 1);
+			if (bucket.compareAndSet(state, next)) {
+				scheduleSweep(now);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Returns the tokens left in the key's bucket.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public int available(String key) {
+		AtomicLong bucket = buckets.get(key);
+		if (bucket == null) {
+			return burst;
+		}
+		long state = bucket.get();
+		if (state == DEAD) {
+			return burst;
+		}
+		return tokens(refill(state, now()));
+	}
+
+	/**
+	 * Returns the number of keys currently held, including idle ones not yet
+	 * swept.
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return buckets.size();
+	}
+
+	/**
+	 * Removes buckets that have refilled completely.
+	 */
+	public void sweep() {
+		if (!sweeping.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			long now = now();
+			Iterator<Map.Entry<String, AtomicLong>> entries = buckets.entrySet().iterator();
+			while (entries.hasNext()) {
+				Map.Entry<String, AtomicLong> entry = entries.next();
+				AtomicLong bucket = entry.getValue();
+				long state = bucket.get();
+				if (state != DEAD && tokens(refill(state, now)) == burst && bucket.compareAndSet(state, DEAD)) {
+					buckets.remove(entry.getKey(), bucket);
+				}
+			}
+		} finally {
+			sweeping.set(false);
+		}
+	}
+
+	/*
+	 * Adds the tokens regained since the last refill. The refill time moves
+	 * by whole intervals only, so time towards the next token is kept.
+	 */
+	private long refill(long state, long now) {
+		int tokens = tokens(state);
+		long refilledAt = refilledAt(state);
+		long elapsed = now - refilledAt;
+		if (tokens >= burst || elapsed >= refillMillis * (burst - tokens)) {
+			return pack(now, burst);
+		}
+		if (elapsed < refillMillis) {
+			return state;
+		}
+		long gained = elapsed / refillMillis;
+		return pack(refilledAt + gained * refillMillis, tokens + (int) gained);
+	}
+
+	/*
+	 * Hands a sweep to the common pool when one is due, keeping the scan off
+	 * the request thread.
+	 */
+	private void scheduleSweep(long now) {
+		if (now < nextSweep) {
+			return;
+		}
+		nextSweep = now + sweepInterval;
+		ForkJoinPool.commonPool().execute(this::sweep);
+	}
+
+	/*
+	 * Makes room for a new key. One thread evicts at a time; the others go
+	 * ahead, overshooting capacity by at most one bucket each until the next
+	 * eviction. Warns and sweeps at most once a second while full.
+	 */
+	private void evict(long now) {
+		if (evicting.compareAndSet(false, true)) {
+			try {
+				while (buckets.size() >= capacity) {
+					if (!evictOne(now)) {
+						break;
+					}
+				}
+			} finally {
+				evicting.set(false);
+			}
+		}
+		if (now >= nextCapacitySweep) {
+			nextCapacitySweep = now + MIN_SWEEP_INTERVAL;
+			logger.warn("Rate limiting {} keys with capacity {}, evicting", buckets.size(), capacity);
+			ForkJoinPool.commonPool().execute(this::sweep);
+		}
+	}
+
+	/*
+	 * Removes the first refilled bucket of the next sample, or else the
+	 * sampled bucket with the most tokens, the longest since refilled of
+	 * those. Returns false if there was nothing to remove.
+	 */
+	private boolean evictOne(long now) {
+		Map.Entry<String, AtomicLong> victim = null;
+		long victimState = 0;
+		long victimRefilled = 0;
+		for (int i = 0; i < EVICTION_SAMPLE; i++) {
+			if (hand == null || !hand.hasNext()) {
+				hand = buckets.entrySet().iterator();
+				if (!hand.hasNext()) {
+					break;
+				}
+			}
+			Map.Entry<String, AtomicLong> entry = hand.next();
+			long state = entry.getValue().get();
+			if (state == DEAD) {
+				continue;
+			}
+			long refilled = refill(state, now);
+			if (tokens(refilled) == burst) {
+				victim = entry;
+				victimState = state;
+				break;
+			}
+			if (victim == null || tokens(refilled) > tokens(victimRefilled) || tokens(refilled) == tokens(
+					victimRefilled) && refilledAt(refilled) < refilledAt(victimRefilled)) {
+				victim = entry;
+				victimState = state;
+				victimRefilled = refilled;
+			}
+		}
+		if (victim == null) {
+			return false;
+		}
+		// lost to a taker, the next sample picks another
+		if (victim.getValue().compareAndSet(victimState, DEAD)) {
+			buckets.remove(victim.getKey(), victim.getValue());
+		}
+		return true;
+	}
+
+	/*
+	 * Millis since the origin, never negative should the clock step back.
+	 */
+	private long now() {
+		return Math.max(0, clock.millis() - origin);
+	}
+
+	private static long pack(long refilledAt, int tokens) {
+		return (refilledAt << TOKEN_BITS) | tokens;
+	}
+
+	private static long refilledAt(long state) {
+		return state >>> TOKEN_BITS;
+	}
+
+	private static int tokens(long state) {
+		return (int) (state & TOKEN_MASK);
+	}
+
+}
@@ -0,0 +1,287 @@
+package com.arctix.security.otp;
+
+import java.security.SecureRandom;
+import java.time.Clock;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers codes that were validated successfully, so they cannot be used
+ * again while they are still within their expiry window.
+ * 
+ * Codes are kept as 64 bit digests in a ring of buckets, one per time lap.
+ * Each bucket is a fixed size open-addressed table filled with
+ * compare-and-set, and a lap that has aged out of the window is dropped as a
+ * whole when its bucket is reused, so memory stays flat and expiry costs
+ * nothing per entry. A code finding no free slot in its bucket cannot be
+ * recorded and is rejected, since accepting it would let it be replayed for
+ * the rest of the lap; size the cache for the number of successful
+ * validations in one lap and watch {@link #getSize()} and
+ * {@link #getOverflows()}.
+ * 
+ * @author aprasa2
+ *
+ */
+public class ReplayCache {
+
+	static final int DEFAULT_CAPACITY = 1 << 17; // digests per lap
+
+	private static final int MAX_PROBES = 64;
+
+	private static final long MILLIS_PER_MINUTE = 60 * 1000L;
+
+	private final long lapMillis;
+
+	private final int capacity;
+
+	private final long seed = new SecureRandom().nextLong();
+
+	private final Clock clock;
+
+	// bucket of lap n lives at index n % length
+	private final AtomicReferenceArray<Bucket> ring;
+
+	private final LongAdder overflows = new LongAdder();
+
+	private volatile boolean acceptWhenFull = false;
+
+	/**
+	 * Creates a cache covering the engine's password expiry with default
+	 * capacity.
+	 */
+	public ReplayCache() {
+		this(OTPEngine.TIME_LAP_INTERVAL, OTPEngine.PASSWORD_EXPRIRY, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a cache with laps of the given minutes that remembers codes for
+	 * at least the given expiry. Capacity is the number of codes a single lap
+	 * can hold and is rounded up to a power of two.
+	 * 
+	 * @param interval
+	 * @param expiry
+	 * @param capacity
+	 */
+	public ReplayCache(int interval, int expiry, int capacity) {
+		this(interval, expiry, capacity, Clock.systemUTC());
+	}
+
+	/**
+	 * For testing only allow using a different clock
+	 */
+	ReplayCache(int interval, int expiry, int capacity, Clock clock) {
+		this.lapMillis = interval * MILLIS_PER_MINUTE;
+		this.capacity = Integer.highestOneBit(Math.max(capacity, MAX_PROBES) * 2 - 1);
+		this.clock = clock;
+		// a code used in the oldest lap of its window may be replayed for
+		// another full window
+		this.ring = new AtomicReferenceArray<Bucket>(expiry / interval + 1);
+	}
+
+	/**
+	 * Returns the digest identifying a code by its HMAC and params.
+	 * 
+	 * @param hmac
+	 * @param params
+	 * @return
+	 */
+	public long digest(String hmac, String[] params) {
+		long h = Hashing.update(seed, hmac);
+		for (String param : params) {
+			h = Hashing.update(h, param);
+		}
+		return Hashing.finish(h);
+	}
+
+	/**
+	 * Returns the digest identifying a code by the given range of bytes, such
+	 * as its decoded MAC, and params.
+	 * 
+	 * @param key
+	 * @param offset
+	 * @param length
+	 * @param params
+	 * @return
+	 */
+	public long digest(byte[] key, int offset, int length, String[] params) {
+		long h = Hashing.update(seed, key, offset, length);
+		for (String param : params) {
+			h = Hashing.update(h, param);
+		}
+		return Hashing.finish(h);
+	}
+
+	/**
+	 * Returns true if the code was used within the window.
+	 * 
+	 * @param digest
+	 * @return
+	 */
+	public boolean isUsed(long digest) {
+		long lap = currentLap();
+		for (int i = 0; i < ring.length(); i++) {
+			Bucket bucket = ring.get(index(lap - i));
+			if (bucket != null && bucket.lap == lap - i && bucket.contains(digest)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Records the code as used. Returns false if it was used already, or if
+	 * its bucket is full unless full buckets accept codes, in which case the
+	 * caller must reject it.
+	 * 
+	 * @param digest
+	 * @return
+	 */
+	public boolean markUsed(long digest) {
+		long lap = currentLap();
+		Bucket current = bucket(lap);
+		int added = current.add(digest);
+		if (added == Bucket.PRESENT) {
+			return false;
+		}
+		if (added == Bucket.FULL) {
+			overflows.increment();
+			return acceptWhenFull;
+		}
+		// a concurrent use may have landed in a neighbouring lap while the
+		// lap rolled over; both callers then see each other and reject
+		for (int i = 0; i < ring.length(); i++) {
+			Bucket bucket = ring.get(i);
+			if (bucket != null && bucket != current && Math.abs(bucket.lap - lap) < ring.length()
+					&& bucket.contains(digest)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Sets whether codes that find their bucket full are accepted without
+	 * being recorded, trading replay protection for availability. Off by
+	 * default. Call before the cache is shared.
+	 * 
+	 * @param acceptWhenFull
+	 */
+	public void setAcceptWhenFull(boolean acceptWhenFull) {
+		this.acceptWhenFull = acceptWhenFull;
+	}
+
+	/**
+	 * Returns the number of codes recorded in the current lap.
+	 * 
+	 * @return
+	 */
+	public int getSize() {
+		long lap = currentLap();
+		Bucket bucket = ring.get(index(lap));
+		return bucket != null && bucket.lap == lap ? bucket.size.get() : 0;
+	}
+
+	/**
+	 * Returns the number of codes a lap can hold.
+	 * 
+	 * @return
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the number of codes that found their bucket full.
+	 * 
+	 * @return
+	 */
+	public long getOverflows() {
+		return overflows.sum();
+	}
+
+	private long currentLap() {
+		return Math.floorDiv(clock.millis(), lapMillis);
+	}
+
+	private int index(long lap) {
+		return (int) Math.floorMod(lap, (long) ring.length());
+	}
+
+	/*
+	 * Returns the bucket of the lap, replacing whatever older lap held its
+	 * place in the ring.
+	 */
+	private Bucket bucket(long lap) {
+		int index = index(lap);
+		while (true) {
+			Bucket bucket = ring.get(index);
+			if (bucket != null && bucket.lap >= lap) {
+				return bucket;
+			}
+			Bucket fresh = new Bucket(lap, capacity);
+			if (ring.compareAndSet(index, bucket, fresh)) {
+				return fresh;
+			}
+		}
+	}
+
+	/**
+	 * Digests of one lap.
+	 */
+	private static final class Bucket {
+
+		static final int ADDED = 0;
+
+		static final int PRESENT = 1;
+
+		static final int FULL = 2;
+
+		final long lap;
+
+		final AtomicLongArray slots;
+
+		final AtomicInteger size = new AtomicInteger();
+
+		Bucket(long lap, int capacity) {
+			this.lap = lap;
+			this.slots = new AtomicLongArray(capacity);
+		}
+
+		boolean contains(long digest) {
+			int mask = slots.length() - 1;
+			for (int i = 0, slot = (int) digest & mask; i < MAX_PROBES; i++, slot = (slot + 1) & mask) {
+				long current = slots.get(slot);
+				if (current == digest) {
+					return true;
+				}
+				if (current == 0) {
+					return false;
+				}
+			}
+			return false;
+		}
+
+		/*
+		 * Returns ADDED, PRESENT if the digest was present, or FULL if no
+		 * slot within reach was free.
+		 */
+		int add(long digest) {
+			int mask = slots.length() - 1;
+			for (int i = 0, slot = (int) digest & mask; i < MAX_PROBES; i++, slot = (slot + 1) & mask) {
+				long current = slots.get(slot);
+				if (current == 0 && slots.compareAndSet(slot, 0, digest)) {
+					size.incrementAndGet();
+					return ADDED;
+				}
+				if (slots.get(slot) == digest) {
+					return PRESENT;
+				}
+			}
+			return FULL;
+		}
+	}
+
+}
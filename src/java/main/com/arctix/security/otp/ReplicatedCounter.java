@@ -0,0 +1,787 @@
+package com.arctix.security.otp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counter replicated between the nodes of a validator cluster, so attempts
+ * are limited across the cluster rather than per node, without a central
+ * store.
+ * 
+ * Each subject holds a grow-only count per node; the value is their sum.
+ * Nodes only ever raise their own count, so replicas merge by taking the
+ * highest count seen for every node, in any order and any number of times.
+ * A reset starts a new generation of the subject, which replaces the counts
+ * of older generations wherever it arrives. Like {@link InMemorySubjectCounter}
+ * a generation expires a fixed time after its first attempt.
+ * 
+ * Updates apply locally and never wait on other nodes. A background thread
+ * sends the subjects changed since its last round to every peer over TCP,
+ * and the whole state after connecting to a peer and every few rounds, so
+ * nodes that missed messages catch up. Either is split into frames of a
+ * bounded size, however many subjects there are. Until a round reaches the
+ * peers each node admits attempts on its own, so the cluster may admit up to
+ * one limit per node in the time of a round, but no more.
+ * 
+ * Every frame starts with a header of its length and sender, followed by an
+ * HMAC of the header, and ends with an HMAC of the whole frame, both under a
+ * cluster key all nodes share. A connection sending a frame that fails
+ * either, or one not framed as its length says, is dropped; without the key
+ * no host can lower a count, nor make a node read more than a header.
+ * Connections are read by a bounded pool of threads, and those not sending
+ * a frame soon after connecting are closed to free their thread. Each peer
+ * has a sender thread of its own, which connects, backing off while the
+ * peer is unreachable, and writes, so a peer that is down or stops reading
+ * never delays the rounds of the others. A peer not taking a message within
+ * a second is disconnected, and connections that stay silent for several
+ * full rounds are closed.
+ * 
+ * @author aprasa2
+ *
+ */
+public class ReplicatedCounter implements Counter, Closeable {
+
+	private static Logger logger = LoggerFactory.getLogger(ReplicatedCounter.class);
+
+	static final long DEFAULT_GOSSIP_INTERVAL = 50; // in millis
+
+	static final int ANTI_ENTROPY_ROUNDS = 100; // rounds between full states
+
+	static final int MAX_MESSAGE = 256 << 10; // bytes of a frame after the header
+
+	static final int READERS_PER_PEER = 2; // connections read at once
+
+	static final int CONNECT_TIMEOUT = 1000; // in millis
+
+	static final long WRITE_TIMEOUT = 1000; // in millis
+
+	static final long MAX_BACKOFF = 5000; // in millis, between connects
+
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+
+	private static final int TAG_LENGTH = 32; // bytes
+
+	private static final int HEADER_TAG_LENGTH = 16; // bytes, leftmost of the HMAC
+
+	private static final int HEADER_LENGTH = 8 + HEADER_TAG_LENGTH; // bytes
+
+	// subject used by the methods without one
+	private static final String DEFAULT_SUBJECT = "";
+
+	private final int nodeId;
+
+	private final List<InetSocketAddress> nodes;
+
+	private final long expiryMillis;
+
+	private final long gossipInterval;
+
+	// full states are sent at least this often, even if empty
+	private final int readTimeout;
+
+	// peers send the whole state this soon after connecting
+	private final int firstReadTimeout;
+
+	private final SecretKey clusterKey;
+
+	private final Clock clock;
+
+	private final ConcurrentHashMap<String, Entry> counters = new ConcurrentHashMap<String, Entry>();
+
+	// subjects changed since the last round
+	private final Set<String> changed = ConcurrentHashMap.newKeySet();
+
+	private final ServerSocket server;
+
+	// connections to the peers, each with a sender thread
+	private final Peer[] peers;
+
+	private final Thread gossiper;
+
+	private final Set<Socket> accepted = ConcurrentHashMap.newKeySet();
+
+	private final ThreadPoolExecutor readers;
+
+	private volatile boolean closed = false;
+
+	/**
+	 * Starts this node of the cluster, with counts expiring after the
+	 * engine's password expiry.
+	 * 
+	 * @param nodeId
+	 *            - index of this node in the list
+	 * @param nodes
+	 *            - addresses of all nodes, in the same order on every node
+	 * @param clusterKey
+	 *            - authenticates messages, the same on every node
+	 * @throws IOException
+	 *             if the address of this node cannot be bound
+	 */
+	public ReplicatedCounter(int nodeId, List<InetSocketAddress> nodes, SecretKey clusterKey) throws IOException {
+		this(nodeId, nodes, clusterKey, OTPEngine.PASSWORD_EXPRIRY, TimeUnit.MINUTES, DEFAULT_GOSSIP_INTERVAL);
+	}
+
+	/**
+	 * Starts this node of the cluster.
+	 * 
+	 * @param nodeId
+	 *            - index of this node in the list
+	 * @param nodes
+	 *            - addresses of all nodes, in the same order on every node
+	 * @param clusterKey
+	 *            - authenticates messages, the same on every node
+	 * @param expiry
+	 * @param unit
+	 * @param gossipInterval
+	 *            - millis between rounds
+	 * @throws IOException
+	 *             if the address of this node cannot be bound
+	 */
+	public ReplicatedCounter(int nodeId, List<InetSocketAddress> nodes, SecretKey clusterKey, long expiry,
+			TimeUnit unit, long gossipInterval) throws IOException {
+		this(nodeId, nodes, clusterKey, expiry, unit, gossipInterval, Clock.systemUTC());
+	}
+
+	/**
+	 * For testing only allow using a different clock
+	 */
+	ReplicatedCounter(int nodeId, List<InetSocketAddress> nodes, SecretKey clusterKey, long expiry, TimeUnit unit,
+			long gossipInterval, Clock clock) throws IOException {
+		if (nodeId < 0 || nodeId >= nodes.size()) {
+			throw new IllegalArgumentException("Node " + nodeId + " is not one of " + nodes.size() + " nodes");
+		}
+		if (clusterKey == null) {
+			throw new IllegalArgumentException("A cluster key is required");
+		}
+		this.nodeId = nodeId;
+		this.nodes = new ArrayList<InetSocketAddress>(nodes);
+		this.clusterKey = clusterKey;
+		this.expiryMillis = unit.toMillis(expiry);
+		this.gossipInterval = gossipInterval;
+		this.readTimeout = (int) Math.min(Integer.MAX_VALUE,
+				Math.max(4 * ANTI_ENTROPY_ROUNDS * gossipInterval, 10 * WRITE_TIMEOUT));
+		this.firstReadTimeout = (int) Math.min(readTimeout, Math.max(4 * gossipInterval, WRITE_TIMEOUT));
+		this.clock = clock;
+		// fails early on a key the MAC does not take
+		newMac();
+
+		server = new ServerSocket();
+		server.setReuseAddress(true);
+		server.bind(nodes.get(nodeId));
+		peers = new Peer[nodes.size()];
+		for (int i = 0; i < peers.length; i++) {
+			if (i != nodeId) {
+				peers[i] = new Peer(i, nodes.get(i));
+			}
+		}
+		for (Peer peer : peers) {
+			if (peer != null) {
+				peer.sender.start();
+			}
+		}
+
+		readers = new ThreadPoolExecutor(0, Math.max(1, READERS_PER_PEER * (nodes.size() - 1)), 60,
+				TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), runnable -> {
+					Thread reader = new Thread(runnable, "otp-counter-receive-" + nodeId);
+					reader.setDaemon(true);
+					return reader;
+				});
+		Thread acceptor = new Thread(this::accept, "otp-counter-accept-" + nodeId);
+		acceptor.setDaemon(true);
+		acceptor.start();
+		gossiper = new Thread(this::gossip, "otp-counter-gossip-" + nodeId);
+		gossiper.setDaemon(true);
+		gossiper.start();
+	}
+
+	@Override
+	public int getCurrentValue() {
+		return getCurrentValue(DEFAULT_SUBJECT);
+	}
+
+	@Override
+	public int getNextValue() {
+		return getNextValue(DEFAULT_SUBJECT);
+	}
+
+	@Override
+	public int reset() {
+		return reset(DEFAULT_SUBJECT);
+	}
+
+	@Override
+	public int getCurrentValue(String subject) {
+		Entry entry = counters.get(subject);
+		if (entry == null || entry.isExpired(clock.millis())) {
+			return 0;
+		}
+		return entry.value();
+	}
+
+	@Override
+	public int getNextValue(String subject) {
+		long now = clock.millis();
+		Entry entry = counters.compute(subject, (key, current) -> {
+			if (current == null) {
+				return new Entry(0, now + expiryMillis, nodes.size()).increment(nodeId);
+			}
+			if (current.isExpired(now)) {
+				return new Entry(current.generation + 1, now + expiryMillis, nodes.size()).increment(nodeId);
+			}
+			return current.increment(nodeId);
+		});
+		changed.add(subject);
+		return entry.value();
+	}
+
+	@Override
+	public int reset(String subject) {
+		long now = clock.millis();
+		Entry entry = counters.computeIfPresent(subject,
+				(key, current) -> new Entry(current.generation + 1, now + expiryMillis, nodes.size()));
+		if (entry != null) {
+			changed.add(subject);
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns the number of subjects currently held, including expired ones
+	 * not yet swept.
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return counters.size();
+	}
+
+	/**
+	 * Stops replicating and closes all connections. Counts held so far stay
+	 * readable.
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		gossiper.interrupt();
+		for (Peer peer : peers) {
+			if (peer != null) {
+				peer.sender.interrupt();
+				// unblocks a write in progress
+				close(peer.socket);
+			}
+		}
+		server.close();
+		for (Socket socket : accepted) {
+			socket.close();
+		}
+		readers.shutdown();
+	}
+
+	/*
+	 * Merges a replica of the subject received from a peer.
+	 */
+	void merge(String subject, Entry received) {
+		long now = clock.millis();
+		if (received.isExpired(now)) {
+			return;
+		}
+		counters.merge(subject, received, (current, incoming) -> current.isExpired(now) ? incoming
+				: current.merge(incoming));
+	}
+
+	/*
+	 * Hands the changed subjects to the sender of every connected peer each
+	 * interval, and the whole state to peers just connected and every few
+	 * rounds. Never blocks on a peer.
+	 */
+	private void gossip() {
+		Mac mac = newMac();
+		long round = 0;
+		while (!closed) {
+			try {
+				Thread.sleep(gossipInterval);
+			} catch (InterruptedException e) {
+				break;
+			}
+			round++;
+			boolean full = round % ANTI_ENTROPY_ROUNDS == 0;
+			try {
+				List<byte[]> delta = encode(drainChanged(), false, mac);
+				List<byte[]> state = null;
+				for (Peer peer : peers) {
+					if (peer == null) {
+						continue;
+					}
+					peer.checkWrite();
+					if (!peer.connected) {
+						// gets the whole state once connected
+						continue;
+					}
+					if (full || peer.stale) {
+						if (state == null) {
+							state = encode(new ArrayList<String>(counters.keySet()), true, mac);
+						}
+						peer.post(state, true);
+					} else if (!delta.isEmpty()) {
+						peer.post(delta, false);
+					}
+				}
+				if (full) {
+					sweep();
+				}
+			} catch (RuntimeException e) {
+				logger.error("Gossip round failed", e);
+			}
+		}
+		logger.debug("Node {} stopped gossiping", nodeId);
+	}
+
+	private List<String> drainChanged() {
+		List<String> subjects = new ArrayList<String>();
+		Iterator<String> iterator = changed.iterator();
+		while (iterator.hasNext()) {
+			subjects.add(iterator.next());
+			iterator.remove();
+		}
+		return subjects;
+	}
+
+	/*
+	 * Drops expired subjects.
+	 */
+	private void sweep() {
+		long now = clock.millis();
+		for (Map.Entry<String, Entry> entry : counters.entrySet()) {
+			if (entry.getValue().isExpired(now)) {
+				counters.remove(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	/*
+	 * Writes the subjects as frames of at most MAX_MESSAGE bytes after the
+	 * header, each holding the number of its subjects, then per subject its
+	 * name, generation, expiry and count per node, and last the HMAC of the
+	 * frame. Empty if there is nothing to send, unless always.
+	 */
+	private List<byte[]> encode(List<String> subjects, boolean always, Mac mac) {
+		long now = clock.millis();
+		List<byte[]> frames = new ArrayList<byte[]>();
+		try {
+			ByteArrayOutputStream entries = new ByteArrayOutputStream();
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			int written = 0;
+			for (String subject : subjects) {
+				Entry entry = counters.get(subject);
+				if (entry == null || entry.isExpired(now)) {
+					continue;
+				}
+				bytes.reset();
+				try {
+					out.writeUTF(subject);
+				} catch (UTFDataFormatException e) {
+					logger.warn("Subject of {} chars too long to replicate", subject.length());
+					continue;
+				}
+				out.writeLong(entry.generation);
+				out.writeLong(entry.expiresAt);
+				for (long count : entry.counts) {
+					out.writeLong(count);
+				}
+				if (4 + bytes.size() + TAG_LENGTH > MAX_MESSAGE) {
+					logger.warn("Subject of {} bytes too long to replicate", bytes.size());
+					continue;
+				}
+				if (4 + entries.size() + bytes.size() + TAG_LENGTH > MAX_MESSAGE) {
+					frames.add(frame(written, entries, mac));
+					entries.reset();
+					written = 0;
+				}
+				bytes.writeTo(entries);
+				written++;
+			}
+			if (written > 0 || (always && frames.isEmpty())) {
+				frames.add(frame(written, entries, mac));
+			}
+			return frames;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/*
+	 * Frames the encoded subjects: the header of the length after it, the
+	 * sender and the header HMAC, then the number of subjects, the subjects
+	 * and the HMAC of everything before.
+	 */
+	private byte[] frame(int subjects, ByteArrayOutputStream entries, Mac mac) {
+		int length = 4 + entries.size() + TAG_LENGTH;
+		byte[] frame = new byte[HEADER_LENGTH + length];
+		ByteBuffer buffer = ByteBuffer.wrap(frame).putInt(length).putInt(nodeId);
+		mac.update(frame, 0, 8);
+		buffer.put(mac.doFinal(), 0, HEADER_TAG_LENGTH).putInt(subjects).put(entries.toByteArray());
+		mac.update(frame, 0, 8);
+		mac.update(frame, HEADER_LENGTH, length - TAG_LENGTH);
+		buffer.put(mac.doFinal());
+		return frame;
+	}
+
+	/*
+	 * Reads frames of a peer until it disconnects, allocating the body of a
+	 * frame only once its header checks out.
+	 */
+	private void receive(Socket socket) {
+		Mac mac = newMac();
+		byte[] header = new byte[HEADER_LENGTH];
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+			socket.setSoTimeout(firstReadTimeout);
+			while (!closed) {
+				in.readFully(header);
+				byte[] body = new byte[readHeader(header, mac)];
+				in.readFully(body);
+				decode(header, body, mac);
+				socket.setSoTimeout(readTimeout);
+			}
+		} catch (EOFException e) {
+			// peer went away
+		} catch (IOException e) {
+			if (!closed) {
+				logger.warn("Dropped connection from {}: {}", socket.getRemoteSocketAddress(), e.getMessage());
+			}
+		} finally {
+			accepted.remove(socket);
+		}
+	}
+
+	/*
+	 * Returns the length of the frame after the header once the header HMAC
+	 * checks out.
+	 */
+	private int readHeader(byte[] header, Mac mac) throws IOException {
+		mac.update(header, 0, 8);
+		if (!MessageDigest.isEqual(Arrays.copyOf(mac.doFinal(), HEADER_TAG_LENGTH),
+				Arrays.copyOfRange(header, 8, HEADER_LENGTH))) {
+			throw new IOException("Header failed authentication");
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(header);
+		int length = buffer.getInt();
+		int sender = buffer.getInt();
+		if (length < 4 + TAG_LENGTH || length > MAX_MESSAGE) {
+			throw new IOException("Invalid frame of " + length + " bytes");
+		}
+		if (sender < 0 || sender >= nodes.size() || sender == nodeId) {
+			throw new IOException("Frame from unknown node " + sender);
+		}
+		return length;
+	}
+
+	/*
+	 * Merges the subjects of a frame once its HMAC checks out, reading
+	 * nothing beyond the frame.
+	 */
+	private void decode(byte[] header, byte[] body, Mac mac) throws IOException {
+		int length = body.length - TAG_LENGTH;
+		mac.update(header, 0, 8);
+		mac.update(body, 0, length);
+		if (!MessageDigest.isEqual(mac.doFinal(), Arrays.copyOfRange(body, length, body.length))) {
+			throw new IOException("Frame failed authentication");
+		}
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(body, 0, length));
+		try {
+			int subjects = in.readInt();
+			for (int i = 0; i < subjects; i++) {
+				String subject = in.readUTF();
+				long generation = in.readLong();
+				long expiresAt = in.readLong();
+				long[] counts = new long[nodes.size()];
+				for (int n = 0; n < counts.length; n++) {
+					counts[n] = in.readLong();
+				}
+				merge(subject, new Entry(generation, expiresAt, counts));
+			}
+			if (in.available() > 0) {
+				throw new IOException("Frame longer than its " + subjects + " subjects");
+			}
+		} catch (EOFException e) {
+			throw new IOException("Frame shorter than its length");
+		}
+	}
+
+	private Mac newMac() {
+		try {
+			Mac mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(clusterKey);
+			return mac;
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void accept() {
+		while (!closed) {
+			try {
+				Socket socket = server.accept();
+				accepted.add(socket);
+				try {
+					readers.execute(() -> receive(socket));
+				} catch (RejectedExecutionException e) {
+					logger.warn("Refused connection from {}, {} connections read already",
+							socket.getRemoteSocketAddress(), readers.getMaximumPoolSize());
+					accepted.remove(socket);
+					close(socket);
+				}
+			} catch (IOException e) {
+				if (!closed) {
+					logger.error("Failed to accept peer connection", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Counts of a subject in one generation. Immutable; updates replace it.
+	 */
+	static final class Entry {
+
+		final long generation;
+
+		// epoch millis at which the generation expires
+		final long expiresAt;
+
+		// attempts counted by each node
+		final long[] counts;
+
+		Entry(long generation, long expiresAt, int nodes) {
+			this(generation, expiresAt, new long[nodes]);
+		}
+
+		Entry(long generation, long expiresAt, long[] counts) {
+			this.generation = generation;
+			this.expiresAt = expiresAt;
+			this.counts = counts;
+		}
+
+		boolean isExpired(long now) {
+			return expiresAt <= now;
+		}
+
+		int value() {
+			long sum = 0;
+			for (long count : counts) {
+				sum += count;
+			}
+			return (int) Math.min(sum, Integer.MAX_VALUE);
+		}
+
+		Entry increment(int node) {
+			long[] next = counts.clone();
+			next[node]++;
+			return new Entry(generation, expiresAt, next);
+		}
+
+		/*
+		 * Later generations win; within one the highest count of each node
+		 * and the latest expiry are kept.
+		 */
+		Entry merge(Entry other) {
+			if (other.generation != generation || other.counts.length != counts.length) {
+				return other.generation > generation ? other : this;
+			}
+			long[] merged = new long[counts.length];
+			boolean same = other.expiresAt <= expiresAt;
+			for (int i = 0; i < merged.length; i++) {
+				merged[i] = Math.max(counts[i], other.counts[i]);
+				same &= merged[i] == counts[i];
+			}
+			return same ? this : new Entry(generation, Math.max(expiresAt, other.expiresAt), merged);
+		}
+	}
+
+	/**
+	 * Outgoing connection to a peer, with a thread that connects and writes
+	 * so that the gossip thread never waits on it. The gossip thread posts
+	 * the frames of one message at a time; a message replaced before it was
+	 * written marks the peer stale, and the next round sends the whole state
+	 * instead.
+	 */
+	private final class Peer {
+
+		final InetSocketAddress address;
+
+		final Thread sender;
+
+		// set once connected, until the whole state is posted
+		volatile boolean stale = true;
+
+		volatile boolean connected = false;
+
+		// frames waiting for the sender, guarded by this
+		private List<byte[]> pending;
+
+		private volatile Socket socket;
+
+		private DataOutputStream out;
+
+		// System.nanoTime the current write began, 0 while not writing
+		private volatile long writing = 0;
+
+		Peer(int peerId, InetSocketAddress address) {
+			this.address = address;
+			sender = new Thread(this::send, "otp-counter-send-" + nodeId + "-" + peerId);
+			sender.setDaemon(true);
+		}
+
+		synchronized void post(List<byte[]> message, boolean state) {
+			if (state) {
+				stale = false;
+			} else if (pending != null) {
+				// the sender is behind, what it misses comes with the state
+				stale = true;
+			}
+			pending = message;
+			notifyAll();
+		}
+
+		/*
+		 * Disconnects the peer if a write has been blocked for longer than
+		 * the timeout, which fails the write.
+		 */
+		void checkWrite() {
+			long started = writing;
+			if (started != 0 && System.nanoTime() - started > TimeUnit.MILLISECONDS.toNanos(WRITE_TIMEOUT)) {
+				logger.warn("Peer {} took no message for {} ms, disconnecting", address, WRITE_TIMEOUT);
+				close(socket);
+			}
+		}
+
+		/*
+		 * Connects, backing off while the peer is unreachable, and writes the
+		 * messages posted.
+		 */
+		private void send() {
+			long backoff = gossipInterval;
+			while (!closed) {
+				if (socket == null) {
+					if (!connect()) {
+						try {
+							Thread.sleep(backoff);
+						} catch (InterruptedException e) {
+							break;
+						}
+						backoff = Math.min(backoff * 2, Math.max(MAX_BACKOFF, gossipInterval));
+						continue;
+					}
+					backoff = gossipInterval;
+				}
+				List<byte[]> message = take();
+				if (message == null) {
+					break;
+				}
+				write(message);
+			}
+			disconnect();
+		}
+
+		private synchronized List<byte[]> take() {
+			try {
+				while (pending == null && !closed) {
+					wait();
+				}
+			} catch (InterruptedException e) {
+				return null;
+			}
+			List<byte[]> message = pending;
+			pending = null;
+			return message;
+		}
+
+		private boolean connect() {
+			Socket connecting = new Socket();
+			try {
+				connecting.setTcpNoDelay(true);
+				connecting.connect(address, CONNECT_TIMEOUT);
+				out = new DataOutputStream(new BufferedOutputStream(connecting.getOutputStream()));
+				socket = connecting;
+				stale = true;
+				connected = true;
+				return true;
+			} catch (IOException e) {
+				logger.debug("Peer {} unreachable: {}", address, e.getMessage());
+				close(connecting);
+				return false;
+			}
+		}
+
+		/*
+		 * Writes the frames, timing each on its own so a large state is not
+		 * taken for a stuck peer.
+		 */
+		private void write(List<byte[]> message) {
+			try {
+				for (byte[] frame : message) {
+					writing = System.nanoTime() | 1;
+					out.write(frame);
+					out.flush();
+				}
+			} catch (IOException e) {
+				logger.debug("Lost connection to peer {}: {}", address, e.getMessage());
+				disconnect();
+			} finally {
+				writing = 0;
+			}
+		}
+
+		private void disconnect() {
+			connected = false;
+			if (socket != null) {
+				close(socket);
+				socket = null;
+				out = null;
+			}
+		}
+	}
+
+	private static void close(Socket socket) {
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+		}
+	}
+
+}
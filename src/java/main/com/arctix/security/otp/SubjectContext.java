@@ -0,0 +1,92 @@
+package com.arctix.security.otp;
+
+import java.nio.charset.StandardCharsets;
+
+import com.arctix.security.otp.hmac.HMACEngine;
+
+/**
+ * The params of a user, prepared once for every password generated and
+ * validated for them, such as during a login session. Created by
+ * {@link OTPEngine#createSubjectContext(String[])}.
+ * 
+ * Version 4 tokens authenticate the params in a canonical encoding: their
+ * count, then the length and UTF-8 bytes of each, as 4 byte big-endian
+ * lengths. Unlike the concatenation of earlier versions, different params
+ * never encode alike. Since the encoding comes first, the context keeps the
+ * MAC state after hashing it, and each HMAC only hashes the password and
+ * lap.
+ * 
+ * Contexts are immutable and safe to share between threads.
+ * 
+ * @author aprasa2
+ *
+ */
+public final class SubjectContext {
+
+	final String[] params;
+
+	// attempts and rate limits are counted per subject
+	final String subject;
+
+	// computed on first use unless the engine prepares it up front
+	private volatile HMACEngine.Prefix prefix;
+
+	// params are not copied, the engine copies those given to it by callers
+	SubjectContext(final String params[]) {
+		this.params = params;
+		this.subject = OTPEngine.subjectOf(params);
+	}
+
+	/**
+	 * Returns a copy of the params.
+	 * 
+	 * @return
+	 */
+	public String[] getParams() {
+		return params.clone();
+	}
+
+	/*
+	 * Returns the encoded params absorbed by the MAC. A prefix made with
+	 * another key, as after a key rotation, still holds the bytes, which that
+	 * engine hashes in full.
+	 */
+	HMACEngine.Prefix prefix(final HMACEngine mac) {
+		HMACEngine.Prefix prefix = this.prefix;
+		if (prefix == null) {
+			prefix = mac.precompute(encode(params));
+			this.prefix = prefix;
+		}
+		return prefix;
+	}
+
+	/*
+	 * Encodes the count of params, then the length and bytes of each. Starts
+	 * with a zero byte, which no password of earlier token versions does.
+	 */
+	static byte[] encode(final String params[]) {
+		byte[][] encoded = new byte[params.length][];
+		int length = 4;
+		for (int i = 0; i < params.length; i++) {
+			encoded[i] = params[i].getBytes(StandardCharsets.UTF_8);
+			length += 4 + encoded[i].length;
+		}
+		byte[] bytes = new byte[length];
+		int position = putInt(bytes, 0, params.length);
+		for (byte[] param : encoded) {
+			position = putInt(bytes, position, param.length);
+			System.arraycopy(param, 0, bytes, position, param.length);
+			position += param.length;
+		}
+		return bytes;
+	}
+
+	private static int putInt(byte[] bytes, int position, int value) {
+		bytes[position] = (byte) (value >>> 24);
+		bytes[position + 1] = (byte) (value >>> 16);
+		bytes[position + 2] = (byte) (value >>> 8);
+		bytes[position + 3] = (byte) value;
+		return position + 4;
+	}
+
+}
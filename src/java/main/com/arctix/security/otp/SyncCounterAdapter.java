@@ -0,0 +1,54 @@
+package com.arctix.security.otp;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * Presents a synchronous Counter as an AsyncCounter, either calling it on the
+ * caller's thread or on an executor.
+ * 
+ * @author aprasa2
+ *
+ */
+final class SyncCounterAdapter implements AsyncCounter {
+
+	private final Counter counter;
+
+	// null to call the counter on the calling thread
+	private final Executor executor;
+
+	SyncCounterAdapter(Counter counter, Executor executor) {
+		this.counter = counter;
+		this.executor = executor;
+	}
+
+	@Override
+	public CompletableFuture<Integer> getCurrentValueAsync(final String subject) {
+		return call(() -> counter.getCurrentValue(subject));
+	}
+
+	@Override
+	public CompletableFuture<Integer> getNextValueAsync(final String subject) {
+		return call(() -> counter.getNextValue(subject));
+	}
+
+	@Override
+	public CompletableFuture<Integer> resetAsync(final String subject) {
+		return call(() -> counter.reset(subject));
+	}
+
+	private CompletableFuture<Integer> call(Supplier<Integer> operation) {
+		if (executor != null) {
+			return CompletableFuture.supplyAsync(operation, executor);
+		}
+		try {
+			return CompletableFuture.completedFuture(operation.get());
+		} catch (RuntimeException e) {
+			CompletableFuture<Integer> failed = new CompletableFuture<Integer>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+	}
+
+}
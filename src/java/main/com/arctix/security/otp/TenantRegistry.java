@@ -0,0 +1,329 @@
+package com.arctix.security.otp;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import javax.crypto.SecretKey;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Engines of many tenants, each with a key of its own, such as brands served
+ * by one deployment. Keys are loaded through a {@link KeyLoader} when a
+ * tenant is first used, and the engine built from it, with its MAC
+ * initialized, is kept for the following requests.
+ * 
+ * At most the given number of engines are kept, however many tenants there
+ * are. Beyond that the least recently used are evicted, approximated with a
+ * clock: a hit only marks its engine, and eviction passes over marked ones
+ * once, clearing the mark, so lookups never lock. Tenants used once are
+ * evicted before those used again. Concurrent lookups of a tenant being
+ * loaded wait for that load rather than starting their own.
+ * 
+ * All engines share the counter, with subjects scoped to their tenant, and a
+ * replay cache, so evicting an engine forgets neither attempts nor used
+ * codes.
+ * 
+ * @author aprasa2
+ *
+ */
+public class TenantRegistry {
+
+	private static Logger logger = LoggerFactory.getLogger(TenantRegistry.class);
+
+	private final KeyLoader loader;
+
+	private final String algorithm;
+
+	private final Counter counter;
+
+	private final ReplayCache replayCache;
+
+	private final int capacity;
+
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	// loaded entries in order of admission, guarded by itself
+	private final ArrayDeque<Entry> clock = new ArrayDeque<Entry>();
+
+	private volatile Consumer<OTPEngine> configurer;
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	private final LongAdder loadFailures = new LongAdder();
+
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * Creates a registry keeping at most capacity engines.
+	 * 
+	 * @param loader
+	 * @param algorithm
+	 *            - of the HMACs of every tenant
+	 * @param counter
+	 *            - counts attempts of every tenant
+	 * @param capacity
+	 *            - number of engines kept
+	 */
+	public TenantRegistry(KeyLoader loader, String algorithm, Counter counter, int capacity) {
+		this(loader, algorithm, counter, new ReplayCache(), capacity);
+	}
+
+	/**
+	 * Creates a registry keeping at most capacity engines, sharing the given
+	 * replay cache, null to accept replays.
+	 * 
+	 * @param loader
+	 * @param algorithm
+	 * @param counter
+	 * @param replayCache
+	 * @param capacity
+	 */
+	public TenantRegistry(KeyLoader loader, String algorithm, Counter counter, ReplayCache replayCache,
+			int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Invalid capacity " + capacity);
+		}
+		this.loader = loader;
+		this.algorithm = algorithm;
+		this.counter = counter;
+		this.replayCache = replayCache;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Returns the engine of the tenant, loading its key if the engine is not
+	 * kept. The engine may be evicted later; ask the registry again rather
+	 * than holding on to it.
+	 * 
+	 * @param tenant
+	 * @return the engine, null if the loader has no key for the tenant
+	 */
+	public OTPEngine getEngine(String tenant) {
+		Entry entry = entries.get(tenant);
+		if (entry == null) {
+			Entry created = new Entry(tenant);
+			entry = entries.putIfAbsent(tenant, created);
+			if (entry == null) {
+				misses.increment();
+				return load(created);
+			}
+		}
+		hits.increment();
+		// read first, so that hits on a marked entry do not write to it
+		if (!entry.referenced) {
+			entry.referenced = true;
+		}
+		OTPEngine engine = entry.engine.getNow(null);
+		return engine != null ? engine : await(entry);
+	}
+
+	/**
+	 * Drops the engine of the tenant, such as after its key changed. The key
+	 * is loaded again on next use.
+	 * 
+	 * @param tenant
+	 */
+	public void invalidate(String tenant) {
+		entries.remove(tenant);
+	}
+
+	/**
+	 * Sets a callback applied to every engine the registry creates from now
+	 * on, for instance to select the token version or set metrics. Call
+	 * before the registry is shared.
+	 * 
+	 * @param configurer
+	 */
+	public void setConfigurer(Consumer<OTPEngine> configurer) {
+		this.configurer = configurer;
+	}
+
+	/**
+	 * Returns the number of engines kept, including those being loaded.
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Returns the lookups served by a kept engine or a load already running.
+	 * 
+	 * @return
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Returns the lookups that loaded a key.
+	 * 
+	 * @return
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Returns the loads that failed.
+	 * 
+	 * @return
+	 */
+	public long getLoadFailures() {
+		return loadFailures.sum();
+	}
+
+	/**
+	 * Returns the engines evicted to stay within capacity.
+	 * 
+	 * @return
+	 */
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/*
+	 * Loads the key of a new entry on the calling thread. Entries of tenants
+	 * without a key, or whose load failed, are removed so that the next
+	 * lookup tries again.
+	 */
+	private OTPEngine load(Entry entry) {
+		OTPEngine engine;
+		try {
+			SecretKey key = loader.load(entry.tenant);
+			engine = key != null ? newEngine(entry.tenant, key) : null;
+		} catch (RuntimeException | Error e) {
+			loadFailures.increment();
+			entries.remove(entry.tenant, entry);
+			entry.engine.completeExceptionally(e);
+			throw e;
+		}
+		if (engine == null) {
+			logger.debug("No key for tenant {}", entry.tenant);
+			entries.remove(entry.tenant, entry);
+		} else {
+			admit(entry);
+		}
+		entry.engine.complete(engine);
+		return engine;
+	}
+
+	private OTPEngine newEngine(String tenant, SecretKey key) {
+		OTPEngine engine = OTPEngine.getInstance(key, algorithm, new TenantCounter(counter, tenant));
+		engine.setReplayCache(replayCache);
+		Consumer<OTPEngine> configurer = this.configurer;
+		if (configurer != null) {
+			configurer.accept(engine);
+		}
+		return engine;
+	}
+
+	/*
+	 * Adds the entry to the clock, then evicts until within capacity. Marked
+	 * entries are unmarked and go round again; entries no longer in the map
+	 * are skipped.
+	 */
+	private void admit(Entry entry) {
+		synchronized (clock) {
+			clock.addLast(entry);
+			while (clock.size() > capacity) {
+				Entry candidate = clock.pollFirst();
+				if (entries.get(candidate.tenant) != candidate) {
+					continue;
+				}
+				if (candidate.referenced) {
+					candidate.referenced = false;
+					clock.addLast(candidate);
+				} else if (entries.remove(candidate.tenant, candidate)) {
+					evictions.increment();
+					logger.debug("Evicted tenant {}", candidate.tenant);
+				}
+			}
+		}
+	}
+
+	// waits for the load started by another thread
+	private static OTPEngine await(Entry entry) {
+		try {
+			return entry.engine.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Engine of a tenant, complete once its key is loaded.
+	 */
+	private static final class Entry {
+
+		final String tenant;
+
+		final CompletableFuture<OTPEngine> engine = new CompletableFuture<OTPEngine>();
+
+		// used since the clock last passed
+		volatile boolean referenced = false;
+
+		Entry(String tenant) {
+			this.tenant = tenant;
+		}
+	}
+
+	/**
+	 * Counts the subjects of a tenant apart from those of other tenants,
+	 * length prefixed so that no two tenants share a subject.
+	 */
+	private static final class TenantCounter implements Counter {
+
+		private final Counter counter;
+
+		private final String prefix;
+
+		TenantCounter(Counter counter, String tenant) {
+			this.counter = counter;
+			this.prefix = tenant.length() + ":" + tenant + "/";
+		}
+
+		@Override
+		public int getCurrentValue() {
+			return counter.getCurrentValue();
+		}
+
+		@Override
+		public int getNextValue() {
+			return counter.getNextValue();
+		}
+
+		@Override
+		public int reset() {
+			return counter.reset();
+		}
+
+		@Override
+		public int getCurrentValue(String subject) {
+			return counter.getCurrentValue(prefix + subject);
+		}
+
+		@Override
+		public int getNextValue(String subject) {
+			return counter.getNextValue(prefix + subject);
+		}
+
+		@Override
+		public int reset(String subject) {
+			return counter.reset(prefix + subject);
+		}
+	}
+
+}
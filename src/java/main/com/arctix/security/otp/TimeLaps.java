@@ -1,28 +1,33 @@
 package com.arctix.security.otp;
 
+import java.time.Clock;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.TimeZone;
 
 /**
  * Generates different laps of (past) time seperated by specific intervals
- * starting with current time.
+ * starting with current time. Laps are computed with epoch minute arithmetic
+ * against an injectable clock, and the most recent window is cached until
+ * the next lap begins. Instances are safe for use by multiple threads.
  * 
  * @author aprasa2
  *
  */
 public class TimeLaps {
 
-	int interval = 5; // number of units to roll in minutes
+	final int interval; // number of units to roll in minutes
 
-	// returns calendar to be used by this class
-	// use the default instance
-	private CalendarFactory factory = new DefaultCalendarFactory();
+	private final Clock clock;
+
+	// last computed window, replaced when a lap boundary rolls over
+	private volatile LapWindow window;
 
 	/**
 	 * Default constructor that creates timelaps with 5 minute intervals
 	 */
 	public TimeLaps() {
-
+		this(5);
 	}
 
 	/**
@@ -31,16 +36,19 @@ public class TimeLaps {
 	 * @param intervals
 	 */
 	public TimeLaps(int intervals) {
-		this.interval = intervals;
+		this(intervals, Clock.systemDefaultZone());
 	}
 
 	/**
-	 * For testing only allow using a different calendar factory
+	 * constructor that creates timelaps with the given interval, reading time
+	 * and zone from the given clock.
 	 * 
-	 * @param factory
+	 * @param intervals
+	 * @param clock
 	 */
-	TimeLaps(CalendarFactory factory) {
-		this.factory = factory;
+	public TimeLaps(int intervals, Clock clock) {
+		this.interval = intervals;
+		this.clock = clock;
 	}
 
 	/**
@@ -59,46 +67,42 @@ public class TimeLaps {
 	 * @return
 	 */
 	public Calendar[] getPreviousTimeLap(final int n) {
-		Calendar[] timeLaps = new Calendar[n];
-		Calendar now = factory.getInstance();
-
-		now.set(Calendar.MILLISECOND, 0);
-		now.set(Calendar.SECOND, 0);
-
-		timeLaps[0] = now;
-		int diff = (now.get(Calendar.MINUTE) % interval);
-		timeLaps[0].add(Calendar.MINUTE, diff * -1);
+		LapWindow laps = getLapWindow(n);
+		TimeZone zone = TimeZone.getTimeZone(clock.getZone());
 
-		for (int i = 1; i < n; i++) {
-			timeLaps[i] = new GregorianCalendar();
-			timeLaps[i].setTimeInMillis(timeLaps[i - 1].getTimeInMillis());
-			timeLaps[i].add(Calendar.MINUTE, interval * -1);
+		Calendar[] timeLaps = new Calendar[n];
+		for (int i = 0; i < n; i++) {
+			timeLaps[i] = new GregorianCalendar(zone);
+			timeLaps[i].setTimeInMillis(laps.getStartMillis(i));
 		}
 		return timeLaps;
 	}
 
 	/**
-	 * Use a calendar factory so mock calendars can be used for testing.
-	 * @author aprasa2
-	 *
+	 * Returns the current lap and at least n - 1 laps before it. The window
+	 * is shared and recomputed only when a new lap begins.
+	 * 
+	 * @param n
+	 * @return
 	 */
-	interface CalendarFactory {
-		public Calendar getInstance();
-
+	public LapWindow getLapWindow(final int n) {
+		long now = clock.millis();
+		LapWindow laps = window;
+		if (laps == null || !laps.contains(now) || laps.size() < n) {
+			int size = (laps == null) ? n : Math.max(n, laps.size());
+			laps = LapWindow.of(now, clock.getZone(), interval, size);
+			window = laps;
+		}
+		return laps;
 	}
 
 	/**
-	 * Returns an instance of GregorianCalendar.
-	 * @author aprasa2
-	 *
+	 * Returns the clock this instance reads time from.
+	 * 
+	 * @return
 	 */
-	private static class DefaultCalendarFactory implements CalendarFactory {
-
-		@Override
-		public Calendar getInstance() {
-			return GregorianCalendar.getInstance();
-		}
-
+	public Clock getClock() {
+		return clock;
 	}
 
 }
@@ -0,0 +1,32 @@
+package com.arctix.security.otp;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event spanning the validation of one password. Costs
+ * nothing unless a recording enables it.
+ * 
+ * @author aprasa2
+ *
+ */
+@Name("com.arctix.security.otp.Validate")
+@Label("OTP Validate")
+@Category("OTP")
+@Description("Validation of a one-time password")
+final class ValidateEvent extends Event {
+
+	@Label("Result")
+	String result;
+
+	@Label("Laps Scanned")
+	@Description("Time laps whose HMAC was computed")
+	int lapsScanned;
+
+	@Label("Legacy Token")
+	boolean legacy;
+
+}
@@ -0,0 +1,47 @@
+package com.arctix.security.otp.delivery;
+
+/**
+ * A password on its way to a recipient. Only the password travels; the hmac
+ * goes back to the front-end that requested it.
+ * 
+ * @author aprasa2
+ *
+ */
+public final class Delivery {
+
+	/**
+	 * Outcome of a delivery.
+	 */
+	public static enum Status {
+		// accepted by the channel
+		DELIVERED,
+		// the channel failed to send it
+		FAILED,
+		// not queued, the queue stayed full or the pipeline was closed
+		REJECTED
+	}
+
+	private final String recipient;
+
+	private final String password;
+
+	public Delivery(String recipient, String password) {
+		this.recipient = recipient;
+		this.password = password;
+	}
+
+	/**
+	 * Returns the address of the recipient on the channel, such as an email
+	 * address or phone number.
+	 * 
+	 * @return
+	 */
+	public String getRecipient() {
+		return recipient;
+	}
+
+	public String getPassword() {
+		return password;
+	}
+
+}
@@ -0,0 +1,46 @@
+package com.arctix.security.otp.delivery;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Interface for the means passwords are sent by, such as email, SMS or push
+ * notifications. The pipeline calls a channel from a single sender thread of
+ * its own, so implementations may block on the network and need not be
+ * thread-safe unless shared between pipelines.
+ * 
+ * Channels receive passwords in batches, so providers that accept many
+ * messages per request are called once per batch.
+ * 
+ * @author aprasa2
+ *
+ */
+public interface DeliveryChannel {
+
+	/**
+	 * Returns the name deliveries address the channel by.
+	 * 
+	 * @return
+	 */
+	public String getName();
+
+	/**
+	 * Returns the largest number of passwords passed to a single send.
+	 * 
+	 * @return
+	 */
+	public default int getMaxBatchSize() {
+		return 100;
+	}
+
+	/**
+	 * Sends the batch, returning the status of each delivery in batch order.
+	 * Throwing fails the whole batch.
+	 * 
+	 * @param batch
+	 * @return DELIVERED or FAILED per delivery
+	 * @throws IOException
+	 */
+	public List<Delivery.Status> send(List<Delivery> batch) throws IOException;
+
+}
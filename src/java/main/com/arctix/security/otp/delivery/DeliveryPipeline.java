@@ -0,0 +1,345 @@
+package com.arctix.security.otp.delivery;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.arctix.security.otp.OTP;
+
+/**
+ * Sends generated passwords to their recipients off the request thread. Each
+ * channel has a bounded queue and a sender thread of its own, which takes
+ * whatever has queued up since its last send, up to the channel's batch
+ * size, and passes it to the channel in one call. Under load batches grow by
+ * themselves; a linger time makes the sender wait a little for a batch to
+ * fill when the load is light.
+ * 
+ * A full queue pushes back on callers, which wait for room up to the offer
+ * timeout and are then rejected, so a slow channel cannot take down the
+ * request threads or the heap. Outcomes are reported through the returned
+ * futures, which complete on the sender thread; callbacks that block
+ * should be attached with an executor of their own.
+ * 
+ * @author aprasa2
+ *
+ */
+public class DeliveryPipeline implements Closeable {
+
+	private static Logger logger = LoggerFactory.getLogger(DeliveryPipeline.class);
+
+	static final int DEFAULT_QUEUE_CAPACITY = 10000; // per channel
+
+	static final long DEFAULT_OFFER_TIMEOUT = 100; // in millis
+
+	private static final long POLL_INTERVAL = 100; // in millis
+
+	private final Map<String, Lane> lanes;
+
+	private final long offerTimeoutNanos;
+
+	private final long lingerNanos;
+
+	private final LongAdder delivered = new LongAdder();
+
+	private final LongAdder failed = new LongAdder();
+
+	private final LongAdder rejected = new LongAdder();
+
+	private final LongAdder batches = new LongAdder();
+
+	private volatile boolean closed = false;
+
+	/**
+	 * Starts a pipeline for the channels with queues of 10000 passwords, a
+	 * 100 millisecond offer timeout and no linger.
+	 * 
+	 * @param channels
+	 */
+	public DeliveryPipeline(DeliveryChannel... channels) {
+		this(Arrays.asList(channels), DEFAULT_QUEUE_CAPACITY, DEFAULT_OFFER_TIMEOUT, 0, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Starts a pipeline for the channels.
+	 * 
+	 * @param channels
+	 * @param queueCapacity
+	 *            - passwords queued per channel
+	 * @param offerTimeout
+	 *            - longest a caller waits for room in a full queue
+	 * @param linger
+	 *            - longest a sender waits for a batch to fill
+	 * @param unit
+	 *            - of the offer timeout and linger
+	 */
+	public DeliveryPipeline(Collection<? extends DeliveryChannel> channels, int queueCapacity, long offerTimeout,
+			long linger, TimeUnit unit) {
+		if (queueCapacity < 1) {
+			throw new IllegalArgumentException("Invalid queue capacity " + queueCapacity);
+		}
+		this.offerTimeoutNanos = unit.toNanos(offerTimeout);
+		this.lingerNanos = unit.toNanos(linger);
+		Map<String, Lane> lanes = new HashMap<String, Lane>();
+		for (DeliveryChannel channel : channels) {
+			if (lanes.put(channel.getName(), new Lane(channel, queueCapacity)) != null) {
+				throw new IllegalArgumentException("Duplicate channel " + channel.getName());
+			}
+		}
+		this.lanes = Collections.unmodifiableMap(lanes);
+		for (Lane lane : lanes.values()) {
+			lane.sender.start();
+		}
+	}
+
+	/**
+	 * Queues the password of the OTP for the recipient on the named channel.
+	 * Waits up to the offer timeout while the queue is full.
+	 * 
+	 * @param channel
+	 * @param recipient
+	 * @param otp
+	 * @return future completed with the outcome of the delivery
+	 */
+	public CompletableFuture<Delivery.Status> deliver(String channel, String recipient, OTP otp) {
+		return deliver(channel, new Delivery(recipient, otp.getPassword()));
+	}
+
+	/**
+	 * Queues the delivery on the named channel. Waits up to the offer timeout
+	 * while the queue is full.
+	 * 
+	 * @param channel
+	 * @param delivery
+	 * @return future completed with the outcome of the delivery
+	 */
+	public CompletableFuture<Delivery.Status> deliver(String channel, Delivery delivery) {
+		Lane lane = lanes.get(channel);
+		if (lane == null) {
+			throw new IllegalArgumentException("Unknown channel " + channel);
+		}
+		Pending pending = new Pending(delivery);
+		if (closed) {
+			return reject(pending);
+		}
+		try {
+			if (!lane.queue.offer(pending, offerTimeoutNanos, TimeUnit.NANOSECONDS)) {
+				logger.debug("Queue of channel {} is full", channel);
+				return reject(pending);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return reject(pending);
+		}
+		// the sender may have left after its last look at the queue
+		if (lane.exited && lane.queue.remove(pending)) {
+			return reject(pending);
+		}
+		return pending.status;
+	}
+
+	/**
+	 * Returns the number of passwords waiting on the channel.
+	 * 
+	 * @param channel
+	 * @return
+	 */
+	public int getQueued(String channel) {
+		Lane lane = lanes.get(channel);
+		return lane == null ? 0 : lane.queue.size();
+	}
+
+	/**
+	 * Returns the number of passwords the channels accepted.
+	 * 
+	 * @return
+	 */
+	public long getDelivered() {
+		return delivered.sum();
+	}
+
+	/**
+	 * Returns the number of passwords the channels failed to send.
+	 * 
+	 * @return
+	 */
+	public long getFailed() {
+		return failed.sum();
+	}
+
+	/**
+	 * Returns the number of passwords turned away by full queues or after
+	 * closing.
+	 * 
+	 * @return
+	 */
+	public long getRejected() {
+		return rejected.sum();
+	}
+
+	/**
+	 * Returns the number of calls made to the channels.
+	 * 
+	 * @return
+	 */
+	public long getBatches() {
+		return batches.sum();
+	}
+
+	/**
+	 * Stops accepting passwords and waits for the queued ones to be sent.
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		try {
+			for (Lane lane : lanes.values()) {
+				lane.sender.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private CompletableFuture<Delivery.Status> reject(Pending pending) {
+		rejected.increment();
+		pending.status.complete(Delivery.Status.REJECTED);
+		return pending.status;
+	}
+
+	/*
+	 * Passes the batch to the channel and completes its futures.
+	 */
+	private void send(DeliveryChannel channel, List<Pending> batch) {
+		List<Delivery> deliveries = new ArrayList<Delivery>(batch.size());
+		for (Pending pending : batch) {
+			deliveries.add(pending.delivery);
+		}
+		List<Delivery.Status> statuses = null;
+		try {
+			statuses = channel.send(deliveries);
+			if (statuses == null || statuses.size() != batch.size()) {
+				logger.error("Channel {} returned {} statuses for {} deliveries", channel.getName(),
+						statuses == null ? null : statuses.size(), batch.size());
+				statuses = null;
+			}
+		} catch (IOException | RuntimeException e) {
+			logger.warn("Channel {} failed a batch of {}: {}", channel.getName(), batch.size(), e.toString());
+		}
+		batches.increment();
+		for (int i = 0; i < batch.size(); i++) {
+			Delivery.Status status = statuses == null ? Delivery.Status.FAILED : statuses.get(i);
+			if (status == Delivery.Status.DELIVERED) {
+				delivered.increment();
+			} else {
+				failed.increment();
+				status = Delivery.Status.FAILED;
+			}
+			batch.get(i).status.complete(status);
+		}
+	}
+
+	/**
+	 * Queue and sender thread of a channel.
+	 */
+	private final class Lane implements Runnable {
+
+		final DeliveryChannel channel;
+
+		final BlockingQueue<Pending> queue;
+
+		final Thread sender;
+
+		// set once the sender stops taking from the queue
+		volatile boolean exited = false;
+
+		Lane(DeliveryChannel channel, int capacity) {
+			this.channel = channel;
+			this.queue = new ArrayBlockingQueue<Pending>(capacity);
+			this.sender = new Thread(this, "otp-delivery-" + channel.getName());
+			sender.setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			int maxBatch = Math.max(1, channel.getMaxBatchSize());
+			List<Pending> batch = new ArrayList<Pending>(Math.min(maxBatch, 1024));
+			try {
+				while (true) {
+					Pending first = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+					if (first == null) {
+						if (closed) {
+							break;
+						}
+						continue;
+					}
+					batch.add(first);
+					queue.drainTo(batch, maxBatch - 1);
+					if (lingerNanos > 0) {
+						linger(batch, maxBatch);
+					}
+					send(channel, batch);
+					batch.clear();
+				}
+			} catch (InterruptedException e) {
+				logger.warn("Sender of channel {} interrupted", channel.getName());
+			} finally {
+				exited = true;
+				for (Pending pending : batch) {
+					reject(pending);
+				}
+				Pending pending;
+				while ((pending = queue.poll()) != null) {
+					reject(pending);
+				}
+			}
+		}
+
+		/*
+		 * Waits for the batch to fill until the linger time is up.
+		 */
+		private void linger(List<Pending> batch, int maxBatch) throws InterruptedException {
+			long deadline = System.nanoTime() + lingerNanos;
+			while (batch.size() < maxBatch) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					return;
+				}
+				Pending next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+				if (next == null) {
+					return;
+				}
+				batch.add(next);
+				queue.drainTo(batch, maxBatch - batch.size());
+			}
+		}
+	}
+
+	/**
+	 * A queued delivery and its outcome.
+	 */
+	private static final class Pending {
+
+		final Delivery delivery;
+
+		final CompletableFuture<Delivery.Status> status = new CompletableFuture<Delivery.Status>();
+
+		Pending(Delivery delivery) {
+			this.delivery = delivery;
+		}
+	}
+
+}
@@ -0,0 +1,121 @@
+package com.arctix.security.otp.delivery;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Channel delivering to an in-memory inbox holding the last password of each
+ * recipient, for tests and benchmarks. A latency per batch stands in for
+ * the round trip to a provider, and the channel can be made to fail.
+ * 
+ * @author aprasa2
+ *
+ */
+public class InMemoryChannel implements DeliveryChannel {
+
+	private final String name;
+
+	private final int maxBatchSize;
+
+	private final long latencyNanos;
+
+	private final ConcurrentHashMap<String, String> inbox = new ConcurrentHashMap<String, String>();
+
+	private final LongAdder sent = new LongAdder();
+
+	private final LongAdder batches = new LongAdder();
+
+	private volatile boolean failing = false;
+
+	/**
+	 * Creates a channel sending batches of up to 100 passwords instantly.
+	 * 
+	 * @param name
+	 */
+	public InMemoryChannel(String name) {
+		this(name, 100, 0, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Creates a channel taking the given time for every batch.
+	 * 
+	 * @param name
+	 * @param maxBatchSize
+	 * @param latency
+	 * @param unit
+	 */
+	public InMemoryChannel(String name, int maxBatchSize, long latency, TimeUnit unit) {
+		this.name = name;
+		this.maxBatchSize = maxBatchSize;
+		this.latencyNanos = unit.toNanos(latency);
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	@Override
+	public List<Delivery.Status> send(List<Delivery> batch) throws IOException {
+		if (latencyNanos > 0) {
+			LockSupport.parkNanos(latencyNanos);
+		}
+		batches.increment();
+		if (failing) {
+			throw new IOException("Channel " + name + " is failing");
+		}
+		for (Delivery delivery : batch) {
+			inbox.put(delivery.getRecipient(), delivery.getPassword());
+		}
+		sent.add(batch.size());
+		return Collections.nCopies(batch.size(), Delivery.Status.DELIVERED);
+	}
+
+	/**
+	 * Returns the last password delivered to the recipient, null if none was.
+	 * 
+	 * @param recipient
+	 * @return
+	 */
+	public String getLastPassword(String recipient) {
+		return inbox.get(recipient);
+	}
+
+	/**
+	 * Returns the number of passwords delivered.
+	 * 
+	 * @return
+	 */
+	public long getSent() {
+		return sent.sum();
+	}
+
+	/**
+	 * Returns the number of batches received, including failed ones.
+	 * 
+	 * @return
+	 */
+	public long getBatches() {
+		return batches.sum();
+	}
+
+	/**
+	 * Makes every following batch fail, or succeed again.
+	 * 
+	 * @param failing
+	 */
+	public void setFailing(boolean failing) {
+		this.failing = failing;
+	}
+
+}
@@ -0,0 +1,122 @@
+package com.arctix.security.otp.hmac;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+
+/**
+ * HMAC over JDK message digests that have already absorbed the inner and
+ * outer padded key. Every message starts from clones of those prototypes,
+ * so it costs its own blocks plus one block for the outer hash, while the
+ * compression itself stays with the JDK and its CPU intrinsics.
+ * 
+ * @author aprasa2
+ *
+ */
+final class DigestHmac implements MacFunction {
+
+	// never updated after setup, only cloned
+	private final MessageDigest innerPrototype;
+
+	private final MessageDigest outerPrototype;
+
+	private MessageDigest inner;
+
+	private final byte[] innerDigest;
+
+	/**
+	 * Keys the digest with the padded key, which is overwritten.
+	 * 
+	 * @param digest
+	 * @param padded
+	 *            - key block of {@link FastHmac#BLOCK_SIZE} bytes
+	 */
+	DigestHmac(String digest, byte[] padded) {
+		for (int i = 0; i < padded.length; i++) {
+			padded[i] ^= 0x36;
+		}
+		innerPrototype = FastHmac.newDigest(digest);
+		innerPrototype.update(padded);
+		for (int i = 0; i < padded.length; i++) {
+			padded[i] ^= 0x36 ^ 0x5c;
+		}
+		outerPrototype = FastHmac.newDigest(digest);
+		outerPrototype.update(padded);
+		innerDigest = new byte[innerPrototype.getDigestLength()];
+		inner = clone(innerPrototype);
+	}
+
+	private DigestHmac(DigestHmac other) {
+		innerPrototype = clone(other.innerPrototype);
+		outerPrototype = clone(other.outerPrototype);
+		innerDigest = new byte[other.innerDigest.length];
+		inner = clone(innerPrototype);
+	}
+
+	@Override
+	public int getMacLength() {
+		return innerDigest.length;
+	}
+
+	@Override
+	public void update(byte[] input, int offset, int length) {
+		inner.update(input, offset, length);
+	}
+
+	@Override
+	public void update(ByteBuffer input) {
+		inner.update(input);
+	}
+
+	@Override
+	public void doFinal(byte[] out, int offset) {
+		if (out.length - offset < innerDigest.length) {
+			throw new IllegalArgumentException(
+					"Output buffer too small for HMAC of " + innerDigest.length + " bytes");
+		}
+		try {
+			inner.digest(innerDigest, 0, innerDigest.length);
+			MessageDigest outer = clone(outerPrototype);
+			outer.update(innerDigest);
+			outer.digest(out, offset, innerDigest.length);
+		} catch (DigestException e) {
+			throw new IllegalStateException(e);
+		}
+		inner = clone(innerPrototype);
+	}
+
+	/*
+	 * Copies take their own prototypes, so no two threads ever touch the same
+	 * digest.
+	 */
+	@Override
+	public MacFunction copy() {
+		synchronized (this) {
+			return new DigestHmac(this);
+		}
+	}
+
+	@Override
+	public Object save() {
+		MessageDigest saved = inner;
+		inner = clone(innerPrototype);
+		return saved;
+	}
+
+	/*
+	 * The saved digest is never updated, only cloned, which threads may do
+	 * concurrently.
+	 */
+	@Override
+	public void restore(Object state) {
+		inner = clone((MessageDigest) state);
+	}
+
+	private static MessageDigest clone(MessageDigest digest) {
+		try {
+			return (MessageDigest) digest.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
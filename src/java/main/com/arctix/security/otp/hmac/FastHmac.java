@@ -0,0 +1,489 @@
+package com.arctix.security.otp.hmac;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.crypto.SecretKey;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+/**
+ * HMAC-SHA1 and HMAC-SHA256 in plain Java, for the short messages the engine
+ * authenticates.
+ * 
+ * The hash states after absorbing the inner and outer padded key are computed
+ * once per key and shared by every copy, so a message costs its own blocks
+ * plus one block for the outer hash. Codes and params rarely exceed a single
+ * block, making that two compressions per HMAC where the JCA implementations
+ * hash the padded key again for every message. Outputs are identical to the
+ * JCA algorithms of the same hash.
+ * 
+ * Where the JVM compresses with the CPU's SHA instructions, a single
+ * compression in Java costs more than the two saved, so
+ * {@link #getInstance(String, SecretKey)} returns a {@link DigestHmac}
+ * instead, which keeps the precomputed states in cloned JDK digests.
+ * 
+ * @author aprasa2
+ *
+ */
+abstract class FastHmac implements MacFunction {
+
+	static final int BLOCK_SIZE = 64; // bytes, for both hashes
+
+	private static final VarHandle BIG_ENDIAN_INT = MethodHandles.byteArrayViewVarHandle(int[].class,
+			ByteOrder.BIG_ENDIAN);
+
+	private static final VarHandle BIG_ENDIAN_LONG = MethodHandles.byteArrayViewVarHandle(long[].class,
+			ByteOrder.BIG_ENDIAN);
+
+	// states after the padded key, shared and never written after setup
+	private int[] innerState;
+
+	private int[] outerState;
+
+	private final int[] state;
+
+	private final byte[] block = new byte[BLOCK_SIZE];
+
+	// bytes waiting in the block
+	private int position = 0;
+
+	// bytes hashed so far, including the padded key
+	private long count = 0;
+
+	private final byte[] innerDigest;
+
+	FastHmac(int stateWords, int macLength) {
+		state = new int[stateWords];
+		innerDigest = new byte[macLength];
+	}
+
+	/**
+	 * Returns the fastest implementation of the algorithm on this JVM keyed
+	 * with the key, or null if the algorithm is not
+	 * {@link HMACEngine#FAST_HMAC_SHA1} or {@link HMACEngine#FAST_HMAC_SHA256}.
+	 * 
+	 * @param algorithm
+	 * @param key
+	 * @return
+	 */
+	static MacFunction getInstance(String algorithm, SecretKey key) {
+		if (HMACEngine.FAST_HMAC_SHA1.equals(algorithm)) {
+			return getInstance(algorithm, key, Intrinsics.SHA1);
+		} else if (HMACEngine.FAST_HMAC_SHA256.equals(algorithm)) {
+			return getInstance(algorithm, key, Intrinsics.SHA256);
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the implementation of the algorithm, computing in Java unless
+	 * told to use the JDK digests.
+	 * 
+	 * @param algorithm
+	 * @param key
+	 * @param jdkDigest
+	 * @return
+	 */
+	static MacFunction getInstance(String algorithm, SecretKey key, boolean jdkDigest) {
+		String digest;
+		FastHmac hmac;
+		if (HMACEngine.FAST_HMAC_SHA1.equals(algorithm)) {
+			digest = "SHA-1";
+			hmac = new Sha1();
+		} else if (HMACEngine.FAST_HMAC_SHA256.equals(algorithm)) {
+			digest = "SHA-256";
+			hmac = new Sha256();
+		} else {
+			return null;
+		}
+		byte[] padded = paddedKey(digest, key);
+		try {
+			if (jdkDigest) {
+				return new DigestHmac(digest, padded);
+			}
+			hmac.init(padded);
+			return hmac;
+		} finally {
+			Arrays.fill(padded, (byte) 0);
+		}
+	}
+
+	/**
+	 * Returns the key as a block, hashed first if it is longer than a block
+	 * as RFC 2104 requires.
+	 * 
+	 * @param digest
+	 * @param key
+	 * @return
+	 */
+	static byte[] paddedKey(String digest, SecretKey key) {
+		byte[] encoded = key.getEncoded();
+		if (encoded == null) {
+			throw new IllegalArgumentException("Key " + key.getAlgorithm() + " cannot be encoded");
+		}
+		if (encoded.length > BLOCK_SIZE) {
+			byte[] hashed = newDigest(digest).digest(encoded);
+			Arrays.fill(encoded, (byte) 0);
+			encoded = hashed;
+		}
+		byte[] padded = Arrays.copyOf(encoded, BLOCK_SIZE);
+		Arrays.fill(encoded, (byte) 0);
+		return padded;
+	}
+
+	static MessageDigest newDigest(String digest) {
+		try {
+			return MessageDigest.getInstance(digest);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public int getMacLength() {
+		return innerDigest.length;
+	}
+
+	@Override
+	public void update(byte[] input, int offset, int length) {
+		count += length;
+		if (position > 0) {
+			int taken = Math.min(length, BLOCK_SIZE - position);
+			System.arraycopy(input, offset, block, position, taken);
+			position += taken;
+			offset += taken;
+			length -= taken;
+			if (position < BLOCK_SIZE) {
+				return;
+			}
+			compress(state, block, 0);
+			position = 0;
+		}
+		while (length >= BLOCK_SIZE) {
+			compress(state, input, offset);
+			offset += BLOCK_SIZE;
+			length -= BLOCK_SIZE;
+		}
+		System.arraycopy(input, offset, block, 0, length);
+		position = length;
+	}
+
+	@Override
+	public void update(ByteBuffer input) {
+		if (input.hasArray()) {
+			int length = input.remaining();
+			update(input.array(), input.arrayOffset() + input.position(), length);
+			input.position(input.position() + length);
+			return;
+		}
+		byte[] chunk = new byte[Math.min(input.remaining(), BLOCK_SIZE)];
+		while (input.hasRemaining()) {
+			int length = Math.min(input.remaining(), chunk.length);
+			input.get(chunk, 0, length);
+			update(chunk, 0, length);
+		}
+	}
+
+	@Override
+	public void doFinal(byte[] out, int offset) {
+		if (out.length - offset < innerDigest.length) {
+			throw new IllegalArgumentException(
+					"Output buffer too small for HMAC of " + innerDigest.length + " bytes");
+		}
+		finish(innerDigest, 0);
+
+		// the outer message is the padded key and the inner digest, which
+		// always fits the final block
+		System.arraycopy(outerState, 0, state, 0, state.length);
+		System.arraycopy(innerDigest, 0, block, 0, innerDigest.length);
+		position = innerDigest.length;
+		count = BLOCK_SIZE + innerDigest.length;
+		finish(out, offset);
+
+		reset(innerState);
+	}
+
+	@Override
+	public MacFunction copy() {
+		FastHmac copy = newInstance();
+		copy.innerState = innerState;
+		copy.outerState = outerState;
+		copy.reset(innerState);
+		return copy;
+	}
+
+	@Override
+	public Object save() {
+		Midstate saved = new Midstate(state.clone(), Arrays.copyOf(block, position), count);
+		reset(innerState);
+		return saved;
+	}
+
+	@Override
+	public void restore(Object state) {
+		Midstate saved = (Midstate) state;
+		System.arraycopy(saved.state, 0, this.state, 0, this.state.length);
+		System.arraycopy(saved.pending, 0, block, 0, saved.pending.length);
+		position = saved.pending.length;
+		count = saved.count;
+	}
+
+	/**
+	 * Returns an unkeyed instance of the same hash.
+	 * 
+	 * @return
+	 */
+	abstract FastHmac newInstance();
+
+	/**
+	 * Returns the initial hash value.
+	 * 
+	 * @return
+	 */
+	abstract int[] initialState();
+
+	/**
+	 * Hashes the 64 byte block at the offset into the state.
+	 * 
+	 * @param state
+	 * @param input
+	 * @param offset
+	 */
+	abstract void compress(int[] state, byte[] input, int offset);
+
+	/*
+	 * Hashes the padded key into the inner and outer states. The key block is
+	 * overwritten.
+	 */
+	private void init(byte[] padded) {
+		for (int i = 0; i < BLOCK_SIZE; i++) {
+			padded[i] ^= 0x36;
+		}
+		innerState = initialState();
+		compress(innerState, padded, 0);
+		for (int i = 0; i < BLOCK_SIZE; i++) {
+			padded[i] ^= 0x36 ^ 0x5c;
+		}
+		outerState = initialState();
+		compress(outerState, padded, 0);
+
+		reset(innerState);
+	}
+
+	/*
+	 * Continues from the given state as if the padded key was just hashed.
+	 */
+	private void reset(int[] from) {
+		System.arraycopy(from, 0, state, 0, state.length);
+		position = 0;
+		count = BLOCK_SIZE;
+	}
+
+	/*
+	 * Pads the message, hashes the remaining blocks and writes the digest.
+	 */
+	private void finish(byte[] out, int offset) {
+		block[position++] = (byte) 0x80;
+		if (position > BLOCK_SIZE - 8) {
+			Arrays.fill(block, position, BLOCK_SIZE, (byte) 0);
+			compress(state, block, 0);
+			position = 0;
+		}
+		Arrays.fill(block, position, BLOCK_SIZE - 8, (byte) 0);
+		BIG_ENDIAN_LONG.set(block, BLOCK_SIZE - 8, count << 3);
+		compress(state, block, 0);
+		for (int i = 0; i < innerDigest.length / 4; i++) {
+			BIG_ENDIAN_INT.set(out, offset + i * 4, state[i]);
+		}
+	}
+
+	static int read(byte[] input, int offset) {
+		return (int) BIG_ENDIAN_INT.get(input, offset);
+	}
+
+	/**
+	 * Hash state, bytes not yet hashed and count of a partly fed message.
+	 */
+	private static final class Midstate {
+
+		final int[] state;
+
+		final byte[] pending;
+
+		final long count;
+
+		Midstate(int[] state, byte[] pending, long count) {
+			this.state = state;
+			this.pending = pending;
+			this.count = count;
+		}
+	}
+
+	/**
+	 * Whether the JVM compresses each hash with CPU instructions, false where
+	 * it cannot tell.
+	 */
+	private static final class Intrinsics {
+
+		static final boolean SHA1 = isEnabled("UseSHA1Intrinsics");
+
+		static final boolean SHA256 = isEnabled("UseSHA256Intrinsics");
+
+		private static boolean isEnabled(String option) {
+			try {
+				HotSpotDiagnosticMXBean vm = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+				return vm != null && Boolean.parseBoolean(vm.getVMOption(option).getValue());
+			} catch (RuntimeException | LinkageError e) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * HMAC-SHA1 as in RFC 2104 and FIPS 180-4.
+	 */
+	static final class Sha1 extends FastHmac {
+
+		private final int[] w = new int[80];
+
+		Sha1() {
+			super(5, 20);
+		}
+
+		@Override
+		FastHmac newInstance() {
+			return new Sha1();
+		}
+
+		@Override
+		int[] initialState() {
+			return new int[] { 0x67452301, 0xefcdab89, 0x98badcfe, 0x10325476, 0xc3d2e1f0 };
+		}
+
+		@Override
+		void compress(int[] state, byte[] input, int offset) {
+			int[] w = this.w;
+			for (int i = 0; i < 16; i++) {
+				w[i] = read(input, offset + i * 4);
+			}
+			for (int i = 16; i < 80; i++) {
+				w[i] = Integer.rotateLeft(w[i - 3] ^ w[i - 8] ^ w[i - 14] ^ w[i - 16], 1);
+			}
+			int a = state[0], b = state[1], c = state[2], d = state[3], e = state[4];
+			for (int i = 0; i < 20; i++) {
+				int t = Integer.rotateLeft(a, 5) + ((b & c) | (~b & d)) + e + 0x5a827999 + w[i];
+				e = d;
+				d = c;
+				c = Integer.rotateLeft(b, 30);
+				b = a;
+				a = t;
+			}
+			for (int i = 20; i < 40; i++) {
+				int t = Integer.rotateLeft(a, 5) + (b ^ c ^ d) + e + 0x6ed9eba1 + w[i];
+				e = d;
+				d = c;
+				c = Integer.rotateLeft(b, 30);
+				b = a;
+				a = t;
+			}
+			for (int i = 40; i < 60; i++) {
+				int t = Integer.rotateLeft(a, 5) + ((b & c) | (b & d) | (c & d)) + e + 0x8f1bbcdc + w[i];
+				e = d;
+				d = c;
+				c = Integer.rotateLeft(b, 30);
+				b = a;
+				a = t;
+			}
+			for (int i = 60; i < 80; i++) {
+				int t = Integer.rotateLeft(a, 5) + (b ^ c ^ d) + e + 0xca62c1d6 + w[i];
+				e = d;
+				d = c;
+				c = Integer.rotateLeft(b, 30);
+				b = a;
+				a = t;
+			}
+			state[0] += a;
+			state[1] += b;
+			state[2] += c;
+			state[3] += d;
+			state[4] += e;
+		}
+	}
+
+	/**
+	 * HMAC-SHA256 as in RFC 2104 and FIPS 180-4.
+	 */
+	static final class Sha256 extends FastHmac {
+
+		private static final int[] K = { 0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1,
+				0x923f82a4, 0xab1c5ed5, 0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe,
+				0x9bdc06a7, 0xc19bf174, 0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa,
+				0x5cb0a9dc, 0x76f988da, 0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147,
+				0x06ca6351, 0x14292967, 0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb,
+				0x81c2c92e, 0x92722c85, 0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624,
+				0xf40e3585, 0x106aa070, 0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a,
+				0x5b9cca4f, 0x682e6ff3, 0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb,
+				0xbef9a3f7, 0xc67178f2 };
+
+		private final int[] w = new int[64];
+
+		Sha256() {
+			super(8, 32);
+		}
+
+		@Override
+		FastHmac newInstance() {
+			return new Sha256();
+		}
+
+		@Override
+		int[] initialState() {
+			return new int[] { 0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab,
+					0x5be0cd19 };
+		}
+
+		@Override
+		void compress(int[] state, byte[] input, int offset) {
+			int[] w = this.w;
+			for (int i = 0; i < 16; i++) {
+				w[i] = read(input, offset + i * 4);
+			}
+			for (int i = 16; i < 64; i++) {
+				int s0 = Integer.rotateRight(w[i - 15], 7) ^ Integer.rotateRight(w[i - 15], 18) ^ (w[i - 15] >>> 3);
+				int s1 = Integer.rotateRight(w[i - 2], 17) ^ Integer.rotateRight(w[i - 2], 19) ^ (w[i - 2] >>> 10);
+				w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+			}
+			int a = state[0], b = state[1], c = state[2], d = state[3];
+			int e = state[4], f = state[5], g = state[6], h = state[7];
+			for (int i = 0; i < 64; i++) {
+				int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+				int t1 = h + s1 + ((e & f) ^ (~e & g)) + K[i] + w[i];
+				int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+				int t2 = s0 + ((a & b) ^ (a & c) ^ (b & c));
+				h = g;
+				g = f;
+				f = e;
+				e = d + t1;
+				d = c;
+				c = b;
+				b = a;
+				a = t1 + t2;
+			}
+			state[0] += a;
+			state[1] += b;
+			state[2] += c;
+			state[3] += d;
+			state[4] += e;
+			state[5] += f;
+			state[6] += g;
+			state[7] += h;
+		}
+	}
+}
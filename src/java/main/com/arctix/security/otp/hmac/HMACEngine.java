@@ -1,17 +1,53 @@
 package com.arctix.security.otp.hmac;
 
-import javax.crypto.Mac;
+import java.nio.ByteBuffer;
+
 import javax.crypto.SecretKey;
 
 /**
  * Generates a random number and an associated HMAC for validation.
  * 
+ * Instances are thread-safe and may be shared. The secret key is initialized
+ * once into a prototype Mac, and each thread works on its own copy of it.
+ * Besides the JCA algorithms, {@link #FAST_HMAC_SHA1} and
+ * {@link #FAST_HMAC_SHA256} select plain Java implementations tuned for
+ * messages of a single block, with the same output as HmacSHA1 and
+ * HmacSHA256.
+ * 
+ * Two flavours of the API are offered. The byte level methods take raw
+ * inputs and caller supplied output buffers and do not allocate. The String
+ * methods encode their inputs, exchange the HMAC as upper case hex, and are
+ * thin wrappers over the byte level ones.
+ * 
  * @author aprasa2
  *
  */
 public class HMACEngine {
 
-	private Mac macEngine = null;
+	/**
+	 * HmacSHA1 computed in plain Java from precomputed key pads
+	 */
+	public static final String FAST_HMAC_SHA1 = "FastHmacSHA1";
+
+	/**
+	 * HmacSHA256 computed in plain Java from precomputed key pads
+	 */
+	public static final String FAST_HMAC_SHA256 = "FastHmacSHA256";
+
+	private static final char[] HEX_CHARS = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D',
+			'E', 'F' };
+
+	private final MacFunction prototype;
+
+	private final int macLength;
+
+	// per-thread copies of the initialized prototype and scratch buffers
+	private final ThreadLocal<Workspace> workspace = new ThreadLocal<Workspace>() {
+		@Override
+		protected Workspace initialValue() {
+			return new Workspace(newMac());
+		}
+	};
 
 	/**
 	 * Parameterized constructor. Creates new instance of Mac Engine.
@@ -21,17 +57,25 @@ public class HMACEngine {
 	 * @param algorithm
 	 */
 	protected HMACEngine(SecretKey key, String algorithm) {
-		try {
-			macEngine = Mac.getInstance(algorithm);
-			macEngine.init(key);
-		} catch (Exception e) {
-			throw new RuntimeException(e);
-		}
+		MacFunction fast = FastHmac.getInstance(algorithm, key);
+		prototype = fast != null ? fast : JcaMac.getInstance(algorithm, key);
+		macLength = prototype.getMacLength();
 	}
 
 	/**
-	 * Get instance of HMAC Engine. Instance is not thread-safe. So returns new
-	 * instance everytime.
+	 * Creates an engine with the key of the given one, sharing its
+	 * initialized MAC rather than initializing the key again.
+	 * 
+	 * @param engine
+	 */
+	protected HMACEngine(HMACEngine engine) {
+		prototype = engine.prototype;
+		macLength = engine.macLength;
+	}
+
+	/**
+	 * Get instance of HMAC Engine. The instance is thread-safe and can be
+	 * created once per key and shared.
 	 * 
 	 * @param key - Secret Key for generating HMAC
 	 * @return
@@ -44,6 +88,15 @@ public class HMACEngine {
 		return new HMACEngine(key, algorithm);
 	}
 
+	/**
+	 * Returns the length of the raw HMAC in bytes.
+	 * 
+	 * @return
+	 */
+	public int getMacLength() {
+		return macLength;
+	}
+
 	/**
 	 * Generates HMAC for the given text and extra params
 	 * 
@@ -52,12 +105,23 @@ public class HMACEngine {
 	 * @return
 	 */
 	public String generateHMAC(String text, String[] params) {
-		macEngine.update(text.getBytes());
-		for (String param : params) {
-			macEngine.update(param.getBytes());
-		}
-		byte[] hmac = macEngine.doFinal();
-		return byte2hex(hmac);
+		return generateHMAC(text, params, null);
+	}
+
+	/**
+	 * Generates HMAC for the given text and extra params, followed by the
+	 * given pre-encoded bytes.
+	 * 
+	 * @param text
+	 * @param params
+	 * @param suffix
+	 *            - bytes fed after the params, may be null
+	 * @return
+	 */
+	public String generateHMAC(String text, String[] params, byte[] suffix) {
+		Workspace ws = workspace.get();
+		computeHMAC(ws, text, params, suffix);
+		return byte2hex(ws.computed, macLength);
 	}
 
 	/**
@@ -69,33 +133,411 @@ public class HMACEngine {
 	 * @return
 	 */
 	public boolean validateHMAC(String providedHmac, String text, String[] params) {
-		macEngine.update(text.getBytes());
+		return validateHMAC(providedHmac, text, params, null);
+	}
+
+	/**
+	 * Validates the text and extra params, followed by the given pre-encoded
+	 * bytes, using the HMAC. Returns true if valid. False otherwise.
+	 * 
+	 * @param providedHmac
+	 * @param text
+	 * @param params
+	 * @param suffix
+	 *            - bytes fed after the params, may be null
+	 * @return
+	 */
+	public boolean validateHMAC(String providedHmac, String text, String[] params, byte[] suffix) {
+		Workspace ws = workspace.get();
+		if (!hex2byte(providedHmac, ws.provided)) {
+			return false;
+		}
+		computeHMAC(ws, text, params, suffix);
+		return constantTimeEquals(ws.provided, 0, ws.computed, 0, macLength);
+	}
+
+	/**
+	 * Generates HMAC for the given text and extra params and writes the raw
+	 * bytes to the output buffer.
+	 * 
+	 * @param text
+	 * @param params
+	 * @param out
+	 *            - buffer with at least {@link #getMacLength()} bytes after
+	 *            offset
+	 * @param offset
+	 * @return number of bytes written
+	 */
+	public int generateHMAC(byte[] text, byte[][] params, byte[] out, int offset) {
+		MacFunction mac = workspace.get().mac;
+		mac.update(text, 0, text.length);
+		for (byte[] param : params) {
+			mac.update(param, 0, param.length);
+		}
+		mac.doFinal(out, offset);
+		return macLength;
+	}
+
+	/**
+	 * Generates HMAC for the given text and extra params, followed by the
+	 * given pre-encoded bytes, and writes the leftmost length bytes of it to
+	 * the output buffer.
+	 * 
+	 * @param text
+	 * @param params
+	 * @param suffix
+	 *            - bytes fed after the params, may be null
+	 * @param out
+	 * @param offset
+	 * @param length
+	 *            - number of bytes to keep, at most {@link #getMacLength()}
+	 * @return number of bytes written
+	 */
+	public int generateHMAC(String text, String[] params, byte[] suffix, byte[] out, int offset, int length) {
+		checkTruncation(length);
+		Workspace ws = workspace.get();
+		computeHMAC(ws, text, params, suffix);
+		System.arraycopy(ws.computed, 0, out, offset, length);
+		return length;
+	}
+
+	/**
+	 * Absorbs bytes that start many messages, such as the encoded params of a
+	 * user, so the HMACs of those messages only hash what follows them.
+	 * 
+	 * @param bytes
+	 * @return
+	 */
+	public Prefix precompute(byte[] bytes) {
+		MacFunction mac = workspace.get().mac;
+		mac.update(bytes, 0, bytes.length);
+		return new Prefix(this, bytes.clone(), mac.save());
+	}
+
+	/**
+	 * Generates HMAC for the prefix, the text and the given pre-encoded
+	 * bytes, and writes the leftmost length bytes of it to the output buffer.
+	 * A prefix of another engine is hashed again in full.
+	 * 
+	 * @param prefix
+	 * @param text
+	 * @param suffix
+	 *            - bytes fed after the text, may be null
+	 * @param out
+	 * @param offset
+	 * @param length
+	 *            - number of bytes to keep, at most {@link #getMacLength()}
+	 * @return number of bytes written
+	 */
+	public int generateHMAC(Prefix prefix, String text, byte[] suffix, byte[] out, int offset, int length) {
+		checkTruncation(length);
+		Workspace ws = workspace.get();
+		computeHMAC(ws, prefix, text, suffix);
+		System.arraycopy(ws.computed, 0, out, offset, length);
+		return length;
+	}
+
+	/**
+	 * Validates the prefix, the text and the given pre-encoded bytes against
+	 * an HMAC truncated to its leftmost length bytes. The comparison takes the
+	 * same time no matter where the HMACs differ.
+	 * 
+	 * @param providedHmac
+	 * @param offset
+	 * @param length
+	 *            - number of bytes provided, at most {@link #getMacLength()}
+	 * @param prefix
+	 * @param text
+	 * @param suffix
+	 *            - bytes fed after the text, may be null
+	 * @return
+	 */
+	public boolean validateHMAC(byte[] providedHmac, int offset, int length, Prefix prefix, String text,
+			byte[] suffix) {
+		checkTruncation(length);
+		Workspace ws = workspace.get();
+		computeHMAC(ws, prefix, text, suffix);
+		return constantTimeEquals(providedHmac, offset, ws.computed, 0, length);
+	}
+
+	/**
+	 * Generates HMAC for the remaining bytes of text and params and writes the
+	 * raw bytes to the output buffer, advancing its position. Positions of the
+	 * input buffers are left unchanged.
+	 * 
+	 * @param text
+	 * @param params
+	 * @param out
+	 * @return number of bytes written
+	 */
+	public int generateHMAC(ByteBuffer text, ByteBuffer[] params, ByteBuffer out) {
+		if (out.remaining() < macLength) {
+			throw new IllegalArgumentException("Output buffer too small for HMAC of " + macLength + " bytes");
+		}
+		Workspace ws = workspace.get();
+		computeHMAC(ws, text, params);
+		out.put(ws.computed, 0, macLength);
+		return macLength;
+	}
+
+	/**
+	 * Validates the text using the raw HMAC bytes. The comparison takes the
+	 * same time no matter where the HMACs differ.
+	 * 
+	 * @param providedHmac
+	 * @param offset
+	 * @param length
+	 * @param text
+	 * @param params
+	 * @return
+	 */
+	public boolean validateHMAC(byte[] providedHmac, int offset, int length, byte[] text, byte[][] params) {
+		if (length != macLength) {
+			return false;
+		}
+		Workspace ws = workspace.get();
+		generateHMAC(text, params, ws.computed, 0);
+		return constantTimeEquals(providedHmac, offset, ws.computed, 0, macLength);
+	}
+
+	/**
+	 * Validates the text and extra params, followed by the given pre-encoded
+	 * bytes, against an HMAC truncated to its leftmost length bytes. The
+	 * comparison takes the same time no matter where the HMACs differ.
+	 * 
+	 * @param providedHmac
+	 * @param offset
+	 * @param length
+	 *            - number of bytes provided, at most {@link #getMacLength()}
+	 * @param text
+	 * @param params
+	 * @param suffix
+	 *            - bytes fed after the params, may be null
+	 * @return
+	 */
+	public boolean validateHMAC(byte[] providedHmac, int offset, int length, String text, String[] params,
+			byte[] suffix) {
+		checkTruncation(length);
+		Workspace ws = workspace.get();
+		computeHMAC(ws, text, params, suffix);
+		return constantTimeEquals(providedHmac, offset, ws.computed, 0, length);
+	}
+
+	/**
+	 * Validates the remaining bytes of text and params using the remaining
+	 * bytes of the provided HMAC. Buffer positions are left unchanged.
+	 * 
+	 * @param providedHmac
+	 * @param text
+	 * @param params
+	 * @return
+	 */
+	public boolean validateHMAC(ByteBuffer providedHmac, ByteBuffer text, ByteBuffer[] params) {
+		if (providedHmac.remaining() != macLength) {
+			return false;
+		}
+		Workspace ws = workspace.get();
+		computeHMAC(ws, text, params);
+		int diff = 0;
+		int position = providedHmac.position();
+		for (int i = 0; i < macLength; i++) {
+			diff |= providedHmac.get(position + i) ^ ws.computed[i];
+		}
+		return diff == 0;
+	}
+
+	/**
+	 * Compares two byte ranges in time independent of their contents.
+	 * 
+	 * @param a
+	 * @param aOffset
+	 * @param b
+	 * @param bOffset
+	 * @param length
+	 * @return
+	 */
+	public static boolean constantTimeEquals(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+		int diff = 0;
+		for (int i = 0; i < length; i++) {
+			diff |= a[aOffset + i] ^ b[bOffset + i];
+		}
+		return diff == 0;
+	}
+
+	/*
+	 * Computes the HMAC of the encoded strings into the workspace.
+	 */
+	private void computeHMAC(Workspace ws, String text, String[] params, byte[] suffix) {
+		ws.update(text);
 		for (String param : params) {
-			macEngine.update(param.getBytes());
+			ws.update(param);
+		}
+		if (suffix != null) {
+			ws.mac.update(suffix, 0, suffix.length);
+		}
+		ws.mac.doFinal(ws.computed, 0);
+	}
+
+	/*
+	 * Computes the HMAC of the prefix and encoded strings into the workspace,
+	 * continuing from the saved state if the prefix has one for this key.
+	 */
+	private void computeHMAC(Workspace ws, Prefix prefix, String text, byte[] suffix) {
+		if (prefix.engine == this && prefix.state != null) {
+			ws.mac.restore(prefix.state);
+		} else {
+			ws.mac.update(prefix.bytes, 0, prefix.bytes.length);
+		}
+		ws.update(text);
+		if (suffix != null) {
+			ws.mac.update(suffix, 0, suffix.length);
+		}
+		ws.mac.doFinal(ws.computed, 0);
+	}
+
+	/*
+	 * Computes the HMAC of the buffers into the workspace.
+	 */
+	private void computeHMAC(Workspace ws, ByteBuffer text, ByteBuffer[] params) {
+		update(ws.mac, text);
+		for (ByteBuffer param : params) {
+			update(ws.mac, param);
 		}
-		byte[] hmac = macEngine.doFinal();
+		ws.mac.doFinal(ws.computed, 0);
+	}
 
-		String generatedHmac = byte2hex(hmac);
+	private void checkTruncation(int length) {
+		if (length <= 0 || length > macLength) {
+			throw new IllegalArgumentException("Cannot truncate HMAC of " + macLength + " bytes to " + length);
+		}
+	}
+
+	private static void update(MacFunction mac, ByteBuffer buffer) {
+		int position = buffer.position();
+		mac.update(buffer);
+		buffer.position(position);
+	}
+
+	/*
+	 * Returns a ready to use copy of the prototype, sharing its key schedule.
+	 */
+	private MacFunction newMac() {
+		return prototype.copy();
+	}
 
-		if (generatedHmac.equals(providedHmac.toUpperCase())) {
-			return true;
+	/*
+	 * Converts a byte array to hex digits
+	 */
+	private static String byte2hex(byte[] b, int length) {
+		char[] buf = new char[length * 2];
+		for (int i = 0; i < length; i++) {
+			buf[i * 2] = HEX_CHARS[(b[i] & 0xf0) >> 4];
+			buf[i * 2 + 1] = HEX_CHARS[b[i] & 0x0f];
 		}
-		return false;
+		return new String(buf);
 	}
 
 	/*
-	 * Converts a byte array to hex digit and writes to the supplied buffer
+	 * Decodes hex digits of either case into the supplied buffer. Returns
+	 * false if the text is not hex of exactly the buffer's length.
+	 */
+	private static boolean hex2byte(String hex, byte[] out) {
+		return hex.length() == out.length * 2 && hex2byte(hex, 0, out);
+	}
+
+	/**
+	 * Decodes hex digits of either case, starting at the offset, to fill the
+	 * supplied buffer. Returns false if they are not all hex digits.
+	 * 
+	 * @param hex
+	 * @param offset
+	 * @param out
+	 * @return
+	 */
+	protected static boolean hex2byte(String hex, int offset, byte[] out) {
+		if (hex.length() - offset < out.length * 2) {
+			return false;
+		}
+		int invalid = 0;
+		for (int i = 0; i < out.length; i++) {
+			int high = Character.digit(hex.charAt(offset + i * 2), 16);
+			int low = Character.digit(hex.charAt(offset + i * 2 + 1), 16);
+			invalid |= high | low;
+			out[i] = (byte) ((high << 4) | low);
+		}
+		return invalid >= 0;
+	}
+
+	/**
+	 * Bytes starting a message and the MAC state after hashing them with the
+	 * key of the engine that made it. Immutable and safe to share between
+	 * threads.
+	 */
+	public static final class Prefix {
+
+		private final HMACEngine engine;
+
+		private final byte[] bytes;
+
+		// null if the MAC cannot save its state
+		private final Object state;
+
+		private Prefix(HMACEngine engine, byte[] bytes, Object state) {
+			this.engine = engine;
+			this.bytes = bytes;
+			this.state = state;
+		}
+
+		/**
+		 * Returns the number of bytes absorbed.
+		 * 
+		 * @return
+		 */
+		public int length() {
+			return bytes.length;
+		}
+	}
+
+	/**
+	 * Mac and scratch buffers owned by a single thread. Holds no reference to
+	 * its engine, so that the thread-local entries of a discarded engine can
+	 * be collected.
 	 */
-	private String byte2hex(byte[] b) {
-		StringBuffer buf = new StringBuffer();
-		char[] hexChars = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
+	private static final class Workspace {
+
+		final MacFunction mac;
+
+		final byte[] computed;
+
+		final byte[] provided;
+
+		byte[] encoded = new byte[64];
+
+		Workspace(MacFunction mac) {
+			this.mac = mac;
+			computed = new byte[mac.getMacLength()];
+			provided = new byte[mac.getMacLength()];
+		}
 
-		for (int i = 0; i < b.length; i++) {
-			int high = ((b[i] & 0xf0) >> 4);
-			int low = (b[i] & 0x0f);
-			buf.append(hexChars[high]);
-			buf.append(hexChars[low]);
+		/*
+		 * Feeds the string to the mac. ASCII is encoded into the scratch
+		 * buffer; anything else goes through the platform charset as before.
+		 */
+		void update(String text) {
+			int length = text.length();
+			if (encoded.length < length) {
+				encoded = new byte[Math.max(length, encoded.length * 2)];
+			}
+			for (int i = 0; i < length; i++) {
+				char c = text.charAt(i);
+				if (c >= 0x80) {
+					byte[] bytes = text.getBytes();
+					mac.update(bytes, 0, bytes.length);
+					return;
+				}
+				encoded[i] = (byte) c;
+			}
+			mac.update(encoded, 0, length);
 		}
-		return buf.toString();
 	}
 }
@@ -0,0 +1,113 @@
+package com.arctix.security.otp.hmac;
+
+import java.nio.ByteBuffer;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+
+/**
+ * MAC of any algorithm offered by the installed security providers.
+ * 
+ * @author aprasa2
+ *
+ */
+final class JcaMac implements MacFunction {
+
+	private Mac mac;
+
+	private final SecretKey key;
+
+	private JcaMac(Mac mac, SecretKey key) {
+		this.mac = mac;
+		this.key = key;
+	}
+
+	/**
+	 * Looks up the algorithm and initializes it with the key.
+	 * 
+	 * @param algorithm
+	 * @param key
+	 * @return
+	 */
+	static JcaMac getInstance(String algorithm, SecretKey key) {
+		try {
+			Mac mac = Mac.getInstance(algorithm);
+			mac.init(key);
+			return new JcaMac(mac, key);
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public int getMacLength() {
+		return mac.getMacLength();
+	}
+
+	@Override
+	public void update(byte[] input, int offset, int length) {
+		mac.update(input, offset, length);
+	}
+
+	@Override
+	public void update(ByteBuffer input) {
+		mac.update(input);
+	}
+
+	@Override
+	public void doFinal(byte[] out, int offset) {
+		try {
+			mac.doFinal(out, offset);
+		} catch (ShortBufferException e) {
+			throw new IllegalArgumentException("Output buffer too small for HMAC of " + getMacLength() + " bytes", e);
+		}
+	}
+
+	/*
+	 * Providers that cannot clone cannot save either.
+	 */
+	@Override
+	public Object save() {
+		try {
+			return mac.clone();
+		} catch (CloneNotSupportedException e) {
+			return null;
+		} finally {
+			mac.reset();
+		}
+	}
+
+	@Override
+	public void restore(Object state) {
+		Mac saved = (Mac) state;
+		try {
+			synchronized (saved) {
+				mac = (Mac) saved.clone();
+			}
+		} catch (CloneNotSupportedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/*
+	 * Cloning skips the provider lookup and key schedule; providers that
+	 * cannot clone are initialized from scratch.
+	 */
+	@Override
+	public MacFunction copy() {
+		try {
+			synchronized (mac) {
+				return new JcaMac((Mac) mac.clone(), key);
+			}
+		} catch (CloneNotSupportedException e) {
+			try {
+				Mac fresh = Mac.getInstance(mac.getAlgorithm(), mac.getProvider());
+				fresh.init(key);
+				return new JcaMac(fresh, key);
+			} catch (Exception ex) {
+				throw new RuntimeException(ex);
+			}
+		}
+	}
+}
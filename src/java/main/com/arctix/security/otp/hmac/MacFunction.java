@@ -0,0 +1,67 @@
+package com.arctix.security.otp.hmac;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Keyed MAC computation as used by the engine. Instances keep state between
+ * calls and are confined to a single thread; {@link #copy()} hands out
+ * further instances for the same key without initializing it again.
+ * 
+ * @author aprasa2
+ *
+ */
+interface MacFunction {
+
+	/**
+	 * Returns the length of the MAC in bytes.
+	 * 
+	 * @return
+	 */
+	int getMacLength();
+
+	void update(byte[] input, int offset, int length);
+
+	/**
+	 * Feeds the remaining bytes of the buffer, advancing its position.
+	 * 
+	 * @param input
+	 */
+	void update(ByteBuffer input);
+
+	/**
+	 * Writes the MAC of everything fed since the last call to the output and
+	 * gets ready for the next message.
+	 * 
+	 * @param out
+	 *            - buffer with at least {@link #getMacLength()} bytes after
+	 *            offset
+	 * @param offset
+	 */
+	void doFinal(byte[] out, int offset);
+
+	/**
+	 * Returns a ready to use instance for the same key, with nothing fed.
+	 * 
+	 * @return
+	 */
+	MacFunction copy();
+
+	/**
+	 * Returns the state after everything fed since the last doFinal and gets
+	 * ready for the next message. The state is never changed afterwards, so
+	 * it may be shared between threads and restored by any instance of the
+	 * same key. Returns null if the implementation cannot save its state.
+	 * 
+	 * @return
+	 */
+	Object save();
+
+	/**
+	 * Continues from a state returned by {@link #save()}, as if the bytes fed
+	 * before saving had just been fed again. Anything fed since the last
+	 * doFinal is discarded.
+	 * 
+	 * @param state
+	 */
+	void restore(Object state);
+}
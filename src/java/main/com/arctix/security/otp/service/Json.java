@@ -0,0 +1,400 @@
+package com.arctix.security.otp.service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough JSON for the service: a parser producing maps, lists, strings,
+ * numbers, booleans and nulls, and a writer for flat objects. Written by hand
+ * so requests are decoded without reflection or a library on the classpath.
+ * 
+ * @author aprasa2
+ *
+ */
+final class Json {
+
+	static final int MAX_DEPTH = 16;
+
+	private final String text;
+
+	private int position;
+
+	private int depth;
+
+	private Json(String text) {
+		this.text = text;
+	}
+
+	/**
+	 * Parses a JSON object.
+	 * 
+	 * @param text
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             if the text is not a JSON object
+	 */
+	static Map<String, Object> parseObject(String text) {
+		Json json = new Json(text);
+		json.skipWhitespace();
+		if (json.peek() != '{') {
+			throw json.error("Expected an object");
+		}
+		@SuppressWarnings("unchecked")
+		Map<String, Object> value = (Map<String, Object>) json.readValue();
+		json.skipWhitespace();
+		if (json.position != text.length()) {
+			throw json.error("Unexpected trailing characters");
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the field as a string, null if it is missing.
+	 * 
+	 * @param object
+	 * @param name
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             if the field is not a string
+	 */
+	static String getString(Map<String, Object> object, String name) {
+		Object value = object.get(name);
+		if (value != null && !(value instanceof String)) {
+			throw new IllegalArgumentException("Field " + name + " must be a string");
+		}
+		return (String) value;
+	}
+
+	/**
+	 * Returns the field as an array of strings, an empty one if it is
+	 * missing.
+	 * 
+	 * @param object
+	 * @param name
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             if the field is not an array of strings
+	 */
+	static String[] getStrings(Map<String, Object> object, String name) {
+		Object value = object.get(name);
+		if (value == null) {
+			return new String[0];
+		}
+		if (!(value instanceof List)) {
+			throw new IllegalArgumentException("Field " + name + " must be an array");
+		}
+		List<?> list = (List<?>) value;
+		String[] strings = new String[list.size()];
+		for (int i = 0; i < strings.length; i++) {
+			if (!(list.get(i) instanceof String)) {
+				throw new IllegalArgumentException("Field " + name + " must hold strings only");
+			}
+			strings[i] = (String) list.get(i);
+		}
+		return strings;
+	}
+
+	private Object readValue() {
+		skipWhitespace();
+		char c = peek();
+		switch (c) {
+		case '{':
+			return readObject();
+		case '[':
+			return readArray();
+		case '"':
+			return readString();
+		case 't':
+			expect("true");
+			return Boolean.TRUE;
+		case 'f':
+			expect("false");
+			return Boolean.FALSE;
+		case 'n':
+			expect("null");
+			return null;
+		default:
+			if (c == '-' || (c >= '0' && c <= '9')) {
+				return readNumber();
+			}
+			throw error("Unexpected character");
+		}
+	}
+
+	private Map<String, Object> readObject() {
+		enter();
+		Map<String, Object> object = new LinkedHashMap<String, Object>();
+		position++;
+		skipWhitespace();
+		if (peek() == '}') {
+			position++;
+			depth--;
+			return object;
+		}
+		while (true) {
+			skipWhitespace();
+			if (peek() != '"') {
+				throw error("Expected a field name");
+			}
+			String name = readString();
+			skipWhitespace();
+			if (next() != ':') {
+				throw error("Expected ':'");
+			}
+			object.put(name, readValue());
+			skipWhitespace();
+			char c = next();
+			if (c == '}') {
+				depth--;
+				return object;
+			}
+			if (c != ',') {
+				throw error("Expected ',' or '}'");
+			}
+		}
+	}
+
+	private List<Object> readArray() {
+		enter();
+		List<Object> array = new ArrayList<Object>();
+		position++;
+		skipWhitespace();
+		if (peek() == ']') {
+			position++;
+			depth--;
+			return array;
+		}
+		while (true) {
+			array.add(readValue());
+			skipWhitespace();
+			char c = next();
+			if (c == ']') {
+				depth--;
+				return array;
+			}
+			if (c != ',') {
+				throw error("Expected ',' or ']'");
+			}
+		}
+	}
+
+	private String readString() {
+		position++;
+		int start = position;
+		// copy only when the string has escapes
+		while (position < text.length()) {
+			char c = text.charAt(position);
+			if (c == '"') {
+				return text.substring(start, position++);
+			}
+			if (c == '\\') {
+				break;
+			}
+			if (c < 0x20) {
+				throw error("Control character in string");
+			}
+			position++;
+		}
+		StringBuilder string = new StringBuilder(text.substring(start, position));
+		while (true) {
+			char c = next();
+			if (c == '"') {
+				return string.toString();
+			}
+			if (c < 0x20) {
+				throw error("Control character in string");
+			}
+			if (c != '\\') {
+				string.append(c);
+				continue;
+			}
+			c = next();
+			switch (c) {
+			case '"':
+			case '\\':
+			case '/':
+				string.append(c);
+				break;
+			case 'b':
+				string.append('\b');
+				break;
+			case 'f':
+				string.append('\f');
+				break;
+			case 'n':
+				string.append('\n');
+				break;
+			case 'r':
+				string.append('\r');
+				break;
+			case 't':
+				string.append('\t');
+				break;
+			case 'u':
+				if (position + 4 > text.length()) {
+					throw error("Truncated escape");
+				}
+				try {
+					string.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+				} catch (NumberFormatException e) {
+					throw error("Invalid escape");
+				}
+				position += 4;
+				break;
+			default:
+				throw error("Invalid escape");
+			}
+		}
+	}
+
+	private Number readNumber() {
+		int start = position;
+		if (peek() == '-') {
+			position++;
+		}
+		boolean integral = true;
+		while (position < text.length()) {
+			char c = text.charAt(position);
+			if (c >= '0' && c <= '9') {
+				position++;
+			} else if (c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-') {
+				integral = false;
+				position++;
+			} else {
+				break;
+			}
+		}
+		String number = text.substring(start, position);
+		try {
+			return integral ? (Number) Long.parseLong(number) : (Number) Double.parseDouble(number);
+		} catch (NumberFormatException e) {
+			throw error("Invalid number " + number);
+		}
+	}
+
+	private void expect(String literal) {
+		if (!text.startsWith(literal, position)) {
+			throw error("Expected " + literal);
+		}
+		position += literal.length();
+	}
+
+	private void enter() {
+		if (++depth > MAX_DEPTH) {
+			throw error("Nested too deep");
+		}
+	}
+
+	private void skipWhitespace() {
+		while (position < text.length()) {
+			char c = text.charAt(position);
+			if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+				return;
+			}
+			position++;
+		}
+	}
+
+	private char peek() {
+		if (position >= text.length()) {
+			throw error("Unexpected end");
+		}
+		return text.charAt(position);
+	}
+
+	private char next() {
+		char c = peek();
+		position++;
+		return c;
+	}
+
+	private IllegalArgumentException error(String message) {
+		return new IllegalArgumentException(message + " at " + position);
+	}
+
+	/**
+	 * Writes a JSON object field by field.
+	 */
+	static final class Writer {
+
+		private final StringBuilder json = new StringBuilder(128).append('{');
+
+		Writer field(String name, String value) {
+			name(name);
+			if (value == null) {
+				json.append("null");
+			} else {
+				string(value);
+			}
+			return this;
+		}
+
+		Writer field(String name, long value) {
+			name(name);
+			json.append(value);
+			return this;
+		}
+
+		Writer field(String name, boolean value) {
+			name(name);
+			json.append(value);
+			return this;
+		}
+
+		/**
+		 * Writes the fields of the nested writer as an object.
+		 */
+		Writer field(String name, Writer object) {
+			name(name);
+			json.append(object.toString());
+			return this;
+		}
+
+		@Override
+		public String toString() {
+			return new StringBuilder(json).append('}').toString();
+		}
+
+		private void name(String name) {
+			if (json.length() > 1) {
+				json.append(',');
+			}
+			string(name);
+			json.append(':');
+		}
+
+		private void string(String value) {
+			json.append('"');
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				switch (c) {
+				case '"':
+					json.append("\\\"");
+					break;
+				case '\\':
+					json.append("\\\\");
+					break;
+				case '\n':
+					json.append("\\n");
+					break;
+				case '\r':
+					json.append("\\r");
+					break;
+				case '\t':
+					json.append("\\t");
+					break;
+				default:
+					if (c < 0x20) {
+						json.append(String.format("\\u%04x", (int) c));
+					} else {
+						json.append(c);
+					}
+				}
+			}
+			json.append('"');
+		}
+	}
+
+}
@@ -0,0 +1,385 @@
+package com.arctix.security.otp.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.arctix.security.otp.InMemoryOTPMetrics;
+import com.arctix.security.otp.InMemorySubjectCounter;
+import com.arctix.security.otp.OTP;
+import com.arctix.security.otp.OTPEngine;
+import com.arctix.security.otp.OTPEngine.Result;
+import com.arctix.security.otp.RateLimiter;
+import com.arctix.security.otp.ReplayCache;
+import com.arctix.security.otp.delivery.Delivery;
+import com.arctix.security.otp.delivery.DeliveryPipeline;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves an engine over HTTP with the server built into the JDK, so the OTP
+ * tier can run and scale apart from the applications using it.
+ * 
+ * <pre>
+ * POST /otp/generate  {"params":["CUSTOMERID-12345"]}
+ *                     {"result":"SUCCESS","password":"...","hmac":"..."}
+ * POST /otp/validate  {"password":"...","hmac":"...","params":["CUSTOMERID-12345"]}
+ *                     {"result":"SUCCESS"}
+ * GET  /health        {"status":"UP",...}
+ * </pre>
+ * 
+ * Generate requests that name a channel and recipient are handed to the
+ * delivery pipeline, if one is set, and only the hmac is returned; failed
+ * deliveries are logged. Bodies are read in full and responses carry their
+ * length, so clients can keep connections alive across requests. Requests
+ * run on the executor given. A fixed pool suits the engine best, as it keeps
+ * an initialized MAC and a seeded random source per thread, which a thread
+ * per request would build again for every request.
+ * 
+ * @author aprasa2
+ *
+ */
+public class OTPServer implements Closeable {
+
+	private static Logger logger = LoggerFactory.getLogger(OTPServer.class);
+
+	static final int DEFAULT_PORT = 8080;
+
+	static final int MAX_BODY = 16 * 1024; // in bytes
+
+	private static final int STOP_DELAY = 1; // in seconds
+
+	private static final String JSON = "application/json";
+
+	private final OTPEngine engine;
+
+	private final InMemoryOTPMetrics metrics;
+
+	private final HttpServer server;
+
+	private final ExecutorService executor;
+
+	private volatile DeliveryPipeline pipeline;
+
+	private final LongAdder requests = new LongAdder();
+
+	private final LongAdder errors = new LongAdder();
+
+	/**
+	 * Binds the server to the address. Requests are served once started.
+	 * 
+	 * @param engine
+	 * @param metrics
+	 *            - reported by the health endpoint, null for none
+	 * @param address
+	 * @param executor
+	 *            - runs the requests, shut down when the server is closed
+	 * @throws IOException
+	 *             if the address cannot be bound
+	 */
+	public OTPServer(OTPEngine engine, InMemoryOTPMetrics metrics, InetSocketAddress address,
+			ExecutorService executor) throws IOException {
+		this.engine = engine;
+		this.metrics = metrics;
+		this.executor = executor;
+		if (metrics != null) {
+			engine.setMetrics(metrics);
+		}
+		server = HttpServer.create(address, 0);
+		server.setExecutor(executor);
+		server.createContext("/otp/generate", exchange -> handle(exchange, "POST", this::generate));
+		server.createContext("/otp/validate", exchange -> handle(exchange, "POST", this::validate));
+		server.createContext("/health", exchange -> handle(exchange, "GET", this::health));
+	}
+
+	/**
+	 * Returns an executor for requests: "fixed" is a pool of the given
+	 * threads; "cached" grows with the load; "virtual" runs each request on a
+	 * virtual thread where the runtime has them, and falls back to a fixed
+	 * pool elsewhere. A new thread sets up the engine's per-thread MAC and
+	 * random source again, so "virtual" pays for that on every request.
+	 * 
+	 * @param kind
+	 * @param threads
+	 * @return
+	 */
+	public static ExecutorService newExecutor(String kind, int threads) {
+		switch (kind) {
+		case "virtual":
+			try {
+				// looked up at runtime, the library targets Java 11
+				Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				return (ExecutorService) virtual.invoke(null);
+			} catch (ReflectiveOperationException e) {
+				logger.warn("Virtual threads not supported by Java {}, using {} platform threads",
+						System.getProperty("java.version"), threads);
+				return Executors.newFixedThreadPool(threads);
+			}
+		case "fixed":
+			return Executors.newFixedThreadPool(threads);
+		case "cached":
+			return Executors.newCachedThreadPool();
+		default:
+			throw new IllegalArgumentException("Unknown executor " + kind);
+		}
+	}
+
+	/**
+	 * Hands generate requests naming a channel to the pipeline. Call before
+	 * the server is started.
+	 * 
+	 * @param pipeline
+	 */
+	public void setDeliveryPipeline(DeliveryPipeline pipeline) {
+		this.pipeline = pipeline;
+	}
+
+	public void start() {
+		server.start();
+		logger.info("Serving OTPs on {}", server.getAddress());
+	}
+
+	/**
+	 * Returns the address served, with the port bound if 0 was asked for.
+	 * 
+	 * @return
+	 */
+	public InetSocketAddress getAddress() {
+		return server.getAddress();
+	}
+
+	/**
+	 * Stops the server, letting requests in progress finish for a second,
+	 * and shuts the executor down.
+	 */
+	@Override
+	public void close() {
+		server.stop(STOP_DELAY);
+		executor.shutdown();
+	}
+
+	private String generate(Map<String, Object> request, HttpExchange exchange) {
+		String[] params = Json.getStrings(request, "params");
+		String channel = Json.getString(request, "channel");
+		String recipient = Json.getString(request, "recipient");
+		Result result = engine.tryGeneratePasswordWithHmac(params,
+				exchange.getRemoteAddress().getAddress().getHostAddress());
+		Json.Writer response = new Json.Writer().field("result", result.getResultCode().name());
+		OTP otp = result.getOtp();
+		if (otp == null) {
+			return response.toString();
+		}
+		DeliveryPipeline pipeline = this.pipeline;
+		if (channel == null || pipeline == null) {
+			response.field("password", otp.getPassword());
+		} else {
+			if (recipient == null) {
+				throw new IllegalArgumentException("Field recipient is required with a channel");
+			}
+			pipeline.deliver(channel, new Delivery(recipient, otp.getPassword())).whenComplete((status, failure) -> {
+				if (failure != null) {
+					logger.error("Delivery on channel {} failed", channel, failure);
+				} else if (status != Delivery.Status.DELIVERED) {
+					logger.warn("Delivery on channel {} {}", channel, status);
+				}
+			});
+		}
+		return response.field("hmac", otp.getHmac()).toString();
+	}
+
+	private String validate(Map<String, Object> request, HttpExchange exchange) {
+		String password = Json.getString(request, "password");
+		String hmac = Json.getString(request, "hmac");
+		if (password == null || hmac == null) {
+			throw new IllegalArgumentException("Fields password and hmac are required");
+		}
+		OTP otp = new OTP(password, hmac);
+		if (!otp.isNumeric()) {
+			return new Json.Writer().field("result", Result.Code.FAIL_INVALID_CODE.name()).toString();
+		}
+		Result result = engine.validatePasswordWithHmac(otp, Json.getStrings(request, "params"));
+		return new Json.Writer().field("result", result.getResultCode().name()).toString();
+	}
+
+	private String health(Map<String, Object> request, HttpExchange exchange) {
+		Json.Writer response = new Json.Writer().field("status", "UP").field("ready", engine.isReady())
+				.field("requests", requests.sum()).field("errors", errors.sum());
+		if (metrics != null) {
+			Json.Writer results = new Json.Writer();
+			for (Result.Code code : Result.Code.values()) {
+				results.field(code.name(), metrics.getCount(code));
+			}
+			response.field("generated", metrics.getGenerated()).field("rateLimited", metrics.getRateLimited())
+					.field("results", results)
+					.field("generateP99Nanos", metrics.getGeneratePercentile(99))
+					.field("validateP50Nanos", metrics.getValidatePercentile(50))
+					.field("validateP99Nanos", metrics.getValidatePercentile(99));
+		}
+		ReplayCache replayCache = engine.getReplayCache();
+		if (replayCache != null) {
+			response.field("replayCacheSize", replayCache.getSize())
+					.field("replayCacheCapacity", replayCache.getCapacity())
+					.field("replayCacheOverflows", replayCache.getOverflows());
+		}
+		DeliveryPipeline pipeline = this.pipeline;
+		if (pipeline != null) {
+			response.field("delivered", pipeline.getDelivered()).field("deliveryFailed", pipeline.getFailed())
+					.field("deliveryRejected", pipeline.getRejected());
+		}
+		return response.toString();
+	}
+
+	/*
+	 * Reads the request, runs the handler and writes its response. Bad
+	 * requests are answered with 400 and the reason.
+	 */
+	private void handle(HttpExchange exchange, String method, Handler handler) throws IOException {
+		requests.increment();
+		try {
+			byte[] body = readBody(exchange.getRequestBody());
+			if (!method.equals(exchange.getRequestMethod())) {
+				exchange.getResponseHeaders().set("Allow", method);
+				respond(exchange, 405, error("Method not allowed"));
+				return;
+			}
+			if (body == null) {
+				respond(exchange, 413, error("Request body too large"));
+				return;
+			}
+			Map<String, Object> request = body.length == 0 ? null
+					: Json.parseObject(new String(body, StandardCharsets.UTF_8));
+			if (request == null && "POST".equals(method)) {
+				throw new IllegalArgumentException("Request body required");
+			}
+			respond(exchange, 200, handler.handle(request, exchange));
+		} catch (IllegalArgumentException e) {
+			respond(exchange, 400, error(e.getMessage()));
+		} catch (RuntimeException e) {
+			errors.increment();
+			logger.error("Failed to serve {}", exchange.getRequestURI(), e);
+			respond(exchange, 500, error("Internal error"));
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/*
+	 * Reads the whole body, which keeps the connection usable for the next
+	 * request. Null if it is larger than allowed, in which case closing the
+	 * exchange drains or drops the connection.
+	 */
+	private static byte[] readBody(InputStream in) throws IOException {
+		byte[] body = in.readNBytes(MAX_BODY);
+		return in.read() == -1 ? body : null;
+	}
+
+	private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+		byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", JSON);
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	private static String error(String message) {
+		return new Json.Writer().field("error", message).toString();
+	}
+
+	/**
+	 * Runs the server until the process is stopped.
+	 * 
+	 * <pre>
+	 * java -jar otp-service.jar [--host 0.0.0.0] [--port 8080] [--executor fixed|cached|virtual] [--threads 64]
+	 * </pre>
+	 * 
+	 * Listens on the loopback address unless a host is given. Passwords are
+	 * generated at the default rate of {@link RateLimiter} per subject and
+	 * caller address. The key is
+	 * read from the OTP_KEY environment variable, base64 encoded; without it
+	 * a random key is used, which suits load tests only.
+	 * 
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		String host = null;
+		int port = DEFAULT_PORT;
+		String executor = "fixed";
+		int threads = Runtime.getRuntime().availableProcessors() * 8;
+		int warmUpCycles = -1; // the engine's default
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			switch (args[i]) {
+			case "--host":
+				host = args[i + 1];
+				break;
+			case "--port":
+				port = Integer.parseInt(args[i + 1]);
+				break;
+			case "--executor":
+				executor = args[i + 1];
+				break;
+			case "--threads":
+				threads = Integer.parseInt(args[i + 1]);
+				break;
+			case "--warmup":
+				warmUpCycles = Integer.parseInt(args[i + 1]);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+		SecretKey key;
+		String encoded = System.getenv("OTP_KEY");
+		if (encoded != null) {
+			key = new SecretKeySpec(Base64.getDecoder().decode(encoded), "RAW");
+		} else {
+			logger.warn("OTP_KEY not set, using a random key. Passwords will not validate after a restart");
+			key = KeyGenerator.getInstance("AES").generateKey();
+		}
+		OTPEngine engine = OTPEngine.getInstance(key, new InMemorySubjectCounter());
+		engine.setRateLimiter(new RateLimiter());
+		ExecutorService requests = newExecutor(executor, threads);
+		// before accepting requests, so none pays for it, on every thread of
+		// a pool as each keeps its own generator and MAC
+		if ("virtual".equals(executor)) {
+			// threads are not reused, warming more gains nothing
+			threads = 1;
+		}
+		if (warmUpCycles < 0) {
+			engine.warmUp(requests, threads);
+		} else if (warmUpCycles > 0) {
+			engine.warmUp(warmUpCycles, requests, threads);
+		}
+		InetSocketAddress address = host == null ? new InetSocketAddress(InetAddress.getLoopbackAddress(), port)
+				: new InetSocketAddress(host, port);
+		OTPServer server = new OTPServer(engine, new InMemoryOTPMetrics(), address, requests);
+		Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+		server.start();
+	}
+
+	/**
+	 * Turns a parsed request into the JSON response.
+	 */
+	private interface Handler {
+		String handle(Map<String, Object> request, HttpExchange exchange);
+	}
+
+}
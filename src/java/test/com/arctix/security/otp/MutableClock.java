@@ -0,0 +1,44 @@
+package com.arctix.security.otp;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+
+/**
+ * UTC clock whose time is set by the test.
+ * 
+ * @author aprasa2
+ *
+ */
+class MutableClock extends Clock {
+
+	volatile long millis;
+
+	MutableClock(long millis) {
+		this.millis = millis;
+	}
+
+	void advance(long byMillis) {
+		millis += byMillis;
+	}
+
+	@Override
+	public ZoneId getZone() {
+		return ZoneId.of("UTC");
+	}
+
+	@Override
+	public Clock withZone(ZoneId zone) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public long millis() {
+		return millis;
+	}
+
+	@Override
+	public Instant instant() {
+		return Instant.ofEpochMilli(millis);
+	}
+}
@@ -0,0 +1,117 @@
+package com.arctix.security.otp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class TestInMemorySubjectCounter extends TestCase {
+
+	private MutableClock clock = new MutableClock(1420070400000L);
+
+	private InMemorySubjectCounter counter = new InMemorySubjectCounter(15, TimeUnit.MINUTES, 1000, clock);
+
+	@Test
+	public void testSubjectsCountedSeparately() {
+		assertEquals(1, counter.getNextValue("alice"));
+		assertEquals(2, counter.getNextValue("alice"));
+		assertEquals(1, counter.getNextValue("bob"));
+
+		assertEquals(2, counter.getCurrentValue("alice"));
+		assertEquals(1, counter.getCurrentValue("bob"));
+		assertEquals(0, counter.getCurrentValue("carol"));
+
+		counter.reset("alice");
+		assertEquals(0, counter.getCurrentValue("alice"));
+		assertEquals(1, counter.getCurrentValue("bob"));
+		assertEquals(1, counter.getNextValue("alice"));
+	}
+
+	@Test
+	public void testExpiry() {
+		counter.getNextValue("alice");
+		clock.advance(TimeUnit.MINUTES.toMillis(10));
+		assertEquals(2, counter.getNextValue("alice"));
+
+		// expiry runs from the first attempt
+		clock.advance(TimeUnit.MINUTES.toMillis(5));
+		assertEquals(0, counter.getCurrentValue("alice"));
+		assertEquals(1, counter.getNextValue("alice"));
+	}
+
+	@Test
+	public void testSweep() {
+		for (int i = 0; i < 100; i++) {
+			counter.getNextValue("subject" + i);
+		}
+		counter.reset("subject0");
+		counter.sweep();
+		assertEquals(99, counter.size());
+
+		clock.advance(TimeUnit.MINUTES.toMillis(15));
+		counter.getNextValue("subject1");
+		counter.sweep();
+		assertEquals(1, counter.size());
+		assertEquals(1, counter.getCurrentValue("subject1"));
+	}
+
+	@Test
+	public void testCapacity() {
+		InMemorySubjectCounter bounded = new InMemorySubjectCounter(15, TimeUnit.MINUTES, 100, clock);
+		for (int i = 0; i < OTPEngine.MAX_ATTEMPTS; i++) {
+			bounded.getNextValue("alice");
+		}
+		// subjects sprayed once make room for each other, not at alice's cost
+		for (int i = 0; i < 10000; i++) {
+			bounded.getNextValue("subject" + i);
+			assertTrue("Holding " + bounded.size(), bounded.size() <= 100);
+		}
+		assertEquals(OTPEngine.MAX_ATTEMPTS, bounded.getCurrentValue("alice"));
+
+		// expired entries go first
+		clock.advance(TimeUnit.MINUTES.toMillis(15));
+		bounded.getNextValue("bob");
+		assertEquals(1, bounded.getCurrentValue("bob"));
+		assertTrue(bounded.size() <= 100);
+	}
+
+	@Test
+	public void testConcurrentUpdates() throws Exception {
+		final int threads = 64;
+		final int iterations = 500;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final CountDownLatch start = new CountDownLatch(1);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int t = 0; t < threads; t++) {
+				futures.add(executor.submit(() -> {
+					start.await();
+					for (int i = 0; i < iterations; i++) {
+						counter.getNextValue("subject" + (i % 4));
+						if (i % 50 == 0) {
+							counter.sweep();
+						}
+					}
+					return null;
+				}));
+			}
+			start.countDown();
+			for (Future<?> future : futures) {
+				future.get(60, TimeUnit.SECONDS);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		for (int s = 0; s < 4; s++) {
+			assertEquals(threads * iterations / 4, counter.getCurrentValue("subject" + s));
+		}
+	}
+
+}
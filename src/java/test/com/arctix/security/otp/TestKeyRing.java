@@ -0,0 +1,240 @@
+package com.arctix.security.otp;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.KeyGenerator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.arctix.security.otp.OTPEngine.Result;
+
+import junit.framework.TestCase;
+
+public class TestKeyRing extends TestCase {
+
+	private MutableClock clock = new MutableClock(1420070400000L);
+
+	private KeyGenerator generator = null;
+
+	private String[] params = null;
+
+	@Before
+	public void setUp() throws Exception {
+		generator = KeyGenerator.getInstance("AES");
+		params = new String[] { "0010000123434343" };
+	}
+
+	@Test
+	public void testRotation() {
+		KeyRing ring = newRing(1);
+		OTPEngine engine = newEngine(ring);
+
+		OTP first = engine.generatePasswordWithHmac(params);
+		OTP second = engine.generatePasswordWithHmac(params);
+		assertEquals(1, keyIdOf(first));
+
+		// a standby key validates but does not generate
+		ring.add(2, generator.generateKey());
+		assertTrue(ring.contains(2));
+		assertEquals(1, keyIdOf(engine.generatePasswordWithHmac(params)));
+
+		ring.promote(2);
+		assertEquals(2, ring.getActiveKeyId());
+		OTP third = engine.generatePasswordWithHmac(params);
+		assertEquals(2, keyIdOf(third));
+
+		// passwords of the replaced key keep working until it retires
+		assertEquals(Result.Code.SUCCESS, engine.validatePasswordWithHmac(first, params).getResultCode());
+		assertEquals(Result.Code.SUCCESS, engine.validatePasswordWithHmac(third, params).getResultCode());
+		clock.advance(TimeUnit.MINUTES.toMillis(OTPEngine.PASSWORD_EXPRIRY));
+		assertFalse(ring.contains(1));
+		assertEquals(Result.Code.FAIL_INVALID_CODE, engine.validatePasswordWithHmac(second, params).getResultCode());
+
+		// retired ids can be reused
+		ring.add(1, generator.generateKey());
+		assertTrue(ring.contains(1));
+	}
+
+	@Test
+	public void testRetire() {
+		KeyRing ring = newRing(7);
+		OTPEngine engine = newEngine(ring);
+
+		ring.add(8, generator.generateKey());
+		ring.promote(8);
+		OTP otp = engine.generatePasswordWithHmac(params);
+		ring.promote(7);
+		ring.retire(8);
+		assertEquals(Result.Code.FAIL_INVALID_CODE, engine.validatePasswordWithHmac(otp, params).getResultCode());
+
+		try {
+			ring.retire(7);
+			fail("Retired the active key");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		try {
+			ring.add(7, generator.generateKey());
+			fail("Replaced a live key");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		try {
+			ring.promote(9);
+			fail("Promoted a missing key");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		try {
+			ring.add(KeyRing.MAX_KEY_ID + 1, generator.generateKey());
+			fail("Key id does not fit the token");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testUnkeyedTokensRetire() {
+		KeyRing ring = newRing(1);
+		OTPEngine engine = newEngine(ring);
+		OTPEngine single = OTPEngine.getInstance(ring.active().key);
+		single.timeLapGenerator = new TimeLaps(OTPEngine.TIME_LAP_INTERVAL, clock);
+		OTP compact = single.generatePasswordWithHmac(new String[] { "CUSTOMER-1" });
+		single.setTokenVersion(OTPEngine.LEGACY_TOKEN_VERSION);
+		OTP legacy = single.generatePasswordWithHmac(new String[] { "CUSTOMER-2" });
+
+		// tokens without a key id go with the key the engine started with
+		ring.add(2, generator.generateKey());
+		ring.promote(2);
+		ring.retire(1);
+		assertEquals(Result.Code.FAIL_INVALID_CODE,
+				engine.validatePasswordWithHmac(compact, new String[] { "CUSTOMER-1" }).getResultCode());
+		assertEquals(Result.Code.FAIL_INVALID_CODE,
+				engine.validatePasswordWithHmac(legacy, new String[] { "CUSTOMER-2" }).getResultCode());
+
+		// and stay rejected if its id is given to another key
+		ring.add(1, generator.generateKey());
+		assertEquals(Result.Code.FAIL_INVALID_CODE,
+				engine.validatePasswordWithHmac(compact, new String[] { "CUSTOMER-1" }).getResultCode());
+	}
+
+	@Test
+	public void testForeignTokens() {
+		KeyRing ring = newRing(1);
+		OTPEngine engine = newEngine(ring);
+		OTPEngine other = newEngine(newRing(2));
+		assertEquals(Result.Code.FAIL_INVALID_CODE,
+				engine.validatePasswordWithHmac(other.generatePasswordWithHmac(params), params).getResultCode());
+
+		// engines without a ring do not accept keyed tokens
+		OTPEngine single = OTPEngine.getInstance(ring.active().key);
+		single.timeLapGenerator = new TimeLaps(OTPEngine.TIME_LAP_INTERVAL, clock);
+		assertEquals(Result.Code.FAIL_INVALID_CODE,
+				single.validatePasswordWithHmac(engine.generatePasswordWithHmac(params), params).getResultCode());
+
+		// tokens without a key id are checked with the initial key
+		assertEquals(Result.Code.SUCCESS,
+				engine.validatePasswordWithHmac(single.generatePasswordWithHmac(params), params).getResultCode());
+		single.setTokenVersion(OTPEngine.LEGACY_TOKEN_VERSION);
+		assertEquals(Result.Code.SUCCESS,
+				engine.validatePasswordWithHmac(single.generatePasswordWithHmac(params), params).getResultCode());
+
+		try {
+			engine.setTokenVersion(OTPEngine.TOKEN_VERSION);
+			fail("Ring engines only generate keyed tokens");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testConcurrentPromotion() throws Exception {
+		final KeyRing ring = newRing(0);
+		final OTPEngine engine = newEngine(ring);
+		final int threads = 8;
+		ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+		final CountDownLatch start = new CountDownLatch(1);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			futures.add(executor.submit(() -> {
+				start.await();
+				for (int id = 1; id <= 100; id++) {
+					ring.add(id, generator.generateKey());
+					ring.promote(id);
+				}
+				return null;
+			}));
+			for (int t = 0; t < threads; t++) {
+				final int thread = t;
+				futures.add(executor.submit(() -> {
+					start.await();
+					for (int i = 0; i < 500; i++) {
+						// passwords repeat too often within a lap to reuse a subject
+						String[] subject = new String[] { "CUSTOMER-" + thread + "-" + i };
+						OTP otp = engine.generatePasswordWithHmac(subject);
+						assertEquals(Result.Code.SUCCESS,
+								engine.validatePasswordWithHmac(otp, subject).getResultCode());
+					}
+					return null;
+				}));
+			}
+			start.countDown();
+			for (Future<?> future : futures) {
+				future.get(60, TimeUnit.SECONDS);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(100, ring.getActiveKeyId());
+		for (int id = 0; id <= 100; id++) {
+			assertTrue(ring.contains(id));
+		}
+	}
+
+	@Test
+	public void testSubjectTokens() {
+		KeyRing ring = newRing(1);
+		OTPEngine engine = newEngine(ring);
+		engine.setTokenVersion(OTPEngine.SUBJECT_TOKEN_VERSION);
+		SubjectContext subject = engine.createSubjectContext(params);
+
+		OTP first = engine.generatePasswordWithHmac(subject);
+		byte[] token = Base64.getUrlDecoder().decode(first.getHmac());
+		assertEquals(OTPEngine.SUBJECT_TOKEN_VERSION, token[0]);
+		assertEquals(1, token[1]);
+
+		// the context was prepared with the replaced key and still works
+		ring.add(2, generator.generateKey());
+		ring.promote(2);
+		OTP second = engine.generatePasswordWithHmac(subject);
+		assertEquals(2, Base64.getUrlDecoder().decode(second.getHmac())[1]);
+		assertEquals(Result.Code.SUCCESS, engine.validatePasswordWithHmac(first, subject).getResultCode());
+		assertEquals(Result.Code.SUCCESS, engine.validatePasswordWithHmac(second, params).getResultCode());
+	}
+
+	private KeyRing newRing(int keyId) {
+		return new KeyRing(keyId, generator.generateKey(), "HmacSHA1", OTPEngine.PASSWORD_EXPRIRY,
+				TimeUnit.MINUTES, clock);
+	}
+
+	private OTPEngine newEngine(KeyRing ring) {
+		OTPEngine engine = OTPEngine.getInstance(ring, new InMemorySubjectCounter());
+		engine.timeLapGenerator = new TimeLaps(OTPEngine.TIME_LAP_INTERVAL, clock);
+		return engine;
+	}
+
+	private static int keyIdOf(OTP otp) {
+		byte[] token = Base64.getUrlDecoder().decode(otp.stripChecksum().getHmac());
+		assertEquals(OTPEngine.KEYED_TOKEN_VERSION, token[0]);
+		return token[1] & 0xff;
+	}
+
+}
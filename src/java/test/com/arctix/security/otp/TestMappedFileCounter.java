@@ -0,0 +1,242 @@
+package com.arctix.security.otp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class TestMappedFileCounter extends TestCase {
+
+	private MutableClock clock = new MutableClock(1420070400000L);
+
+	private Path file = null;
+
+	@Before
+	public void setUp() throws Exception {
+		file = Files.createTempDirectory("otp-counter").resolve("counters.db");
+	}
+
+	@Test
+	public void testPersistsAcrossRestart() throws Exception {
+		MappedFileCounter counter = open(64);
+		counter.getNextValue("alice");
+		counter.getNextValue("alice");
+		counter.getNextValue("bob");
+		counter.reset("carol");
+		counter.close();
+
+		counter = open(64);
+		assertEquals(2, counter.getCurrentValue("alice"));
+		assertEquals(1, counter.getCurrentValue("bob"));
+		assertEquals(0, counter.getCurrentValue("carol"));
+		assertEquals(3, counter.getNextValue("alice"));
+		counter.reset("alice");
+		assertEquals(0, counter.getCurrentValue("alice"));
+		counter.close();
+	}
+
+	@Test
+	public void testExpiry() throws Exception {
+		MappedFileCounter counter = open(64);
+		counter.getNextValue("alice");
+		clock.advance(TimeUnit.MINUTES.toMillis(14));
+		assertEquals(2, counter.getNextValue("alice"));
+		clock.advance(TimeUnit.MINUTES.toMillis(1));
+		assertEquals(0, counter.getCurrentValue("alice"));
+		assertEquals(1, counter.getNextValue("alice"));
+		counter.close();
+	}
+
+	@Test
+	public void testRecoveryAfterCrashMidWrite() throws Exception {
+		MappedFileCounter counter = open(64);
+		counter.getNextValue("alice");
+		counter.getNextValue("alice");
+		for (int i = 0; i < 3; i++) {
+			counter.getNextValue("bob");
+		}
+		int capacity = counter.getCapacity();
+		// crash: the counter is never closed
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			int empty = -1;
+			for (int slot = 0; slot < capacity; slot++) {
+				long key = readLong(channel, slot, 0);
+				long state = readLong(channel, slot, 8);
+				if (key == 0 && empty < 0) {
+					empty = slot;
+				}
+				if (key != 0 && (state & 0xffffffffL) == 3) {
+					// bob's state was torn
+					writeLong(channel, slot, 8, (state & ~0xffffffffL) | 0x7fffffffL);
+				}
+			}
+			// a slot claimed with garbage state, dated in the future
+			writeLong(channel, empty, 0, 12345L);
+			writeLong(channel, empty, 8, (Long.MAX_VALUE >>> 1) | 1);
+		}
+
+		counter = open(64);
+		assertEquals(2, counter.getCurrentValue("alice"));
+		assertEquals(0, counter.getCurrentValue("bob"));
+		assertEquals(1, counter.getNextValue("bob"));
+		counter.close();
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			int garbage = 0;
+			for (int slot = 0; slot < capacity; slot++) {
+				if (readLong(channel, slot, 0) == 12345L) {
+					assertEquals(0, readLong(channel, slot, 8));
+					garbage++;
+				}
+			}
+			assertEquals(1, garbage);
+		}
+	}
+
+	@Test
+	public void testRecoveryFromInterruptedCompaction() throws Exception {
+		MappedFileCounter counter = open(64);
+		counter.getNextValue("alice");
+		counter.close();
+
+		Path leftover = file.resolveSibling(file.getFileName() + ".compact");
+		Files.write(leftover, new byte[] { 1, 2, 3 });
+
+		counter = open(64);
+		assertFalse(Files.exists(leftover));
+		assertEquals(1, counter.getCurrentValue("alice"));
+		counter.close();
+	}
+
+	@Test
+	public void testRecoveryFromDamagedHeader() throws Exception {
+		Files.write(file, new byte[MappedFileCounter.HEADER_SIZE + 100]);
+
+		// starting empty would lift every lockout
+		try {
+			open(64);
+			fail("Opened an unreadable file");
+		} catch (RuntimeException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+		assertTrue(Files.exists(file));
+
+		// moved aside by the operator
+		Files.delete(file);
+		MappedFileCounter counter = open(64);
+		assertEquals(0, counter.getCurrentValue("alice"));
+		assertEquals(1, counter.getNextValue("alice"));
+		counter.close();
+	}
+
+	@Test
+	public void testCompaction() throws Exception {
+		MappedFileCounter counter = open(64);
+		for (int i = 0; i < 20; i++) {
+			counter.getNextValue("old" + i);
+		}
+		clock.advance(TimeUnit.MINUTES.toMillis(10));
+		for (int i = 0; i < 10; i++) {
+			counter.getNextValue("new" + i);
+			counter.getNextValue("new" + i);
+		}
+		counter.reset("new0");
+		clock.advance(TimeUnit.MINUTES.toMillis(5));
+		assertEquals(30, counter.size());
+
+		counter.compact();
+		assertEquals(9, counter.size());
+		assertEquals(64, counter.getCapacity());
+		for (int i = 1; i < 10; i++) {
+			assertEquals(2, counter.getCurrentValue("new" + i));
+		}
+		assertEquals(0, counter.getCurrentValue("old1"));
+		counter.close();
+
+		counter = open(64);
+		assertEquals(9, counter.size());
+		assertEquals(2, counter.getCurrentValue("new9"));
+		counter.close();
+	}
+
+	@Test
+	public void testGrowsWhenCrowded() throws Exception {
+		MappedFileCounter counter = open(16);
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(1, counter.getNextValue("subject" + i));
+		}
+		assertTrue(counter.getCapacity() >= 1000);
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(2, counter.getNextValue("subject" + i));
+		}
+		counter.close();
+	}
+
+	@Test
+	public void testConcurrentUpdates() throws Exception {
+		final MappedFileCounter counter = open(16);
+		final int threads = 64;
+		final int iterations = 200;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final CountDownLatch start = new CountDownLatch(1);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int t = 0; t < threads; t++) {
+				final int thread = t;
+				futures.add(executor.submit(() -> {
+					start.await();
+					for (int i = 0; i < iterations; i++) {
+						counter.getNextValue("shared" + (i % 4));
+						// spread private subjects to force compactions
+						counter.getNextValue("thread" + thread + "-" + i);
+					}
+					return null;
+				}));
+			}
+			start.countDown();
+			for (Future<?> future : futures) {
+				future.get(60, TimeUnit.SECONDS);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		for (int s = 0; s < 4; s++) {
+			assertEquals(threads * iterations / 4, counter.getCurrentValue("shared" + s));
+		}
+		assertEquals(1, counter.getCurrentValue("thread7-42"));
+		counter.close();
+	}
+
+	private MappedFileCounter open(int capacity) {
+		return new MappedFileCounter(file, capacity, 15, TimeUnit.MINUTES, clock);
+	}
+
+	private static long readLong(FileChannel channel, int slot, int offset) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+		channel.read(buffer, MappedFileCounter.HEADER_SIZE + (long) slot * MappedFileCounter.SLOT_SIZE + offset);
+		return buffer.getLong(0);
+	}
+
+	private static void writeLong(FileChannel channel, int slot, int offset, long value) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putLong(0, value);
+		channel.write(buffer, MappedFileCounter.HEADER_SIZE + (long) slot * MappedFileCounter.SLOT_SIZE + offset);
+	}
+
+}
@@ -0,0 +1,92 @@
+package com.arctix.security.otp;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class TestMappedFileFactorStore extends TestCase {
+
+	private Path file = null;
+
+	@Before
+	public void setUp() throws Exception {
+		file = Files.createTempDirectory("otp-factors").resolve("factors.db");
+	}
+
+	@Test
+	public void testCompareAndSet() throws Exception {
+		MappedFileFactorStore store = new MappedFileFactorStore(file, 64);
+		assertEquals(0, store.getFactor("alice"));
+		assertFalse(store.compareAndSet("alice", 1, 2));
+		assertEquals(0, store.size());
+		assertTrue(store.compareAndSet("alice", 0, 3));
+		assertFalse(store.compareAndSet("alice", 0, 5));
+		assertTrue(store.compareAndSet("alice", 3, 5));
+		assertEquals(5, store.getFactor("alice"));
+		assertEquals(0, store.getFactor("bob"));
+		store.close();
+	}
+
+	@Test
+	public void testPersistsAcrossRestart() throws Exception {
+		MappedFileFactorStore store = new MappedFileFactorStore(file, 64);
+		store.compareAndSet("alice", 0, 7);
+		store.compareAndSet("bob", 0, 1L << 40);
+		store.close();
+
+		store = new MappedFileFactorStore(file, 64);
+		assertEquals(7, store.getFactor("alice"));
+		assertEquals(1L << 40, store.getFactor("bob"));
+		assertEquals(2, store.size());
+		store.close();
+
+		// not closed, the factors are in the page cache all the same
+		store = new MappedFileFactorStore(file, 64);
+		store.compareAndSet("alice", 7, 8);
+		store = new MappedFileFactorStore(file, 64);
+		assertEquals(8, store.getFactor("alice"));
+		store.close();
+	}
+
+	@Test
+	public void testGrows() throws Exception {
+		MappedFileFactorStore store = new MappedFileFactorStore(file, 16);
+		int capacity = store.getCapacity();
+		for (int i = 0; i < capacity * 4; i++) {
+			assertTrue(store.compareAndSet("subject-" + i, 0, i + 1));
+		}
+		assertTrue(store.getCapacity() > capacity * 4);
+		assertEquals(capacity * 4, store.size());
+		for (int i = 0; i < capacity * 4; i++) {
+			assertEquals(i + 1, store.getFactor("subject-" + i));
+		}
+		store.close();
+	}
+
+	@Test
+	public void testRefusesDamagedFile() throws Exception {
+		Files.write(file, new byte[MappedFileCounter.HEADER_SIZE + 100]);
+		try {
+			new MappedFileFactorStore(file, 64);
+			fail("Starting empty would accept used codes");
+		} catch (RuntimeException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+
+		// nor does it open a counter file
+		Files.delete(file);
+		new MappedFileCounter(file).close();
+		try {
+			new MappedFileFactorStore(file, 64);
+			fail("Opened a counter file");
+		} catch (RuntimeException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+	}
+
+}
@@ -0,0 +1,299 @@
+package com.arctix.security.otp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Test;
+
+import com.arctix.security.otp.hmac.HMACEngine;
+
+import junit.framework.TestCase;
+
+public class TestOATHEngine extends TestCase {
+
+	private static final String SEED = "12345678901234567890";
+
+	private static final String SEED32 = SEED + "123456789012";
+
+	private static final String SEED64 = SEED + SEED + SEED + "1234";
+
+	private MutableClock clock = new MutableClock(1420070400000L);
+
+	@Test
+	public void testHOTPVectors() {
+		// RFC 4226 appendix D
+		String[] expected = { "755224", "287082", "359152", "969429", "338314", "254676", "287922", "162583",
+				"399871", "520489" };
+		OATHEngine engine = OATHEngine.getInstance(key(SEED, "HmacSHA1"));
+		for (int count = 0; count < expected.length; count++) {
+			assertEquals(expected[count], engine.generateHOTP(count));
+		}
+	}
+
+	@Test
+	public void testTOTPVectors() {
+		// RFC 6238 appendix B
+		long[] times = { 59L, 1111111109L, 1111111111L, 1234567890L, 2000000000L, 20000000000L };
+		String[] sha1 = { "94287082", "07081804", "14050471", "89005924", "69279037", "65353130" };
+		String[] sha256 = { "46119246", "68084774", "67062674", "91819424", "90698825", "77737706" };
+		String[] sha512 = { "90693936", "25091201", "99943326", "93441116", "38618901", "47863826" };
+		assertTOTP(newEngine(SEED, "HmacSHA1", 8), times, sha1);
+		assertTOTP(newEngine(SEED32, "HmacSHA256", 8), times, sha256);
+		assertTOTP(newEngine(SEED64, "HmacSHA512", 8), times, sha512);
+		assertTOTP(newEngine(SEED, HMACEngine.FAST_HMAC_SHA1, 8), times, sha1);
+	}
+
+	@Test
+	public void testSubjectSecrets() {
+		OATHEngine engine = newEngine(SEED, "HmacSHA1", 6);
+		assertFalse(engine.generateHOTP("alice").equals(engine.generateHOTP("bob")));
+		assertFalse(engine.generateTOTP("alice").equals(engine.generateTOTP("bob")));
+		assertFalse(engine.generateHOTP(0).equals(engine.generateHOTP("alice")));
+
+		// an app provisioned with the secret shows the codes expected
+		OATHEngine app = newEngine(engine.getSecret("alice"), "HmacSHA1", 6);
+		assertEquals(app.generateHOTP(0), engine.generateHOTP("alice"));
+		assertEquals(app.generateTOTP(clock.millis()), engine.generateTOTP("alice"));
+		assertTrue(engine.validateTOTP(app.generateTOTP(clock.millis()), "alice"));
+		assertFalse(engine.validateHOTP(app.generateHOTP(0), "bob"));
+
+		// a fast algorithm derives the same secrets
+		OATHEngine fast = newEngine(SEED, HMACEngine.FAST_HMAC_SHA1, 6);
+		assertTrue(Arrays.equals(engine.getSecret("alice"), fast.getSecret("alice")));
+		assertEquals(engine.generateHOTP("alice"), fast.generateHOTP("alice"));
+	}
+
+	@Test
+	public void testTOTPWindow() {
+		OATHEngine engine = newEngine(SEED, "HmacSHA1", 6);
+		String code = engine.generateTOTP("alice");
+		assertTrue(engine.validateTOTP(code, "alice"));
+
+		// accepted one step later, not two
+		code = engine.generateTOTP("bob");
+		clock.advance(OATHEngine.DEFAULT_TIME_STEP * 1000L);
+		assertTrue(engine.validateTOTP(code, "bob"));
+		code = engine.generateTOTP("carol");
+		clock.advance(OATHEngine.DEFAULT_TIME_STEP * 2000L);
+		assertFalse(engine.validateTOTP(code, "carol"));
+
+		// a device running ahead
+		long next = clock.millis() + OATHEngine.DEFAULT_TIME_STEP * 1000L;
+		assertTrue(engine.validateTOTP(engine.generateTOTP("dave", next), "dave"));
+		engine.setWindow(0);
+		assertFalse(engine.validateTOTP(engine.generateTOTP("erin", next), "erin"));
+		assertTrue(engine.validateTOTP(engine.generateTOTP("erin"), "erin"));
+
+		assertFalse(engine.validateTOTP(null, "frank"));
+		assertFalse(engine.validateTOTP("12345", "frank"));
+		assertFalse(engine.validateTOTP("12345a", "frank"));
+	}
+
+	@Test
+	public void testTOTPNotReplayed() {
+		InMemoryFactorStore steps = new InMemoryFactorStore();
+		OATHEngine engine = OATHEngine.getInstance(key(SEED, "RAW"), "HmacSHA1", 6, OATHEngine.DEFAULT_TIME_STEP,
+				new InMemoryFactorStore(), steps, new InMemorySubjectCounter());
+		engine.timeLapGenerator = new TimeLaps(OTPEngine.TIME_LAP_INTERVAL, clock);
+		long step = clock.millis() / (OATHEngine.DEFAULT_TIME_STEP * 1000L);
+
+		String code = engine.generateTOTP("alice");
+		assertTrue(engine.validateTOTP(code, "alice"));
+		assertFalse(engine.validateTOTP(code, "alice"));
+		assertEquals(step + 1, steps.getFactor("alice"));
+
+		// still within the window a step later
+		clock.advance(OATHEngine.DEFAULT_TIME_STEP * 1000L);
+		assertFalse(engine.validateTOTP(code, "alice"));
+
+		// a code of the step ahead, then one of the step before it
+		String ahead = engine.generateTOTP("alice", clock.millis() + OATHEngine.DEFAULT_TIME_STEP * 1000L);
+		assertTrue(engine.validateTOTP(ahead, "alice"));
+		assertFalse(engine.validateTOTP(engine.generateTOTP("alice"), "alice"));
+		assertEquals(step + 3, steps.getFactor("alice"));
+
+		// subjects are kept apart
+		assertTrue(engine.validateTOTP(engine.generateTOTP("bob"), "bob"));
+	}
+
+	@Test
+	public void testTOTPAttempts() {
+		OATHEngine engine = newEngine(SEED, "HmacSHA1", 6);
+		String wrong = wrong(engine.generateTOTP("alice"));
+
+		// a success resets the attempts
+		for (int i = 0; i < OTPEngine.MAX_ATTEMPTS; i++) {
+			assertFalse(engine.validateTOTP(wrong, "alice"));
+		}
+		assertTrue(engine.validateTOTP(engine.generateTOTP("alice"), "alice"));
+
+		clock.advance(OATHEngine.DEFAULT_TIME_STEP * 1000L);
+		wrong = wrong(engine.generateTOTP("alice"));
+		for (int i = 0; i <= OTPEngine.MAX_ATTEMPTS; i++) {
+			assertFalse(engine.validateTOTP(wrong, "alice"));
+		}
+		// locked out, the right code included
+		assertFalse(engine.validateTOTP(engine.generateTOTP("alice"), "alice"));
+		assertTrue(engine.validateTOTP(engine.generateTOTP("bob"), "bob"));
+	}
+
+	@Test
+	public void testHOTPCounter() {
+		InMemoryFactorStore factors = new InMemoryFactorStore();
+		OATHEngine engine = OATHEngine.getInstance(key(SEED, "HmacSHA1"), "HmacSHA1", 6,
+				OATHEngine.DEFAULT_TIME_STEP, factors, new InMemoryFactorStore(), new InMemorySubjectCounter());
+		OATHEngine app = newEngine(engine.getSecret("alice"), "HmacSHA1", 6);
+
+		assertEquals(app.generateHOTP(0), engine.generateHOTP("alice"));
+		assertTrue(engine.validateHOTP(app.generateHOTP(0), "alice"));
+		assertFalse(engine.validateHOTP(app.generateHOTP(0), "alice"));
+		assertEquals(1, factors.getFactor("alice"));
+
+		// the device was pressed a few times without logging in
+		assertTrue(engine.validateHOTP(app.generateHOTP(4), "alice"));
+		assertEquals(5, factors.getFactor("alice"));
+		assertFalse(engine.validateHOTP(app.generateHOTP(3), "alice"));
+
+		// too far ahead
+		engine.setLookAhead(2);
+		assertFalse(engine.validateHOTP(app.generateHOTP(8), "alice"));
+		assertTrue(engine.validateHOTP(app.generateHOTP(7), "alice"));
+		assertEquals(8, factors.getFactor("alice"));
+
+		// subjects are counted apart
+		OATHEngine other = newEngine(engine.getSecret("bob"), "HmacSHA1", 6);
+		assertTrue(engine.validateHOTP(other.generateHOTP(0), "bob"));
+	}
+
+	@Test
+	public void testHOTPNotReplayedOnceAttemptsExpire() {
+		InMemorySubjectCounter attempts = new InMemorySubjectCounter(15, TimeUnit.MINUTES,
+				InMemorySubjectCounter.DEFAULT_CAPACITY, clock);
+		OATHEngine engine = OATHEngine.getInstance(key(SEED, "HmacSHA1"), "HmacSHA1", 6,
+				OATHEngine.DEFAULT_TIME_STEP, new InMemoryFactorStore(), new InMemoryFactorStore(), attempts);
+		OATHEngine app = newEngine(engine.getSecret("alice"), "HmacSHA1", 6);
+
+		assertTrue(engine.validateHOTP(app.generateHOTP(0), "alice"));
+		assertFalse(engine.validateHOTP(app.generateHOTP(0), "alice"));
+		clock.advance(TimeUnit.MINUTES.toMillis(16));
+		assertFalse(engine.validateHOTP(app.generateHOTP(0), "alice"));
+		assertTrue(engine.validateHOTP(app.generateHOTP(1), "alice"));
+	}
+
+	@Test
+	public void testHOTPAttempts() {
+		OATHEngine engine = OATHEngine.getInstance(key(SEED, "HmacSHA1"), "HmacSHA1", 6,
+				OATHEngine.DEFAULT_TIME_STEP, new InMemoryFactorStore(), new InMemoryFactorStore(),
+				new InMemorySubjectCounter());
+		OATHEngine app = newEngine(engine.getSecret("alice"), "HmacSHA1", 6);
+		OATHEngine other = newEngine(engine.getSecret("bob"), "HmacSHA1", 6);
+		String wrong = wrong(app.generateHOTP(0));
+
+		// a success resets the attempts
+		for (int i = 0; i < OTPEngine.MAX_ATTEMPTS; i++) {
+			assertFalse(engine.validateHOTP(wrong, "alice"));
+		}
+		assertTrue(engine.validateHOTP(app.generateHOTP(0), "alice"));
+
+		for (int i = 0; i <= OTPEngine.MAX_ATTEMPTS; i++) {
+			assertFalse(engine.validateHOTP(wrong, "alice"));
+		}
+		// locked out, the right code included
+		assertFalse(engine.validateHOTP(app.generateHOTP(1), "alice"));
+		assertTrue(engine.validateHOTP(other.generateHOTP(0), "bob"));
+	}
+
+	@Test
+	public void testHOTPConcurrentValidation() throws Exception {
+		int threads = 8;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			for (int round = 0; round < 50; round++) {
+				InMemoryFactorStore factors = new InMemoryFactorStore();
+				final OATHEngine engine = OATHEngine.getInstance(key(SEED, "HmacSHA1"), "HmacSHA1", 6,
+						OATHEngine.DEFAULT_TIME_STEP, factors, new InMemoryFactorStore(),
+						new InMemorySubjectCounter());
+				OATHEngine app = newEngine(engine.getSecret("alice"), "HmacSHA1", 6);
+				final CountDownLatch start = new CountDownLatch(1);
+				List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+				for (int i = 0; i < threads; i++) {
+					// a code ahead of the factor and the one after it
+					final String code = app.generateHOTP(i % 2 == 0 ? 2 : 3);
+					results.add(executor.submit(() -> {
+						start.await();
+						return engine.validateHOTP(code, "alice");
+					}));
+				}
+				start.countDown();
+				int[] accepted = new int[2];
+				for (int i = 0; i < threads; i++) {
+					if (results.get(i).get()) {
+						accepted[i % 2]++;
+					}
+				}
+				// each code once at most, the later one always
+				assertTrue(accepted[0] <= 1);
+				assertEquals(1, accepted[1]);
+				assertEquals(4, factors.getFactor("alice"));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testDigits() {
+		try {
+			OATHEngine.getInstance(key(SEED, "HmacSHA1"), "HmacSHA1", 5, 30, new InMemoryFactorStore(),
+					new InMemoryFactorStore(), new InMemorySubjectCounter());
+			fail("Codes of 5 digits are too short");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		OATHEngine engine = newEngine(SEED, "HmacSHA1", 7);
+		assertEquals(7, engine.getDigits());
+		for (int count = 0; count < 1000; count++) {
+			assertEquals(7, engine.generateHOTP(count).length());
+		}
+	}
+
+	private void assertTOTP(OATHEngine engine, long[] times, String[] expected) {
+		for (int i = 0; i < times.length; i++) {
+			assertEquals(expected[i], engine.generateTOTP(times[i] * 1000));
+		}
+	}
+
+	private OATHEngine newEngine(String seed, String algorithm, int digits) {
+		return newEngine(seed.getBytes(), algorithm, digits);
+	}
+
+	private OATHEngine newEngine(byte[] secret, String algorithm, int digits) {
+		OATHEngine engine = OATHEngine.getInstance(new SecretKeySpec(secret, "RAW"), algorithm, digits,
+				OATHEngine.DEFAULT_TIME_STEP, new InMemoryFactorStore(), new InMemoryFactorStore(),
+				new InMemorySubjectCounter());
+		engine.timeLapGenerator = new TimeLaps(OTPEngine.TIME_LAP_INTERVAL, clock);
+		return engine;
+	}
+
+	/*
+	 * Returns a code of the same digits other than the one given.
+	 */
+	private static String wrong(String code) {
+		char last = code.charAt(code.length() - 1);
+		return code.substring(0, code.length() - 1) + (last == '9' ? '0' : (char) (last + 1));
+	}
+
+	private static SecretKey key(String seed, String algorithm) {
+		return new SecretKeySpec(seed.getBytes(), algorithm);
+	}
+
+}
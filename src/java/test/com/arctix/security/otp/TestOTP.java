@@ -0,0 +1,100 @@
+package com.arctix.security.otp;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class TestOTP extends TestCase {
+
+	@Test
+	public void testKnownCheckDigits() {
+		// EAN-13 4006381333931
+		assertEquals(1, CheckDigit.WEIGHTED.compute(400638133393L));
+		// the usual Luhn example, 79927398713
+		assertEquals(3, CheckDigit.LUHN.compute(7992739871L));
+		// Damm's own example, 5724
+		assertEquals(4, CheckDigit.DAMM.compute(572));
+		for (CheckDigit checkDigit : new CheckDigit[] { CheckDigit.WEIGHTED, CheckDigit.LUHN, CheckDigit.DAMM }) {
+			assertEquals(0, checkDigit.compute(0));
+		}
+	}
+
+	@Test
+	public void testWeightsAlternate() {
+		// digits in even and odd positions are weighted differently, so
+		// swapping neighbours changes the check digit
+		assertFalse(CheckDigit.WEIGHTED.compute(12) == CheckDigit.WEIGHTED.compute(21));
+		assertEquals(7, CheckDigit.WEIGHTED.compute(1));
+		assertEquals(9, CheckDigit.WEIGHTED.compute(10));
+	}
+
+	@Test
+	public void testSingleErrorsCaught() {
+		for (CheckDigit checkDigit : new CheckDigit[] { CheckDigit.WEIGHTED, CheckDigit.LUHN, CheckDigit.DAMM }) {
+			OTP otp = new OTP(48291037L, 8, "hmac").generateChecksum(checkDigit);
+			assertTrue(otp.hasValidChecksum(checkDigit));
+			char[] digits = otp.getPassword().toCharArray();
+			for (int i = 0; i < digits.length; i++) {
+				char original = digits[i];
+				for (char c = '0'; c <= '9'; c++) {
+					if (c == original) {
+						continue;
+					}
+					digits[i] = c;
+					assertFalse(new String(digits), new OTP(new String(digits), "hmac").hasValidChecksum(checkDigit));
+				}
+				digits[i] = original;
+			}
+		}
+	}
+
+	@Test
+	public void testLeadingZeros() {
+		OTP otp = new OTP(1234L, 8, "hmac");
+		assertEquals("00001234", otp.getPassword());
+		OTP withChecksum = otp.generateChecksum(CheckDigit.DAMM);
+		assertEquals(9, withChecksum.getDigits());
+		assertTrue(withChecksum.getPassword().startsWith("00001234"));
+		assertEquals(otp, withChecksum.stripChecksum());
+
+		OTP parsed = new OTP(withChecksum.getPassword(), "hmac");
+		assertEquals(withChecksum, parsed);
+		assertEquals(withChecksum.hashCode(), parsed.hashCode());
+		assertTrue(parsed.hasValidChecksum(CheckDigit.DAMM));
+		assertEquals("00001234", parsed.stripChecksum().getPassword());
+
+		OTP zeros = new OTP("000000", "hmac");
+		assertEquals(0, zeros.getCode());
+		assertEquals(6, zeros.getDigits());
+	}
+
+	@Test
+	public void testLongPasswords() {
+		OTP otp = new OTP(987654321098L, 12, "hmac").generateChecksum(CheckDigit.LUHN);
+		assertEquals(13, otp.getPassword().length());
+		assertTrue(new OTP(otp.getPassword(), "hmac").hasValidChecksum(CheckDigit.LUHN));
+		try {
+			new OTP(1000L, 3, "hmac");
+			fail("Code longer than its digits");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testNotNumeric() {
+		for (String password : new String[] { "", "12ab", "-1234", "\uFF11\uFF12\uFF13\uFF14", "1234567890123456789" }) {
+			OTP otp = new OTP(password, "hmac");
+			assertFalse(password, otp.isNumeric());
+			assertFalse(password, otp.hasValidChecksum());
+			assertEquals(password, otp.getPassword());
+		}
+		try {
+			new OTP("12ab", "hmac").generateChecksum();
+			fail("Not numeric");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+}
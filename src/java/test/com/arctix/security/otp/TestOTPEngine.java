@@ -1,7 +1,15 @@
 package com.arctix.security.otp;
 
-import java.util.Calendar;
-import java.util.GregorianCalendar;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
@@ -42,17 +50,47 @@ public class TestOTPEngine extends TestCase {
 	@Test
 	public void testOTPEngine_1To10MinDelay_Success() {
 
-		OTPEngine engine = OTPEngine.getInstance(key);
+		OTPEngine generationEngine = OTPEngine.getInstance(key);
 
-		// generate password NOW
-		OTP otp = engine.generatePasswordWithHmac(params);
+		OTPEngine validationEngine = OTPEngine.getInstance(key);
 
 		// validate password in i minutes into future
 		for (int i = 1; i < 11; i++) {
-			engine.timeLapGenerator = getTimeLapFromFuture(i);
-			assertEquals("At " + i, Result.Code.SUCCESS, engine.validatePasswordWithHmac(otp, params).getResultCode());
+			// generate password NOW, each code can only be used once
+			OTP otp = generationEngine.generatePasswordWithHmac(params);
+
+			validationEngine.timeLapGenerator = getTimeLapFromFuture(i);
+			assertEquals("At " + i, Result.Code.SUCCESS, validationEngine.validatePasswordWithHmac(otp, params).getResultCode());
 		}
 	}
+
+	@Test
+	public void testOTPEngine_Replayed() {
+
+		OTPEngine engine = OTPEngine.getInstance(key);
+
+		// generate password NOW
+		OTP otp = engine.generatePasswordWithHmac(params);
+
+		assertEquals(Result.Code.SUCCESS, engine.validatePasswordWithHmac(otp, params).getResultCode());
+		assertEquals(Result.Code.FAIL_CODE_REPLAYED, engine.validatePasswordWithHmac(otp, params).getResultCode());
+
+		// the last character has bits to spare, which must be clear
+		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+		String hmac = otp.getHmac();
+		int last = hmac.length() - 1;
+		otp.hmac = hmac.substring(0, last) + alphabet.charAt(alphabet.indexOf(hmac.charAt(last)) ^ 1);
+		assertEquals(Result.Code.FAIL_INVALID_CODE, engine.validatePasswordWithHmac(otp, params).getResultCode());
+
+		// other static MAC bytes make the same code
+		otp.hmac = hmac.substring(0, 30) + alphabet.charAt(alphabet.indexOf(hmac.charAt(30)) ^ 1) + hmac.substring(31);
+		assertEquals(Result.Code.FAIL_CODE_REPLAYED, engine.validatePasswordWithHmac(otp, params).getResultCode());
+		otp.hmac = hmac;
+
+		// without replay protection the code stays valid
+		engine.setReplayCache(null);
+		assertEquals(Result.Code.SUCCESS, engine.validatePasswordWithHmac(otp, params).getResultCode());
+	}
 	
 	@Test
 	public void testOTPEngine_NthAttempt_Success() {
@@ -74,6 +112,24 @@ public class TestOTPEngine extends TestCase {
 	}
 
 	
+	@Test
+	public void testOTPEngine_AttemptsCountedPerSubject() {
+
+		OTPEngine engine = OTPEngine.getInstance(key);
+		String[] anotherParam = { "98765432100" };
+
+		OTP otp = engine.generatePasswordWithHmac(params);
+		OTP anotherOtp = engine.generatePasswordWithHmac(anotherParam);
+
+		// lock out the first subject
+		OTP wrongPassword = new OTP("1234", otp.getHmac());
+		for (int i = 0; i <= OTPEngine.MAX_ATTEMPTS; i++) {
+			engine.validatePasswordWithHmac(wrongPassword.generateChecksum(), params);
+		}
+		assertEquals(Result.Code.FAIL_MAX_ATTEMPTS_EXCEEDED, engine.validatePasswordWithHmac(otp, params).getResultCode());
+		assertEquals(Result.Code.SUCCESS, engine.validatePasswordWithHmac(anotherOtp, anotherParam).getResultCode());
+	}
+
 	@Test
 	public void testOTPEngine_GreaterThan14_Fail() {
 
@@ -120,21 +176,330 @@ public class TestOTPEngine extends TestCase {
 		OTP otp2 = engine.generatePasswordWithHmac(anotherParam);
 
 		//assign some elses password
-		otp1.password = otp2.getPassword();
+		otp1 = new OTP(otp2.getPassword(), otp1.getHmac());
 
 		assertEquals(Result.Code.FAIL_INVALID_CODE, engine.validatePasswordWithHmac(otp1, params).getResultCode());	
 
 	}
 
-	private TimeLaps getTimeLapFromFuture(final int minutesIntoFuture) {
-		return new TimeLaps(new TimeLaps.CalendarFactory() {
-			@Override
-			public Calendar getInstance() {
-				Calendar calendar = GregorianCalendar.getInstance();
-				calendar.add(Calendar.MINUTE, minutesIntoFuture);
-				return calendar;
+	@Test
+	public void testOTPEngine_CompactToken() {
+
+		OTPEngine engine = OTPEngine.getInstance(key);
+
+		OTP otp = engine.generatePasswordWithHmac(params);
+		assertEquals(38, otp.getHmac().length());
+		assertTrue(otp.getHmac().matches("[A-Za-z0-9_-]+"));
+
+		// expired codes are told apart from swapped ones
+		engine.timeLapGenerator = getTimeLapFromFuture(OTPEngine.PASSWORD_EXPRIRY + OTPEngine.TIME_LAP_INTERVAL);
+		assertEquals(Result.Code.FAIL_CODE_EXPIRED, engine.validatePasswordWithHmac(otp, params).getResultCode());
+
+		// any other version is rejected
+		char[] tampered = otp.getHmac().toCharArray();
+		tampered[0] = 'B';
+		otp.hmac = new String(tampered);
+		assertEquals(Result.Code.FAIL_INVALID_CODE, engine.validatePasswordWithHmac(otp, params).getResultCode());
+	}
+
+	@Test
+	public void testOTPEngine_LegacyToken() {
+
+		OTPEngine generationEngine = OTPEngine.getInstance(key);
+		generationEngine.setTokenVersion(OTPEngine.LEGACY_TOKEN_VERSION);
+
+		OTPEngine validationEngine = OTPEngine.getInstance(key);
+
+		OTP otp = generationEngine.generatePasswordWithHmac(params);
+		assertEquals(81, otp.getHmac().length());
+		assertEquals('O', otp.getHmac().charAt(40));
+
+		validationEngine.timeLapGenerator = getTimeLapFromFuture(OTPEngine.PASSWORD_EXPRIRY + OTPEngine.TIME_LAP_INTERVAL);
+		assertEquals(Result.Code.FAIL_CODE_EXPIRED, validationEngine.validatePasswordWithHmac(otp, params).getResultCode());
+
+		validationEngine.timeLapGenerator = getTimeLapFromFuture(5);
+		assertEquals(Result.Code.SUCCESS, validationEngine.validatePasswordWithHmac(otp, params).getResultCode());
+		assertEquals(Result.Code.FAIL_CODE_REPLAYED, validationEngine.validatePasswordWithHmac(otp, params).getResultCode());
+
+		// other spellings of the same hex are the same code
+		String hmac = otp.getHmac();
+		otp.hmac = hmac.substring(0, 40).toLowerCase() + hmac.substring(40);
+		assertEquals(Result.Code.FAIL_CODE_REPLAYED, validationEngine.validatePasswordWithHmac(otp, params).getResultCode());
+		// Arabic-Indic digits decode as hex digits too
+		int digit = hmac.substring(0, 40).replaceAll("[A-F]", "").charAt(0) - '0';
+		otp.hmac = hmac.replaceFirst(String.valueOf(digit), String.valueOf((char) ('\u0660' + digit)));
+		assertEquals(Result.Code.FAIL_CODE_REPLAYED, validationEngine.validatePasswordWithHmac(otp, params).getResultCode());
+	}
+
+	@Test
+	public void testOTPEngine_SubjectContext() {
+
+		OTPEngine engine = OTPEngine.getInstance(key);
+		engine.setTokenVersion(OTPEngine.SUBJECT_TOKEN_VERSION);
+		OTPEngine validationEngine = OTPEngine.getInstance(key);
+
+		String[] mutable = params.clone();
+		SubjectContext subject = engine.createSubjectContext(mutable);
+		mutable[0] = "98765432100";
+		assertEquals(params[0], subject.getParams()[0]);
+
+		OTP otp = engine.generatePasswordWithHmac(subject);
+		assertEquals(39, otp.getHmac().length());
+		assertEquals('B', otp.getHmac().charAt(0));
+		assertEquals(Result.Code.SUCCESS, engine.validatePasswordWithHmac(otp, subject).getResultCode());
+
+		// contexts and params are interchangeable, on any engine
+		assertEquals(Result.Code.SUCCESS, validationEngine.validatePasswordWithHmac(otp, params).getResultCode());
+		otp = engine.generatePasswordWithHmac(params);
+		assertEquals(Result.Code.SUCCESS,
+				validationEngine.validatePasswordWithHmac(otp, validationEngine.createSubjectContext(params))
+						.getResultCode());
+		otp = validationEngine.generatePasswordWithHmac(subject);
+		assertEquals(38, otp.getHmac().length());
+		assertEquals(Result.Code.SUCCESS, engine.validatePasswordWithHmac(otp, subject).getResultCode());
+
+		otp = engine.tryGeneratePasswordWithHmac(subject, "caller").getOtp();
+		validationEngine.timeLapGenerator = getTimeLapFromFuture(OTPEngine.PASSWORD_EXPRIRY + OTPEngine.TIME_LAP_INTERVAL);
+		assertEquals(Result.Code.FAIL_CODE_EXPIRED, validationEngine.validatePasswordWithHmac(otp, subject).getResultCode());
+	}
+
+	@Test
+	public void testOTPEngine_SubjectTokenUnambiguous() {
+
+		OTPEngine engine = OTPEngine.getInstance(key);
+		engine.setTokenVersion(OTPEngine.SUBJECT_TOKEN_VERSION);
+
+		// the same characters split differently are another subject
+		OTP otp = engine.generatePasswordWithHmac(new String[] { "ab", "c" });
+		assertEquals(Result.Code.FAIL_INVALID_CODE,
+				engine.validatePasswordWithHmac(otp, new String[] { "a", "bc" }).getResultCode());
+		assertEquals(Result.Code.FAIL_INVALID_CODE,
+				engine.validatePasswordWithHmac(otp, new String[] { "abc" }).getResultCode());
+
+		OTP other = engine.generatePasswordWithHmac(engine.createSubjectContext(new String[] { "98765432100" }));
+		otp = engine.generatePasswordWithHmac(params);
+		assertEquals(Result.Code.FAIL_INVALID_CODE, engine
+				.validatePasswordWithHmac(new OTP(other.getPassword(), otp.getHmac()), params).getResultCode());
+
+		try {
+			engine.setTokenVersion(OTPEngine.KEYED_TOKEN_VERSION);
+			fail("Version 3 needs a key ring");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testOTPEngine_WarmUp() {
+
+		InMemoryOTPMetrics metrics = new InMemoryOTPMetrics();
+		OTPEngine engine = OTPEngine.getInstance(key);
+		engine.setMetrics(metrics);
+		engine.setTokenVersion(OTPEngine.SUBJECT_TOKEN_VERSION);
+		assertFalse(engine.isReady());
+
+		OTPEngine.WarmUp warmUp = engine.warmUp(50);
+		assertTrue(engine.isReady());
+		assertEquals(50, warmUp.getCycles());
+		assertTrue(warmUp.getFirstCycleNanos() > 0);
+		assertTrue(warmUp.getElapsedNanos() >= warmUp.getFirstCycleNanos());
+		assertEquals(1, warmUp.getThreads());
+
+		// the engine's own counters, replays and metrics are untouched
+		assertEquals(0, metrics.getGenerated());
+		String[] subject = new String[] { "WARM-UP", "0" };
+		OTP otp = engine.generatePasswordWithHmac(subject);
+		assertEquals(Result.Code.SUCCESS, engine.validatePasswordWithHmac(otp, subject).getResultCode());
+
+		try {
+			engine.warmUp(0);
+			fail("No cycles");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testOTPEngine_WarmUpPool() throws Exception {
+
+		OTPEngine engine = OTPEngine.getInstance(key);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			// every thread of the pool, not the first free one four times
+			OTPEngine.WarmUp warmUp = engine.warmUp(10, executor, 4);
+			assertTrue(engine.isReady());
+			assertEquals(4, warmUp.getThreads());
+			assertEquals(10, warmUp.getCycles());
+
+			OTP otp = executor.submit(() -> engine.generatePasswordWithHmac(params)).get();
+			assertEquals(Result.Code.SUCCESS, engine.validatePasswordWithHmac(otp, params).getResultCode());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testOTPEngine_PasswordLength() {
+
+		OTPEngine engine = OTPEngine.getInstance(key);
+		engine.setPasswordDigits(12);
+		engine.setCheckDigit(CheckDigit.DAMM);
+
+		OTP otp = engine.generatePasswordWithHmac(params);
+		assertEquals(13, otp.getPassword().length());
+		assertTrue(otp.hasValidChecksum(CheckDigit.DAMM));
+
+		// the other engine expects a different check digit
+		OTP damm = new OTP("1234567890123", otp.getHmac());
+		assertTrue(damm.hasValidChecksum(CheckDigit.DAMM));
+		assertFalse(damm.hasValidChecksum(CheckDigit.WEIGHTED));
+		OTPEngine weighted = OTPEngine.getInstance(key);
+		weighted.setPasswordDigits(12);
+		assertEquals(Result.Code.FAIL_INVALID_CODE, weighted.validatePasswordWithHmac(damm, params).getResultCode());
+		assertEquals(Result.Code.SUCCESS,
+				engine.validatePasswordWithHmac(new OTP(otp.getPassword(), otp.getHmac()), params).getResultCode());
+
+		try {
+			engine.setPasswordDigits(5);
+			fail("Passwords too short");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testOTPEngine_BulkGeneration() {
+
+		OTPEngine engine = OTPEngine.getInstance(key);
+
+		List<String[]> paramSets = new ArrayList<String[]>();
+		for (int i = 0; i < 2000; i++) {
+			paramSets.add(new String[] { "CUSTOMER-" + i });
+		}
+		List<OTP> otps = engine.generatePasswordsWithHmac(paramSets);
+		assertEquals(paramSets.size(), otps.size());
+
+		// results follow the order of the params
+		for (int i = 0; i < paramSets.size(); i++) {
+			assertEquals("At " + i, Result.Code.SUCCESS,
+					engine.validatePasswordWithHmac(otps.get(i), paramSets.get(i)).getResultCode());
+		}
+		assertEquals(Result.Code.FAIL_INVALID_CODE,
+				engine.validatePasswordWithHmac(otps.get(1), paramSets.get(0)).getResultCode());
+	}
+
+	@Test
+	public void testOTPEngine_StreamingGeneration() {
+
+		OTPEngine engine = OTPEngine.getInstance(key);
+
+		// params are pulled one at a time as passwords are consumed
+		final AtomicInteger pulled = new AtomicInteger();
+		Iterator<OTP> otps = engine.generatePasswordsWithHmac(IntStream.range(0, 1000000)
+				.mapToObj(i -> new String[] { "CUSTOMER-" + pulled.getAndIncrement() })).iterator();
+		for (int i = 0; i < 10; i++) {
+			OTP otp = otps.next();
+			assertEquals(Result.Code.SUCCESS,
+					engine.validatePasswordWithHmac(otp, new String[] { "CUSTOMER-" + i }).getResultCode());
+		}
+		assertTrue(pulled.get() < 1000);
+
+		List<String[]> paramSets = IntStream.range(0, 500).mapToObj(i -> new String[] { "PARALLEL-" + i })
+				.collect(Collectors.toList());
+		List<OTP> parallel = engine.generatePasswordsWithHmac(paramSets.parallelStream()).collect(Collectors.toList());
+		for (int i = 0; i < paramSets.size(); i++) {
+			assertEquals(Result.Code.SUCCESS,
+					engine.validatePasswordWithHmac(parallel.get(i), paramSets.get(i)).getResultCode());
+		}
+	}
+
+	@Test
+	public void testOTPEngine_BatchValidation() {
+
+		OTPEngine generationEngine = OTPEngine.getInstance(key);
+
+		// a mix of valid, wrong, swapped and replayed codes over a few subjects
+		List<OTP> otps = new ArrayList<OTP>();
+		List<String[]> paramSets = new ArrayList<String[]>();
+		for (int i = 0; i < 600; i++) {
+			String[] subject = new String[] { "CUSTOMER-" + (i % 40) };
+			OTP otp = generationEngine.generatePasswordWithHmac(subject);
+			switch (i % 5) {
+			case 1:
+				otp = new OTP("1234", otp.getHmac()).generateChecksum();
+				break;
+			case 2:
+				otp = new OTP(otp.getPassword(), otps.get(0).getHmac());
+				break;
+			case 3:
+				otps.add(otp);
+				paramSets.add(subject);
+				break;
 			}
-		});
+			otps.add(otp);
+			paramSets.add(subject);
+		}
+
+		OTPEngine sequentialEngine = OTPEngine.getInstance(key);
+		List<Result.Code> expected = new ArrayList<Result.Code>();
+		for (int i = 0; i < otps.size(); i++) {
+			expected.add(sequentialEngine.validatePasswordWithHmac(otps.get(i), paramSets.get(i)).getResultCode());
+		}
+		assertTrue(expected.contains(Result.Code.FAIL_MAX_ATTEMPTS_EXCEEDED));
+		assertTrue(expected.contains(Result.Code.FAIL_CODE_REPLAYED));
+
+		OTPEngine batchEngine = OTPEngine.getInstance(key);
+		List<Result> results = batchEngine.validatePasswordsWithHmac(otps, paramSets);
+		assertEquals(expected.size(), results.size());
+		for (int i = 0; i < results.size(); i++) {
+			assertEquals("At " + i, expected.get(i), results.get(i).getResultCode());
+		}
+	}
+
+	@Test
+	public void testOTPEngine_PreviousCheckDigit() {
+		// every digit weighted by 3, sums below 10 kept
+		assertEquals(6, CheckDigit.LEGACY.compute(1234567));
+		assertEquals(9, CheckDigit.LEGACY.compute(3));
+
+		OTPEngine engine = OTPEngine.getInstance(key);
+		engine.setPreviousCheckDigit(CheckDigit.LEGACY);
+		assertEquals(Result.Code.SUCCESS,
+				engine.validatePasswordWithHmac(generateWithLegacyCheckDigit(engine), params).getResultCode());
+
+		// passwords issued late in the window outlive it
+		engine.timeLapGenerator = getTimeLapFromFuture(OTPEngine.PASSWORD_EXPRIRY - OTPEngine.TIME_LAP_INTERVAL);
+		OTP legacy = generateWithLegacyCheckDigit(engine);
+		OTP current = engine.generatePasswordWithHmac(params);
+		engine.timeLapGenerator = getTimeLapFromFuture(OTPEngine.PASSWORD_EXPRIRY + 1);
+		assertEquals(Result.Code.FAIL_INVALID_CODE, engine.validatePasswordWithHmac(legacy, params).getResultCode());
+		assertEquals(Result.Code.SUCCESS, engine.validatePasswordWithHmac(current, params).getResultCode());
+
+		// none accepted once turned off
+		OTPEngine strict = OTPEngine.getInstance(key);
+		strict.setPreviousCheckDigit(null);
+		assertEquals(Result.Code.FAIL_INVALID_CODE,
+				strict.validatePasswordWithHmac(generateWithLegacyCheckDigit(strict), params).getResultCode());
+	}
+
+	/*
+	 * Generates a password and replaces its check digit with a different,
+	 * legacy one.
+	 */
+	private OTP generateWithLegacyCheckDigit(OTPEngine engine) {
+		while (true) {
+			OTP otp = engine.generatePasswordWithHmac(params);
+			long code = otp.getCode() / 10;
+			int legacy = CheckDigit.LEGACY.compute(code);
+			if (legacy != otp.getCode() % 10) {
+				return new OTP(code * 10 + legacy, otp.getDigits(), otp.getHmac());
+			}
+		}
+	}
+
+	private TimeLaps getTimeLapFromFuture(final int minutesIntoFuture) {
+		return new TimeLaps(OTPEngine.TIME_LAP_INTERVAL,
+				Clock.offset(Clock.systemDefaultZone(), Duration.ofMinutes(minutesIntoFuture)));
 	}
 
 }
@@ -0,0 +1,211 @@
+package com.arctix.security.otp;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.arctix.security.otp.OTPEngine.Result;
+
+import junit.framework.TestCase;
+
+public class TestOTPEngineAsync extends TestCase {
+
+	private static final long LATENCY_MILLIS = 50;
+
+	private SecretKey key = null;
+
+	private String[] params = null;
+
+	private ScheduledExecutorService network = null;
+
+	private DelayedCounter counter = null;
+
+	@Before
+	public void setUp() throws Exception {
+		key = KeyGenerator.getInstance("AES").generateKey();
+		params = new String[] { "0010000123434343" };
+		network = Executors.newScheduledThreadPool(2);
+		counter = new DelayedCounter(new InMemorySubjectCounter(), network, LATENCY_MILLIS);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		network.shutdownNow();
+	}
+
+	@Test
+	public void testValidateAsync() throws Exception {
+		OTPEngine engine = OTPEngine.getInstance(key, "HmacSHA1", counter);
+
+		OTP otp = engine.generatePasswordWithHmac(params);
+		OTP wrongPassword = new OTP("1234", otp.getHmac()).generateChecksum();
+
+		assertEquals(Result.Code.FAIL_INVALID_CODE, engine.validatePasswordWithHmacAsync(wrongPassword, params).get()
+				.getResultCode());
+		assertEquals(1, counter.getCurrentValueAsync(OTPEngine.subjectOf(params)).get().intValue());
+
+		assertEquals(Result.Code.SUCCESS, engine.validatePasswordWithHmacAsync(otp, params).get().getResultCode());
+		assertEquals(0, counter.getCurrentValueAsync(OTPEngine.subjectOf(params)).get().intValue());
+		assertEquals(Result.Code.FAIL_CODE_REPLAYED, engine.validatePasswordWithHmacAsync(otp, params).get()
+				.getResultCode());
+
+		// the synchronous methods wait for the same counter
+		OTP another = engine.generatePasswordWithHmac(params);
+		wrongPassword = new OTP("1234", another.getHmac()).generateChecksum();
+		for (int i = 0; i <= OTPEngine.MAX_ATTEMPTS; i++) {
+			engine.validatePasswordWithHmac(wrongPassword, params);
+		}
+		assertEquals(Result.Code.FAIL_MAX_ATTEMPTS_EXCEEDED, engine.validatePasswordWithHmacAsync(another, params)
+				.get().getResultCode());
+	}
+
+	@Test
+	public void testDeadline() throws Exception {
+		OTPEngine engine = OTPEngine.getInstance(key, "HmacSHA1", counter);
+		OTP otp = engine.generatePasswordWithHmac(params);
+
+		try {
+			engine.validatePasswordWithHmacAsync(otp, params, Duration.ofMillis(LATENCY_MILLIS / 5)).get();
+			fail("Counter answered before the deadline");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof TimeoutException);
+		}
+
+		OTP another = engine.generatePasswordWithHmac(params);
+		assertEquals(Result.Code.SUCCESS, engine
+				.validatePasswordWithHmacAsync(another, params, Duration.ofMillis(LATENCY_MILLIS * 20)).get()
+				.getResultCode());
+	}
+
+	@Test
+	public void testOverlappingValidations() throws Exception {
+		OTPEngine engine = OTPEngine.getInstance(key, "HmacSHA1", counter);
+		final int count = 200;
+
+		List<OTP> otps = new ArrayList<OTP>();
+		List<String[]> paramSets = new ArrayList<String[]>();
+		for (int i = 0; i < count; i++) {
+			String[] subject = new String[] { "CUSTOMER-" + i };
+			paramSets.add(subject);
+			otps.add(engine.generatePasswordWithHmac(subject));
+		}
+
+		// every validation takes two round trips; issued from one thread
+		// they only finish quickly if none of them blocks
+		long start = System.nanoTime();
+		List<CompletableFuture<Result>> futures = new ArrayList<CompletableFuture<Result>>();
+		for (int i = 0; i < count; i++) {
+			futures.add(engine.validatePasswordWithHmacAsync(otps.get(i), paramSets.get(i)));
+		}
+		long issued = System.nanoTime() - start;
+		for (CompletableFuture<Result> future : futures) {
+			assertEquals(Result.Code.SUCCESS, future.get(10, TimeUnit.SECONDS).getResultCode());
+		}
+		long elapsed = System.nanoTime() - start;
+
+		assertTrue("Issuing took " + issued, issued < TimeUnit.MILLISECONDS.toNanos(count * LATENCY_MILLIS / 10));
+		assertTrue("Validating took " + elapsed,
+				elapsed < TimeUnit.MILLISECONDS.toNanos(count * LATENCY_MILLIS / 10));
+		assertEquals(count * 2, counter.calls.get());
+	}
+
+	@Test
+	public void testSyncCounterOnExecutor() throws Exception {
+		InMemorySubjectCounter inMemory = new InMemorySubjectCounter();
+		AsyncCounter adapted = AsyncCounter.of(inMemory, network);
+
+		assertEquals(1, adapted.getNextValueAsync("alice").get().intValue());
+		assertEquals(2, adapted.getNextValueAsync("alice").get().intValue());
+		assertEquals(2, inMemory.getCurrentValue("alice"));
+		adapted.resetAsync("alice").get();
+		assertEquals(0, adapted.getCurrentValueAsync("alice").get().intValue());
+
+		Counter blocking = AsyncCounter.blocking(counter);
+		assertEquals(1, blocking.getNextValue("bob"));
+		assertEquals(1, blocking.getCurrentValue("bob"));
+
+		// the methods without a subject count the default one
+		assertEquals(1, blocking.getNextValue());
+		assertEquals(1, blocking.getCurrentValue(""));
+		assertEquals(0, blocking.reset());
+		assertEquals(0, blocking.getCurrentValue());
+	}
+
+	@Test
+	public void testConcurrentGuesses() throws Exception {
+		OTPEngine engine = OTPEngine.getInstance(key, "HmacSHA1", counter);
+		OTP wrongPassword = new OTP("1234", engine.generatePasswordWithHmac(params).getHmac()).generateChecksum();
+
+		// all guesses are in flight before the counter answers any of them
+		List<CompletableFuture<Result>> futures = new ArrayList<CompletableFuture<Result>>();
+		for (int i = 0; i < 64; i++) {
+			futures.add(engine.validatePasswordWithHmacAsync(wrongPassword, params));
+		}
+		int checked = 0;
+		for (CompletableFuture<Result> future : futures) {
+			if (future.get(10, TimeUnit.SECONDS).getResultCode() != Result.Code.FAIL_MAX_ATTEMPTS_EXCEEDED) {
+				checked++;
+			}
+		}
+		assertEquals(OTPEngine.MAX_ATTEMPTS + 1, checked);
+	}
+
+	/**
+	 * Stands in for a remote counter store. Answers after a fixed latency
+	 * without holding a thread while waiting.
+	 */
+	private static class DelayedCounter implements AsyncCounter {
+
+		final Counter store;
+
+		final ScheduledExecutorService network;
+
+		final long latencyMillis;
+
+		final AtomicInteger calls = new AtomicInteger();
+
+		DelayedCounter(Counter store, ScheduledExecutorService network, long latencyMillis) {
+			this.store = store;
+			this.network = network;
+			this.latencyMillis = latencyMillis;
+		}
+
+		@Override
+		public CompletableFuture<Integer> getCurrentValueAsync(String subject) {
+			return later(() -> store.getCurrentValue(subject));
+		}
+
+		@Override
+		public CompletableFuture<Integer> getNextValueAsync(String subject) {
+			return later(() -> store.getNextValue(subject));
+		}
+
+		@Override
+		public CompletableFuture<Integer> resetAsync(String subject) {
+			return later(() -> store.reset(subject));
+		}
+
+		private CompletableFuture<Integer> later(IntSupplier operation) {
+			calls.incrementAndGet();
+			CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+			network.schedule(() -> future.complete(operation.getAsInt()), latencyMillis, TimeUnit.MILLISECONDS);
+			return future;
+		}
+	}
+
+}
@@ -0,0 +1,176 @@
+package com.arctix.security.otp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.arctix.security.otp.OTPEngine.Result;
+import com.arctix.security.otp.hmac.HMACEngine;
+
+import junit.framework.TestCase;
+
+public class TestOTPEngineConcurrency extends TestCase {
+
+	private static final int THREADS = 64;
+
+	private static final int ITERATIONS = 200;
+
+	private SecretKey key = null;
+
+	@Before
+	public void setUp() throws Exception {
+		KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+		key = keyGen.generateKey();
+	}
+
+	@Test
+	public void testSharedHMACEngine() throws Exception {
+		final HMACEngine engine = HMACEngine.getInstance(key);
+		final String[] params = new String[] { "0010000123434343" };
+		final String expected = engine.generateHMAC("1234567", params);
+
+		List<Boolean> results = runConcurrently(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				for (int i = 0; i < ITERATIONS; i++) {
+					if (!expected.equals(engine.generateHMAC("1234567", params))) {
+						return false;
+					}
+					if (!engine.validateHMAC(expected, "1234567", params)) {
+						return false;
+					}
+				}
+				return true;
+			}
+		});
+		for (Boolean result : results) {
+			assertTrue(result);
+		}
+	}
+
+	@Test
+	public void testSharedOTPEngine() throws Exception {
+		final OTPEngine engine = OTPEngine.getInstance(key);
+
+		List<Boolean> results = runConcurrently(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				for (int i = 0; i < ITERATIONS; i++) {
+					// distinct params, equal passwords would make equal codes
+					String[] params = new String[] { Thread.currentThread().getName(), String.valueOf(i) };
+					OTP otp = engine.generatePasswordWithHmac(params);
+					if (engine.validatePasswordWithHmac(otp, params).getResultCode() != Result.Code.SUCCESS) {
+						return false;
+					}
+				}
+				return true;
+			}
+		});
+		for (Boolean result : results) {
+			assertTrue(result);
+		}
+	}
+
+	@Test
+	public void testConcurrentGuesses() throws Exception {
+		// a slow store lets every guess reach the counter before any returns
+		final Counter slow = new InMemorySubjectCounter() {
+			@Override
+			public int getNextValue(String subject) {
+				int value = super.getNextValue(subject);
+				pause();
+				return value;
+			}
+
+			@Override
+			public int getCurrentValue(String subject) {
+				int value = super.getCurrentValue(subject);
+				pause();
+				return value;
+			}
+		};
+		final OTPEngine engine = OTPEngine.getInstance(key, slow);
+		final String[] params = new String[] { "0010000123434343" };
+		final OTP wrongPassword = new OTP("1234", engine.generatePasswordWithHmac(params).getHmac())
+				.generateChecksum();
+
+		List<Result.Code> results = runConcurrently(new Callable<Result.Code>() {
+			@Override
+			public Result.Code call() {
+				return engine.validatePasswordWithHmac(wrongPassword, params).getResultCode();
+			}
+		});
+		int checked = 0;
+		for (Result.Code result : results) {
+			if (result != Result.Code.FAIL_MAX_ATTEMPTS_EXCEEDED) {
+				checked++;
+			}
+		}
+		assertEquals(OTPEngine.MAX_ATTEMPTS + 1, checked);
+	}
+
+	@Test
+	public void testInMemoryCounter() throws Exception {
+		final Counter counter = new InMemoryCounter();
+
+		runConcurrently(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				for (int i = 0; i < ITERATIONS; i++) {
+					counter.getNextValue();
+				}
+				return true;
+			}
+		});
+		assertEquals(THREADS * ITERATIONS, counter.getCurrentValue());
+	}
+
+	private static void pause() {
+		try {
+			Thread.sleep(20);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/*
+	 * Runs the task on all threads at once and collects the results.
+	 */
+	private <T> List<T> runConcurrently(final Callable<T> task) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		final CountDownLatch start = new CountDownLatch(1);
+		try {
+			List<Future<T>> futures = new ArrayList<Future<T>>();
+			for (int i = 0; i < THREADS; i++) {
+				futures.add(executor.submit(new Callable<T>() {
+					@Override
+					public T call() throws Exception {
+						start.await();
+						return task.call();
+					}
+				}));
+			}
+			start.countDown();
+
+			List<T> results = new ArrayList<T>();
+			for (Future<T> future : futures) {
+				results.add(future.get(60, TimeUnit.SECONDS));
+			}
+			return results;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+}
@@ -0,0 +1,138 @@
+package com.arctix.security.otp;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.List;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.arctix.security.otp.InMemoryOTPMetrics.Histogram;
+import com.arctix.security.otp.OTPEngine.Result;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import junit.framework.TestCase;
+
+public class TestOTPMetrics extends TestCase {
+
+	private SecretKey key = null;
+
+	private String[] params = null;
+
+	@Before
+	public void setUp() throws Exception {
+		key = KeyGenerator.getInstance("AES").generateKey();
+		params = new String[] { "0010000123434343" };
+	}
+
+	@Test
+	public void testOutcomesAndPhases() {
+		OTPEngine engine = OTPEngine.getInstance(key);
+		InMemoryOTPMetrics metrics = new InMemoryOTPMetrics();
+		engine.setMetrics(metrics);
+
+		OTP otp = engine.generatePasswordWithHmac(params);
+		assertEquals(Result.Code.SUCCESS, engine.validatePasswordWithHmac(otp, params).getResultCode());
+		assertEquals(Result.Code.FAIL_CODE_REPLAYED, engine.validatePasswordWithHmac(otp, params).getResultCode());
+		assertEquals(Result.Code.FAIL_INVALID_CODE,
+				engine.validatePasswordWithHmac(new OTP("1234", "bad"), params).getResultCode());
+
+		// a legacy code from the future scans the whole window
+		OTPEngine legacyEngine = OTPEngine.getInstance(key);
+		legacyEngine.setTokenVersion(OTPEngine.LEGACY_TOKEN_VERSION);
+		legacyEngine.timeLapGenerator = new TimeLaps(OTPEngine.TIME_LAP_INTERVAL,
+				Clock.offset(Clock.systemDefaultZone(), Duration.ofMinutes(OTPEngine.PASSWORD_EXPRIRY * 2)));
+		OTP legacy = legacyEngine.generatePasswordWithHmac(params);
+		assertEquals(Result.Code.FAIL_CODE_EXPIRED, engine.validatePasswordWithHmac(legacy, params).getResultCode());
+
+		assertEquals(1, metrics.getGenerated());
+		assertEquals(1, metrics.getCount(Result.Code.SUCCESS));
+		assertEquals(1, metrics.getCount(Result.Code.FAIL_CODE_REPLAYED));
+		assertEquals(1, metrics.getCount(Result.Code.FAIL_INVALID_CODE));
+		assertEquals(1, metrics.getCount(Result.Code.FAIL_CODE_EXPIRED));
+		assertEquals(1, metrics.getLapsScanned(1));
+		assertEquals(1, metrics.getLapsScanned(OTPEngine.TIME_LAP_PERIODS));
+
+		for (OTPMetrics.Phase phase : OTPMetrics.Phase.values()) {
+			assertTrue(phase.name(), metrics.getPercentile(phase, 50) > 0);
+			assertTrue(phase.name(), metrics.getPercentile(phase, 50) <= metrics.getPercentile(phase, 99));
+		}
+		assertTrue(metrics.getGeneratePercentile(99) > 0);
+		assertTrue(metrics.getValidatePercentile(50) <= metrics.getValidatePercentile(100));
+
+		// turned off again
+		engine.setMetrics(null);
+		engine.generatePasswordWithHmac(params);
+		assertEquals(1, metrics.getGenerated());
+	}
+
+	@Test
+	public void testHistogram() {
+		Histogram histogram = new Histogram();
+		assertEquals(0, histogram.percentile(50));
+		for (long value = 1; value <= 1000; value++) {
+			histogram.record(value * 1000);
+		}
+		assertEquals(1000, histogram.count());
+		assertWithin(500000, histogram.percentile(50));
+		assertWithin(990000, histogram.percentile(99));
+		assertWithin(1000000, histogram.percentile(100));
+		assertWithin(1000, histogram.percentile(0));
+
+		// bucket bounds cover every value exactly once
+		for (long value = 0; value < 100000; value++) {
+			int bucket = Histogram.bucket(value);
+			assertTrue(value <= Histogram.highestValue(bucket));
+			assertTrue(bucket == 0 || value > Histogram.highestValue(bucket - 1));
+		}
+		assertEquals(Long.MAX_VALUE, Histogram.highestValue(Histogram.bucket(Long.MAX_VALUE)));
+	}
+
+	@Test
+	public void testFlightRecorderEvents() throws Exception {
+		OTPEngine engine = OTPEngine.getInstance(key);
+		Path dump = Files.createTempFile("otp", ".jfr");
+		try (Recording recording = new Recording()) {
+			recording.enable("com.arctix.security.otp.Generate").withoutThreshold();
+			recording.enable("com.arctix.security.otp.Validate").withoutThreshold();
+			recording.start();
+
+			OTP otp = engine.generatePasswordWithHmac(params);
+			engine.validatePasswordWithHmac(otp, params);
+
+			recording.stop();
+			recording.dump(dump);
+		}
+		List<RecordedEvent> events = RecordingFile.readAllEvents(dump);
+		Files.delete(dump);
+
+		int generated = 0, validated = 0;
+		for (RecordedEvent event : events) {
+			String name = event.getEventType().getName();
+			if (name.equals("com.arctix.security.otp.Generate")) {
+				assertEquals(OTPEngine.TOKEN_VERSION, event.getInt("tokenVersion"));
+				generated++;
+			} else if (name.equals("com.arctix.security.otp.Validate")) {
+				assertEquals("SUCCESS", event.getString("result"));
+				assertEquals(1, event.getInt("lapsScanned"));
+				assertFalse(event.getBoolean("legacy"));
+				validated++;
+			}
+		}
+		assertEquals(1, generated);
+		assertEquals(1, validated);
+	}
+
+	private static void assertWithin(long expected, long actual) {
+		assertTrue("Expected about " + expected + " but was " + actual,
+				actual >= expected && actual <= expected + expected / 8);
+	}
+
+}
@@ -0,0 +1,197 @@
+package com.arctix.security.otp;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class TestRandomNumberGenerator extends TestCase {
+
+	// chi-square critical value at p = 0.0001 for 9 degrees of freedom
+	private static final double CRITICAL_9 = 33.72;
+
+	@Test
+	public void testFixedLength() {
+		for (int digits = 1; digits <= RandomNumberGenerator.MAX_DIGITS; digits++) {
+			RandomNumberGenerator rng = RandomNumberGenerator.getInstance(digits);
+			for (int i = 0; i < 10000; i++) {
+				long code = rng.getRandomLong();
+				assertTrue("Digits " + digits, code >= 0 && Long.toString(code).length() <= digits);
+				assertEquals("Digits " + digits, digits, OTP.format(code, digits).length());
+			}
+		}
+		assertTrue(RandomNumberGenerator.getInstance().getRandomInt() < 10000000);
+		assertTrue(RandomNumberGenerator.getInstance(9).getRandomInt() < 1000000000);
+
+		try {
+			RandomNumberGenerator.getInstance(10).getRandomInt();
+			fail("Codes of 10 digits do not fit an int");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		try {
+			RandomNumberGenerator.getInstance(RandomNumberGenerator.MAX_DIGITS + 1);
+			fail("Codes too long");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testUniformity() {
+		// every single digit code is equally likely, zero included
+		RandomNumberGenerator rng = RandomNumberGenerator.getInstance(1);
+		long[] counts = new long[10];
+		for (int i = 0; i < 100000; i++) {
+			counts[rng.getRandomInt()]++;
+		}
+		assertTrue(chiSquare(counts) < CRITICAL_9);
+
+		// and so are the leading and trailing digits of longer codes
+		rng = RandomNumberGenerator.getInstance(6);
+		long[] leading = new long[10];
+		long[] trailing = new long[10];
+		for (int i = 0; i < 100000; i++) {
+			int code = rng.getRandomInt();
+			leading[code / 100000]++;
+			trailing[code % 10]++;
+		}
+		assertTrue(chiSquare(leading) < CRITICAL_9);
+		assertTrue(chiSquare(trailing) < CRITICAL_9);
+
+		// codes too long for an int as well
+		rng = RandomNumberGenerator.getInstance(12);
+		leading = new long[10];
+		trailing = new long[10];
+		for (int i = 0; i < 100000; i++) {
+			long code = rng.getRandomLong();
+			leading[(int) (code / 100000000000L)]++;
+			trailing[(int) (code % 10)]++;
+		}
+		assertTrue(chiSquare(leading) < CRITICAL_9);
+		assertTrue(chiSquare(trailing) < CRITICAL_9);
+	}
+
+	@Test
+	public void testPooledGenerator() throws Exception {
+		RandomNumberGenerator rng = RandomNumberGenerator.getInstance(6, 1024);
+		try {
+			long[] counts = new long[10];
+			// drains the pool several times over
+			for (int i = 0; i < 100000; i++) {
+				int code = rng.getRandomInt();
+				assertTrue(code >= 0 && code < 1000000);
+				counts[code % 10]++;
+			}
+			assertTrue(chiSquare(counts) < CRITICAL_9);
+		} finally {
+			rng.close();
+		}
+		// still generates once the pool is closed
+		assertTrue(rng.getRandomInt() < 1000000);
+	}
+
+	@Test
+	public void testConcurrentPool() throws Exception {
+		final CodePool pool = new CodePool(64);
+		final int producers = 4;
+		final int perProducer = 50000;
+		final BitSet seen = new BitSet(producers * perProducer);
+		ExecutorService executor = Executors.newFixedThreadPool(producers * 2);
+		final CountDownLatch start = new CountDownLatch(1);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int p = 0; p < producers; p++) {
+				final int first = p * perProducer;
+				futures.add(executor.submit(() -> {
+					start.await();
+					for (int i = first; i < first + perProducer; i++) {
+						while (!pool.offer(i)) {
+							Thread.yield();
+						}
+					}
+					return null;
+				}));
+			}
+			for (int c = 0; c < producers; c++) {
+				futures.add(executor.submit(() -> {
+					start.await();
+					for (int i = 0; i < perProducer; i++) {
+						long code;
+						while ((code = pool.poll()) == CodePool.EMPTY) {
+							Thread.yield();
+						}
+						synchronized (seen) {
+							assertFalse("Taken twice " + code, seen.get((int) code));
+							seen.set((int) code);
+						}
+					}
+					return null;
+				}));
+			}
+			start.countDown();
+			for (Future<?> future : futures) {
+				future.get(60, TimeUnit.SECONDS);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(producers * perProducer, seen.cardinality());
+		assertEquals(0, pool.size());
+		assertEquals(CodePool.EMPTY, pool.poll());
+	}
+
+	@Test
+	public void testConcurrentGeneration() throws Exception {
+		final RandomNumberGenerator rng = RandomNumberGenerator.getInstance(8, 256);
+		final int threads = 16;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<long[]>> futures = new ArrayList<Future<long[]>>();
+			for (int t = 0; t < threads; t++) {
+				futures.add(executor.submit(() -> {
+					long[] counts = new long[10];
+					for (int i = 0; i < 20000; i++) {
+						int code = rng.getRandomInt();
+						assertTrue(code >= 0 && code < 100000000);
+						counts[code % 10]++;
+					}
+					return counts;
+				}));
+			}
+			long[] counts = new long[10];
+			for (Future<long[]> future : futures) {
+				long[] partial = future.get(60, TimeUnit.SECONDS);
+				for (int i = 0; i < counts.length; i++) {
+					counts[i] += partial[i];
+				}
+			}
+			assertTrue(chiSquare(counts) < CRITICAL_9);
+		} finally {
+			executor.shutdownNow();
+			rng.close();
+		}
+	}
+
+	private static double chiSquare(long[] counts) {
+		long total = 0;
+		for (long count : counts) {
+			total += count;
+		}
+		double expected = (double) total / counts.length;
+		double chiSquare = 0;
+		for (long count : counts) {
+			chiSquare += (count - expected) * (count - expected) / expected;
+		}
+		return chiSquare;
+	}
+
+}
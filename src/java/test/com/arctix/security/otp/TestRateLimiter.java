@@ -0,0 +1,158 @@
+package com.arctix.security.otp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.KeyGenerator;
+
+import org.junit.Test;
+
+import com.arctix.security.otp.OTPEngine.Result;
+
+import junit.framework.TestCase;
+
+public class TestRateLimiter extends TestCase {
+
+	private MutableClock clock = new MutableClock(1420070400000L);
+
+	private RateLimiter limiter = new RateLimiter(3, 10, TimeUnit.SECONDS, 1000, clock);
+
+	@Test
+	public void testBurstAndRefill() {
+		for (int i = 0; i < 3; i++) {
+			assertTrue(limiter.tryAcquire("alice"));
+		}
+		assertFalse(limiter.tryAcquire("alice"));
+		assertEquals(0, limiter.available("alice"));
+		// keys are limited apart
+		assertTrue(limiter.tryAcquire("bob"));
+
+		// time towards the next token is kept across calls
+		clock.advance(6000);
+		assertFalse(limiter.tryAcquire("alice"));
+		clock.advance(4000);
+		assertTrue(limiter.tryAcquire("alice"));
+		assertFalse(limiter.tryAcquire("alice"));
+
+		// refills up to the burst, no further
+		clock.advance(TimeUnit.HOURS.toMillis(1));
+		assertEquals(3, limiter.available("alice"));
+		for (int i = 0; i < 3; i++) {
+			assertTrue(limiter.tryAcquire("alice"));
+		}
+		assertFalse(limiter.tryAcquire("alice"));
+	}
+
+	@Test
+	public void testIdleBucketsSwept() {
+		limiter.tryAcquire("alice");
+		limiter.tryAcquire("bob");
+		limiter.tryAcquire("bob");
+		assertEquals(2, limiter.size());
+
+		clock.advance(10000);
+		limiter.sweep();
+		// alice has refilled, bob still waits for a token
+		assertEquals(1, limiter.size());
+		assertEquals(3, limiter.available("alice"));
+		assertEquals(2, limiter.available("bob"));
+
+		clock.advance(10000);
+		limiter.sweep();
+		assertEquals(0, limiter.size());
+		assertTrue(limiter.tryAcquire("bob"));
+		assertEquals(2, limiter.available("bob"));
+	}
+
+	@Test
+	public void testCapacity() {
+		RateLimiter bounded = new RateLimiter(3, 10, TimeUnit.SECONDS, 100, clock);
+		for (int i = 0; i < 3; i++) {
+			assertTrue(bounded.tryAcquire("alice"));
+		}
+		// keys sprayed once make room for each other, not at alice's cost
+		for (int i = 0; i < 10000; i++) {
+			assertTrue(bounded.tryAcquire("key" + i));
+			assertTrue("Holding " + bounded.size(), bounded.size() <= 100);
+		}
+		assertFalse(bounded.tryAcquire("alice"));
+
+		// refilled buckets go first
+		clock.advance(30000);
+		assertTrue(bounded.tryAcquire("bob"));
+		assertEquals(2, bounded.available("bob"));
+		assertTrue(bounded.size() <= 100);
+	}
+
+	@Test
+	public void testConcurrentAcquire() throws Exception {
+		RateLimiter limiter = new RateLimiter(1000, 1, TimeUnit.HOURS, 1000, clock);
+		int threads = 8;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		CountDownLatch start = new CountDownLatch(1);
+		try {
+			List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+			for (int t = 0; t < threads; t++) {
+				futures.add(executor.submit(() -> {
+					start.await();
+					int acquired = 0;
+					for (int i = 0; i < 500; i++) {
+						if (limiter.tryAcquire("alice")) {
+							acquired++;
+						}
+						if (i % 50 == 0) {
+							limiter.sweep();
+						}
+					}
+					return acquired;
+				}));
+			}
+			start.countDown();
+			int acquired = 0;
+			for (Future<Integer> future : futures) {
+				acquired += future.get();
+			}
+			assertEquals(1000, acquired);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testEngineRejectsBeforeGenerating() throws Exception {
+		OTPEngine engine = OTPEngine.getInstance(KeyGenerator.getInstance("AES").generateKey());
+		InMemoryOTPMetrics metrics = new InMemoryOTPMetrics();
+		engine.setMetrics(metrics);
+		String[] params = new String[] { "CUSTOMER-1" };
+
+		// unlimited until a limiter is set
+		for (int i = 0; i < 10; i++) {
+			assertEquals(Result.Code.SUCCESS, engine.tryGeneratePasswordWithHmac(params).getResultCode());
+		}
+
+		engine.setRateLimiter(limiter);
+		for (int i = 0; i < 3; i++) {
+			Result result = engine.tryGeneratePasswordWithHmac(params);
+			assertEquals(Result.Code.SUCCESS, result.getResultCode());
+			assertEquals(Result.Code.SUCCESS,
+					engine.validatePasswordWithHmac(result.getOtp(), params).getResultCode());
+		}
+		long generated = metrics.getGenerated();
+		Result rejected = engine.tryGeneratePasswordWithHmac(params);
+		assertEquals(Result.Code.FAIL_RATE_LIMITED, rejected.getResultCode());
+		assertNull(rejected.getOtp());
+		assertEquals(generated, metrics.getGenerated());
+		assertEquals(1, metrics.getRateLimited());
+
+		// callers have limits of their own
+		assertEquals(Result.Code.SUCCESS, engine.tryGeneratePasswordWithHmac(params, "10.0.0.1").getResultCode());
+		assertEquals(Result.Code.SUCCESS,
+				engine.tryGeneratePasswordWithHmac(new String[] { "CUSTOMER-2" }).getResultCode());
+	}
+
+}
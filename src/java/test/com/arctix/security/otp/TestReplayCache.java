@@ -0,0 +1,120 @@
+package com.arctix.security.otp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class TestReplayCache extends TestCase {
+
+	private MutableClock clock = new MutableClock(1420070400000L);
+
+	private ReplayCache cache = new ReplayCache(5, 15, 1024, clock);
+
+	@Test
+	public void testDigest() {
+		String[] params = { "0010000123434343" };
+		assertEquals(cache.digest("ABCDEF", params), cache.digest("ABCDEF", params.clone()));
+		assertFalse(cache.digest("ABCDEF", params) == cache.digest("ABCDEE", params));
+		assertFalse(cache.digest("AB", new String[] { "CD" }) == cache.digest("ABC", new String[] { "D" }));
+
+		byte[] mac = { 1, 2, 3, 4 };
+		assertEquals(cache.digest(mac, 1, 2, params), cache.digest(new byte[] { 2, 3 }, 0, 2, params));
+		assertFalse(cache.digest(mac, 0, 2, params) == cache.digest(mac, 1, 2, params));
+		assertFalse(cache.digest(mac, 0, 2, new String[] { "CD" }) == cache.digest(mac, 0, 3, new String[] { "D" }));
+	}
+
+	@Test
+	public void testMarkUsed() {
+		long digest = cache.digest("ABCDEF", new String[] { "0010000123434343" });
+		assertFalse(cache.isUsed(digest));
+		assertTrue(cache.markUsed(digest));
+		assertTrue(cache.isUsed(digest));
+		assertFalse(cache.markUsed(digest));
+	}
+
+	@Test
+	public void testExpiresWithLaps() {
+		long digest = cache.digest("ABCDEF", new String[] { "0010000123434343" });
+		cache.markUsed(digest);
+
+		// remembered for the whole window of the code
+		for (int minute = 0; minute < 20; minute++) {
+			assertTrue("At " + minute, cache.isUsed(digest));
+			clock.advance(TimeUnit.MINUTES.toMillis(1));
+		}
+
+		// dropped with its lap once it falls out of the ring
+		clock.advance(TimeUnit.MINUTES.toMillis(5));
+		assertTrue(cache.markUsed(cache.digest("OTHER", new String[0])));
+		assertFalse(cache.isUsed(digest));
+		assertTrue(cache.markUsed(digest));
+	}
+
+	@Test
+	public void testFullBucketRejects() {
+		int accepted = 0;
+		for (int i = 0; i < 5000; i++) {
+			if (cache.markUsed(cache.digest("CODE" + i, new String[0]))) {
+				accepted++;
+			}
+		}
+		assertEquals(accepted, cache.getSize());
+		assertTrue(accepted <= cache.getCapacity());
+		assertEquals(5000 - accepted, cache.getOverflows());
+		assertTrue(cache.isUsed(cache.digest("CODE0", new String[0])));
+
+		// every code accepted was recorded, so none can be replayed
+		for (int i = 0; i < 5000; i++) {
+			assertFalse(cache.markUsed(cache.digest("CODE" + i, new String[0])));
+		}
+
+		// unless full buckets are told to accept
+		cache.setAcceptWhenFull(true);
+		assertTrue(cache.markUsed(cache.digest("CODE-OTHER", new String[0])));
+		assertTrue(cache.markUsed(cache.digest("CODE-OTHER", new String[0])));
+
+		// a new lap starts empty
+		clock.advance(TimeUnit.MINUTES.toMillis(5));
+		assertEquals(0, cache.getSize());
+	}
+
+	@Test
+	public void testConcurrentUseSucceedsOnce() throws Exception {
+		final int threads = 64;
+		final int codes = 200;
+		final AtomicInteger successes = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final CountDownLatch start = new CountDownLatch(1);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int t = 0; t < threads; t++) {
+				futures.add(executor.submit(() -> {
+					start.await();
+					for (int i = 0; i < codes; i++) {
+						if (cache.markUsed(cache.digest("CODE" + i, new String[0]))) {
+							successes.incrementAndGet();
+						}
+					}
+					return null;
+				}));
+			}
+			start.countDown();
+			for (Future<?> future : futures) {
+				future.get(60, TimeUnit.SECONDS);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(codes, successes.get());
+	}
+
+}
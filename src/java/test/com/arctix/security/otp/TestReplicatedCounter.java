@@ -0,0 +1,334 @@
+package com.arctix.security.otp;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class TestReplicatedCounter extends TestCase {
+
+	private static final long GOSSIP_INTERVAL = 20; // in millis
+
+	private static final long TIMEOUT = 10000; // in millis
+
+	private static final SecretKey CLUSTER_KEY = new SecretKeySpec("cluster-key-of-the-tests".getBytes(), "RAW");
+
+	private final List<ReplicatedCounter> started = new ArrayList<ReplicatedCounter>();
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (ReplicatedCounter node : started) {
+			node.close();
+		}
+	}
+
+	@Test
+	public void testMerge() {
+		ReplicatedCounter.Entry a = new ReplicatedCounter.Entry(0, 100, new long[] { 3, 1, 0 });
+		ReplicatedCounter.Entry b = new ReplicatedCounter.Entry(0, 200, new long[] { 2, 4, 1 });
+		ReplicatedCounter.Entry merged = a.merge(b);
+		assertEquals(8, merged.value());
+		assertEquals(200, merged.expiresAt);
+		// commutative and idempotent
+		assertEquals(8, b.merge(a).value());
+		assertSame(merged, merged.merge(a));
+
+		// a reset replaces older counts, wherever it arrives
+		ReplicatedCounter.Entry reset = new ReplicatedCounter.Entry(1, 300, 3);
+		assertEquals(0, merged.merge(reset).value());
+		assertEquals(0, reset.merge(merged).value());
+	}
+
+	@Test
+	public void testConvergence() throws Exception {
+		List<ReplicatedCounter> nodes = startNodes(3);
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (ReplicatedCounter node : nodes) {
+				futures.add(executor.submit(() -> {
+					for (int i = 0; i < 100; i++) {
+						node.getNextValue("alice");
+						node.getNextValue("subject-" + (i % 10));
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		for (ReplicatedCounter node : nodes) {
+			awaitValue(node, "alice", 300);
+			for (int i = 0; i < 10; i++) {
+				awaitValue(node, "subject-" + i, 30);
+			}
+		}
+
+		// a reset on any node clears the subject everywhere
+		nodes.get(1).reset("alice");
+		for (ReplicatedCounter node : nodes) {
+			awaitValue(node, "alice", 0);
+			assertEquals(30, node.getCurrentValue("subject-0"));
+		}
+		assertEquals(1, nodes.get(2).getNextValue("alice"));
+		for (ReplicatedCounter node : nodes) {
+			awaitValue(node, "alice", 1);
+		}
+	}
+
+	@Test
+	public void testLateNodeCatchesUp() throws Exception {
+		List<InetSocketAddress> addresses = addresses(3);
+		ReplicatedCounter first = start(0, addresses);
+		ReplicatedCounter second = start(1, addresses);
+		for (int i = 0; i < 5; i++) {
+			first.getNextValue("alice");
+		}
+		second.getNextValue("bob");
+		awaitValue(second, "alice", 5);
+
+		// started after the deltas were sent, receives the whole state
+		ReplicatedCounter third = start(2, addresses);
+		awaitValue(third, "alice", 5);
+		awaitValue(third, "bob", 1);
+	}
+
+	@Test
+	public void testBoundedOverAdmission() throws Exception {
+		List<ReplicatedCounter> nodes = startNodes(3);
+
+		// attempts spread over all nodes faster than they gossip are bounded
+		// by one limit per node
+		int admitted = 0;
+		for (int i = 0; i < 100; i++) {
+			if (attempt(nodes.get(i % nodes.size()), "alice")) {
+				admitted++;
+			}
+		}
+		assertTrue("Admitted " + admitted, admitted <= nodes.size() * (OTPEngine.MAX_ATTEMPTS + 1));
+		assertTrue("Admitted " + admitted, admitted >= OTPEngine.MAX_ATTEMPTS + 1);
+
+		// attempts slower than gossip are bounded by the limit itself
+		admitted = 0;
+		for (int i = 0; i < 20; i++) {
+			ReplicatedCounter node = nodes.get(i % nodes.size());
+			if (attempt(node, "bob")) {
+				admitted++;
+			}
+			int expected = node.getCurrentValue("bob");
+			for (ReplicatedCounter other : nodes) {
+				awaitValue(other, "bob", expected);
+			}
+		}
+		assertEquals(OTPEngine.MAX_ATTEMPTS + 1, admitted);
+	}
+
+	@Test
+	public void testExpiry() throws Exception {
+		MutableClock clock = new MutableClock(1420070400000L);
+		List<InetSocketAddress> addresses = addresses(2);
+		ReplicatedCounter first = new ReplicatedCounter(0, addresses, CLUSTER_KEY, 15, TimeUnit.MINUTES,
+				GOSSIP_INTERVAL, clock);
+		started.add(first);
+		ReplicatedCounter second = new ReplicatedCounter(1, addresses, CLUSTER_KEY, 15, TimeUnit.MINUTES,
+				GOSSIP_INTERVAL, clock);
+		started.add(second);
+
+		first.getNextValue("alice");
+		first.getNextValue("alice");
+		awaitValue(second, "alice", 2);
+		clock.advance(TimeUnit.MINUTES.toMillis(16));
+		assertEquals(0, first.getCurrentValue("alice"));
+		assertEquals(0, second.getCurrentValue("alice"));
+
+		// a new generation starts after expiry and replaces the old one
+		assertEquals(1, second.getNextValue("alice"));
+		awaitValue(first, "alice", 1);
+	}
+
+	@Test
+	public void testRejectsUnauthenticatedMessages() throws Exception {
+		List<InetSocketAddress> addresses = addresses(2);
+		ReplicatedCounter node = start(0, addresses);
+		for (int i = 0; i < 3; i++) {
+			node.getNextValue("alice");
+		}
+
+		// a host without the cluster key resets alice in ever newer
+		// generations
+		SecretKey other = new SecretKeySpec("some-other-key".getBytes(), "RAW");
+		ReplicatedCounter impostor = start(1, addresses, other);
+		for (int i = 0; i < 20; i++) {
+			impostor.getNextValue("alice");
+			impostor.reset("alice");
+			Thread.sleep(GOSSIP_INTERVAL);
+		}
+		assertEquals(3, node.getCurrentValue("alice"));
+
+		// a forged header costs the sender its connection, before the frame
+		// it announces is read
+		try (Socket socket = new Socket(addresses.get(0).getAddress(), addresses.get(0).getPort())) {
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			out.writeInt(ReplicatedCounter.MAX_MESSAGE);
+			out.writeInt(1);
+			out.write(new byte[16]);
+			out.flush();
+			socket.setSoTimeout((int) TIMEOUT);
+			assertEquals(-1, socket.getInputStream().read());
+		}
+		assertEquals(3, node.getCurrentValue("alice"));
+	}
+
+	@Test
+	public void testLargeStateIsSplit() throws Exception {
+		List<InetSocketAddress> addresses = addresses(2);
+		ReplicatedCounter first = start(0, addresses);
+		// several frames worth of subjects
+		int subjects = ReplicatedCounter.MAX_MESSAGE / 20;
+		for (int i = 0; i < subjects; i++) {
+			first.getNextValue("subject-" + i);
+		}
+
+		// started afterwards, receives them all with the whole state
+		ReplicatedCounter second = start(1, addresses);
+		await(() -> second.size() == subjects);
+		assertEquals(subjects, second.size());
+		assertEquals(1, second.getCurrentValue("subject-0"));
+		assertEquals(1, second.getCurrentValue("subject-" + (subjects - 1)));
+	}
+
+	@Test
+	public void testIdleConnectionsDoNotLockOutPeers() throws Exception {
+		List<InetSocketAddress> addresses = addresses(2);
+		ReplicatedCounter first = start(0, addresses);
+		List<Socket> idle = new ArrayList<Socket>();
+		try {
+			// more connections sending nothing than are read at once
+			for (int i = 0; i < 2 * ReplicatedCounter.READERS_PER_PEER; i++) {
+				idle.add(new Socket(addresses.get(0).getAddress(), addresses.get(0).getPort()));
+			}
+			ReplicatedCounter second = start(1, addresses);
+			second.getNextValue("alice");
+			awaitValue(first, "alice", 1);
+			for (Socket socket : idle) {
+				socket.setSoTimeout((int) TIMEOUT);
+				assertEquals(-1, socket.getInputStream().read());
+			}
+		} finally {
+			for (Socket socket : idle) {
+				socket.close();
+			}
+		}
+	}
+
+	@Test
+	public void testStuckPeerDoesNotDelayOthers() throws Exception {
+		List<InetSocketAddress> addresses = addresses(2);
+		// a peer that accepts connections and never reads, and one whose
+		// backlog is full so connecting to it times out
+		try (ServerSocket silent = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+				ServerSocket full = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+			List<Socket> backlog = new ArrayList<Socket>();
+			try {
+				for (int i = 0; i < 4; i++) {
+					Socket socket = new Socket();
+					try {
+						socket.connect(full.getLocalSocketAddress(), 100);
+					} catch (IOException e) {
+						// backlog full
+					}
+					backlog.add(socket);
+				}
+				addresses.add((InetSocketAddress) silent.getLocalSocketAddress());
+				addresses.add((InetSocketAddress) full.getLocalSocketAddress());
+				ReplicatedCounter first = start(0, addresses);
+				ReplicatedCounter second = start(1, addresses);
+
+				long started = System.currentTimeMillis();
+				for (int i = 1; i <= 20; i++) {
+					first.getNextValue("alice");
+					awaitValue(second, "alice", i);
+				}
+				long elapsed = System.currentTimeMillis() - started;
+				assertTrue("Took " + elapsed + " ms", elapsed < 20 * ReplicatedCounter.CONNECT_TIMEOUT / 4);
+			} finally {
+				for (Socket socket : backlog) {
+					socket.close();
+				}
+			}
+		}
+	}
+
+	/*
+	 * Validation of a wrong code, as the engine counts it.
+	 */
+	private static boolean attempt(Counter counter, String subject) {
+		if (counter.getCurrentValue(subject) > OTPEngine.MAX_ATTEMPTS) {
+			return false;
+		}
+		counter.getNextValue(subject);
+		return true;
+	}
+
+	private List<ReplicatedCounter> startNodes(int count) throws IOException {
+		List<InetSocketAddress> addresses = addresses(count);
+		List<ReplicatedCounter> nodes = new ArrayList<ReplicatedCounter>();
+		for (int i = 0; i < count; i++) {
+			nodes.add(start(i, addresses));
+		}
+		return nodes;
+	}
+
+	private ReplicatedCounter start(int nodeId, List<InetSocketAddress> addresses) throws IOException {
+		return start(nodeId, addresses, CLUSTER_KEY);
+	}
+
+	private ReplicatedCounter start(int nodeId, List<InetSocketAddress> addresses, SecretKey key)
+			throws IOException {
+		ReplicatedCounter node = new ReplicatedCounter(nodeId, addresses, key, 15, TimeUnit.MINUTES,
+				GOSSIP_INTERVAL);
+		started.add(node);
+		return node;
+	}
+
+	private static List<InetSocketAddress> addresses(int count) throws IOException {
+		List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+		for (int i = 0; i < count; i++) {
+			try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+				addresses.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), socket.getLocalPort()));
+			}
+		}
+		return addresses;
+	}
+
+	private static void awaitValue(ReplicatedCounter node, String subject, int expected) throws InterruptedException {
+		await(() -> node.getCurrentValue(subject) == expected);
+		assertEquals(expected, node.getCurrentValue(subject));
+	}
+
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+	}
+
+}
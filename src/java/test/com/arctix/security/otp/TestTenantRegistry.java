@@ -0,0 +1,188 @@
+package com.arctix.security.otp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.arctix.security.otp.OTPEngine.Result;
+
+import junit.framework.TestCase;
+
+public class TestTenantRegistry extends TestCase {
+
+	private Map<String, SecretKey> keys = new ConcurrentHashMap<String, SecretKey>();
+
+	private AtomicInteger loads = new AtomicInteger();
+
+	private KeyLoader loader = tenant -> {
+		loads.incrementAndGet();
+		return keys.get(tenant);
+	};
+
+	private String[] params = null;
+
+	@Before
+	public void setUp() throws Exception {
+		KeyGenerator generator = KeyGenerator.getInstance("AES");
+		for (int i = 0; i < 10; i++) {
+			keys.put("BRAND-" + i, generator.generateKey());
+		}
+		params = new String[] { "0010000123434343" };
+	}
+
+	@Test
+	public void testLoadsOnce() {
+		TenantRegistry registry = new TenantRegistry(loader, "HmacSHA1", new InMemorySubjectCounter(), 10);
+		OTPEngine engine = registry.getEngine("BRAND-0");
+		assertNotNull(engine);
+		assertSame(engine, registry.getEngine("BRAND-0"));
+		assertEquals(1, loads.get());
+		assertEquals(1, registry.getMisses());
+		assertEquals(1, registry.getHits());
+
+		// unknown tenants are not kept, and asked for again
+		assertNull(registry.getEngine("UNKNOWN"));
+		assertNull(registry.getEngine("UNKNOWN"));
+		assertEquals(3, loads.get());
+		assertEquals(1, registry.size());
+
+		registry.invalidate("BRAND-0");
+		assertNotSame(engine, registry.getEngine("BRAND-0"));
+		assertEquals(4, loads.get());
+	}
+
+	@Test
+	public void testTenantsKeptApart() {
+		TenantRegistry registry = new TenantRegistry(loader, "HmacSHA1", new InMemorySubjectCounter(), 10);
+		OTPEngine brand0 = registry.getEngine("BRAND-0");
+		OTPEngine brand1 = registry.getEngine("BRAND-1");
+
+		OTP otp = brand0.generatePasswordWithHmac(params);
+		assertEquals(Result.Code.FAIL_INVALID_CODE, brand1.validatePasswordWithHmac(otp, params).getResultCode());
+
+		// attempts of a subject in one tenant do not lock it out of another
+		for (int i = 0; i < OTPEngine.MAX_ATTEMPTS + 1; i++) {
+			brand1.validatePasswordWithHmac(otp, params);
+		}
+		assertEquals(Result.Code.SUCCESS, brand0.validatePasswordWithHmac(otp, params).getResultCode());
+	}
+
+	@Test
+	public void testEviction() {
+		TenantRegistry registry = new TenantRegistry(loader, "HmacSHA1", new InMemorySubjectCounter(), 3);
+		OTPEngine brand0 = registry.getEngine("BRAND-0");
+		registry.getEngine("BRAND-1");
+		registry.getEngine("BRAND-2");
+
+		// the tenant used again outlives the one used once
+		registry.getEngine("BRAND-0");
+		registry.getEngine("BRAND-3");
+		assertEquals(3, registry.size());
+		assertEquals(1, registry.getEvictions());
+		assertSame(brand0, registry.getEngine("BRAND-0"));
+		assertEquals(4, loads.get());
+		registry.getEngine("BRAND-1");
+		assertEquals(5, loads.get());
+
+		for (int i = 0; i < 10; i++) {
+			registry.getEngine("BRAND-" + i);
+		}
+		assertEquals(3, registry.size());
+	}
+
+	@Test
+	public void testEvictionKeepsState() {
+		TenantRegistry registry = new TenantRegistry(loader, "HmacSHA1", new InMemorySubjectCounter(), 1);
+		OTPEngine engine = registry.getEngine("BRAND-0");
+		OTP otp = engine.generatePasswordWithHmac(params);
+		assertEquals(Result.Code.SUCCESS, engine.validatePasswordWithHmac(otp, params).getResultCode());
+
+		// not looked up since it was loaded, a newcomer evicts it
+		registry.getEngine("BRAND-1");
+		assertEquals(1, registry.getEvictions());
+		OTPEngine reloaded = registry.getEngine("BRAND-0");
+		assertNotSame(engine, reloaded);
+
+		// and the reloaded engine still knows the code was used
+		assertEquals(Result.Code.FAIL_CODE_REPLAYED, reloaded.validatePasswordWithHmac(otp, params).getResultCode());
+	}
+
+	@Test
+	public void testConfigurer() {
+		TenantRegistry registry = new TenantRegistry(loader, "HmacSHA1", new InMemorySubjectCounter(), 10);
+		registry.setConfigurer(engine -> engine.setTokenVersion(OTPEngine.SUBJECT_TOKEN_VERSION));
+		assertEquals(39, registry.getEngine("BRAND-0").generatePasswordWithHmac(params).getHmac().length());
+	}
+
+	@Test
+	public void testFailedLoadRetried() {
+		AtomicInteger calls = new AtomicInteger();
+		TenantRegistry registry = new TenantRegistry(tenant -> {
+			if (calls.incrementAndGet() == 1) {
+				throw new IllegalStateException("Vault unavailable");
+			}
+			return keys.get(tenant);
+		}, "HmacSHA1", new InMemorySubjectCounter(), 10);
+		try {
+			registry.getEngine("BRAND-0");
+			fail("Load failed");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertEquals(1, registry.getLoadFailures());
+		assertEquals(0, registry.size());
+		assertNotNull(registry.getEngine("BRAND-0"));
+	}
+
+	@Test
+	public void testConcurrentMissesLoadOnce() throws Exception {
+		final CountDownLatch loading = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final TenantRegistry registry = new TenantRegistry(tenant -> {
+			loads.incrementAndGet();
+			loading.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			return keys.get(tenant);
+		}, "HmacSHA1", new InMemorySubjectCounter(), 10);
+
+		final int threads = 8;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<OTPEngine>> futures = new ArrayList<Future<OTPEngine>>();
+			for (int t = 0; t < threads; t++) {
+				futures.add(executor.submit(() -> registry.getEngine("BRAND-0")));
+			}
+			assertTrue(loading.await(10, TimeUnit.SECONDS));
+			// give the other lookups time to find the load running
+			Thread.sleep(100);
+			release.countDown();
+			OTPEngine engine = futures.get(0).get(10, TimeUnit.SECONDS);
+			for (Future<OTPEngine> future : futures) {
+				assertSame(engine, future.get(10, TimeUnit.SECONDS));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(1, loads.get());
+		assertEquals(1, registry.getMisses());
+		assertEquals(threads - 1, registry.getHits());
+	}
+
+}
@@ -1,7 +1,13 @@
 package com.arctix.security.otp;
 
+import java.text.SimpleDateFormat;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.Random;
+import java.util.TimeZone;
 
 import org.junit.Test;
 
@@ -38,4 +44,66 @@ public class TestTimeLaps extends TestCase {
 
 	}
 
+	@Test
+	public void testLapWindowMatchesCalendar() {
+		Random random = new Random(42);
+		String[] zones = { "UTC", "America/New_York", "Europe/London", "Asia/Kolkata", "Asia/Kathmandu",
+				"Australia/Lord_Howe" };
+		for (String zoneId : zones) {
+			ZoneId zone = ZoneId.of(zoneId);
+			SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmm");
+			format.setTimeZone(TimeZone.getTimeZone(zone));
+			for (int i = 0; i < 2000; i++) {
+				long millis = 1262304000000L + (long) (random.nextDouble() * 20 * 365 * 24 * 3600 * 1000L);
+				LapWindow window = new TimeLaps(5, Clock.fixed(Instant.ofEpochMilli(millis), zone)).getLapWindow(3);
+				Calendar[] expected = getCalendarLaps(millis, TimeZone.getTimeZone(zone), 5, 3);
+				for (int lap = 0; lap < 3; lap++) {
+					String expectedLap = format.format(expected[lap].getTime());
+					assertEquals(zoneId + " at " + millis, expectedLap, window.getLap(lap));
+					assertEquals(expected[lap].getTimeInMillis(), window.getStartMillis(lap));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testLapWindowCachedUntilRollover() {
+		MutableClock clock = new MutableClock(Instant.parse("2015-06-01T10:02:30Z").toEpochMilli());
+		TimeLaps timeLaps = new TimeLaps(5, clock);
+
+		LapWindow window = timeLaps.getLapWindow(3);
+		assertEquals(3, window.size());
+		assertEquals("201506011000", window.getLap(0));
+		assertEquals("201506010955", window.getLap(1));
+		assertEquals("201506010950", window.getLap(2));
+
+		clock.millis += 2 * 60 * 1000;
+		assertSame(window, timeLaps.getLapWindow(3));
+		assertSame(window, timeLaps.getLapWindow(1));
+
+		clock.millis += 60 * 1000;
+		LapWindow next = timeLaps.getLapWindow(3);
+		assertNotSame(window, next);
+		assertEquals("201506011005", next.getLap(0));
+		assertEquals("201506011000", next.getLap(1));
+	}
+
+	/*
+	 * Laps as computed with Calendar arithmetic.
+	 */
+	private static Calendar[] getCalendarLaps(long millis, TimeZone zone, int interval, int n) {
+		Calendar[] timeLaps = new Calendar[n];
+		timeLaps[0] = new GregorianCalendar(zone);
+		timeLaps[0].setTimeInMillis(millis);
+		timeLaps[0].set(Calendar.MILLISECOND, 0);
+		timeLaps[0].set(Calendar.SECOND, 0);
+		timeLaps[0].add(Calendar.MINUTE, (timeLaps[0].get(Calendar.MINUTE) % interval) * -1);
+		for (int i = 1; i < n; i++) {
+			timeLaps[i] = new GregorianCalendar(zone);
+			timeLaps[i].setTimeInMillis(timeLaps[i - 1].getTimeInMillis());
+			timeLaps[i].add(Calendar.MINUTE, interval * -1);
+		}
+		return timeLaps;
+	}
+
 }
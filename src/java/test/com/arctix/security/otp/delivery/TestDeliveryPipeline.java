@@ -0,0 +1,166 @@
+package com.arctix.security.otp.delivery;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.KeyGenerator;
+
+import org.junit.Test;
+
+import com.arctix.security.otp.OTP;
+import com.arctix.security.otp.OTPEngine;
+import com.arctix.security.otp.OTPEngine.Result;
+
+import junit.framework.TestCase;
+
+public class TestDeliveryPipeline extends TestCase {
+
+	@Test
+	public void testDeliverAndValidate() throws Exception {
+		OTPEngine engine = OTPEngine.getInstance(KeyGenerator.getInstance("AES").generateKey());
+		InMemoryChannel sms = new InMemoryChannel("sms");
+		InMemoryChannel email = new InMemoryChannel("email");
+		try (DeliveryPipeline pipeline = new DeliveryPipeline(sms, email)) {
+			String[] params = new String[] { "CUSTOMER-1" };
+			OTP otp = engine.generatePasswordWithHmac(params);
+			assertEquals(Delivery.Status.DELIVERED, pipeline.deliver("sms", "+15550100", otp).get(5, TimeUnit.SECONDS));
+
+			// the user enters what the phone received along with the hmac
+			String received = sms.getLastPassword("+15550100");
+			assertEquals(Result.Code.SUCCESS,
+					engine.validatePasswordWithHmac(new OTP(received, otp.getHmac()), params).getResultCode());
+			assertNull(email.getLastPassword("+15550100"));
+
+			try {
+				pipeline.deliver("pigeon", "loft", otp);
+				fail("Unknown channel");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void testBatching() throws Exception {
+		InMemoryChannel sms = new InMemoryChannel("sms", 50, 5, TimeUnit.MILLISECONDS);
+		try (DeliveryPipeline pipeline = new DeliveryPipeline(sms)) {
+			List<CompletableFuture<Delivery.Status>> statuses = new ArrayList<CompletableFuture<Delivery.Status>>();
+			for (int i = 0; i < 500; i++) {
+				statuses.add(pipeline.deliver("sms", new Delivery("user-" + i, Integer.toString(i))));
+			}
+			for (CompletableFuture<Delivery.Status> status : statuses) {
+				assertEquals(Delivery.Status.DELIVERED, status.get(5, TimeUnit.SECONDS));
+			}
+			assertEquals(500, sms.getSent());
+			assertEquals("499", sms.getLastPassword("user-499"));
+			// passwords queued while a batch was out go together
+			assertTrue("Batches " + sms.getBatches(), sms.getBatches() < 100);
+			assertEquals(sms.getBatches(), pipeline.getBatches());
+		}
+
+		// lingering fills batches under light load
+		InMemoryChannel email = new InMemoryChannel("email");
+		try (DeliveryPipeline pipeline = new DeliveryPipeline(Arrays.asList(email), 100, 100, 500,
+				TimeUnit.MILLISECONDS)) {
+			List<CompletableFuture<Delivery.Status>> statuses = new ArrayList<CompletableFuture<Delivery.Status>>();
+			for (int i = 0; i < 10; i++) {
+				statuses.add(pipeline.deliver("email", new Delivery("user-" + i, Integer.toString(i))));
+			}
+			for (CompletableFuture<Delivery.Status> status : statuses) {
+				assertEquals(Delivery.Status.DELIVERED, status.get(5, TimeUnit.SECONDS));
+			}
+			assertTrue("Batches " + email.getBatches(), email.getBatches() < 10);
+		}
+	}
+
+	@Test
+	public void testBackpressure() throws Exception {
+		BlockedChannel channel = new BlockedChannel();
+		try (DeliveryPipeline pipeline = new DeliveryPipeline(Arrays.asList(channel), 2, 10, 0,
+				TimeUnit.MILLISECONDS)) {
+			CompletableFuture<Delivery.Status> first = pipeline.deliver("blocked", new Delivery("a", "1"));
+			channel.sending.await(5, TimeUnit.SECONDS);
+
+			// the sender holds the first, the queue takes two more
+			CompletableFuture<Delivery.Status> second = pipeline.deliver("blocked", new Delivery("b", "2"));
+			CompletableFuture<Delivery.Status> third = pipeline.deliver("blocked", new Delivery("c", "3"));
+			assertEquals(2, pipeline.getQueued("blocked"));
+			CompletableFuture<Delivery.Status> fourth = pipeline.deliver("blocked", new Delivery("d", "4"));
+			assertEquals(Delivery.Status.REJECTED, fourth.getNow(null));
+			assertEquals(1, pipeline.getRejected());
+
+			channel.release.countDown();
+			assertEquals(Delivery.Status.DELIVERED, first.get(5, TimeUnit.SECONDS));
+			assertEquals(Delivery.Status.DELIVERED, second.get(5, TimeUnit.SECONDS));
+			assertEquals(Delivery.Status.DELIVERED, third.get(5, TimeUnit.SECONDS));
+			assertEquals(3, pipeline.getDelivered());
+		}
+	}
+
+	@Test
+	public void testFailures() throws Exception {
+		InMemoryChannel sms = new InMemoryChannel("sms");
+		try (DeliveryPipeline pipeline = new DeliveryPipeline(sms)) {
+			sms.setFailing(true);
+			assertEquals(Delivery.Status.FAILED,
+					pipeline.deliver("sms", new Delivery("a", "1")).get(5, TimeUnit.SECONDS));
+			sms.setFailing(false);
+			assertEquals(Delivery.Status.DELIVERED,
+					pipeline.deliver("sms", new Delivery("a", "2")).get(5, TimeUnit.SECONDS));
+			assertEquals(1, pipeline.getFailed());
+			assertEquals(1, pipeline.getDelivered());
+		}
+	}
+
+	@Test
+	public void testCloseDrainsQueue() throws Exception {
+		InMemoryChannel sms = new InMemoryChannel("sms", 10, 1, TimeUnit.MILLISECONDS);
+		DeliveryPipeline pipeline = new DeliveryPipeline(sms);
+		List<CompletableFuture<Delivery.Status>> statuses = new ArrayList<CompletableFuture<Delivery.Status>>();
+		for (int i = 0; i < 100; i++) {
+			statuses.add(pipeline.deliver("sms", new Delivery("user-" + i, Integer.toString(i))));
+		}
+		pipeline.close();
+		for (CompletableFuture<Delivery.Status> status : statuses) {
+			assertEquals(Delivery.Status.DELIVERED, status.getNow(null));
+		}
+		assertEquals(Delivery.Status.REJECTED, pipeline.deliver("sms", new Delivery("late", "1")).getNow(null));
+	}
+
+	/**
+	 * Channel holding its first batch until released.
+	 */
+	private static class BlockedChannel implements DeliveryChannel {
+
+		final CountDownLatch sending = new CountDownLatch(1);
+
+		final CountDownLatch release = new CountDownLatch(1);
+
+		@Override
+		public String getName() {
+			return "blocked";
+		}
+
+		@Override
+		public int getMaxBatchSize() {
+			return 1;
+		}
+
+		@Override
+		public List<Delivery.Status> send(List<Delivery> batch) throws IOException {
+			sending.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+			return Arrays.asList(Delivery.Status.DELIVERED);
+		}
+	}
+
+}
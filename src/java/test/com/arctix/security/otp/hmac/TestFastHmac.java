@@ -0,0 +1,207 @@
+package com.arctix.security.otp.hmac;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class TestFastHmac extends TestCase {
+
+	@Test
+	public void testRfc2202Vectors() {
+		// HMAC-SHA1 test cases 1 to 7
+		assertMac(HMACEngine.FAST_HMAC_SHA1, repeat(0x0b, 20), "Hi There".getBytes(),
+				"b617318655057264e28bc0b6fb378c8ef146be00");
+		assertMac(HMACEngine.FAST_HMAC_SHA1, "Jefe".getBytes(), "what do ya want for nothing?".getBytes(),
+				"effcdf6ae5eb2fa2d27416d5f184df9c259a7c79");
+		assertMac(HMACEngine.FAST_HMAC_SHA1, repeat(0xaa, 20), repeat(0xdd, 50),
+				"125d7342b9ac11cd91a39af48aa17b4f63f175d3");
+		assertMac(HMACEngine.FAST_HMAC_SHA1, hex("0102030405060708090a0b0c0d0e0f10111213141516171819"),
+				repeat(0xcd, 50), "4c9007f4026250c6bc8414f9bf50c86c2d7235da");
+		assertMac(HMACEngine.FAST_HMAC_SHA1, repeat(0x0c, 20), "Test With Truncation".getBytes(),
+				"4c1a03424b55e07fe7f27be1d58bb9324a9a5a04");
+		assertMac(HMACEngine.FAST_HMAC_SHA1, repeat(0xaa, 80),
+				"Test Using Larger Than Block-Size Key - Hash Key First".getBytes(),
+				"aa4ae5e15272d00e95705637ce8a3b55ed402112");
+		assertMac(HMACEngine.FAST_HMAC_SHA1, repeat(0xaa, 80),
+				"Test Using Larger Than Block-Size Key and Larger Than One Block-Size Data".getBytes(),
+				"e8e99d0f45237d786d6bbaa7965c7808bbff1a91");
+	}
+
+	@Test
+	public void testRfc4231Vectors() {
+		// HMAC-SHA256 test cases 1 to 7, case 5 is truncated and skipped
+		assertMac(HMACEngine.FAST_HMAC_SHA256, repeat(0x0b, 20), "Hi There".getBytes(),
+				"b0344c61d8db38535ca8afceaf0bf12b881dc200c9833da726e9376c2e32cff7");
+		assertMac(HMACEngine.FAST_HMAC_SHA256, "Jefe".getBytes(), "what do ya want for nothing?".getBytes(),
+				"5bdcc146bf60754e6a042426089575c75a003f089d2739839dec58b964ec3843");
+		assertMac(HMACEngine.FAST_HMAC_SHA256, repeat(0xaa, 20), repeat(0xdd, 50),
+				"773ea91e36800e46854db8ebd09181a72959098b3ef8c122d9635514ced565fe");
+		assertMac(HMACEngine.FAST_HMAC_SHA256, hex("0102030405060708090a0b0c0d0e0f10111213141516171819"),
+				repeat(0xcd, 50), "82558a389a443c0ea4cc819899f2083a85f0faa3e578f8077a2e3ff46729665b");
+		assertMac(HMACEngine.FAST_HMAC_SHA256, repeat(0xaa, 131),
+				"Test Using Larger Than Block-Size Key - Hash Key First".getBytes(),
+				"60e431591ee0b67f0d8a26aacbf5b77f8e0bc6213728c5140546040f0ee37f54");
+		assertMac(HMACEngine.FAST_HMAC_SHA256, repeat(0xaa, 131),
+				("This is a test using a larger than block-size key and a larger than block-size data. "
+						+ "The key needs to be hashed before being used by the HMAC algorithm.").getBytes(),
+				"9b09ffa71b942fcb27635fbcd5b0e944bfdc63644f0713938a7f51535c3a35e2");
+	}
+
+	@Test
+	public void testMatchesJca() throws Exception {
+		Random random = new Random(42);
+		String[][] algorithms = { { HMACEngine.FAST_HMAC_SHA1, "HmacSHA1" },
+				{ HMACEngine.FAST_HMAC_SHA256, "HmacSHA256" } };
+		for (String[] algorithm : algorithms) {
+			for (int keyLength : new int[] { 1, 16, 63, 64, 65, 200 }) {
+				byte[] keyBytes = new byte[keyLength];
+				random.nextBytes(keyBytes);
+				SecretKey key = new SecretKeySpec(keyBytes, algorithm[1]);
+				Mac jca = Mac.getInstance(algorithm[1]);
+				jca.init(key);
+				for (boolean jdkDigest : new boolean[] { false, true }) {
+					MacFunction fast = FastHmac.getInstance(algorithm[0], key, jdkDigest);
+
+					// every length around the padding and block boundaries
+					for (int length = 0; length <= 200; length++) {
+						byte[] message = new byte[length];
+						random.nextBytes(message);
+						byte[] expected = jca.doFinal(message);
+
+						byte[] actual = new byte[fast.getMacLength()];
+						fast.update(message, 0, length);
+						fast.doFinal(actual, 0);
+						assertTrue(algorithm[0] + " key " + keyLength + " message " + length,
+								Arrays.equals(expected, actual));
+
+						// fed in uneven pieces, on a copy
+						MacFunction copy = fast.copy();
+						int split = length / 3;
+						copy.update(message, 0, split);
+						copy.update(ByteBuffer.wrap(message, split, length - split).slice());
+						Arrays.fill(actual, (byte) 0);
+						copy.doFinal(actual, 0);
+						assertTrue(Arrays.equals(expected, actual));
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testEngine() {
+		SecretKey key = new SecretKeySpec("0123456789abcdef".getBytes(), "AES");
+		String[] params = new String[] { "0010000123434343", "201501010000" };
+		HMACEngine jca = HMACEngine.getInstance(key, "HmacSHA256");
+		HMACEngine fast = HMACEngine.getInstance(key, HMACEngine.FAST_HMAC_SHA256);
+		assertEquals(32, fast.getMacLength());
+		assertEquals(jca.generateHMAC("4440993", params), fast.generateHMAC("4440993", params));
+		assertTrue(fast.validateHMAC(jca.generateHMAC("4440993", params), "4440993", params));
+
+		ByteBuffer direct = ByteBuffer.allocateDirect(7).put("4440993".getBytes());
+		direct.flip();
+		ByteBuffer out = ByteBuffer.allocate(32);
+		fast.generateHMAC(direct, new ByteBuffer[0], out);
+		assertEquals(0, direct.position());
+		assertEquals(jca.generateHMAC("4440993", new String[0]), hexOf(out.array()));
+
+		// a prefix continues from its saved state, or is hashed again by
+		// another engine
+		byte[] lap = "lap".getBytes();
+		HMACEngine.Prefix prefix = fast.precompute("0010000123434343".getBytes());
+		byte[] expected = new byte[10];
+		jca.generateHMAC("0010000123434343", new String[] { "4440993" }, lap, expected, 0, 10);
+		byte[] actual = new byte[10];
+		fast.generateHMAC(prefix, "4440993", lap, actual, 0, 10);
+		assertTrue(Arrays.equals(expected, actual));
+		assertTrue(jca.validateHMAC(actual, 0, 10, prefix, "4440993", lap));
+		assertFalse(jca.validateHMAC(actual, 0, 10, prefix, "4440994", lap));
+
+		assertNull(FastHmac.getInstance("HmacSHA1", key));
+	}
+
+	@Test
+	public void testSaveRestore() throws Exception {
+		Random random = new Random(7);
+		byte[] keyBytes = new byte[32];
+		random.nextBytes(keyBytes);
+		SecretKey key = new SecretKeySpec(keyBytes, "HmacSHA256");
+		Mac jca = Mac.getInstance("HmacSHA256");
+		jca.init(key);
+		MacFunction[] macs = { FastHmac.getInstance(HMACEngine.FAST_HMAC_SHA256, key, false),
+				FastHmac.getInstance(HMACEngine.FAST_HMAC_SHA256, key, true), JcaMac.getInstance("HmacSHA256", key) };
+		for (MacFunction mac : macs) {
+			// prefixes ending inside and on block boundaries
+			for (int length : new int[] { 0, 5, 63, 64, 100 }) {
+				byte[] prefix = new byte[length];
+				random.nextBytes(prefix);
+				mac.update(prefix, 0, length);
+				Object state = mac.save();
+				assertNotNull(state);
+				for (int suffixLength : new int[] { 0, 10, 70 }) {
+					byte[] suffix = new byte[suffixLength];
+					random.nextBytes(suffix);
+					jca.update(prefix);
+					byte[] expected = jca.doFinal(suffix);
+
+					byte[] actual = new byte[mac.getMacLength()];
+					mac.restore(state);
+					mac.update(suffix, 0, suffixLength);
+					mac.doFinal(actual, 0);
+					assertTrue(mac.getClass().getSimpleName() + " prefix " + length + " suffix " + suffixLength,
+							Arrays.equals(expected, actual));
+
+					// the saved state is not consumed, nor is a fresh one
+					mac.update(suffix, 0, suffixLength);
+					mac.doFinal(actual, 0);
+					assertTrue(Arrays.equals(jca.doFinal(suffix), actual));
+				}
+			}
+		}
+	}
+
+	private static void assertMac(String algorithm, byte[] key, byte[] message, String expected) {
+		for (boolean jdkDigest : new boolean[] { false, true }) {
+			MacFunction mac = FastHmac.getInstance(algorithm, new SecretKeySpec(key, "RAW"), jdkDigest);
+			byte[] out = new byte[mac.getMacLength() + 2];
+			mac.update(message, 0, message.length);
+			mac.doFinal(out, 2);
+			assertEquals(expected, hexOf(out).substring(4).toLowerCase());
+			// ready for the next message
+			mac.update(message, 0, message.length);
+			mac.doFinal(out, 2);
+			assertEquals(expected, hexOf(out).substring(4).toLowerCase());
+		}
+	}
+
+	private static byte[] repeat(int value, int count) {
+		byte[] bytes = new byte[count];
+		Arrays.fill(bytes, (byte) value);
+		return bytes;
+	}
+
+	private static byte[] hex(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+		}
+		return bytes;
+	}
+
+	private static String hexOf(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : bytes) {
+			hex.append(String.format("%02X", b));
+		}
+		return hex.toString();
+	}
+
+}
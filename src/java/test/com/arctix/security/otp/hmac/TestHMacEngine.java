@@ -1,5 +1,8 @@
 package com.arctix.security.otp.hmac;
 
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 
@@ -40,6 +43,96 @@ public class TestHMacEngine extends TestCase {
 
 	}
 
+	@Test
+	public void testHmacCodeLowerCase() {
+		HMACEngine engine = HMACEngine.getInstance(key, algorithm);
+		String hmac = engine.generateHMAC(code, params);
+		assertTrue(engine.validateHMAC(hmac.toLowerCase(), code, params));
+		assertFalse(engine.validateHMAC(hmac.substring(2), code, params));
+		assertFalse(engine.validateHMAC("ZZ" + hmac.substring(2), code, params));
+	}
+
+	@Test
+	public void testHmacCodeWithSuffix() {
+		HMACEngine engine = HMACEngine.getInstance(key, algorithm);
+		String hmac = engine.generateHMAC(code, new String[] { params[0], "201501010005" });
+		assertEquals(hmac, engine.generateHMAC(code, params, "201501010005".getBytes()));
+		assertTrue(engine.validateHMAC(hmac, code, params, "201501010005".getBytes()));
+		assertFalse(engine.validateHMAC(hmac, code, params, "201501010000".getBytes()));
+	}
+
+	@Test
+	public void testByteArrayHmac() {
+		HMACEngine engine = HMACEngine.getInstance(key, algorithm);
+		byte[][] paramBytes = new byte[][] { params[0].getBytes() };
+
+		byte[] out = new byte[engine.getMacLength() + 3];
+		assertEquals(engine.getMacLength(), engine.generateHMAC(code.getBytes(), paramBytes, out, 3));
+		assertEquals(engine.generateHMAC(code, params), toHex(out, 3, engine.getMacLength()));
+
+		assertTrue(engine.validateHMAC(out, 3, engine.getMacLength(), code.getBytes(), paramBytes));
+		out[out.length - 1] ^= 1;
+		assertFalse(engine.validateHMAC(out, 3, engine.getMacLength(), code.getBytes(), paramBytes));
+		assertFalse(engine.validateHMAC(out, 3, engine.getMacLength() - 1, code.getBytes(), paramBytes));
+	}
+
+	@Test
+	public void testTruncatedHmac() {
+		HMACEngine engine = HMACEngine.getInstance(key, algorithm);
+		byte[] suffix = "201501010005".getBytes();
+
+		byte[] out = new byte[12];
+		assertEquals(10, engine.generateHMAC(code, params, suffix, out, 2, 10));
+		assertEquals(engine.generateHMAC(code, params, suffix).substring(0, 20), toHex(out, 2, 10));
+
+		assertTrue(engine.validateHMAC(out, 2, 10, code, params, suffix));
+		assertFalse(engine.validateHMAC(out, 2, 10, code, params, null));
+		out[11] ^= 1;
+		assertFalse(engine.validateHMAC(out, 2, 10, code, params, suffix));
+
+		try {
+			engine.validateHMAC(new byte[32], 0, engine.getMacLength() + 1, code, params, suffix);
+			fail("Truncated HMAC longer than the HMAC");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testByteBufferHmac() {
+		HMACEngine engine = HMACEngine.getInstance(key, algorithm);
+		ByteBuffer text = ByteBuffer.allocateDirect(code.length());
+		text.put(code.getBytes()).flip();
+		ByteBuffer[] paramBuffers = new ByteBuffer[] { ByteBuffer.wrap(params[0].getBytes()) };
+
+		ByteBuffer out = ByteBuffer.allocate(engine.getMacLength());
+		engine.generateHMAC(text, paramBuffers, out);
+		assertFalse(out.hasRemaining());
+		assertEquals(code.length(), text.remaining());
+		assertEquals(engine.generateHMAC(code, params), toHex(out.array(), 0, engine.getMacLength()));
+
+		out.flip();
+		assertTrue(engine.validateHMAC(out, text, paramBuffers));
+		assertTrue(engine.validateHMAC(out, text, paramBuffers));
+		out.put(0, (byte) (out.get(0) ^ 1));
+		assertFalse(engine.validateHMAC(out, text, paramBuffers));
+	}
+
+	@Test
+	public void testDiscardedEngineCollected() throws Exception {
+		HMACEngine engine = HMACEngine.getInstance(key, algorithm);
+		assertTrue(engine.validateHMAC(engine.generateHMAC(code, params), code, params));
+		WeakReference<HMACEngine> reference = new WeakReference<HMACEngine>(engine);
+		engine = null;
+
+		// the workspace this thread keeps must not hold on to its engine
+		for (int i = 0; i < 50 && reference.get() != null; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertNull(reference.get());
+	}
+
 	@Test
 	public void testCheckSum() throws Exception {
 		KeyGenerator keyGen = KeyGenerator.getInstance("AES");
@@ -58,4 +151,12 @@ public class TestHMacEngine extends TestCase {
 
 	}
 
+	private static String toHex(byte[] bytes, int offset, int length) {
+		StringBuilder buf = new StringBuilder();
+		for (int i = offset; i < offset + length; i++) {
+			buf.append(String.format("%02X", bytes[i]));
+		}
+		return buf.toString();
+	}
+
 }
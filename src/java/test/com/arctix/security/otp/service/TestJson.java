@@ -0,0 +1,75 @@
+package com.arctix.security.otp.service;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class TestJson extends TestCase {
+
+	@Test
+	public void testParse() {
+		Map<String, Object> object = Json.parseObject(
+				" { \"params\" : [\"a\", \"b\\\"c\", \"\\u00e9\\n\"], \"n\": -12, \"x\": 1.5e3, \"t\": true, \"z\": null,"
+						+ " \"o\": {\"k\": []} } ");
+		assertEquals(Arrays.asList("a", "b\"c", "\u00e9\n"), object.get("params"));
+		assertEquals(-12L, object.get("n"));
+		assertEquals(1500.0, object.get("x"));
+		assertEquals(Boolean.TRUE, object.get("t"));
+		assertTrue(object.containsKey("z"));
+		assertNull(object.get("z"));
+		assertEquals(0, ((List<?>) ((Map<?, ?>) object.get("o")).get("k")).size());
+
+		assertTrue(Arrays.equals(new String[] { "a", "b\"c", "\u00e9\n" }, Json.getStrings(object, "params")));
+		assertEquals(0, Json.getStrings(object, "missing").length);
+		assertNull(Json.getString(object, "missing"));
+	}
+
+	@Test
+	public void testMalformed() {
+		String[] malformed = { "", "[]", "{", "{\"a\"}", "{\"a\":}", "{\"a\":1,}", "{\"a\":\"x}", "{\"a\":tru}",
+				"{\"a\":1} x", "{\"a\":\"\\q\"}", "{\"a\":\"\\u12\"}", "{\"a\":--1}", "{a:1}",
+				"{\"a\":\"line\nbreak\"}" };
+		for (String text : malformed) {
+			try {
+				Json.parseObject(text);
+				fail("Accepted " + text);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+		StringBuilder deep = new StringBuilder("{\"a\":");
+		for (int i = 0; i < Json.MAX_DEPTH; i++) {
+			deep.append('[');
+		}
+		try {
+			Json.parseObject(deep.toString());
+			fail("Nested too deep");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			Json.getStrings(Json.parseObject("{\"params\":[1]}"), "params");
+			fail("Numbers are not params");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testWriteAndParseBack() {
+		String written = new Json.Writer().field("s", "q\"\\\n\u0001\u00e9").field("n", 42).field("b", false)
+				.field("o", new Json.Writer().field("k", "v")).field("z", (String) null).toString();
+		Map<String, Object> object = Json.parseObject(written);
+		assertEquals("q\"\\\n\u0001\u00e9", object.get("s"));
+		assertEquals(42L, object.get("n"));
+		assertEquals(Boolean.FALSE, object.get("b"));
+		assertEquals("v", ((Map<?, ?>) object.get("o")).get("k"));
+		assertNull(object.get("z"));
+		assertEquals("{}", new Json.Writer().toString());
+	}
+
+}
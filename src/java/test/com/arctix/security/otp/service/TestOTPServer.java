@@ -0,0 +1,146 @@
+package com.arctix.security.otp.service;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.KeyGenerator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.arctix.security.otp.InMemoryOTPMetrics;
+import com.arctix.security.otp.OTPEngine;
+import com.arctix.security.otp.RateLimiter;
+import com.arctix.security.otp.delivery.DeliveryPipeline;
+import com.arctix.security.otp.delivery.InMemoryChannel;
+
+import junit.framework.TestCase;
+
+public class TestOTPServer extends TestCase {
+
+	private OTPEngine engine;
+
+	private OTPServer server;
+
+	private HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+
+	@Before
+	public void setUp() throws Exception {
+		engine = OTPEngine.getInstance(KeyGenerator.getInstance("AES").generateKey());
+		server = new OTPServer(engine, new InMemoryOTPMetrics(),
+				new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), OTPServer.newExecutor("virtual", 4));
+		server.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.close();
+	}
+
+	@Test
+	public void testGenerateAndValidate() throws Exception {
+		Map<String, Object> generated = post("/otp/generate", "{\"params\":[\"CUSTOMER-1\"]}", 200);
+		assertEquals("SUCCESS", generated.get("result"));
+		String password = (String) generated.get("password");
+		String hmac = (String) generated.get("hmac");
+
+		String validation = new Json.Writer().field("password", password).field("hmac", hmac).toString();
+		// params belong to the password
+		assertEquals("FAIL_INVALID_CODE", post("/otp/validate", validation, 200).get("result"));
+		validation = validation.substring(0, validation.length() - 1) + ",\"params\":[\"CUSTOMER-1\"]}";
+		assertEquals("SUCCESS", post("/otp/validate", validation, 200).get("result"));
+		assertEquals("FAIL_CODE_REPLAYED", post("/otp/validate", validation, 200).get("result"));
+
+		String wrong = "{\"password\":\"12ab\",\"hmac\":\"" + hmac + "\",\"params\":[\"CUSTOMER-1\"]}";
+		assertEquals("FAIL_INVALID_CODE", post("/otp/validate", wrong, 200).get("result"));
+	}
+
+	@Test
+	public void testBadRequests() throws Exception {
+		assertTrue(post("/otp/generate", "{\"params\":", 400).containsKey("error"));
+		assertTrue(post("/otp/generate", "", 400).containsKey("error"));
+		assertTrue(post("/otp/validate", "{\"password\":\"123\"}", 400).containsKey("error"));
+		assertTrue(post("/otp/generate", "{\"params\":[1]}", 400).containsKey("error"));
+
+		StringBuilder large = new StringBuilder("{\"params\":[\"");
+		while (large.length() <= OTPServer.MAX_BODY) {
+			large.append("xxxxxxxxxxxxxxxx");
+		}
+		assertTrue(post("/otp/generate", large.append("\"]}").toString(), 413).containsKey("error"));
+
+		HttpResponse<String> response = client.send(HttpRequest.newBuilder(uri("/otp/generate")).GET().build(),
+				HttpResponse.BodyHandlers.ofString());
+		assertEquals(405, response.statusCode());
+	}
+
+	@Test
+	public void testRateLimitAndDelivery() throws Exception {
+		engine.setRateLimiter(new RateLimiter(2, 1, TimeUnit.HOURS, 1000));
+		InMemoryChannel sms = new InMemoryChannel("sms");
+		try (DeliveryPipeline pipeline = new DeliveryPipeline(sms)) {
+			server.setDeliveryPipeline(pipeline);
+			String request = "{\"params\":[\"CUSTOMER-2\"],\"channel\":\"sms\",\"recipient\":\"+15550100\"}";
+			Map<String, Object> generated = post("/otp/generate", request, 200);
+			assertEquals("SUCCESS", generated.get("result"));
+			// the password goes to the phone only
+			assertNull(generated.get("password"));
+			assertNotNull(generated.get("hmac"));
+
+			assertEquals("SUCCESS", post("/otp/generate", request, 200).get("result"));
+			assertEquals("FAIL_RATE_LIMITED", post("/otp/generate", request, 200).get("result"));
+		}
+		// closing the pipeline delivered what it queued
+		assertNotNull(sms.getLastPassword("+15550100"));
+		assertEquals(2, sms.getSent());
+	}
+
+	@Test
+	public void testHealth() throws Exception {
+		// synthetic passwords are not counted
+		engine.warmUp(10);
+		post("/otp/generate", "{\"params\":[\"CUSTOMER-3\"]}", 200);
+		HttpResponse<String> response = client.send(HttpRequest.newBuilder(uri("/health")).GET().build(),
+				HttpResponse.BodyHandlers.ofString());
+		assertEquals(200, response.statusCode());
+		Map<String, Object> health = Json.parseObject(response.body());
+		assertEquals("UP", health.get("status"));
+		assertEquals(Boolean.TRUE, health.get("ready"));
+		assertEquals(1L, health.get("generated"));
+		assertEquals(2L, health.get("requests"));
+		assertTrue(health.get("results") instanceof Map);
+		assertEquals(0L, health.get("replayCacheOverflows"));
+	}
+
+	@Test
+	public void testExecutors() {
+		OTPServer.newExecutor("fixed", 2).shutdown();
+		OTPServer.newExecutor("cached", 2).shutdown();
+		try {
+			OTPServer.newExecutor("green", 2);
+			fail("Unknown executor");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	private Map<String, Object> post(String path, String body, int expectedStatus) throws Exception {
+		HttpResponse<String> response = client.send(
+				HttpRequest.newBuilder(uri(path)).POST(HttpRequest.BodyPublishers.ofString(body)).build(),
+				HttpResponse.BodyHandlers.ofString());
+		assertEquals(response.body(), expectedStatus, response.statusCode());
+		assertEquals("application/json", response.headers().firstValue("Content-Type").orElse(null));
+		return Json.parseObject(response.body());
+	}
+
+	private URI uri(String path) {
+		return URI.create("http://127.0.0.1:" + server.getAddress().getPort() + path);
+	}
+
+}